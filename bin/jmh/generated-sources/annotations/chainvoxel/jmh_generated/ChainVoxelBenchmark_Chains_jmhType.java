@@ -0,0 +1,4 @@
+package chainvoxel.jmh_generated;
+public class ChainVoxelBenchmark_Chains_jmhType extends ChainVoxelBenchmark_Chains_jmhType_B3 {
+}
+
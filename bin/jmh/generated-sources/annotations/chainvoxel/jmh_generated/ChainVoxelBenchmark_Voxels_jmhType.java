@@ -0,0 +1,4 @@
+package chainvoxel.jmh_generated;
+public class ChainVoxelBenchmark_Voxels_jmhType extends ChainVoxelBenchmark_Voxels_jmhType_B3 {
+}
+
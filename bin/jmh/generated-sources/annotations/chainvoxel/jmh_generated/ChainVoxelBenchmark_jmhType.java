@@ -0,0 +1,4 @@
+package chainvoxel.jmh_generated;
+public class ChainVoxelBenchmark_jmhType extends ChainVoxelBenchmark_jmhType_B3 {
+}
+
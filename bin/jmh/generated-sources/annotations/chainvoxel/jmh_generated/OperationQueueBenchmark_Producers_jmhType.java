@@ -0,0 +1,4 @@
+package chainvoxel.jmh_generated;
+public class OperationQueueBenchmark_Producers_jmhType extends OperationQueueBenchmark_Producers_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package chainvoxel.jmh_generated;
+public class OperationQueueBenchmark_jmhType extends OperationQueueBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package chainvoxel.jmh_generated;
+public class StructureTableBenchmark_Groups_jmhType extends StructureTableBenchmark_Groups_jmhType_B3 {
+}
+
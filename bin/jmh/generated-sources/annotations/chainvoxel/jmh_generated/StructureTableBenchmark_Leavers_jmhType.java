@@ -0,0 +1,4 @@
+package chainvoxel.jmh_generated;
+public class StructureTableBenchmark_Leavers_jmhType extends StructureTableBenchmark_Leavers_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package chainvoxel.jmh_generated;
+public class StructureTableBenchmark_jmhType extends StructureTableBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,486 @@
+package chainvoxel;import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * broadcastした操作を因果順序に従って配送する通信路を実装したクラス．<br>
+ * <br>
+ * 他の通信路をラップし，broadcastする操作に送信元のベクトル時計を付けた封筒(CAUSAL)で包んで送信する．
+ * 受信したSiteは，送信元が送信時までに配送していた操作を全て配送し終えるまで，操作を保留バッファに留める．
+ * これにより，例えば構造層のjoinが対応するcreateより先に適用されることがない．
+ * 宛先を指定した送信(自Siteへのlocal operationや，two-phase commit，Raftのメッセージ)は因果順序の対象とせずにそのまま送信する．<br>
+ * <br>
+ * ベクトル時計は差分で送る．封筒には送信元のbroadcastの通し番号(seq)と，送信元が前のbroadcast以降に配送した操作の
+ * 送信元と通し番号の組(deps)だけを含める．送信元毎の封筒はseqの順に配送されるため，受信側は前の封筒との差分だけを
+ * 確認すれば依存関係を判定できる．<br>
+ * <br>
+ * 受信したSiteは，送信元毎に最後に配送した封筒のベクトル時計(送信元がその時点で配送していた操作)を保持する．
+ * 全てのSiteが配送したことが分かる操作(安定した操作)は{@link #getStableVector}で取得でき，
+ * 墓標などのガベージコレクションに使用できる．<br>
+ * Site毎の状態は，そのSiteのスレッド(broadcastと受信を行うスレッド)からのみ使用する．
+ * @author kengo92i
+ * @see Transport
+ * @see Operation#CAUSAL
+ */
+public class CausalTransport implements Transport {
+    /**
+     * 保留バッファに留めた封筒
+     */
+    private static final class Held {
+        /**
+         * 封筒
+         */
+        final Operation envelope;
+
+        /**
+         * 保留バッファに留めた時刻(System.nanoTime)
+         */
+        final long heldAt;
+
+        Held(Operation envelope, long heldAt) {
+            this.envelope = envelope;
+            this.heldAt = heldAt;
+        }
+    }
+
+    /**
+     * Site毎の因果順序の状態
+     */
+    private static final class State {
+        /**
+         * 送信元毎に配送した操作数（自身の場合はbroadcastした操作数）
+         */
+        final int[] delivered;
+
+        /**
+         * 送信元毎に，最後に配送した封筒のベクトル時計（配送していない送信元はnull）
+         */
+        final int[][] lastSeen;
+
+        /**
+         * 前のbroadcast以降に配送した操作の送信元
+         */
+        final boolean[] changed;
+
+        /**
+         * changedがtrueである送信元のリスト
+         */
+        final ArrayList<Integer> changedList;
+
+        /**
+         * 送信元毎の保留バッファ（通し番号から封筒へのマップ．保留していない送信元はnull）
+         */
+        final List<Map<Integer, Held>> held;
+
+        /**
+         * 保留している封筒がある送信元
+         */
+        final ArrayList<Integer> waiting;
+
+        /**
+         * 配送できるが，まだ受け取られていない操作
+         */
+        final ArrayDeque<Operation> ready;
+
+        /**
+         * ラップしている通信路から受信した操作を一時的に格納するリスト
+         */
+        final ArrayList<Operation> incoming;
+
+        /**
+         * 保留している封筒の数
+         */
+        int numberOfHeld;
+
+        /**
+         * broadcastした封筒の数
+         */
+        long sentEnvelopes;
+
+        /**
+         * broadcastした封筒に含めた依存関係の数
+         */
+        long sentDependencies;
+
+        /**
+         * 配送した封筒の数
+         */
+        long deliveredEnvelopes;
+
+        /**
+         * 保留バッファに留めた封筒の数
+         */
+        long heldEnvelopes;
+
+        /**
+         * 保留バッファに留めた時間の合計(ナノ秒)
+         */
+        long heldNanos;
+
+        /**
+         * 保留バッファに留めた時間の最大値(ナノ秒)
+         */
+        long maxHeldNanos;
+
+        /**
+         * 保留している封筒の数の最大値
+         */
+        int maxNumberOfHeld;
+
+        State(int numberOfSites) {
+            this.delivered = new int[numberOfSites];
+            this.lastSeen = new int[numberOfSites][];
+            this.changed = new boolean[numberOfSites];
+            this.changedList = new ArrayList<Integer>();
+            this.held = new ArrayList<Map<Integer, Held>>(Collections.<Map<Integer, Held>>nCopies(numberOfSites, null));
+            this.waiting = new ArrayList<Integer>();
+            this.ready = new ArrayDeque<Operation>();
+            this.incoming = new ArrayList<Operation>();
+        }
+    }
+
+    /**
+     * 実際に操作を配送する通信路
+     */
+    private final Transport inner;
+
+    /**
+     * Siteの総数
+     */
+    private final int numberOfSites;
+
+    /**
+     * Site毎の因果順序の状態
+     */
+    private final State[] states;
+
+    /**
+     * 指定した通信路をラップして，broadcastした操作を因果順序に従って配送する通信路を作成する．
+     * @param inner 実際に操作を配送する通信路
+     */
+    public CausalTransport(Transport inner) {
+        this.inner = inner;
+        this.numberOfSites = inner.getNumberOfSites();
+        this.states = new State[this.numberOfSites];
+        for (int i = 0; i < this.numberOfSites; ++i) {
+            this.states[i] = new State(this.numberOfSites);
+        }
+    }
+
+    @Override
+    public int getNumberOfSites() {
+        return this.numberOfSites;
+    }
+
+    @Override
+    public void send(int src, int dest, Operation op, Runnable whileBlocked) {
+        this.inner.send(src, dest, op, whileBlocked);
+    }
+
+    /**
+     * 操作に送信元のbroadcastの通し番号と，前のbroadcast以降に配送した操作への依存関係を付けて送信する．
+     * {@inheritDoc}
+     */
+    @Override
+    public void broadcast(int src, Operation op, Runnable whileBlocked) {
+        State state = this.states[src];
+        int[] deps = new int[state.changedList.size() * 2];
+        int n = 0;
+        for (int origin : state.changedList) {
+            deps[n++] = origin;
+            deps[n++] = state.delivered[origin];
+            state.changed[origin] = false;
+        }
+        state.changedList.clear();
+        int seq = ++state.delivered[src];
+        state.sentEnvelopes++;
+        state.sentDependencies += deps.length / 2;
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("sid", src);
+        params.put("seq", seq);
+        params.put("deps", deps);
+        params.put("ops", Collections.singletonList(op));
+        this.inner.broadcast(src, new Operation(Operation.CAUSAL, params, op.getTimestamp()), whileBlocked);
+    }
+
+    @Override
+    public Operation dequeue(int id) {
+        List<Operation> buffer = new ArrayList<Operation>(1);
+        return this.drainTo(id, buffer, 1) > 0 ? buffer.get(0) : null;
+    }
+
+    @Override
+    public int drainTo(int id, Collection<? super Operation> buffer, int max) {
+        State state = this.states[id];
+        if (state.ready.size() < max) {
+            this.inner.drainTo(id, state.incoming, max);
+            this.receive(state);
+        }
+        return this.takeReady(state, buffer, max);
+    }
+
+    /**
+     * 受信した操作オブジェクトを最大max個取り出してbufferに追加する．
+     * 受信した封筒が全て保留された場合は，配送できる操作が届くかタイムアウトするまで待機を続ける．
+     * {@inheritDoc}
+     */
+    @Override
+    public int drainTo(int id, Collection<? super Operation> buffer, int max, long timeout, TimeUnit unit) {
+        State state = this.states[id];
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (state.ready.isEmpty()) {
+            this.inner.drainTo(id, state.incoming, max);
+            this.receive(state);
+        }
+        long remaining;
+        while (state.ready.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+            this.inner.drainTo(id, state.incoming, max, remaining, TimeUnit.NANOSECONDS);
+            this.receive(state);
+        }
+        return this.takeReady(state, buffer, max);
+    }
+
+    @Override
+    public void close() {
+        this.inner.close();
+    }
+
+    /**
+     * ラップしている通信路から受信した操作のうち，封筒を開封して配送できるものを配送し，配送できないものを保留する．
+     * @param state 受信したSiteの状態
+     */
+    private void receive(State state) {
+        for (Operation op : state.incoming) {
+            if (op.getOpType() != Operation.CAUSAL) {
+                state.ready.addLast(op); // 宛先を指定した送信は因果順序の対象としない
+                continue;
+            }
+            int sid = op.getId();
+            int seq = (Integer) op.getParam("seq");
+            if (seq <= state.delivered[sid]) {
+                continue; // 配送済み
+            }
+            if (seq == state.delivered[sid] + 1 && this.isDeliverable(state, op)) {
+                this.deliver(state, op);
+                this.deliverHeld(state);
+            } else {
+                this.hold(state, sid, seq, op);
+            }
+        }
+        state.incoming.clear();
+    }
+
+    /**
+     * 送信元の次の封筒の依存関係が全て配送済みかどうかを判定する．<br>
+     * depsに含まれない送信元は前の封筒から変わっていないため，前の封筒を配送した時点で満たされている．
+     * @param state 受信したSiteの状態
+     * @param envelope 封筒
+     * @return 配送できる場合はtrue
+     */
+    private boolean isDeliverable(State state, Operation envelope) {
+        int[] deps = (int[]) envelope.getParam("deps");
+        for (int i = 0; i < deps.length; i += 2) {
+            if (deps[i + 1] > state.delivered[deps[i]]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 封筒を開封して操作を配送できる状態にし，送信元のベクトル時計を更新する．
+     * @param state 受信したSiteの状態
+     * @param envelope 封筒
+     */
+    @SuppressWarnings("unchecked")
+    private void deliver(State state, Operation envelope) {
+        int sid = envelope.getId();
+        int seq = (Integer) envelope.getParam("seq");
+        int[] deps = (int[]) envelope.getParam("deps");
+        int[] clock = state.lastSeen[sid];
+        if (clock == null) {
+            clock = state.lastSeen[sid] = new int[this.numberOfSites];
+        }
+        for (int i = 0; i < deps.length; i += 2) {
+            clock[deps[i]] = deps[i + 1];
+        }
+        clock[sid] = seq;
+        state.delivered[sid] = seq;
+        if (!state.changed[sid]) {
+            state.changed[sid] = true;
+            state.changedList.add(sid);
+        }
+        state.deliveredEnvelopes++;
+        state.ready.addLast(((List<Operation>) envelope.getParam("ops")).get(0));
+    }
+
+    /**
+     * 封筒を保留バッファに留める．
+     * @param state 受信したSiteの状態
+     * @param sid 送信元Siteの識別子
+     * @param seq 送信元のbroadcastの通し番号
+     * @param envelope 封筒
+     */
+    private void hold(State state, int sid, int seq, Operation envelope) {
+        Map<Integer, Held> pending = state.held.get(sid);
+        if (pending == null) {
+            pending = new HashMap<Integer, Held>();
+            state.held.set(sid, pending);
+        }
+        if (pending.isEmpty()) {
+            state.waiting.add(sid);
+        }
+        if (pending.put(seq, new Held(envelope, System.nanoTime())) == null) {
+            state.numberOfHeld++;
+            state.heldEnvelopes++;
+            state.maxNumberOfHeld = Math.max(state.maxNumberOfHeld, state.numberOfHeld);
+        }
+    }
+
+    /**
+     * 保留している封筒のうち，配送できるようになったものを配送できなくなるまで配送する．
+     * @param state 受信したSiteの状態
+     */
+    private void deliverHeld(State state) {
+        boolean progress = true;
+        while (progress && state.numberOfHeld > 0) {
+            progress = false;
+            for (int i = 0; i < state.waiting.size(); ++i) {
+                int sid = state.waiting.get(i);
+                Map<Integer, Held> pending = state.held.get(sid);
+                Held h;
+                while ((h = pending.get(state.delivered[sid] + 1)) != null && this.isDeliverable(state, h.envelope)) {
+                    pending.remove(state.delivered[sid] + 1);
+                    state.numberOfHeld--;
+                    long nanos = System.nanoTime() - h.heldAt;
+                    state.heldNanos += nanos;
+                    state.maxHeldNanos = Math.max(state.maxHeldNanos, nanos);
+                    this.deliver(state, h.envelope);
+                    progress = true;
+                }
+                if (pending.isEmpty()) {
+                    state.waiting.remove(i--);
+                }
+            }
+        }
+    }
+
+    /**
+     * 配送できる操作を最大max個bufferに移す．
+     * @param state 受信したSiteの状態
+     * @param buffer 操作オブジェクトを追加するコレクション
+     * @param max 取り出す操作オブジェクトの最大数
+     * @return 取り出した操作オブジェクトの数
+     */
+    private int takeReady(State state, Collection<? super Operation> buffer, int max) {
+        int n = 0;
+        Operation op;
+        while (n < max && (op = state.ready.pollFirst()) != null) {
+            buffer.add(op);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * 指定したSiteが知っている安定した操作を，送信元毎の通し番号で返す．<br>
+     * 送信元originの通し番号がstable[origin]以下の操作は，全てのSiteが配送したことが分かっているため，
+     * 以降に届く操作がその操作と並行であることはない．
+     * @param id Siteの識別子
+     * @return 送信元毎の安定した操作の通し番号の最大値
+     */
+    public int[] getStableVector(int id) {
+        State state = this.states[id];
+        int[] stable = state.delivered.clone();
+        for (int sid = 0; sid < this.numberOfSites; ++sid) {
+            if (sid == id) continue;
+            int[] clock = state.lastSeen[sid];
+            for (int origin = 0; origin < this.numberOfSites; ++origin) {
+                stable[origin] = Math.min(stable[origin], clock == null ? 0 : clock[origin]);
+            }
+        }
+        return stable;
+    }
+
+    /**
+     * 指定したSiteが配送した操作数と，そのうち安定した操作数を返す
+     * @param id Siteの識別子
+     * @return {配送した操作数(自身のbroadcastを含む), 安定した操作数}
+     */
+    public long[] getStability(int id) {
+        int[] stable = this.getStableVector(id);
+        long delivered = 0, stableCount = 0;
+        for (int origin = 0; origin < this.numberOfSites; ++origin) {
+            delivered += this.states[id].delivered[origin];
+            stableCount += stable[origin];
+        }
+        return new long[] {delivered, stableCount};
+    }
+
+    /**
+     * broadcastした封筒の数を返す
+     * @param id Siteの識別子
+     * @return 封筒の数
+     */
+    public long getNumberOfSentEnvelopes(int id) {
+        return this.states[id].sentEnvelopes;
+    }
+
+    /**
+     * broadcastした封筒に含めた依存関係の数を返す
+     * @param id Siteの識別子
+     * @return 依存関係の数
+     */
+    public long getNumberOfSentDependencies(int id) {
+        return this.states[id].sentDependencies;
+    }
+
+    /**
+     * 配送した封筒の数を返す
+     * @param id Siteの識別子
+     * @return 封筒の数
+     */
+    public long getNumberOfDeliveredEnvelopes(int id) {
+        return this.states[id].deliveredEnvelopes;
+    }
+
+    /**
+     * 保留バッファに留めた封筒の数を返す
+     * @param id Siteの識別子
+     * @return 封筒の数
+     */
+    public long getNumberOfHeldEnvelopes(int id) {
+        return this.states[id].heldEnvelopes;
+    }
+
+    /**
+     * 保留バッファに留めた時間の合計を返す
+     * @param id Siteの識別子
+     * @return 時間(ナノ秒)
+     */
+    public long getHeldNanos(int id) {
+        return this.states[id].heldNanos;
+    }
+
+    /**
+     * 保留バッファに留めた時間の最大値を返す
+     * @param id Siteの識別子
+     * @return 時間(ナノ秒)
+     */
+    public long getMaxHeldNanos(int id) {
+        return this.states[id].maxHeldNanos;
+    }
+
+    /**
+     * 保留している封筒の数の最大値を返す
+     * @param id Siteの識別子
+     * @return 封筒の数
+     */
+    public int getMaxNumberOfHeld(int id) {
+        return this.states[id].maxNumberOfHeld;
+    }
+}
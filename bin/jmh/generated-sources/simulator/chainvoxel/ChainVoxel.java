@@ -0,0 +1,622 @@
+package chainvoxel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import java.io.File;
+import java.io.IOException;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
+import org.xml.sax.SAXException;
+
+/**
+ * ChainVoxelを実装したクラス．<br>
+ * <br>
+ * negativeVoxelのvoxelチェインへの追加処理を簡略化するために，<br>
+ * negativeVoxelをposIDに対応するvoxelチェインとは独立して管理する実装になっています．<br>
+ * voxelチェインはこのクラスではvoxelのリストとして実装されています．<br>
+ * <br>
+ * K. Imae and N. Hayashibara, 
+ * “ChainVoxel: A Data Structure for Scalable Distributed Collaborative Editing for 3D Models” 
+ * The 14th IEEE International Conference on Dependable, Autonomic and Secure Computing, 8-12 Aug. 2016.
+ *
+ * @author kengo92i
+ */
+public class ChainVoxel extends CRDT<TreeMap<String, ArrayList<Voxel>>, Operation> {
+    /**
+     * posIDに対応するvoxelのリストを管理するTreeMap
+     */
+    private TreeMap<String, ArrayList<Voxel>> atoms;
+
+    /**
+     * posIDに対応する負のvoxelを管理するTreeMap
+     */
+    private TreeMap<String, Voxel> negativeVoxels;
+
+
+    /**
+     * 構造管理のためのStrutureTable
+     */
+    private StructureTable stt;
+
+    /**
+     * 操作をまとめて実行している間に，ソートを保留しているvoxelチェインの集合
+     */
+    private Set<ArrayList<Voxel>> unsortedVoxelLists;
+
+    /**
+     * 操作をまとめて実行している最中であるか
+     */
+    private boolean batching;
+
+    /**
+     * 操作のタイプ毎の，適用した操作数
+     */
+    private long[] numberOfAppliedOperations;
+
+    /**
+     * グループ化中のvoxelに対する操作であるために無視したinsert/deleteの数
+     */
+    private long numberOfIgnoredOperations;
+
+    /**
+     * メモリ使用量の標本を取得する操作数の間隔（0の場合は取得しない）
+     */
+    private int footprintInterval;
+
+    /**
+     * 次にメモリ使用量の標本を取得するまでの操作数
+     */
+    private int operationsUntilFootprint;
+
+    /**
+     * 取得したメモリ使用量の標本（取得しない場合はnull）
+     */
+    private List<MemoryFootprint> footprints;
+
+    /**
+     * ChainVoxelのコンストラクタ
+     */
+    public ChainVoxel() {
+        this.atoms = new TreeMap<String, ArrayList<Voxel>>();
+        this.negativeVoxels = new TreeMap<String, Voxel>();
+        this.stt = new StructureTable();
+        this.unsortedVoxelLists = Collections.newSetFromMap(new IdentityHashMap<ArrayList<Voxel>, Boolean>());
+        this.batching = false;
+        this.numberOfAppliedOperations = new long[Operation.LEAVE + 1];
+        this.numberOfIgnoredOperations = 0;
+        this.footprintInterval = 0;
+        this.footprints = null;
+    }
+
+    /**
+     * 複数の操作オブジェクトをまとめて実行するメソッド．<br>
+     * 実行中に挿入されたvoxelチェインのソートは，全ての操作の実行後にチェイン毎に1度だけ行う．
+     * @param ops 操作オブジェクトのリスト
+     * @see ChainVoxel#apply(Operation)
+     */
+    public void apply(List<Operation> ops) {
+        this.batching = true;
+        try {
+            for (Operation op : ops) {
+                this.apply(op);
+            }
+        } finally {
+            this.batching = false;
+            for (ArrayList<Voxel> voxelList : this.unsortedVoxelLists) {
+                Collections.sort(voxelList);
+            }
+            this.unsortedVoxelLists.clear();
+        }
+    }
+
+    /**
+     * 操作オブジェクトに対応する操作を実行するメソッド．<br>
+     * ChainVoxelに対する操作はapplyメソッドを用いて実行することを推奨しています．<br>
+     * 操作のタイプ毎の適用数を数え，JFRが記録している場合は{@link FlightRecorderEvents.Apply}イベントを記録する．
+     * @param op 操作オブジェクト
+     * @see Operation
+     */
+    public void apply(Operation op) {
+        FlightRecorderEvents.Apply event = null;
+        if (FlightRecorderEvents.isActive()) {
+            event = new FlightRecorderEvents.Apply();
+            event.begin();
+        }
+        String posID = op.getPosID();
+        switch (op.getOpType()) {
+            case Operation.INSERT:
+                if (this.stt.isGrouped(posID)) {
+                    this.numberOfIgnoredOperations++;
+                    break;
+                }
+                this.insert(op);
+                break;
+            case Operation.DELETE:
+                if (this.stt.isGrouped(posID)) {
+                    this.numberOfIgnoredOperations++;
+                    break;
+                }
+                this.delete(op);
+                break;
+            case Operation.CREATE:
+                this.create(op);
+                break;
+            case Operation.JOIN:
+                this.join(op);
+                break;
+            case Operation.LEAVE:
+                this.leave(op);
+                break;
+            default:
+                assert false;
+                return;
+        }
+        this.numberOfAppliedOperations[op.getOpType()]++;
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                ArrayList<Voxel> voxelList = posID != null ? this.atoms.get(posID) : null;
+                event.opType = op.getOpType();
+                event.posID = posID;
+                event.chainLength = voxelList != null ? voxelList.size() : 0;
+                event.batched = this.batching;
+                event.commit();
+            }
+        }
+        if (this.footprints != null && --this.operationsUntilFootprint == 0) {
+            this.footprints.add(this.footprint());
+            this.operationsUntilFootprint = this.footprintInterval;
+        }
+        return;
+    }
+
+    /**
+     * 適用した操作数を取得する
+     * @param opType 操作のタイプ（{@link Operation#INSERT}から{@link Operation#LEAVE}まで）
+     * @return 適用した操作数（グループ化中のために無視した操作を含む）
+     */
+    public long getNumberOfAppliedOperations(int opType) {
+        return this.numberOfAppliedOperations[opType];
+    }
+
+    /**
+     * グループ化中のvoxelに対する操作であるために無視したinsert/deleteの数を取得する
+     * @return 無視した操作数
+     */
+    public long getNumberOfIgnoredOperations() {
+        return this.numberOfIgnoredOperations;
+    }
+
+    /**
+     * 適用した全ての種類の操作数を取得する
+     * @return 適用した操作数
+     */
+    public long getNumberOfAppliedOperations() {
+        long total = 0;
+        for (long n : this.numberOfAppliedOperations) {
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * 操作をinterval個適用する毎に，メモリ使用量の標本を取得するように設定する．<br>
+     * 標本は操作を適用したスレッドで取得するため，ChainVoxelを他のスレッドと共有する必要はない．
+     * @param interval 標本を取得する操作数の間隔（0の場合は取得しない）
+     * @see #getFootprints
+     */
+    public void setFootprintInterval(int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("interval must not be negative: " + interval);
+        }
+        this.footprintInterval = interval;
+        this.operationsUntilFootprint = interval;
+        this.footprints = interval > 0 ? new ArrayList<MemoryFootprint>() : null;
+    }
+
+    /**
+     * 取得したメモリ使用量の標本を取得する
+     * @return 標本のリスト（取得した順，取得しない場合は空のリスト）
+     * @see #setFootprintInterval
+     */
+    public List<MemoryFootprint> getFootprints() {
+        return this.footprints != null ? this.footprints : Collections.<MemoryFootprint>emptyList();
+    }
+
+    /**
+     * 現在のメモリ使用量とvoxelチェインの形を求める．<br>
+     * 空でないvoxelチェイン，空のvoxelチェイン，負のvoxel，StructureTableの2つの表を辿るため，セル数とグループ数に比例した時間がかかる．
+     * @return メモリ使用量
+     * @see MemoryFootprint
+     */
+    public MemoryFootprint footprint() {
+        MemoryFootprint footprint = new MemoryFootprint(this.getNumberOfAppliedOperations());
+        footprint.addTables();
+        for (Map.Entry<String, ArrayList<Voxel>> e : this.atoms.entrySet()) {
+            footprint.addChain(e.getKey(), e.getValue().size());
+        }
+        for (String posID : this.negativeVoxels.keySet()) {
+            footprint.addNegativeVoxel(posID);
+        }
+        this.stt.footprint(footprint);
+        return footprint;
+    }
+
+    /**
+     * 構造管理のためのStructureTableを取得する
+     * @return StructureTable
+     */
+    public StructureTable getStructureTable() {
+        return this.stt;
+    }
+
+    /**
+     * ChainVoxel内にvoxelを挿入するメソッド
+     * @param op 操作オブジェクト
+     * @see Operation
+     */
+    public void insert(Operation op) {
+        int id = op.getId();
+        String posID = op.getPosID();
+        long timestamp = op.getTimestamp();
+        Voxel insertVoxel = new Voxel(id, timestamp);
+
+        ArrayList<Voxel> voxelList = this.getVoxelList(posID);
+
+        // step1: 負のvoxelの影響があるか調べる
+        // 負のvoxelより新しいtsの場合は以降の処理に進む，そうではない場合は，ここで終了
+        Voxel negativeVoxel = negativeVoxels.get(posID);
+        if (negativeVoxel != null && negativeVoxel.getTimestamp() >= timestamp) {
+            return; // 負のvoxelより前に挿入する操作は無駄な操作であるため
+        }
+
+        // step2: insertVoxelを挿入する
+        voxelList.add(insertVoxel);
+        if (this.batching) {
+            this.unsortedVoxelLists.add(voxelList); // まとめて実行する場合は最後にソートする
+        } else {
+            Collections.sort(voxelList);
+        }
+        return;
+    }
+
+    /**
+     * ChainVoxel内の指定したvoxelを削除するメソッド
+     * @param op 操作オブジェクト
+     * @see Operation
+     */
+    public void delete(Operation op) {
+        int id = op.getId();
+        String posID = op.getPosID();
+        long timestamp = op.getTimestamp();
+
+        // step1: 負のvoxelをnegativeVoxelsに追加・更新
+        Voxel negativeVoxel = negativeVoxels.get(posID);
+        if (negativeVoxel == null || negativeVoxel.getTimestamp() < timestamp) {
+            negativeVoxels.put(posID, new Voxel(timestamp));
+        }
+
+        ArrayList<Voxel> voxelList = this.getVoxelList(posID);
+
+        // step2: 負のvoxelより古いvoxelを削除する
+        negativeVoxel = negativeVoxels.get(posID);
+        for (int i = voxelList.size() - 1; i >= 0; --i) { // 先頭から削除するとイテレータがおかしくなる
+            if (negativeVoxel.getTimestamp() >= voxelList.get(i).getTimestamp()) {
+                voxelList.remove(i); 
+            }
+        }
+
+        if (!this.batching) {
+            Collections.sort(voxelList);
+        }
+        return;
+    }
+
+    /**
+     * 指定したグループを作成するメソッド
+     * @param op 操作オブジェクト
+     * @see Operation
+     */
+    public void create(Operation op) {
+        String gid = op.getGid(); 
+        this.stt.create(gid);
+    }
+
+    /**
+     * 指定したグループにvoxelを参加させるメソッド
+     * @param op 操作オブジェクト
+     * @see Operation
+     */
+    public void join(Operation op) {
+        long ts = op.getTimestamp(); 
+        String posID = op.getPosID(); 
+        String gid = op.getGid(); 
+
+        this.stt.join(ts, posID, gid);
+    }
+
+    /**
+     * 指定したグループからvoxelを脱退させるメソッド
+     * @param op 操作オブジェクト
+     * @see Operation
+     */
+    public void leave(Operation op) {
+        int sid = op.getId(); 
+        long ts = op.getTimestamp(); 
+        String posID = op.getPosID(); 
+        String gid = op.getGid(); 
+
+        this.stt.leave(sid, ts, posID, gid);
+        this.insert(op);
+    }
+
+    /**
+     * 指定したposIDに対応するprimaryVoxelを返すメソッド
+     * @param posID voxelの識別子
+     * @return posIDに対応するvoxel，posIDに対応するものがない場合はnullを返す．
+     * @see Voxel
+     */
+    public Voxel getVoxel(String posID) {
+        ArrayList<Voxel> voxelList = this.atoms.get(posID);
+        if (voxelList == null) {
+            return null;
+        }
+        return voxelList.get(0); // 先頭のvoxelがprimaryVoxel
+    }
+
+    /**
+     * 指定したposIDに対応するvoxelのリストを返すメソッド
+     * @param posID voxelの識別子
+     * @return posIDに対応するvoxelのリスト
+     * @see Voxel
+     */
+    public ArrayList<Voxel> getVoxelList(String posID) {
+        ArrayList<Voxel> voxelList = this.atoms.get(posID);
+        if (voxelList == null) {
+            voxelList = new ArrayList<Voxel>();
+            this.atoms.put(posID, voxelList);
+        }
+        return voxelList;
+    }
+
+    /**
+     * ChainVoxelの総容量を返すメソッド
+     * @return ChainVoxelの総容量
+     */
+    public int size() {
+        int totalSize = 0;
+        for (Map.Entry<String, ArrayList<Voxel>> e : this.atoms.entrySet()) {
+           totalSize += e.getValue().size(); 
+        }
+        return totalSize;
+    }
+
+    /**
+     * 指定されたposIDのvoxel数を返すメソッド
+     * @param posID voxelの識別子
+     * @return posIDに対応するvoxel数
+     */
+    public int size(String posID) {
+        return this.atoms.get(posID).size();
+    }
+
+    /**
+     * ChainVoxelの状態の正規化したダイジェストを求める．<br>
+     * 空でないvoxelチェイン，負のvoxel，StructureTableをposIDとgidの順に辿って64ビットの値にまとめるため，
+     * 操作を適用した順序によらず，同じ状態のChainVoxelは同じ値になる．異なる状態が同じ値になる確率は無視できるほど小さい．
+     * @return ダイジェスト
+     * @see #diff
+     */
+    public long digest() {
+        long h = 0;
+        for (Map.Entry<String, ArrayList<Voxel>> e : this.atoms.entrySet()) {
+            ArrayList<Voxel> voxelList = e.getValue();
+            if (voxelList.size() == 0) continue;
+            h = mix(h, e.getKey());
+            h = mix(h, voxelList.size());
+            for (Voxel voxel : voxelList) {
+                h = mix(h, voxel.getId());
+                h = mix(h, voxel.getTimestamp());
+            }
+        }
+        h = mix(h, -1L); // voxelチェインと負のvoxelの区切り
+        for (Map.Entry<String, Voxel> e : this.negativeVoxels.entrySet()) {
+            h = mix(h, e.getKey());
+            h = mix(h, e.getValue().getTimestamp());
+        }
+        return mix(h, this.stt.digest());
+    }
+
+    /**
+     * 他のChainVoxelと状態が異なるセル(posID)とグループを求める．<br>
+     * 異なるセル毎に「posID: 自身のvoxelチェイン | 他方のvoxelチェイン」の形式の説明をdiffsに最大max個まで追加する．
+     * StructureTableの差分はセルの後に追加する．
+     * @param other 比較するChainVoxel
+     * @param diffs 差分の説明を追加するリスト
+     * @param max 追加する説明の最大数
+     * @return 状態が異なるセルとグループの総数
+     * @see StructureTable#diff
+     */
+    public int diff(ChainVoxel other, List<String> diffs, int max) {
+        TreeSet<String> posIDs = new TreeSet<String>(this.atoms.keySet());
+        posIDs.addAll(other.atoms.keySet());
+        posIDs.addAll(this.negativeVoxels.keySet());
+        posIDs.addAll(other.negativeVoxels.keySet());
+        int count = 0;
+        for (String posID : posIDs) {
+            String mine = this.describeCell(posID);
+            String theirs = other.describeCell(posID);
+            if (mine.equals(theirs)) continue;
+            if (count++ < max) {
+                diffs.add(posID + ": " + mine + " | " + theirs);
+            }
+        }
+        return count + this.stt.diff(other.stt, diffs, Math.max(0, max - count));
+    }
+
+    /**
+     * セルの状態を表す文字列を作成する
+     * @param posID voxelの識別子
+     * @return voxelチェインの(id,timestamp)の並びと負のvoxelのタイムスタンプ．どちらもない場合は"-"
+     */
+    private String describeCell(String posID) {
+        StringBuilder sb = new StringBuilder();
+        ArrayList<Voxel> voxelList = this.atoms.get(posID);
+        if (voxelList != null) {
+            for (Voxel voxel : voxelList) {
+                if (sb.length() > 0) sb.append(" -> ");
+                sb.append('(').append(voxel.getId()).append(',').append(voxel.getTimestamp()).append(')');
+            }
+        }
+        Voxel negativeVoxel = this.negativeVoxels.get(posID);
+        if (negativeVoxel != null) {
+            if (sb.length() > 0) sb.append(' ');
+            sb.append("neg=").append(negativeVoxel.getTimestamp());
+        }
+        return sb.length() > 0 ? sb.toString() : "-";
+    }
+
+    /**
+     * ダイジェストに値を加える
+     * @param h これまでのダイジェスト
+     * @param value 加える値
+     * @return 新しいダイジェスト
+     */
+    static long mix(long h, long value) {
+        long v = value * 0x9E3779B97F4A7C15L;
+        v ^= v >>> 32;
+        return (h ^ v) * 0xBF58476D1CE4E5B9L + 0x94D049BB133111EBL;
+    }
+
+    /**
+     * ダイジェストに文字列を加える
+     * @param h これまでのダイジェスト
+     * @param value 加える文字列
+     * @return 新しいダイジェスト
+     */
+    static long mix(long h, String value) {
+        return mix(mix(h, value.length()), value.hashCode());
+    }
+
+    /**
+     * ChainVoxelをCollada形式でファイル出力するメソッド
+     * @param filename 出力するファイル名
+     */
+    public void exportCollada(String filename) {
+        File fileObject = new File("xml/collada.dae");
+        try {
+            DocumentBuilder docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            Document document = docBuilder.parse(fileObject); 
+            Element rootElement = document.getDocumentElement();
+            Element sceneElement = (Element) rootElement.getElementsByTagName("visual_scene").item(0);
+
+            for (Map.Entry<String, ArrayList<Voxel>> e : this.atoms.entrySet()) {
+                ArrayList<Voxel> voxelList = e.getValue(); 
+                if (voxelList.size() == 0) continue;
+                String posID = e.getKey();
+                Element nodeElement = this.createNodeElement(document, posID);
+                sceneElement.appendChild(nodeElement);
+            }
+
+            TransformerFactory tfactory = TransformerFactory.newInstance();
+            Transformer transformer = tfactory.newTransformer(); 
+
+            File outputDirectory = new File("output");
+            if (!outputDirectory.exists()) outputDirectory.mkdir();
+            File outfile = new File("output/" + filename + ".dae");
+            transformer.transform(new DOMSource(document), new StreamResult(outfile)); 
+
+        } catch (IOException ie) {
+            ie.printStackTrace();
+        } catch (ParserConfigurationException pce) {
+            pce.printStackTrace();
+        } catch (SAXException se) {
+            se.printStackTrace();
+        } catch (TransformerException e) {
+            e.printStackTrace();
+        }
+        return; 
+    }
+
+    /**
+     * 立方体を表すElement型のオブジェクトを作成する
+     * @param document 対象とするXML文章
+     * @param posID voxelの識別子
+     * @return 立方体を表すElement型のオブジェクト
+     * @see ChainVoxel#exportCollada
+     */
+    private Element createNodeElement(Document document, String posID) {
+        Element nodeElement = document.createElement("node");
+        nodeElement.setAttribute("id", posID);
+        nodeElement.setAttribute("name", posID);
+        nodeElement.setAttribute("type", "NODE");
+
+        Element matrixElement = document.createElement("matrix");
+        matrixElement.setAttribute("sid", "transform");
+        nodeElement.appendChild(matrixElement);
+
+        String[] position = posID.split(":");
+        String voxelInfo = "0.5 0 0 " + position[0] + " 0 0.5 0 " + position[1] + " 0 0 0.5 " + position[2] + " 0 0 0 1";
+        Text voxelText = document.createTextNode(voxelInfo);
+        matrixElement.appendChild(voxelText);
+
+        Element instanceGeometryElement = document.createElement("instance_geometry");
+        instanceGeometryElement.setAttribute("url", "#Cube-mesh");
+        nodeElement.appendChild(instanceGeometryElement);
+        return nodeElement;
+    }
+
+    /**
+     * ChainVoxelの状態を表示する
+     */
+    public void show() {
+        for (Map.Entry<String, ArrayList<Voxel>> e : this.atoms.entrySet()) {
+            if (e.getValue().size() == 0) continue;
+            System.out.print("|" + e.getKey()+ "|");
+            ArrayList<Voxel> voxelList = e.getValue();
+            int n = voxelList.size();
+            for (Voxel voxel : voxelList) {
+                String id = Integer.toString(voxel.getId());
+                String timestamp = Long.toString(voxel.getTimestamp());
+                System.out.print(" -> (" + id + "," + timestamp + ")"); 
+            }
+            System.out.println();
+        }
+        System.out.println();
+    }
+
+    /**
+     * ChainVoxelのサンプル実行用
+     * @param args コマンドライン引数
+     */
+    public static void main(String[] args) {
+        ChainVoxel cv = new ChainVoxel(); 
+        cv.apply(new Operation(5, Operation.INSERT, "1:1:1"));
+        cv.apply(new Operation(2, Operation.INSERT, "1:1:1"));
+        cv.apply(new Operation(3, Operation.INSERT, "1:1:1"));
+        cv.apply(new Operation(3, Operation.DELETE, "1:1:1"));
+        cv.apply(new Operation(4, Operation.INSERT, "0:1:1"));
+        cv.apply(new Operation(4, Operation.INSERT, "0:0:0"));
+        cv.apply(new Operation(4, Operation.INSERT, "1:1:1"));
+        cv.show();
+        cv.exportCollada("sample");
+    }
+}
\ No newline at end of file
@@ -0,0 +1,457 @@
+package chainvoxel;import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * 仮想時間上で全てのSiteを1つのスレッドで実行する離散事象シミュレータを実装したクラス．<br>
+ * <br>
+ * 送信・受信・操作の生成を仮想時刻付きの事象として優先度付きキューで管理し，時刻の早い順に処理する．
+ * 同じ時刻の事象は登録順に処理するため，同じシードであれば実行結果は常に同じになる．
+ * 各Siteは{@link EventDrivenSite}として事象駆動で振る舞うため，スレッドを必要とせずに数万Siteを扱える．<br>
+ * 仮想時刻の単位はマイクロ秒である．Site間の遅延は基本遅延とジッタで決まり，自Siteへの送信は同じ時刻に配送される．
+ * broadcastは宛先毎ではなく1つの事象として登録する．ジッタが無い場合は配送時に全ての宛先に順に配送し，
+ * ジッタがある場合は宛先を配送時刻の順に並べ，次に配送する宛先の事象だけをキューに登録する．
+ * これにより，キューの大きさはSite数ではなく送信中のbroadcastの数に比例する．<br>
+ * プリミティブ層・構造層の操作については，最初に送信された時刻から送信元以外の全てのSiteに届くまでの仮想時間を記録する．
+ * @author kengo92i
+ * @see EventDrivenSite
+ */
+public class DiscreteEventSimulator {
+    /**
+     * 1つの宛先に操作を配送する事象を示す定数
+     */
+    static final int DELIVER = 0;
+
+    /**
+     * 送信元以外の全てのSiteに操作を配送する事象を示す定数
+     */
+    static final int BROADCAST = 1;
+
+    /**
+     * Siteのタイマーが満了する事象を示す定数
+     */
+    static final int TIMER = 2;
+
+    /**
+     * 宛先毎に配送時刻が異なるbroadcastで，次の宛先に操作を配送する事象を示す定数
+     */
+    static final int FANOUT = 3;
+
+    /**
+     * 配送時刻と宛先を1つのlong値に詰める際の宛先のビット数
+     */
+    private static final int DEST_BITS = 20;
+
+    /**
+     * 仮想時刻付きの事象
+     */
+    private static final class Event implements Comparable<Event> {
+        /**
+         * 事象が起こる仮想時刻(マイクロ秒)
+         */
+        final long time;
+
+        /**
+         * 同じ時刻の事象の順序を決めるための通し番号
+         */
+        final long seq;
+
+        /**
+         * 事象の種類
+         */
+        final int type;
+
+        /**
+         * 送信元Siteの識別子
+         */
+        final int src;
+
+        /**
+         * 宛先Siteの識別子
+         */
+        final int dest;
+
+        /**
+         * 操作オブジェクト（タイマーの場合はnull）
+         */
+        final Operation op;
+
+        /**
+         * 宛先毎に配送時刻が異なるbroadcastの状態（それ以外の場合はnull）
+         */
+        final Fanout fanout;
+
+        Event(long time, long seq, int type, int src, int dest, Operation op) {
+            this(time, seq, type, src, dest, op, null);
+        }
+
+        Event(long time, long seq, int type, int src, int dest, Operation op, Fanout fanout) {
+            this.time = time;
+            this.seq = seq;
+            this.type = type;
+            this.src = src;
+            this.dest = dest;
+            this.op = op;
+            this.fanout = fanout;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (this.time != other.time) {
+                return this.time < other.time ? -1 : 1;
+            }
+            return this.seq < other.seq ? -1 : (this.seq == other.seq ? 0 : 1);
+        }
+    }
+
+    /**
+     * 宛先毎に配送時刻が異なるbroadcastの状態．キューには次に配送する宛先の事象だけを登録する．
+     */
+    private static final class Fanout {
+        /**
+         * 配送時刻(上位ビット)と宛先(下位{@value #DEST_BITS}ビット)を詰めた値を配送時刻の順に並べたもの
+         */
+        final long[] deliveries;
+
+        /**
+         * 次に配送するdeliveriesの位置
+         */
+        int next;
+
+        Fanout(long[] deliveries) {
+            this.deliveries = deliveries;
+        }
+    }
+
+    /**
+     * 全てのSiteに届いていない操作の送信元と送信時刻
+     */
+    private static final class InFlight {
+        /**
+         * 最初に送信したSiteの識別子
+         */
+        final int origin;
+
+        /**
+         * 最初に送信した仮想時刻
+         */
+        final long sentAt;
+
+        /**
+         * 送信元以外で操作が届いたSiteの数
+         */
+        int received;
+
+        InFlight(int origin, long sentAt) {
+            this.origin = origin;
+            this.sentAt = sentAt;
+        }
+    }
+
+    /**
+     * 事象のキュー
+     */
+    private final PriorityQueue<Event> events;
+
+    /**
+     * 全てのSite
+     */
+    private final EventDrivenSite[] sites;
+
+    /**
+     * 遅延のジッタに使用する乱数生成器
+     */
+    private final Random random;
+
+    /**
+     * Site間の基本遅延(マイクロ秒)
+     */
+    private long latency;
+
+    /**
+     * ジッタの大きさ(マイクロ秒)
+     */
+    private long jitter;
+
+    /**
+     * ジッタの分布
+     */
+    private int jitterDistribution;
+
+    /**
+     * 現在の仮想時刻(マイクロ秒)
+     */
+    private long now;
+
+    /**
+     * 次に登録する事象の通し番号
+     */
+    private long seq;
+
+    /**
+     * 処理した事象の数（broadcastは宛先毎に数える）
+     */
+    private long processedEvents;
+
+    /**
+     * 全てのSiteに届いていない操作
+     */
+    private final IdentityHashMap<Operation, InFlight> inFlight;
+
+    /**
+     * 全てのSiteに届いた操作の数
+     */
+    private long completedOperations;
+
+    /**
+     * 全てのSiteに届くまでの仮想時間の合計(マイクロ秒)
+     */
+    private long totalLatency;
+
+    /**
+     * 全てのSiteに届くまでの仮想時間の最大値(マイクロ秒)
+     */
+    private long maxLatency;
+
+    /**
+     * 指定したSite数の離散事象シミュレータを作成する．Siteは{@link #setSite}で設定する．
+     * @param numberOfSites Siteの総数
+     * @param seed ジッタに使用する乱数のシード
+     */
+    public DiscreteEventSimulator(int numberOfSites, long seed) {
+        if (numberOfSites > (1 << DEST_BITS)) {
+            throw new IllegalArgumentException("number of sites must not exceed " + (1 << DEST_BITS) + ": " + numberOfSites);
+        }
+        this.events = new PriorityQueue<Event>();
+        this.sites = new EventDrivenSite[numberOfSites];
+        this.random = new Random(seed);
+        this.latency = 1000;
+        this.jitter = 0;
+        this.jitterDistribution = SimulatedNetwork.UNIFORM;
+        this.now = 0;
+        this.seq = 0;
+        this.processedEvents = 0;
+        this.inFlight = new IdentityHashMap<Operation, InFlight>();
+    }
+
+    /**
+     * Site間の遅延を設定する．
+     * @param latencyMillis 基本遅延(ミリ秒)
+     * @param jitterMillis ジッタの大きさ(ミリ秒)
+     * @param distribution ジッタの分布
+     * @see SimulatedNetwork#sampleJitter
+     */
+    public void setLatency(double latencyMillis, double jitterMillis, int distribution) {
+        this.latency = (long) (latencyMillis * 1000);
+        this.jitter = (long) (jitterMillis * 1000);
+        this.jitterDistribution = distribution;
+    }
+
+    /**
+     * Siteを設定する．
+     * @param site Site
+     */
+    public void setSite(EventDrivenSite site) {
+        this.sites[site.getSiteId()] = site;
+    }
+
+    /**
+     * Siteの総数を返す
+     * @return Siteの総数
+     */
+    public int getNumberOfSites() {
+        return this.sites.length;
+    }
+
+    /**
+     * 現在の仮想時刻を返す
+     * @return 仮想時刻(マイクロ秒)
+     */
+    public long now() {
+        return this.now;
+    }
+
+    /**
+     * 全てのSiteを開始し，事象が無くなるまで処理する．
+     */
+    public void run() {
+        for (EventDrivenSite site : this.sites) {
+            site.start();
+        }
+
+        Event e;
+        while ((e = this.events.poll()) != null) {
+            this.now = e.time;
+            switch (e.type) {
+                case TIMER:
+                    this.processedEvents++;
+                    this.sites[e.dest].onTimer();
+                    break;
+                case BROADCAST:
+                    for (int dest = 0; dest < this.sites.length; ++dest) {
+                        if (dest != e.src) this.deliver(e.src, dest, e.op);
+                    }
+                    break;
+                case FANOUT:
+                    this.deliverNext(e);
+                    break;
+                default:
+                    this.deliver(e.src, e.dest, e.op);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 操作を宛先のSiteに配送する．
+     * @param src 送信元Siteの識別子
+     * @param dest 宛先Siteの識別子
+     * @param op 操作オブジェクト
+     */
+    private void deliver(int src, int dest, Operation op) {
+        this.processedEvents++;
+        this.reached(dest, op);
+        this.sites[dest].onReceive(op);
+    }
+
+    /**
+     * 操作がSiteに届いたことを記録する．送信元以外の全てのSiteに届いた場合は，届くまでの時間を記録する．<br>
+     * 操作が他のメッセージに含まれて届く場合(ゴシップなど)は，受信したSiteが呼び出す．
+     * @param dest 操作が届いたSiteの識別子
+     * @param op 操作オブジェクト
+     */
+    public void reached(int dest, Operation op) {
+        InFlight f = this.inFlight.get(op);
+        if (f != null && dest != f.origin && ++f.received == this.sites.length - 1) {
+            long latency = this.now - f.sentAt;
+            this.inFlight.remove(op);
+            this.completedOperations++;
+            this.totalLatency += latency;
+            this.maxLatency = Math.max(this.maxLatency, latency);
+        }
+    }
+
+    /**
+     * 操作を宛先に送信する．自Siteへの送信は現在の時刻に配送する．
+     * @param src 送信元Siteの識別子
+     * @param dest 宛先Siteの識別子
+     * @param op 操作オブジェクト
+     */
+    public void send(int src, int dest, Operation op) {
+        this.track(src, op);
+        long time = src == dest ? this.now : this.now + this.sampleLatency();
+        this.events.add(new Event(time, this.seq++, DELIVER, src, dest, op));
+    }
+
+    /**
+     * 送信元以外の全てのSiteに操作を送信する．
+     * @param src 送信元Siteの識別子
+     * @param op 操作オブジェクト
+     */
+    public void broadcast(int src, Operation op) {
+        this.track(src, op);
+        if (this.jitter == 0) {
+            this.events.add(new Event(this.now + this.latency, this.seq++, BROADCAST, src, -1, op));
+            return;
+        }
+        // 宛先毎の事象を登録する代わりに，配送時刻の順に並べた宛先を1つの事象で順に配送する
+        long[] deliveries = new long[this.sites.length - 1];
+        int n = 0;
+        for (int dest = 0; dest < this.sites.length; ++dest) {
+            if (dest != src) {
+                deliveries[n++] = ((this.now + this.sampleLatency()) << DEST_BITS) | dest;
+            }
+        }
+        if (n == 0) {
+            return;
+        }
+        Arrays.sort(deliveries);
+        this.events.add(new Event(deliveries[0] >>> DEST_BITS, this.seq++, FANOUT, src, -1, op, new Fanout(deliveries)));
+    }
+
+    /**
+     * 宛先毎に配送時刻が異なるbroadcastで次の宛先に操作を配送し，残りの宛先があれば次の配送を登録する．
+     * @param e 事象
+     */
+    private void deliverNext(Event e) {
+        Fanout f = e.fanout;
+        long d = f.deliveries[f.next++];
+        this.deliver(e.src, (int) (d & ((1 << DEST_BITS) - 1)), e.op);
+        if (f.next < f.deliveries.length) {
+            this.events.add(new Event(f.deliveries[f.next] >>> DEST_BITS, this.seq++, FANOUT, e.src, -1, e.op, f));
+        }
+    }
+
+    /**
+     * 指定した時間が経過した後にSiteのタイマーを満了させる．
+     * @param id Siteの識別子
+     * @param delay 満了するまでの仮想時間(マイクロ秒)
+     */
+    public void schedule(int id, long delay) {
+        this.events.add(new Event(this.now + delay, this.seq++, TIMER, id, id, null));
+    }
+
+    /**
+     * プリミティブ層・構造層の操作が最初に送信された場合に，全てのSiteに届くまでの時間の計測を開始する．<br>
+     * 操作を他のメッセージに含めて送信する場合(ゴシップなど)は，操作を作成したSiteが呼び出す．
+     * @param src 送信元Siteの識別子
+     * @param op 操作オブジェクト
+     * @see #reached
+     */
+    public void track(int src, Operation op) {
+        if (op.getOpType() > Operation.LEAVE || this.sites.length < 2 || this.inFlight.containsKey(op)) {
+            return;
+        }
+        this.inFlight.put(op, new InFlight(src, this.now));
+    }
+
+    /**
+     * 基本遅延にジッタを加えた遅延を返す．
+     * @return 遅延(マイクロ秒)
+     */
+    private long sampleLatency() {
+        return Math.max(0L, this.latency + SimulatedNetwork.sampleJitter(this.random, this.jitter, this.jitterDistribution));
+    }
+
+    /**
+     * 処理した事象の数を返す（broadcastは宛先毎に数える）
+     * @return 処理した事象の数
+     */
+    public long getNumberOfProcessedEvents() {
+        return this.processedEvents;
+    }
+
+    /**
+     * 全てのSiteに届いた操作の数を返す
+     * @return 操作の数
+     */
+    public long getNumberOfCompletedOperations() {
+        return this.completedOperations;
+    }
+
+    /**
+     * 操作が送信元以外の全てのSiteに届くまでの平均仮想時間を返す
+     * @return 平均仮想時間(マイクロ秒)
+     */
+    public double getAverageLatency() {
+        return this.completedOperations == 0 ? 0.0 : (double) this.totalLatency / this.completedOperations;
+    }
+
+    /**
+     * 操作が送信元以外の全てのSiteに届くまでの最大仮想時間を返す
+     * @return 最大仮想時間(マイクロ秒)
+     */
+    public long getMaxLatency() {
+        return this.maxLatency;
+    }
+
+    /**
+     * 指定したSiteを返す
+     * @param id Siteの識別子
+     * @return Site
+     */
+    public EventDrivenSite getSite(int id) {
+        return this.sites[id];
+    }
+}
@@ -0,0 +1,368 @@
+package chainvoxel;import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * シミュレーション中の操作の遅延とスループット，Site毎のQueueの長さを記録するクラス．<br>
+ * <br>
+ * 遅延は操作を生成してから他のSiteで適用されるまでの時間であり，{@link LatencyHistogram}に記録する．
+ * 生成時刻は{@link Operation#getGeneratedAt}であり，同じJVMで生成された操作だけを計測できる．<br>
+ * スループットは一定の間隔(デフォルトは1秒)毎に，生成された操作数と他のSiteで適用された操作数を数える．
+ * 記録はアトミックな加算だけであり，複数のSiteのスレッドから同時に記録できる．<br>
+ * OperationQueueを設定した場合は，間隔の終わり毎にSite毎の未受信の操作数を標本として取得する．
+ * 結果はCSVまたはJSONで出力できる．
+ * @author kengo92i
+ * @see LatencyHistogram
+ * @see Site
+ */
+public class MetricsRecorder {
+    /**
+     * 記録する間隔の最大数（超えた場合は最後の間隔にまとめる）
+     */
+    private static final int MAX_INTERVALS = 1 << 16;
+
+    /**
+     * 生成から適用までの遅延のヒストグラム
+     */
+    private final LatencyHistogram latency;
+
+    /**
+     * スループットを数える間隔(ナノ秒)
+     */
+    private final long intervalNanos;
+
+    /**
+     * 間隔毎の生成された操作数
+     */
+    private final AtomicLongArray generated;
+
+    /**
+     * 間隔毎の他のSiteで適用された操作数
+     */
+    private final AtomicLongArray applied;
+
+    /**
+     * 記録を開始した時刻(System.nanoTime)
+     */
+    private volatile long startTime;
+
+    /**
+     * 記録を終了した時刻(System.nanoTime)
+     */
+    private volatile long stopTime;
+
+    /**
+     * Queueの長さを取得するQueue（使用しない場合はnull）
+     */
+    private OperationQueue queue;
+
+    /**
+     * 間隔毎のSite毎の未受信の操作数（標本を取得するスレッドだけが追加する）
+     */
+    private final List<int[]> queueDepths;
+
+    /**
+     * Queueの長さの標本を取得するスレッド
+     */
+    private Thread sampler;
+
+    /**
+     * 標本の取得を続けるかどうか
+     */
+    private volatile boolean sampling;
+
+    /**
+     * MetricsRecorderのコンストラクタ
+     * @param intervalMillis スループットを数える間隔(ミリ秒)
+     */
+    public MetricsRecorder(double intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("interval must be positive: " + intervalMillis);
+        }
+        this.latency = new LatencyHistogram();
+        this.intervalNanos = (long) (intervalMillis * 1e6);
+        this.generated = new AtomicLongArray(MAX_INTERVALS);
+        this.applied = new AtomicLongArray(MAX_INTERVALS);
+        this.queueDepths = new ArrayList<int[]>();
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * 間隔毎にSite毎の未受信の操作数を取得するQueueを設定する
+     * @param queue 全てのSiteが使用するOperationQueue
+     */
+    public void setQueue(OperationQueue queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * 記録を開始する．Queueが設定されている場合は，標本を取得するスレッドを開始する．
+     */
+    public void start() {
+        this.startTime = System.nanoTime();
+        if (this.queue == null) {
+            return;
+        }
+        this.sampling = true;
+        this.sampler = new Thread(this::sampleQueueDepths, "metrics");
+        this.sampler.setDaemon(true);
+        this.sampler.start();
+    }
+
+    /**
+     * 記録を終了する．標本を取得するスレッドの終了を待つ．
+     */
+    public void stop() {
+        this.stopTime = System.nanoTime();
+        this.sampling = false;
+        if (this.sampler != null) {
+            LockSupport.unpark(this.sampler);
+            try {
+                this.sampler.join();
+            } catch (InterruptedException ie) {
+                ie.printStackTrace();
+            }
+            this.sampler = null;
+        }
+    }
+
+    /**
+     * 間隔の終わり毎にSite毎の未受信の操作数を取得する．記録を終了した時点で最後の標本を取得する．
+     */
+    private void sampleQueueDepths() {
+        int numberOfSites = this.queue.getNumberOfSites();
+        long next = this.startTime;
+        while (true) {
+            next += this.intervalNanos;
+            long remaining;
+            while (this.sampling && (remaining = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            int[] depths = new int[numberOfSites];
+            for (int i = 0; i < numberOfSites; ++i) {
+                depths[i] = this.queue.size(i);
+            }
+            synchronized (this.queueDepths) {
+                this.queueDepths.add(depths);
+            }
+            if (!this.sampling) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 現在時刻が属する間隔の番号を求める
+     * @param now 現在時刻(System.nanoTime)
+     * @return 間隔の番号
+     */
+    private int intervalOf(long now) {
+        long index = (now - this.startTime) / this.intervalNanos;
+        return (int) Math.max(0, Math.min(index, MAX_INTERVALS - 1));
+    }
+
+    /**
+     * 操作を生成したことを記録する．遅延を計測するには，操作を生成時刻を付けて作成しておく必要がある
+     * @param op 生成した操作
+     * @see OperationGenerator#setTimed
+     */
+    public void recordGenerated(Operation op) {
+        long now = System.nanoTime();
+        this.generated.getAndIncrement(this.intervalOf(now));
+    }
+
+    /**
+     * 他のSiteで生成された操作を適用したことを記録する．<br>
+     * 生成時刻が分からない操作(他のプロセスから受信した操作)は，スループットだけを記録する．
+     * @param op 適用した操作
+     */
+    public void recordApplied(Operation op) {
+        long now = System.nanoTime();
+        long generatedAt = op.getGeneratedAt();
+        if (generatedAt != 0) {
+            this.latency.record(now - generatedAt);
+        }
+        this.applied.getAndIncrement(this.intervalOf(now));
+    }
+
+    /**
+     * 生成から適用までの遅延のヒストグラムを取得する
+     * @return 遅延のヒストグラム
+     */
+    public LatencyHistogram getLatency() {
+        return this.latency;
+    }
+
+    /**
+     * 記録した間隔の数を取得する
+     * @return 記録した間隔の数
+     */
+    public int getNumberOfIntervals() {
+        long end = this.stopTime != 0 ? this.stopTime : System.nanoTime();
+        return this.intervalOf(end) + 1;
+    }
+
+    /**
+     * 記録を開始してから終了するまでの時間を取得する
+     * @return 記録した時間(ナノ秒)．終了していない場合は現在までの時間
+     */
+    public long getElapsedNanos() {
+        long end = this.stopTime != 0 ? this.stopTime : System.nanoTime();
+        return end - this.startTime;
+    }
+
+    /**
+     * スループットを数える間隔を取得する
+     * @return 間隔(ナノ秒)
+     */
+    public long getIntervalNanos() {
+        return this.intervalNanos;
+    }
+
+    /**
+     * 指定した間隔に生成された操作数を取得する
+     * @param interval 間隔の番号
+     * @return 生成された操作数
+     */
+    public long getNumberOfGeneratedOperations(int interval) {
+        return this.generated.get(interval);
+    }
+
+    /**
+     * 指定した間隔に他のSiteで適用された操作数を取得する
+     * @param interval 間隔の番号
+     * @return 適用された操作数
+     */
+    public long getNumberOfAppliedOperations(int interval) {
+        return this.applied.get(interval);
+    }
+
+    /**
+     * 間隔毎のSite毎の未受信の操作数を取得する
+     * @return 標本毎のSite毎の未受信の操作数．Queueが設定されていない場合は空のリスト
+     */
+    public List<int[]> getQueueDepths() {
+        synchronized (this.queueDepths) {
+            return new ArrayList<int[]>(this.queueDepths);
+        }
+    }
+
+    /**
+     * 記録した結果をファイルに出力する．<br>
+     * 拡張子が.jsonの場合はJSONで，それ以外はCSVで出力する．
+     * CSVの場合は，間隔毎の記録を指定したファイルに，遅延のヒストグラムを"-latency"を付けたファイルに出力する．
+     * @param filename 出力するファイル名
+     * @param behavior Siteの振る舞いの名前
+     */
+    public void write(String filename, String behavior) {
+        if (filename.endsWith(".json")) {
+            this.writeJson(filename, behavior);
+            return;
+        }
+        int dot = filename.lastIndexOf('.');
+        String base = dot > 0 ? filename.substring(0, dot) : filename;
+        String extension = dot > 0 ? filename.substring(dot) : ".csv";
+        this.writeTimelineCsv(filename);
+        this.writeLatencyCsv(base + "-latency" + extension);
+    }
+
+    /**
+     * 間隔毎の記録をCSVで出力する．<br>
+     * 列は間隔の開始時刻(秒)，生成された操作数，適用された操作数，適用のスループット(ops/s)と，間隔の終わりのSite毎の未受信の操作数．
+     * @param filename 出力するファイル名
+     */
+    void writeTimelineCsv(String filename) {
+        List<int[]> depths = this.getQueueDepths();
+        int numberOfSites = depths.isEmpty() ? 0 : depths.get(0).length;
+        try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
+            StringBuilder header = new StringBuilder("time_s,generated,applied,applied_per_s");
+            for (int i = 0; i < numberOfSites; ++i) {
+                header.append(",depth_").append(i);
+            }
+            writer.println(header);
+            for (int t = 0; t < this.getNumberOfIntervals(); ++t) {
+                StringBuilder row = new StringBuilder();
+                row.append(String.format(Locale.ROOT, "%.3f,%d,%d,%.1f", t * this.intervalNanos / 1e9,
+                        this.generated.get(t), this.applied.get(t), this.applied.get(t) / (this.intervalNanos / 1e9)));
+                int[] sample = t < depths.size() ? depths.get(t) : null;
+                for (int i = 0; i < numberOfSites; ++i) {
+                    row.append(',');
+                    if (sample != null) row.append(sample[i]);
+                }
+                writer.println(row);
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * 遅延のヒストグラムをCSVで出力する．記録がないバケットは出力しない．
+     * @param filename 出力するファイル名
+     */
+    void writeLatencyCsv(String filename) {
+        long[] counts = this.latency.getCounts();
+        try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
+            writer.println("lower_ns,upper_ns,count");
+            for (int i = 0; i < counts.length; ++i) {
+                if (counts[i] == 0) continue;
+                writer.println(LatencyHistogram.lowerBoundOf(i) + "," + LatencyHistogram.upperBoundOf(i) + "," + counts[i]);
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * 遅延の要約とヒストグラム，間隔毎の記録をJSONで出力する
+     * @param filename 出力するファイル名
+     * @param behavior Siteの振る舞いの名前
+     */
+    void writeJson(String filename, String behavior) {
+        LatencyHistogram h = this.latency;
+        long[] counts = h.getCounts();
+        List<int[]> depths = this.getQueueDepths();
+        try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
+            writer.println("{");
+            writer.println("  \"behavior\": \"" + behavior + "\",");
+            writer.println(String.format(Locale.ROOT, "  \"intervalMillis\": %.3f,", this.intervalNanos / 1e6));
+            writer.println(String.format(Locale.ROOT,
+                    "  \"latency\": {\"count\": %d, \"meanNanos\": %.1f, \"p50Nanos\": %d, \"p99Nanos\": %d, \"p999Nanos\": %d, \"maxNanos\": %d,",
+                    h.getCount(), h.getMean(), h.getPercentile(50), h.getPercentile(99), h.getPercentile(99.9), h.getMax()));
+            StringBuilder buckets = new StringBuilder();
+            for (int i = 0; i < counts.length; ++i) {
+                if (counts[i] == 0) continue;
+                if (buckets.length() > 0) buckets.append(", ");
+                buckets.append('[').append(LatencyHistogram.lowerBoundOf(i)).append(", ")
+                    .append(LatencyHistogram.upperBoundOf(i)).append(", ").append(counts[i]).append(']');
+            }
+            writer.println("    \"buckets\": [" + buckets + "]},");
+            writer.println("  \"timeline\": [");
+            int intervals = this.getNumberOfIntervals();
+            for (int t = 0; t < intervals; ++t) {
+                StringBuilder row = new StringBuilder();
+                row.append(String.format(Locale.ROOT, "    {\"time\": %.3f, \"generated\": %d, \"applied\": %d",
+                        t * this.intervalNanos / 1e9, this.generated.get(t), this.applied.get(t)));
+                if (t < depths.size()) {
+                    row.append(", \"queueDepths\": [");
+                    int[] sample = depths.get(t);
+                    for (int i = 0; i < sample.length; ++i) {
+                        row.append(i == 0 ? "" : ", ").append(sample[i]);
+                    }
+                    row.append(']');
+                }
+                row.append(t + 1 < intervals ? "}," : "}");
+                writer.println(row);
+            }
+            writer.println("  ]");
+            writer.println("}");
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package chainvoxel;import java.util.Collection;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * ロックを使用しない複数生産者・単一消費者(MPSC)のキューを実装したクラス．<br>
+ * <br>
+ * 要素は固定長の配列(セグメント)に格納され，セグメントが一杯になると次のセグメントを連結する．
+ * 生産者はセグメント内の位置をfetch-and-addで確保して要素を書き込むため，ロックを使用しない．
+ * 消費者は1つのスレッドに限られ，{@link #poll}，{@link #drainTo}，{@link #clear}は消費者のスレッドからのみ呼び出す．<br>
+ * 生産者が更新するtailと消費者が更新するhead・消費数は，false sharingを避けるためにパディングを挟んだ配列の中央に配置する．
+ * @author kengo92i
+ */
+public class MpscQueue<E> {
+    /**
+     * 1セグメントあたりの要素数
+     */
+    private static final int SEGMENT_SIZE = 1024;
+
+    /**
+     * パディングとして確保する要素数（キャッシュラインの2倍を超える大きさ）
+     */
+    private static final int PAD = 32;
+
+    /**
+     * 要素を格納するセグメント
+     */
+    private static final class Segment<E> {
+        /**
+         * セグメントの先頭要素の通し番号
+         */
+        final long base;
+
+        /**
+         * 要素を格納する配列
+         */
+        final AtomicReferenceArray<E> slots;
+
+        /**
+         * 生産者が確保した位置の数（インデックスPADを使用する）
+         */
+        final AtomicIntegerArray claimed;
+
+        /**
+         * 次のセグメント
+         */
+        final AtomicReference<Segment<E>> next;
+
+        Segment(long base) {
+            this.base = base;
+            this.slots = new AtomicReferenceArray<E>(SEGMENT_SIZE);
+            this.claimed = new AtomicIntegerArray(2 * PAD + 1);
+            this.next = new AtomicReference<Segment<E>>();
+        }
+    }
+
+    /**
+     * 生産者が要素を追加するセグメント（インデックスPADを使用する）
+     */
+    private final AtomicReferenceArray<Segment<E>> tail;
+
+    /**
+     * 消費者が要素を取り出すセグメント（インデックスPADを使用する）
+     */
+    private final AtomicReferenceArray<Segment<E>> head;
+
+    /**
+     * 消費者が取り出した要素の総数（インデックスPADを使用する）
+     */
+    private final AtomicLongArray consumed;
+
+    /**
+     * 空のキューを作成する．
+     */
+    public MpscQueue() {
+        Segment<E> first = new Segment<E>(0L);
+        this.tail = new AtomicReferenceArray<Segment<E>>(2 * PAD + 1);
+        this.head = new AtomicReferenceArray<Segment<E>>(2 * PAD + 1);
+        this.consumed = new AtomicLongArray(2 * PAD + 1);
+        this.tail.set(PAD, first);
+        this.head.set(PAD, first);
+    }
+
+    /**
+     * キューの末尾に要素を追加する．どのスレッドからでも呼び出せる．
+     * @param e 追加する要素
+     * @return 常にtrueを返す
+     */
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        Segment<E> s = this.tail.get(PAD);
+        while (true) {
+            int i = s.claimed.getAndIncrement(PAD);
+            if (i < SEGMENT_SIZE) {
+                s.slots.lazySet(i, e);
+                return true;
+            }
+            Segment<E> n = s.next.get();
+            if (n == null) {
+                Segment<E> created = new Segment<E>(s.base + SEGMENT_SIZE);
+                n = s.next.compareAndSet(null, created) ? created : s.next.get();
+            }
+            this.tail.compareAndSet(PAD, s, n);
+            s = this.tail.get(PAD);
+        }
+    }
+
+    /**
+     * キューの先頭から要素を取り出す．キューが空の場合はnullを返す．消費者のスレッドからのみ呼び出す．
+     * @return 先頭の要素
+     */
+    public E poll() {
+        Segment<E> s = this.head.get(PAD);
+        long c = this.consumed.get(PAD);
+        int i = (int) (c - s.base);
+        if (i == SEGMENT_SIZE) {
+            Segment<E> n = s.next.get();
+            if (n == null) {
+                return null;
+            }
+            this.head.lazySet(PAD, n);
+            s = n;
+            i = 0;
+        }
+
+        E e = s.slots.get(i);
+        if (e == null) {
+            if (s.claimed.get(PAD) <= i) {
+                return null;
+            }
+            // 位置を確保した生産者が書き込むまで待つ
+            while ((e = s.slots.get(i)) == null) {}
+        }
+        s.slots.lazySet(i, null);
+        this.consumed.lazySet(PAD, c + 1);
+        return e;
+    }
+
+    /**
+     * キューの先頭から最大max個の要素を取り出してcに追加する．消費者のスレッドからのみ呼び出す．<br>
+     * 消費数の更新は最後に1度だけ行う．
+     * @param c 要素を追加するコレクション
+     * @param max 取り出す要素の最大数
+     * @return 取り出した要素数
+     */
+    public int drainTo(Collection<? super E> c, int max) {
+        Segment<E> s = this.head.get(PAD);
+        long start = this.consumed.get(PAD);
+        long pos = start;
+        while (pos - start < max) {
+            int i = (int) (pos - s.base);
+            if (i == SEGMENT_SIZE) {
+                Segment<E> n = s.next.get();
+                if (n == null) {
+                    break;
+                }
+                this.head.lazySet(PAD, n);
+                s = n;
+                i = 0;
+            }
+
+            E e = s.slots.get(i);
+            if (e == null) {
+                if (s.claimed.get(PAD) <= i) {
+                    break;
+                }
+                // 位置を確保した生産者が書き込むまで待つ
+                while ((e = s.slots.get(i)) == null) {}
+            }
+            s.slots.lazySet(i, null);
+            c.add(e);
+            pos++;
+        }
+        if (pos != start) {
+            this.consumed.lazySet(PAD, pos);
+        }
+        return (int) (pos - start);
+    }
+
+    /**
+     * キューを空にする．消費者のスレッドからのみ呼び出す．
+     */
+    public void clear() {
+        while (this.poll() != null) {}
+    }
+
+    /**
+     * キューに格納されている要素数を返す．並行して追加・取り出しが行われている場合は概算値になる．
+     * @return 要素数
+     */
+    public int size() {
+        Segment<E> t = this.tail.get(PAD);
+        long produced = t.base + Math.min(t.claimed.get(PAD), SEGMENT_SIZE);
+        long size = produced - this.consumed.get(PAD);
+        return (int) Math.max(0L, Math.min(size, Integer.MAX_VALUE));
+    }
+
+    /**
+     * キューが空であるか確認する．
+     * @return 空の場合にtrueを返す．それ以外はfalse.
+     */
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+}
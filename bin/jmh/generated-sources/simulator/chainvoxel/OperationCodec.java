@@ -0,0 +1,218 @@
+package chainvoxel;import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 操作オブジェクトをバイナリ形式に変換するクラス．<br>
+ * <br>
+ * 形式は「操作のタイプ(int)，sid(int, 無い場合は-1)，タイムスタンプ(long)，posID，gid，追加パラメータ数(int)，追加パラメータ」である．
+ * posIDとgidは存在するかを示すbooleanの後に文字列を書き込む．
+ * 追加パラメータは名前の後に型を示す1バイトのタグと値を書き込む．
+ * 追加パラメータとして使用できる型はInteger，Long，String，int[]，List&lt;Operation&gt;である．
+ * @author kengo92i
+ * @see Operation
+ */
+public class OperationCodec {
+    /**
+     * 追加パラメータの型を示すタグ
+     */
+    private static final byte TAG_NULL = 0, TAG_INT = 1, TAG_LONG = 2, TAG_STRING = 3, TAG_INT_ARRAY = 4, TAG_OPERATIONS = 5;
+
+    /**
+     * インスタンスを作成しない
+     */
+    private OperationCodec() {}
+
+    /**
+     * 操作オブジェクトを書き込む．
+     * @param op 操作オブジェクト
+     * @param out 書き込み先
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public static void encode(Operation op, DataOutput out) throws IOException {
+        Object sid = op.getParam("sid");
+        out.writeInt(op.getOpType());
+        out.writeInt(sid != null ? (Integer) sid : -1);
+        out.writeLong(op.getTimestamp());
+        writeNullableString(op.getPosID(), out);
+        writeNullableString(op.getGid(), out);
+
+        Map<String, Object> params = op.getParams();
+        if (params == null) {
+            out.writeInt(0);
+            return;
+        }
+        int extra = 0;
+        for (String name : params.keySet()) {
+            if (!isStandardParam(name)) extra++;
+        }
+        out.writeInt(extra);
+        for (Map.Entry<String, Object> e : params.entrySet()) {
+            if (isStandardParam(e.getKey())) continue;
+            out.writeUTF(e.getKey());
+            writeValue(e.getValue(), out);
+        }
+    }
+
+    /**
+     * 操作オブジェクトを読み込む．
+     * @param in 読み込み元
+     * @return 操作オブジェクト
+     * @throws IOException 読み込みに失敗した場合
+     */
+    public static Operation decode(DataInput in) throws IOException {
+        int opType = in.readInt();
+        int sid = in.readInt();
+        long timestamp = in.readLong();
+        String posID = readNullableString(in);
+        String gid = readNullableString(in);
+        int extra = in.readInt();
+        if (extra == 0) {
+            return new Operation(opType, sid, posID, gid, timestamp);
+        }
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        if (sid != -1) params.put("sid", sid);
+        if (posID != null) params.put("posID", posID);
+        if (gid != null) params.put("gid", gid);
+        for (int i = 0; i < extra; ++i) {
+            String name = in.readUTF();
+            params.put(name, readValue(in));
+        }
+        return new Operation(opType, params, timestamp);
+    }
+
+    /**
+     * 操作オブジェクトをバイト列に変換する．
+     * @param op 操作オブジェクト
+     * @return バイト列
+     */
+    public static byte[] toBytes(Operation op) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            encode(op, new DataOutputStream(bytes));
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * バイト列を操作オブジェクトに変換する．
+     * @param bytes バイト列
+     * @return 操作オブジェクト
+     */
+    public static Operation fromBytes(byte[] bytes) {
+        try {
+            return decode(new DataInputStream(new ByteArrayInputStream(bytes)));
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * 固定のフィールドとして書き込まれるパラメータであるか判定する．
+     * @param name パラメータ名
+     * @return 固定のフィールドとして書き込まれる場合はtrue
+     */
+    private static boolean isStandardParam(String name) {
+        return "sid".equals(name) || "ts".equals(name) || "posID".equals(name) || "gid".equals(name);
+    }
+
+    /**
+     * nullを許す文字列を書き込む．
+     * @param value 文字列
+     * @param out 書き込み先
+     * @throws IOException 書き込みに失敗した場合
+     */
+    private static void writeNullableString(String value, DataOutput out) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    /**
+     * nullを許す文字列を読み込む．
+     * @param in 読み込み元
+     * @return 文字列
+     * @throws IOException 読み込みに失敗した場合
+     */
+    private static String readNullableString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * 追加パラメータの値を型を示すタグと共に書き込む．
+     * @param value 値
+     * @param out 書き込み先
+     * @throws IOException 書き込みに失敗した場合
+     */
+    @SuppressWarnings("unchecked")
+    private static void writeValue(Object value, DataOutput out) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(TAG_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TAG_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof String) {
+            out.writeByte(TAG_STRING);
+            out.writeUTF((String) value);
+        } else if (value instanceof int[]) {
+            int[] array = (int[]) value;
+            out.writeByte(TAG_INT_ARRAY);
+            out.writeInt(array.length);
+            for (int v : array) out.writeInt(v);
+        } else if (value instanceof List) {
+            List<Operation> ops = (List<Operation>) value;
+            out.writeByte(TAG_OPERATIONS);
+            out.writeInt(ops.size());
+            for (Operation op : ops) encode(op, out);
+        } else {
+            throw new IllegalArgumentException("Unsupported parameter type: " + value.getClass());
+        }
+    }
+
+    /**
+     * 型を示すタグと共に書き込まれた追加パラメータの値を読み込む．
+     * @param in 読み込み元
+     * @return 値
+     * @throws IOException 読み込みに失敗した場合
+     */
+    private static Object readValue(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_INT:
+                return in.readInt();
+            case TAG_LONG:
+                return in.readLong();
+            case TAG_STRING:
+                return in.readUTF();
+            case TAG_INT_ARRAY: {
+                int[] array = new int[in.readInt()];
+                for (int i = 0; i < array.length; ++i) array[i] = in.readInt();
+                return array;
+            }
+            case TAG_OPERATIONS: {
+                int n = in.readInt();
+                List<Operation> ops = new ArrayList<Operation>(n);
+                for (int i = 0; i < n; ++i) ops.add(decode(in));
+                return ops;
+            }
+            default:
+                throw new IOException("Unknown parameter tag: " + tag);
+        }
+    }
+}
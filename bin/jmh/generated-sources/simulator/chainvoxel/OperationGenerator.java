@@ -0,0 +1,506 @@
+package chainvoxel;import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Siteが使用する操作を生成するクラス．<br>
+ * <br>
+ * Site毎に1つ作成して使い回す．乱数生成器，posIDの表，gidの表を再利用することで，
+ * 操作オブジェクト以外の一時的なオブジェクトを生成せずに操作を生成する．<br>
+ * 同じシードを与えた場合は同じ操作列を生成する．<br>
+ * <br>
+ * 操作するセルの選び方(ワークロード)は，一様({@link #UNIFORM})，Zipf分布に従って一部のセルに集中させる({@link #ZIPF})，
+ * 近いセルを連続して操作するブラシのストロークを模擬する({@link #BRUSH})から選択できる．
+ * 操作の種類の割合(mix)を設定した場合は，振る舞いによらずmixに従って操作の種類を選ぶ．
+ * @author kengo92i
+ * @see ZipfSampler
+ */
+public class OperationGenerator {
+    /**
+     * 全てのセルを一様に選ぶワークロードを示す定数
+     */
+    public static final int UNIFORM = 0;
+
+    /**
+     * Zipf分布に従って選ぶワークロードを示す定数．
+     * セルの人気順は全てのSiteで共通であり，最も人気のあるセルは原点である．
+     */
+    public static final int ZIPF = 1;
+
+    /**
+     * ブラシのストロークに沿って近いセルを連続して選ぶワークロードを示す定数．
+     * ストロークは一様に選んだセルから始まり，少しずつ向きを変えながら1操作毎に1セル進む．
+     * 1つのストロークではinsertかdeleteのどちらかだけを行う．
+     */
+    public static final int BRUSH = 2;
+
+    /**
+     * posIDの表を作成する領域の最大サイズ．これを超える場合はposIDを都度作成する．
+     */
+    private static final int MAX_POS_ID_TABLE_SIZE = 1 << 20;
+
+    /**
+     * 構造層の操作で使用するグループの総数
+     */
+    private static final int NUMBER_OF_GROUPS = 16;
+
+    /**
+     * gidを生成するためのシード（全Siteで同じgidを使用するため固定値）
+     */
+    private static final long GROUP_SEED = 0x43686169L;
+
+    /**
+     * limitOfRange毎に共有されるposIDの表
+     */
+    private static final ConcurrentHashMap<Integer, String[]> POS_ID_TABLES = new ConcurrentHashMap<Integer, String[]>();
+
+    /**
+     * 全Siteで共有されるgidの表
+     */
+    private static final String[] GROUP_IDS = createGroupIDs();
+
+    /**
+     * 操作を生成するSiteの識別子
+     */
+    private final int id;
+
+    /**
+     * XYZ座標軸の限界値
+     */
+    private final int limitOfRange;
+
+    /**
+     * 1軸あたりの座標の種類数 (2 * limitOfRange + 1)
+     */
+    private final int width;
+
+    /**
+     * Site毎の乱数生成器
+     */
+    private final Random random;
+
+    /**
+     * 操作のタイムスタンプを発行する時計
+     */
+    private final HybridLogicalClock clock;
+
+    /**
+     * posIDの表（領域が大きすぎる場合はnull）
+     */
+    private final String[] posIDTable;
+
+    /**
+     * posIDの表が使えない場合にposIDを組み立てるためのバッファ
+     */
+    private final StringBuilder posIDBuilder;
+
+    /**
+     * セルを選ぶワークロード
+     */
+    private int workload;
+
+    /**
+     * Zipf分布に従ってセルの人気順を生成するZipfSampler（ZIPFでない場合はnull）
+     */
+    private ZipfSampler zipf;
+
+    /**
+     * 人気順からセルの番号に変換する際の刻み（セルの総数と互いに素）
+     */
+    private long zipfStride;
+
+    /**
+     * 操作の種類毎の重みの累積和（mixを設定していない場合はnull）
+     */
+    private int[] mix;
+
+    /**
+     * ブラシの1ストロークの操作数
+     */
+    private int strokeLength;
+
+    /**
+     * ブラシの半径．操作するセルはストローク上の位置から各軸にこの範囲でずれる．
+     */
+    private int brushRadius;
+
+    /**
+     * 現在のストロークの残りの操作数
+     */
+    private int remainingStroke;
+
+    /**
+     * 現在のストロークで行うプリミティブ層の操作のタイプ
+     */
+    private int strokeType;
+
+    /**
+     * 生成した操作に生成時刻を付けるかの真偽値
+     */
+    private boolean timed;
+
+    /**
+     * ストローク上の現在位置（各軸の[0, width)の座標）
+     */
+    private final int[] brushPosition;
+
+    /**
+     * ストロークの進む向き（各軸の-1，0，1）
+     */
+    private final int[] brushDirection;
+
+    /**
+     * 操作生成器を作成する．
+     * @param id 操作を生成するSiteの識別子
+     * @param limitOfRange XYZ座標軸の限界値
+     * @param seed 乱数のシード
+     * @param clock 操作のタイムスタンプを発行する時計
+     */
+    public OperationGenerator(int id, int limitOfRange, long seed, HybridLogicalClock clock) {
+        this.id = id;
+        this.clock = clock;
+        this.limitOfRange = limitOfRange;
+        this.width = 2 * limitOfRange + 1;
+        this.random = new Random(seed);
+        this.posIDTable = getPosIDTable(limitOfRange);
+        this.posIDBuilder = new StringBuilder(32);
+        this.workload = UNIFORM;
+        this.mix = null;
+        this.strokeLength = 20;
+        this.brushRadius = 1;
+        this.remainingStroke = 0;
+        this.brushPosition = new int[3];
+        this.brushDirection = new int[3];
+    }
+
+    /**
+     * セルを選ぶワークロードを設定する．
+     * @param workload ワークロード（{@link #UNIFORM}，{@link #ZIPF}，{@link #BRUSH}）
+     * @param zipfExponent ZIPFの場合のZipf分布の指数（大きいほど一部のセルに集中する）
+     * @param strokeLength BRUSHの場合の1ストロークの操作数
+     * @param brushRadius BRUSHの場合のブラシの半径
+     */
+    public void setWorkload(int workload, double zipfExponent, int strokeLength, int brushRadius) {
+        if (workload < UNIFORM || workload > BRUSH) {
+            throw new IllegalArgumentException("Unknown workload: " + workload);
+        }
+        if (strokeLength <= 0 || brushRadius < 0) {
+            throw new IllegalArgumentException("Invalid brush: stroke " + strokeLength + ", radius " + brushRadius);
+        }
+        this.workload = workload;
+        this.strokeLength = strokeLength;
+        this.brushRadius = brushRadius;
+        this.remainingStroke = 0;
+        if (workload == ZIPF) {
+            long cells = (long) this.width * this.width * this.width;
+            this.zipf = new ZipfSampler(cells, zipfExponent);
+            this.zipfStride = strideFor(cells);
+        } else {
+            this.zipf = null;
+        }
+    }
+
+    /**
+     * 操作の種類毎の重みを設定する．設定した場合は，振る舞いによらず重みに従って操作の種類を選ぶ．
+     * @param weights insert，delete，create，join，leaveの順の重み（nullの場合は振る舞い毎の既定の割合）
+     */
+    public void setMix(int[] weights) {
+        if (weights == null) {
+            this.mix = null;
+            return;
+        }
+        if (weights.length != Operation.LEAVE + 1) {
+            throw new IllegalArgumentException("mix needs " + (Operation.LEAVE + 1) + " weights");
+        }
+        int[] cumulative = new int[weights.length];
+        int sum = 0;
+        for (int i = 0; i < weights.length; ++i) {
+            if (weights[i] < 0) {
+                throw new IllegalArgumentException("mix weights must not be negative");
+            }
+            sum += weights[i];
+            cumulative[i] = sum;
+        }
+        if (sum == 0) {
+            throw new IllegalArgumentException("mix weights must not all be zero");
+        }
+        this.mix = cumulative;
+    }
+
+    /**
+     * 生成した操作に生成時刻(System.nanoTime)を付けるかを設定する．遅延を計測する場合に使用する．
+     * @param timed 生成時刻を付ける場合はtrue
+     * @see Operation#getGeneratedAt
+     */
+    public void setTimed(boolean timed) {
+        this.timed = timed;
+    }
+
+    /**
+     * ワークロードの名前を定数に変換する
+     * @param name ワークロードの名前（uniform, zipf, brush）
+     * @return ワークロードを表す定数
+     */
+    public static int parseWorkload(String name) {
+        switch (name) {
+            case "uniform": return UNIFORM;
+            case "zipf": return ZIPF;
+            case "brush": return BRUSH;
+            default: throw new IllegalArgumentException("Unknown workload: " + name);
+        }
+    }
+
+    /**
+     * セルの人気順をセルの番号に変換する際の刻みを求める．
+     * 人気順の近いセルが空間的に隣り合わないように，黄金比に近い値からセルの総数と互いに素な値を選ぶ．
+     * @param cells セルの総数
+     * @return セルの総数と互いに素な刻み
+     */
+    private static long strideFor(long cells) {
+        long stride = Math.max(1, (long) (cells * 0.6180339887498949));
+        while (gcd(stride, cells) != 1) {
+            stride++;
+        }
+        return stride;
+    }
+
+    /**
+     * 最大公約数を求める
+     * @param a 整数
+     * @param b 整数
+     * @return aとbの最大公約数
+     */
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * 指定された領域のposIDの表を取得する．表のサイズが上限を超える場合はnullを返す．
+     * @param limitOfRange XYZ座標軸の限界値
+     * @return posIDの表
+     */
+    private static String[] getPosIDTable(final int limitOfRange) {
+        long width = 2L * limitOfRange + 1;
+        if (width * width * width > MAX_POS_ID_TABLE_SIZE) {
+            return null;
+        }
+
+        String[] table = POS_ID_TABLES.get(limitOfRange);
+        if (table != null) {
+            return table;
+        }
+
+        int w = (int) width;
+        table = new String[w * w * w];
+        for (int x = 0; x < w; ++x) {
+            for (int y = 0; y < w; ++y) {
+                for (int z = 0; z < w; ++z) {
+                    table[(x * w + y) * w + z] = (x - limitOfRange) + ":" + (y - limitOfRange) + ":" + (z - limitOfRange);
+                }
+            }
+        }
+        String[] prev = POS_ID_TABLES.putIfAbsent(limitOfRange, table);
+        return prev != null ? prev : table;
+    }
+
+    /**
+     * 全Siteで共有するgidの表を作成する．
+     * @return gidの表
+     */
+    private static String[] createGroupIDs() {
+        Random groupRandom = new Random(GROUP_SEED);
+        String[] gids = new String[NUMBER_OF_GROUPS];
+        for (int i = 0; i < NUMBER_OF_GROUPS; ++i) {
+            gids[i] = new UUID(groupRandom.nextLong(), groupRandom.nextLong()).toString();
+        }
+        return gids;
+    }
+
+    /**
+     * 操作を生成するSiteの識別子を返す．
+     * @return Siteの識別子
+     */
+    public int getSiteId() {
+        return this.id;
+    }
+
+    /**
+     * [-limitOfRange, limitOfRange]の範囲内の整数を返す．
+     * @return [-limitOfRange, limitOfRange]の範囲内の整数
+     */
+    public int nextCoordinate() {
+        return this.random.nextInt(this.width) - this.limitOfRange;
+    }
+
+    /**
+     * voxel識別子(posID)をワークロードに従ってランダムに生成する．
+     * @return voxel識別子
+     */
+    public String nextPosID() {
+        switch (this.workload) {
+            case ZIPF:
+                long rank = this.zipf.sample(this.random) - 1;
+                long cells = (long) this.width * this.width * this.width;
+                long cell = (rank * this.zipfStride + cells / 2) % cells; // 人気順の1位は中央のセル(原点)
+                return this.posIDAt((int) (cell / ((long) this.width * this.width)),
+                        (int) (cell / this.width % this.width), (int) (cell % this.width));
+            case BRUSH:
+                this.nextBrushPosition();
+                return this.posIDAt(this.brushCoordinate(0), this.brushCoordinate(1), this.brushCoordinate(2));
+            default:
+                return this.posIDAt(this.random.nextInt(this.width), this.random.nextInt(this.width), this.random.nextInt(this.width));
+        }
+    }
+
+    /**
+     * ブラシをストロークに沿って1セル進める．ストロークが終わっている場合は新しいストロークを始める．<br>
+     * 進む向きは1/4の確率で1つの軸だけ変わり，領域の端では跳ね返る．
+     */
+    private void nextBrushPosition() {
+        int[] p = this.brushPosition, d = this.brushDirection;
+        if (this.remainingStroke <= 0) {
+            for (int axis = 0; axis < 3; ++axis) {
+                p[axis] = this.random.nextInt(this.width);
+            }
+            do {
+                for (int axis = 0; axis < 3; ++axis) {
+                    d[axis] = this.random.nextInt(3) - 1;
+                }
+            } while (d[0] == 0 && d[1] == 0 && d[2] == 0);
+            this.remainingStroke = this.strokeLength;
+            this.strokeType = this.nextPrimitiveType();
+            return;
+        }
+        if (this.random.nextInt(4) == 0) {
+            int axis = this.random.nextInt(3);
+            d[axis] = this.random.nextInt(3) - 1;
+            if (d[0] == 0 && d[1] == 0 && d[2] == 0) d[axis] = 1;
+        }
+        for (int axis = 0; axis < 3; ++axis) {
+            int next = p[axis] + d[axis];
+            if (next < 0 || next >= this.width) {
+                d[axis] = -d[axis];
+                next = p[axis] + d[axis];
+            }
+            p[axis] = Math.max(0, Math.min(this.width - 1, next));
+        }
+        this.remainingStroke--;
+    }
+
+    /**
+     * ストローク上の現在位置からブラシの半径の範囲でずらした座標を返す
+     * @param axis 軸(0: X, 1: Y, 2: Z)
+     * @return [0, width)の座標
+     */
+    private int brushCoordinate(int axis) {
+        int offset = this.brushRadius == 0 ? 0 : this.random.nextInt(2 * this.brushRadius + 1) - this.brushRadius;
+        return Math.max(0, Math.min(this.width - 1, this.brushPosition[axis] + offset));
+    }
+
+    /**
+     * 座標に対応するvoxel識別子(posID)を返す．
+     * @param x X座標（[0, width)）
+     * @param y Y座標（[0, width)）
+     * @param z Z座標（[0, width)）
+     * @return voxel識別子
+     */
+    private String posIDAt(int x, int y, int z) {
+        if (this.posIDTable != null) {
+            return this.posIDTable[(x * this.width + y) * this.width + z];
+        }
+
+        StringBuilder sb = this.posIDBuilder;
+        sb.setLength(0);
+        sb.append(x - this.limitOfRange).append(':')
+          .append(y - this.limitOfRange).append(':')
+          .append(z - this.limitOfRange);
+        return sb.toString();
+    }
+
+    /**
+     * グループ識別子(gid)をランダムに選択する．
+     * @return グループ識別子
+     */
+    public String nextGid() {
+        return GROUP_IDS[this.random.nextInt(NUMBER_OF_GROUPS)];
+    }
+
+    /**
+     * プリミティブ層の操作のタイプをmixのinsertとdeleteの重みに従って選ぶ．
+     * mixが設定されていない場合や，insertとdeleteの重みが共に0の場合は等確率で選ぶ．
+     * @return 操作のタイプ（INSERTまたはDELETE）
+     */
+    private int nextPrimitiveType() {
+        if (this.mix == null || this.mix[Operation.DELETE] == 0) {
+            return this.random.nextInt(2);
+        }
+        return this.random.nextInt(this.mix[Operation.DELETE]) < this.mix[Operation.INSERT] ? Operation.INSERT : Operation.DELETE;
+    }
+
+    /**
+     * mixの重みに従って操作のタイプを選ぶ．
+     * @return 操作のタイプ
+     */
+    private int nextMixedType() {
+        int r = this.random.nextInt(this.mix[this.mix.length - 1]);
+        int opType = 0;
+        while (r >= this.mix[opType]) {
+            opType++;
+        }
+        return opType;
+    }
+
+    /**
+     * プリミティブ層の操作(insert, delete)をランダムに生成する．<br>
+     * mixが設定されている場合は，mixに従って構造層を含む操作を生成する．
+     * @return 操作オブジェクト
+     */
+    public Operation nextPrimitiveOperation() {
+        if (this.mix != null) {
+            return this.nextOperation(this.nextMixedType());
+        }
+        return this.nextOperation(this.random.nextInt(2));
+    }
+
+    /**
+     * 構造層を含む全ての操作をランダムに生成する．<br>
+     * mixが設定されている場合はmixに従い，設定されていない場合は全ての種類を等確率で生成する．
+     * @return 操作オブジェクト
+     */
+    public Operation nextOperation() {
+        return this.nextOperation(this.mix != null ? this.nextMixedType() : this.random.nextInt(5));
+    }
+
+    /**
+     * 指定したタイプの操作を生成する．<br>
+     * 全ての操作に生成したSiteの識別子を付ける．BRUSHの場合のinsertとdeleteは，ストローク毎に決めたタイプになる．
+     * @param opType 操作のタイプ
+     * @return 操作オブジェクト
+     */
+    private Operation nextOperation(int opType) {
+        long now = this.timed ? System.nanoTime() : 0L;
+        switch (opType) {
+            case Operation.INSERT:
+            case Operation.DELETE:
+                String posID = this.nextPosID();
+                if (this.workload == BRUSH) {
+                    opType = this.strokeType;
+                }
+                return new Operation(opType, this.id, posID, null, this.clock.tick(), now);
+            case Operation.CREATE:
+                return new Operation(opType, this.id, null, this.nextGid(), this.clock.tick(), now);
+            case Operation.JOIN:
+                return new Operation(opType, this.id, this.nextPosID(), this.nextGid(), this.clock.tick(), now);
+            case Operation.LEAVE:
+                return new Operation(opType, this.id, this.nextPosID(), this.nextGid(), this.clock.tick(), now);
+            default:
+                assert false;
+                return null;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package chainvoxel;import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * トレースファイルから読み込んだ操作列を保持するクラス．<br>
+ * <br>
+ * 再生中にファイルの読み込みや操作オブジェクトの作成が計測に含まれないように，全てのレコードを読み込んでから再生する．
+ * 操作はSiteの識別子，sid，タイムスタンプを含めて記録した時と同じ値で復元されるため，再生したChainVoxelは記録した実行と同じ状態に収束する．
+ * 記録中に異常終了して終端がないファイルは，最後の完全なレコードまでを読み込む．
+ * @author kengo92i
+ * @see TraceWriter
+ */
+public class OperationTrace {
+    /**
+     * Site数
+     */
+    private final int numberOfSites;
+
+    /**
+     * XYZ座標軸の限界値
+     */
+    private final int limitOfRange;
+
+    /**
+     * 記録を開始した時刻(System.currentTimeMillis)
+     */
+    private final long startedAt;
+
+    /**
+     * レコード毎の，操作を生成したSiteの識別子
+     */
+    private final int[] siteIds;
+
+    /**
+     * レコード毎の，最初のレコードからの経過時間(ナノ秒)
+     */
+    private final long[] offsets;
+
+    /**
+     * レコード毎の操作オブジェクト
+     */
+    private final Operation[] ops;
+
+    /**
+     * 読み込んだ内容からOperationTraceを作成する
+     * @param numberOfSites Site数
+     * @param limitOfRange XYZ座標軸の限界値
+     * @param startedAt 記録を開始した時刻
+     * @param siteIds レコード毎のSiteの識別子
+     * @param offsets レコード毎の経過時間
+     * @param ops レコード毎の操作オブジェクト
+     */
+    private OperationTrace(int numberOfSites, int limitOfRange, long startedAt, int[] siteIds, long[] offsets, Operation[] ops) {
+        this.numberOfSites = numberOfSites;
+        this.limitOfRange = limitOfRange;
+        this.startedAt = startedAt;
+        this.siteIds = siteIds;
+        this.offsets = offsets;
+        this.ops = ops;
+    }
+
+    /**
+     * トレースファイルを読み込む
+     * @param filename ファイル名
+     * @return 読み込んだ操作列
+     * @throws IOException ファイルを読み込めない場合や，トレースファイルではない場合
+     */
+    public static OperationTrace read(String filename) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16))) {
+            if (in.readInt() != TraceWriter.MAGIC) {
+                throw new IOException("Not a trace file: " + filename);
+            }
+            int version = in.readUnsignedByte();
+            if (version != TraceWriter.VERSION) {
+                throw new IOException("Unsupported trace version: " + version);
+            }
+            int numberOfSites = in.readInt();
+            int limitOfRange = in.readInt();
+            long startedAt = in.readLong();
+
+            List<String> posIDs = new ArrayList<String>();
+            List<String> gids = new ArrayList<String>();
+            long[] lastTimestamps = new long[numberOfSites];
+            int[] siteIds = new int[1024];
+            long[] offsets = new long[1024];
+            Operation[] ops = new Operation[1024];
+            int size = 0;
+            long offset = 0;
+            while (true) {
+                int siteId;
+                Operation op;
+                try {
+                    siteId = (int) readVarLong(in) - 1;
+                    if (siteId < 0) { // 終端
+                        long expected = in.readLong();
+                        if (expected != size) {
+                            throw new IOException("Trace has " + size + " records, but " + expected + " were recorded.");
+                        }
+                        break;
+                    }
+                    if (siteId >= numberOfSites) {
+                        throw new IOException("Invalid site id in trace: " + siteId);
+                    }
+                    offset += readVarLong(in);
+                    int opType = in.readUnsignedByte();
+                    int sid = (int) readVarLong(in) - 1;
+                    long timestamp = lastTimestamps[siteId] + unzigzag(readVarLong(in));
+                    String posID = readString(in, posIDs);
+                    String gid = readString(in, gids);
+                    op = new Operation(opType, sid, posID, gid, timestamp);
+                    lastTimestamps[siteId] = timestamp;
+                } catch (EOFException eof) { // 記録中に異常終了したファイル
+                    break;
+                }
+                if (size == ops.length) {
+                    siteIds = Arrays.copyOf(siteIds, size * 2);
+                    offsets = Arrays.copyOf(offsets, size * 2);
+                    ops = Arrays.copyOf(ops, size * 2);
+                }
+                siteIds[size] = siteId;
+                offsets[size] = offset;
+                ops[size] = op;
+                size++;
+            }
+            return new OperationTrace(numberOfSites, limitOfRange, startedAt,
+                    Arrays.copyOf(siteIds, size), Arrays.copyOf(offsets, size), Arrays.copyOf(ops, size));
+        }
+    }
+
+    /**
+     * Site数を取得する
+     * @return Site数
+     */
+    public int getNumberOfSites() {
+        return this.numberOfSites;
+    }
+
+    /**
+     * XYZ座標軸の限界値を取得する
+     * @return XYZ座標軸の限界値
+     */
+    public int getLimitOfRange() {
+        return this.limitOfRange;
+    }
+
+    /**
+     * 記録を開始した時刻を取得する
+     * @return 記録を開始した時刻(System.currentTimeMillis)
+     */
+    public long getStartedAt() {
+        return this.startedAt;
+    }
+
+    /**
+     * レコードの数を取得する
+     * @return レコードの数
+     */
+    public int size() {
+        return this.ops.length;
+    }
+
+    /**
+     * 操作を生成したSiteの識別子を取得する
+     * @param index レコードの番号
+     * @return Siteの識別子
+     */
+    public int getSiteId(int index) {
+        return this.siteIds[index];
+    }
+
+    /**
+     * 最初のレコードからの経過時間を取得する
+     * @param index レコードの番号
+     * @return 経過時間(ナノ秒)
+     */
+    public long getOffsetNanos(int index) {
+        return this.offsets[index];
+    }
+
+    /**
+     * 操作オブジェクトを取得する
+     * @param index レコードの番号
+     * @return 操作オブジェクト
+     */
+    public Operation getOperation(int index) {
+        return this.ops[index];
+    }
+
+    /**
+     * 記録した期間の長さを取得する
+     * @return 最初のレコードから最後のレコードまでの時間(ナノ秒)
+     */
+    public long getDurationNanos() {
+        return this.offsets.length == 0 ? 0 : this.offsets[this.offsets.length - 1];
+    }
+
+    /**
+     * 指定したSiteが生成した操作の数を取得する
+     * @param siteId Siteの識別子
+     * @return 操作の数
+     */
+    public int getNumberOfOperations(int siteId) {
+        int count = 0;
+        for (int id : this.siteIds) {
+            if (id == siteId) count++;
+        }
+        return count;
+    }
+
+    /**
+     * 指定したSiteが生成した操作を記録した順に取得する
+     * @param siteId Siteの識別子
+     * @return 操作のリスト
+     */
+    public List<Operation> getOperations(int siteId) {
+        List<Operation> list = new ArrayList<Operation>();
+        for (int i = 0; i < this.ops.length; ++i) {
+            if (this.siteIds[i] == siteId) list.add(this.ops[i]);
+        }
+        return list;
+    }
+
+    /**
+     * 指定したSiteが生成した操作の，最初のレコードからの経過時間を記録した順に取得する
+     * @param siteId Siteの識別子
+     * @return 経過時間(ナノ秒)の配列
+     */
+    public long[] getOffsets(int siteId) {
+        long[] result = new long[this.getNumberOfOperations(siteId)];
+        int n = 0;
+        for (int i = 0; i < this.offsets.length; ++i) {
+            if (this.siteIds[i] == siteId) result[n++] = this.offsets[i];
+        }
+        return result;
+    }
+
+    /**
+     * 辞書を参照する番号を読み込み，文字列を返す．新しい文字列の場合は辞書に追加する．
+     * @param in 読み込み元
+     * @param dictionary 辞書
+     * @return 文字列（nullの場合もある）
+     * @throws IOException 読み込みに失敗した場合
+     */
+    private static String readString(DataInputStream in, List<String> dictionary) throws IOException {
+        long ref = readVarLong(in);
+        if (ref == 0) {
+            return null;
+        }
+        if (ref == 1) {
+            String value = in.readUTF();
+            dictionary.add(value);
+            return value;
+        }
+        if (ref - 2 >= dictionary.size()) {
+            throw new IOException("Invalid dictionary reference in trace: " + ref);
+        }
+        return dictionary.get((int) (ref - 2));
+    }
+
+    /**
+     * 7ビット毎に下位から書き込まれた負でない整数を読み込む
+     * @param in 読み込み元
+     * @return 整数
+     * @throws IOException 読み込みに失敗した場合
+     * @see TraceWriter#writeVarLong
+     */
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length integer in trace.");
+    }
+
+    /**
+     * zigzag符号化された整数を元に戻す
+     * @param value 変換された整数
+     * @return 元の整数
+     * @see TraceWriter#zigzag
+     */
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,633 @@
+package chainvoxel;import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Site間のネットワークの遅延・帯域・損失・順序の入れ替わりを模擬する通信路を実装したクラス．<br>
+ * <br>
+ * 他の通信路({@link OperationQueue}など)をラップし，送信された操作を宛先のリンク毎に計算した時刻に{@link TimerWheel}から配送する．
+ * 送信するSiteのスレッドは配送時刻を計算して登録するだけであり，待機しない．<br>
+ * リンク(送信元から宛先への向き)毎の配送時刻は以下のように計算する．
+ * <ul>
+ * <li>遅延: リンクの基本遅延にジッタ(uniform，normal，exponentialのいずれかの分布)を加えたもの</li>
+ * <li>帯域: 操作を{@link OperationCodec}で変換した大きさをリンクの帯域で割った時間だけ送信に要する．リンクは1度に1つの操作しか送信できない</li>
+ * <li>損失: 確率lossで送信に失敗し，再送タイムアウト後に再送する(TCPと同様に操作が失われることはない)</li>
+ * <li>順序: リンク毎の配送順序は送信順序と同じである(FIFO)．確率reorderでこの制約を受けずに配送される</li>
+ * </ul>
+ * 自Siteへの送信はネットワークを経由せずに即座に配送する．broadcastは宛先毎に個別に配送する．<br>
+ * 容量を設定した場合は，宛先毎に送信されてまだ受信されていない操作（配送中の操作を含む）の数を数え，
+ * 容量を超える送信を送信するSiteのスレッドで待機させるか失敗させる．
+ * タイマーホイールのスレッドは配送時に待機も失敗もしない．
+ * @author kengo92i
+ * @see TimerWheel
+ * @see Transport
+ */
+public class SimulatedNetwork implements Transport {
+    /**
+     * ジッタが一様分布であることを示す定数
+     */
+    public static final int UNIFORM = 0;
+
+    /**
+     * ジッタが正規分布であることを示す定数
+     */
+    public static final int NORMAL = 1;
+
+    /**
+     * ジッタが指数分布であることを示す定数
+     */
+    public static final int EXPONENTIAL = 2;
+
+    /**
+     * タイマーホイールの1刻みの時間(ナノ秒)
+     */
+    private static final long TICK_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+
+    /**
+     * 再送タイムアウトの最小値(ナノ秒)
+     */
+    private static final long MIN_RETRANSMISSION_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * 容量に空きができるのを待つ間隔(ナノ秒)
+     */
+    private static final long BACKOFF_NANOS = 50000L;
+
+    /**
+     * 送信元から宛先への向きを持つリンクの状態
+     */
+    private static final class Link {
+        /**
+         * 基本遅延(ナノ秒)
+         */
+        long latencyNanos;
+
+        /**
+         * リンクが次の操作を送信できる時刻(System.nanoTime)
+         */
+        long freeAt = Long.MIN_VALUE;
+
+        /**
+         * 最後に配送する操作の配送時刻(System.nanoTime)
+         */
+        long lastDelivery = Long.MIN_VALUE;
+    }
+
+    /**
+     * 実際に操作を配送する通信路
+     */
+    private final Transport inner;
+
+    /**
+     * Siteの総数
+     */
+    private final int numberOfSites;
+
+    /**
+     * リンクの状態（インデックスsrc*numberOfSites+dest）
+     */
+    private final Link[] links;
+
+    /**
+     * 配送を行うタイマーホイール
+     */
+    private final TimerWheel wheel;
+
+    /**
+     * ジッタの大きさ(ナノ秒)
+     */
+    private long jitterNanos;
+
+    /**
+     * ジッタの分布
+     */
+    private int jitterDistribution;
+
+    /**
+     * 1ナノ秒あたりに送信できるバイト数（0の場合は帯域を制限しない）
+     */
+    private double bytesPerNano;
+
+    /**
+     * 送信に失敗する確率
+     */
+    private double loss;
+
+    /**
+     * FIFOの制約を受けずに配送される確率
+     */
+    private double reorder;
+
+    /**
+     * 配送した操作の数
+     */
+    private final AtomicLong delivered;
+
+    /**
+     * 配送までに要した時間の合計(ナノ秒)
+     */
+    private final AtomicLong totalDelayNanos;
+
+    /**
+     * 配送までに要した時間の最大値(ナノ秒)
+     */
+    private final AtomicLong maxDelayNanos;
+
+    /**
+     * 再送した回数
+     */
+    private final AtomicLong retransmissions;
+
+    /**
+     * FIFOの制約を受けずに配送した操作の数
+     */
+    private final AtomicLong reordered;
+
+    /**
+     * 宛先毎の容量（0の場合は容量を制限しない）
+     */
+    private int capacity;
+
+    /**
+     * 容量を超えた場合の方針（{@link OperationQueue#BLOCK}または{@link OperationQueue#FAIL}）
+     */
+    private int policy;
+
+    /**
+     * 宛先毎の送信されてまだ受信されていない操作の数
+     */
+    private final AtomicLongArray outstanding;
+
+    /**
+     * 宛先毎の未受信の操作数の最大値
+     */
+    private final AtomicLongArray highWaterMarks;
+
+    /**
+     * 宛先毎の容量に空きができるまで待機した送信の数
+     */
+    private final AtomicLongArray blockedSends;
+
+    /**
+     * 宛先毎の送信の待機時間の合計(ナノ秒)
+     */
+    private final AtomicLongArray sendWaitNanos;
+
+    /**
+     * 宛先毎の送信の待機時間の最大値(ナノ秒)
+     */
+    private final AtomicLongArray maxSendWaitNanos;
+
+    /**
+     * 宛先毎の容量を超えたために失敗させた送信の数
+     */
+    private final AtomicLongArray rejectedSends;
+
+    /**
+     * 指定した通信路をラップし，遅延などを加えない状態のSimulatedNetworkを作成する．
+     * @param inner 実際に操作を配送する通信路
+     */
+    public SimulatedNetwork(Transport inner) {
+        this.inner = inner;
+        this.numberOfSites = inner.getNumberOfSites();
+        this.links = new Link[this.numberOfSites * this.numberOfSites];
+        for (int i = 0; i < this.links.length; ++i) {
+            this.links[i] = new Link();
+        }
+        this.wheel = new TimerWheel(TICK_NANOS, "SimulatedNetwork");
+        this.jitterNanos = 0;
+        this.jitterDistribution = UNIFORM;
+        this.bytesPerNano = 0.0;
+        this.loss = 0.0;
+        this.reorder = 0.0;
+        this.delivered = new AtomicLong();
+        this.totalDelayNanos = new AtomicLong();
+        this.maxDelayNanos = new AtomicLong();
+        this.retransmissions = new AtomicLong();
+        this.reordered = new AtomicLong();
+        this.capacity = 0;
+        this.policy = OperationQueue.BLOCK;
+        this.outstanding = new AtomicLongArray(this.numberOfSites);
+        this.highWaterMarks = new AtomicLongArray(this.numberOfSites);
+        this.blockedSends = new AtomicLongArray(this.numberOfSites);
+        this.sendWaitNanos = new AtomicLongArray(this.numberOfSites);
+        this.maxSendWaitNanos = new AtomicLongArray(this.numberOfSites);
+        this.rejectedSends = new AtomicLongArray(this.numberOfSites);
+    }
+
+    /**
+     * 宛先毎の容量と，容量を超えた場合の方針を設定する．<br>
+     * 容量は送信するSiteのスレッドで適用するため，ラップしている通信路には容量を設定しないこと．
+     * 操作を退避する方針({@link OperationQueue#SPILL})は待機しないため，ラップしている{@link OperationQueue}に設定する．
+     * @param capacity 宛先毎の容量（0の場合は容量を制限しない）
+     * @param policy 容量を超えた場合の方針（{@link OperationQueue#BLOCK}，{@link OperationQueue#FAIL}）
+     */
+    public void setCapacity(int capacity, int policy) {
+        if (policy != OperationQueue.BLOCK && policy != OperationQueue.FAIL) {
+            throw new IllegalArgumentException("Unsupported backpressure policy for SimulatedNetwork: " + policy);
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * 全てのリンクの基本遅延を設定する．
+     * @param latencyMillis 基本遅延(ミリ秒)
+     */
+    public void setLatency(double latencyMillis) {
+        for (int src = 0; src < this.numberOfSites; ++src) {
+            for (int dest = 0; dest < this.numberOfSites; ++dest) {
+                this.setLinkLatency(src, dest, latencyMillis);
+            }
+        }
+    }
+
+    /**
+     * 指定したリンクの基本遅延を設定する．
+     * @param src 送信元Siteの識別子
+     * @param dest 宛先Siteの識別子
+     * @param latencyMillis 基本遅延(ミリ秒)
+     */
+    public void setLinkLatency(int src, int dest, double latencyMillis) {
+        if (latencyMillis < 0) {
+            throw new IllegalArgumentException("latency must not be negative: " + latencyMillis);
+        }
+        this.links[src * this.numberOfSites + dest].latencyNanos = (long) (latencyMillis * 1e6);
+    }
+
+    /**
+     * ジッタの大きさと分布を設定する．<br>
+     * 一様分布の場合は[-jitter, jitter]，正規分布の場合は標準偏差jitter，指数分布の場合は平均jitterの値を基本遅延に加える．
+     * 遅延が負になる場合は0とする．
+     * @param jitterMillis ジッタの大きさ(ミリ秒)
+     * @param distribution ジッタの分布（{@link #UNIFORM}，{@link #NORMAL}，{@link #EXPONENTIAL}）
+     */
+    public void setJitter(double jitterMillis, int distribution) {
+        if (distribution != UNIFORM && distribution != NORMAL && distribution != EXPONENTIAL) {
+            throw new IllegalArgumentException("Unknown jitter distribution: " + distribution);
+        }
+        this.jitterNanos = (long) (jitterMillis * 1e6);
+        this.jitterDistribution = distribution;
+    }
+
+    /**
+     * リンク毎の帯域を設定する．
+     * @param kibPerSecond 1秒あたりに送信できるKiB数（0の場合は帯域を制限しない）
+     */
+    public void setBandwidth(double kibPerSecond) {
+        this.bytesPerNano = kibPerSecond * 1024 / 1e9;
+    }
+
+    /**
+     * 送信に失敗する確率を設定する．
+     * @param loss 送信に失敗する確率 [0, 1)
+     */
+    public void setLoss(double loss) {
+        if (loss < 0 || loss >= 1) {
+            throw new IllegalArgumentException("loss must be in [0, 1): " + loss);
+        }
+        this.loss = loss;
+    }
+
+    /**
+     * FIFOの制約を受けずに配送される確率を設定する．
+     * @param reorder FIFOの制約を受けずに配送される確率 [0, 1]
+     */
+    public void setReorder(double reorder) {
+        this.reorder = reorder;
+    }
+
+    @Override
+    public int getNumberOfSites() {
+        return this.numberOfSites;
+    }
+
+    @Override
+    public void send(int src, int dest, Operation op, Runnable whileBlocked) {
+        if (src == dest) { // 自Siteへの送信はネットワークを経由しない
+            if (this.capacity > 0) this.admit(dest);
+            this.inner.send(src, dest, op, whileBlocked);
+            return;
+        }
+        if (this.capacity > 0) {
+            this.awaitCapacity(dest, -1, whileBlocked);
+            this.admit(dest);
+        }
+        this.transmit(src, dest, op, this.sizeOf(op));
+    }
+
+    @Override
+    public void broadcast(int src, Operation op, Runnable whileBlocked) {
+        if (this.capacity > 0) {
+            this.awaitCapacity(this.findFullDestination(src), src, whileBlocked);
+            for (int dest = 0; dest < this.numberOfSites; ++dest) {
+                if (dest != src) this.admit(dest);
+            }
+        }
+        int size = this.sizeOf(op);
+        for (int dest = 0; dest < this.numberOfSites; ++dest) {
+            if (dest != src) this.transmit(src, dest, op, size);
+        }
+    }
+
+    /**
+     * 宛先が容量を超えている場合に，方針が{@link OperationQueue#BLOCK}の場合は容量に空きができるまで待機し，
+     * {@link OperationQueue#FAIL}の場合は例外を投げる．
+     * @param dest 宛先Siteの識別子（broadcastの場合は容量を超えている宛先．存在しない場合は-1）
+     * @param src broadcastの送信元Siteの識別子（broadcastでない場合は-1）
+     * @param whileBlocked 待機中に実行する処理（null可）
+     * @throws IllegalStateException 方針が{@link OperationQueue#FAIL}で容量を超えている場合
+     * @throws CancellationException 待機中に割り込まれた場合
+     */
+    private void awaitCapacity(int dest, int src, Runnable whileBlocked) {
+        if (dest < 0 || this.outstanding.get(dest) < this.capacity) {
+            return;
+        }
+        if (this.policy == OperationQueue.FAIL) {
+            this.rejectedSends.getAndIncrement(dest);
+            throw new IllegalStateException("SimulatedNetwork is full: site " + dest + " has " + this.outstanding.get(dest) + " pending operations.");
+        }
+
+        long start = System.nanoTime();
+        while (src < 0 ? this.outstanding.get(dest) >= this.capacity : this.findFullDestination(src) >= 0) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("Interrupted while waiting for site " + dest + " to receive operations.");
+            }
+            if (whileBlocked != null) {
+                whileBlocked.run();
+            }
+            LockSupport.parkNanos(this, BACKOFF_NANOS);
+        }
+        long waited = System.nanoTime() - start;
+        this.blockedSends.getAndIncrement(dest);
+        this.sendWaitNanos.getAndAdd(dest, waited);
+        long max;
+        while ((max = this.maxSendWaitNanos.get(dest)) < waited && !this.maxSendWaitNanos.compareAndSet(dest, max, waited)) {}
+    }
+
+    /**
+     * 送信元を除いて，未受信の操作数が最も多く，容量を超えている宛先を探す．
+     * @param src 送信元Siteの識別子
+     * @return 容量を超えている宛先の識別子．存在しない場合は-1を返す．
+     */
+    private int findFullDestination(int src) {
+        int fullest = -1;
+        long max = this.capacity - 1;
+        for (int i = 0; i < this.numberOfSites; ++i) {
+            if (i == src) continue;
+            long size = this.outstanding.get(i);
+            if (size > max) {
+                max = size;
+                fullest = i;
+            }
+        }
+        return fullest;
+    }
+
+    /**
+     * 宛先の未受信の操作数を1つ増やし，最大値を更新する．
+     * @param dest 宛先Siteの識別子
+     */
+    private void admit(int dest) {
+        long size = this.outstanding.incrementAndGet(dest);
+        long max;
+        while ((max = this.highWaterMarks.get(dest)) < size && !this.highWaterMarks.compareAndSet(dest, max, size)) {}
+    }
+
+    /**
+     * 受信した操作の数だけ宛先の未受信の操作数を減らす．
+     * @param id 受信したSiteの識別子
+     * @param n 受信した操作の数
+     * @return 受信した操作の数
+     */
+    private int release(int id, int n) {
+        if (this.capacity > 0 && n > 0) {
+            this.outstanding.addAndGet(id, -n);
+        }
+        return n;
+    }
+
+    /**
+     * 操作を送信した時の大きさを返す．帯域を制限しない場合は変換を行わずに0を返す．
+     * @param op 操作オブジェクト
+     * @return 大きさ(バイト)
+     */
+    private int sizeOf(Operation op) {
+        return this.bytesPerNano > 0 ? OperationCodec.toBytes(op).length : 0;
+    }
+
+    /**
+     * リンクの状態から配送時刻を計算し，タイマーホイールに配送を登録する．
+     * @param src 送信元Siteの識別子
+     * @param dest 宛先Siteの識別子
+     * @param op 操作オブジェクト
+     * @param size 操作の大きさ(バイト)
+     */
+    private void transmit(final int src, final int dest, final Operation op, int size) {
+        final long now = System.nanoTime();
+        Random random = ThreadLocalRandom.current();
+        Link link = this.links[src * this.numberOfSites + dest];
+        long deliverAt;
+        synchronized (link) {
+            long departure = now;
+            if (this.bytesPerNano > 0) {
+                departure = Math.max(now, link.freeAt) + (long) (size / this.bytesPerNano);
+                link.freeAt = departure;
+            }
+
+            long rto = Math.max(MIN_RETRANSMISSION_TIMEOUT_NANOS, 2 * link.latencyNanos);
+            while (this.loss > 0 && random.nextDouble() < this.loss) {
+                departure += rto;
+                this.retransmissions.incrementAndGet();
+            }
+            deliverAt = departure + this.sampleLatency(link, random);
+
+            if (this.reorder > 0 && random.nextDouble() < this.reorder) {
+                this.reordered.incrementAndGet();
+            } else {
+                deliverAt = Math.max(deliverAt, link.lastDelivery);
+                link.lastDelivery = deliverAt;
+            }
+        }
+
+        this.wheel.scheduleAt(new Runnable() {
+            @Override
+            public void run() {
+                SimulatedNetwork.this.deliver(src, dest, op, now);
+            }
+        }, deliverAt);
+    }
+
+    /**
+     * リンクの基本遅延にジッタを加えた遅延を返す．
+     * @param link リンク
+     * @param random 乱数生成器
+     * @return 遅延(ナノ秒)
+     */
+    private long sampleLatency(Link link, Random random) {
+        return Math.max(0L, link.latencyNanos + sampleJitter(random, this.jitterNanos, this.jitterDistribution));
+    }
+
+    /**
+     * 指定した分布に従うジッタを返す．単位はjitterと同じである．
+     * @param random 乱数生成器
+     * @param jitter ジッタの大きさ
+     * @param distribution ジッタの分布（{@link #UNIFORM}，{@link #NORMAL}，{@link #EXPONENTIAL}）
+     * @return ジッタ
+     * @see #setJitter
+     */
+    public static long sampleJitter(Random random, long jitter, int distribution) {
+        if (jitter <= 0) {
+            return 0L;
+        }
+        switch (distribution) {
+            case NORMAL:
+                return (long) (random.nextGaussian() * jitter);
+            case EXPONENTIAL:
+                return (long) (-Math.log(1.0 - random.nextDouble()) * jitter);
+            default:
+                return (long) ((2.0 * random.nextDouble() - 1.0) * jitter);
+        }
+    }
+
+    /**
+     * タイマーホイールのスレッドから呼び出され，操作を宛先に配送する．
+     * @param src 送信元Siteの識別子
+     * @param dest 宛先Siteの識別子
+     * @param op 操作オブジェクト
+     * @param sentAt 送信された時刻(System.nanoTime)
+     */
+    private void deliver(int src, int dest, Operation op, long sentAt) {
+        this.inner.send(src, dest, op, null);
+        long delay = System.nanoTime() - sentAt;
+        this.delivered.incrementAndGet();
+        this.totalDelayNanos.addAndGet(delay);
+        long max;
+        while ((max = this.maxDelayNanos.get()) < delay && !this.maxDelayNanos.compareAndSet(max, delay)) {}
+    }
+
+    @Override
+    public Operation dequeue(int id) {
+        Operation op = this.inner.dequeue(id);
+        this.release(id, op == null ? 0 : 1);
+        return op;
+    }
+
+    @Override
+    public int drainTo(int id, Collection<? super Operation> buffer, int max) {
+        return this.release(id, this.inner.drainTo(id, buffer, max));
+    }
+
+    @Override
+    public int drainTo(int id, Collection<? super Operation> buffer, int max, long timeout, TimeUnit unit) {
+        return this.release(id, this.inner.drainTo(id, buffer, max, timeout, unit));
+    }
+
+    /**
+     * タイマーホイールを停止し，ラップしている通信路を閉じる．配送されていない操作は破棄される．
+     */
+    @Override
+    public void close() {
+        this.wheel.stop();
+        this.inner.close();
+    }
+
+    /**
+     * 配送した操作の数を返す（自Siteへの送信は含まない）
+     * @return 配送した操作の数
+     */
+    public long getNumberOfDeliveredOperations() {
+        return this.delivered.get();
+    }
+
+    /**
+     * 送信から配送までに要した平均時間を返す
+     * @return 平均時間(ナノ秒)
+     */
+    public double getAverageDelayNanos() {
+        long n = this.delivered.get();
+        return n == 0 ? 0.0 : (double) this.totalDelayNanos.get() / n;
+    }
+
+    /**
+     * 送信から配送までに要した最大時間を返す
+     * @return 最大時間(ナノ秒)
+     */
+    public long getMaxDelayNanos() {
+        return this.maxDelayNanos.get();
+    }
+
+    /**
+     * 再送した回数を返す
+     * @return 再送した回数
+     */
+    public long getNumberOfRetransmissions() {
+        return this.retransmissions.get();
+    }
+
+    /**
+     * FIFOの制約を受けずに配送した操作の数を返す
+     * @return 操作の数
+     */
+    public long getNumberOfReorderedOperations() {
+        return this.reordered.get();
+    }
+
+    /**
+     * 宛先毎の容量を返す
+     * @return 宛先毎の容量（0の場合は容量を制限しない）
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * 宛先の未受信の操作数の最大値を返す（容量を設定した場合のみ記録する）
+     * @param id 宛先Siteの識別子
+     * @return 未受信の操作数の最大値
+     */
+    public long getHighWaterMark(int id) {
+        return this.highWaterMarks.get(id);
+    }
+
+    /**
+     * 宛先の容量に空きができるまで待機した送信の数を返す
+     * @param id 宛先Siteの識別子
+     * @return 待機した送信の数
+     */
+    public long getNumberOfBlockedSends(int id) {
+        return this.blockedSends.get(id);
+    }
+
+    /**
+     * 宛先への送信の待機時間の合計を返す
+     * @param id 宛先Siteの識別子
+     * @return 待機時間の合計(ナノ秒)
+     */
+    public long getSendWaitNanos(int id) {
+        return this.sendWaitNanos.get(id);
+    }
+
+    /**
+     * 宛先への送信の待機時間の最大値を返す
+     * @param id 宛先Siteの識別子
+     * @return 待機時間の最大値(ナノ秒)
+     */
+    public long getMaxSendWaitNanos(int id) {
+        return this.maxSendWaitNanos.get(id);
+    }
+
+    /**
+     * 宛先の容量を超えたために失敗させた送信の数を返す
+     * @param id 宛先Siteの識別子
+     * @return 失敗させた送信の数
+     */
+    public long getNumberOfRejectedSends(int id) {
+        return this.rejectedSends.get(id);
+    }
+}
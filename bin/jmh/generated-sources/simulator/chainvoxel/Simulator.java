@@ -0,0 +1,1430 @@
+package chainvoxel;
+import java.io.BufferedReader;
+import java.io.FileWriter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+import jdk.jfr.Recording;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * ChainVoxelシミュレータを実行するためのクラス.
+ * usage: java Simulator [number of sites] [number of operations] [limit of range] [options...] <br>
+ * オプションは "--名前=値" の形式で指定する．
+ * <ul>
+ * <li>--seed=N : 操作生成に使用する乱数のシード（Site毎にN+idを使用する）</li>
+ * <li>--clock=hlc|logical : タイムスタンプの時計．logicalの場合は物理時刻を使用しない</li>
+ * <li>--coalesce=N : 送信前にN操作分の操作をposID毎にまとめる（0の場合はまとめない）</li>
+ * <li>--spin=N : 操作の受信を待機する際に，parkする前にQueueを確認する回数</li>
+ * <li>--queue-capacity=N : 宛先毎のQueueの容量（0の場合は制限しない）</li>
+ * <li>--backpressure=block|fail|spill : Queueの容量を超えた場合の方針</li>
+ * <li>--behavior=chainvoxel|structure|2pc|raft|gossip|raft-pipeline|2pc-concurrent : Siteの振る舞い</li>
+ * <li>--workload=uniform|zipf|brush : 操作するセルの選び方</li>
+ * <li>--zipf=s : zipfの場合のZipf分布の指数</li>
+ * <li>--stroke=N : brushの場合の1ストロークの操作数</li>
+ * <li>--brush-radius=N : brushの場合のブラシの半径</li>
+ * <li>--mix=insert,delete,create,join,leave : 操作の種類毎の重み（指定した場合は振る舞いによらず重みに従う）</li>
+ * <li>--gossip=push|pull|push-pull : gossipの場合に，新しい操作を転送するか，不足している操作を要求するか</li>
+ * <li>--fanout=N : gossipの場合に，1ラウンドで通信するSiteの数</li>
+ * <li>--raft-batch=N : raft-pipelineの場合に，1つのAppendEntriesに含める操作の最大数</li>
+ * <li>--raft-window=N : raft-pipelineの場合に，Follower毎に応答を待たずに送信できるAppendEntriesの数</li>
+ * <li>--tx-window=N : 2pc-concurrentの場合に，Site毎に同時に実行するトランザクションの最大数</li>
+ * <li>--tx-backoff=ms : 2pc-concurrentの場合に，中止したトランザクションを再試行するまでのバックオフの初期の範囲</li>
+ * <li>--transport=memory|socket : 操作を共有する通信路．socketの場合はSite毎に別のプロセスで実行する</li>
+ * <li>--site-id=N : socketの場合に，このプロセスで実行するSiteの識別子</li>
+ * <li>--hosts=ホスト:ポート,... : socketの場合に，Siteの識別子の順に並べた全てのSiteのアドレス</li>
+ * <li>--port=N : socketで--hostsを指定しない場合に，id=iのSiteが使用するlocalhostのポートN+i</li>
+ * <li>--latency=ms : Site間のリンクの基本遅延</li>
+ * <li>--jitter=ms : 遅延のばらつきの大きさ</li>
+ * <li>--jitter-dist=uniform|normal|exponential : 遅延のばらつきの分布</li>
+ * <li>--links=i-j:ms,... : 指定したリンクの基本遅延</li>
+ * <li>--bandwidth=KiB/s : リンク毎の帯域</li>
+ * <li>--loss=p : 送信に失敗して再送する確率</li>
+ * <li>--reorder=p : リンク毎の送信順序に従わずに配送される確率</li>
+ * <li>--batch=N : broadcastする操作を最大N個までまとめて1つのフレームで送信する（1以下の場合はまとめない）</li>
+ * <li>--linger=ms : --batchを指定した場合に，最初の操作を溜めてからフレームを送信するまでの最大時間</li>
+ * <li>--causal=true|false : broadcastした操作をベクトル時計により因果順序に従って配送するかどうか</li>
+ * <li>--engine=threads|des : Site毎のスレッドで実行するか，離散事象シミュレータで実行するか</li>
+ * <li>--op-interval=ms : desの場合に，ChainVoxelの振る舞いで各Siteが操作を生成する仮想時間の間隔</li>
+ * <li>--apply=true|false : desの場合に，操作をChainVoxelに適用するかどうか</li>
+ * <li>--threads=platform|virtual : Siteを実行するスレッド．virtualの場合は仮想スレッド(Java 21以降)で実行する</li>
+ * <li>--metrics[=ファイル名] : 操作の生成から他のSiteでの適用までの遅延と，間隔毎のスループットとQueueの長さを記録する．ファイル名を指定した場合はCSV(.csv)またはJSON(.json)で出力する</li>
+ * <li>--metrics-interval=ms : --metricsを指定した場合に，スループットとQueueの長さを記録する間隔</li>
+ * <li>--record=ファイル名 : Siteが生成した操作をトレースファイルに記録する</li>
+ * <li>--replay=ファイル名 : 操作を生成する代わりに，トレースファイルに記録された操作を再生する（Site数はトレースと同じにする）</li>
+ * <li>--replay-speed=x : --replayを指定した場合に，記録した時の間隔のx倍の速さで再生する（0の場合は待機せずに再生する）</li>
+ * <li>--result : 実験の条件と結果を "RESULT 名前=値 ..." の形式で1行に出力する</li>
+ * <li>--verify[=true|false] : 実行後に全てのSiteのChainVoxelが同じ状態に収束したかを並行して検証する</li>
+ * <li>--verify-quiet=ms : --verifyを指定した場合に，配送中の操作を待つ間隔．新しい操作が届かなくなるまで待機する</li>
+ * <li>--verify-diffs=N : --verifyを指定した場合に，収束していないSite毎に出力する差分の最大数</li>
+ * <li>--counters : ChainVoxel，StructureTable，OperationQueueが常に数えている操作数と待機時間を出力する</li>
+ * <li>--footprint[=ファイル名] : 実行後にSite毎のメモリ使用量の内訳とvoxelチェインの長さの分布を出力する．ファイル名を指定した場合は標本をCSVで出力する</li>
+ * <li>--footprint-every=N : --footprintを指定した場合に，各SiteがN個の操作を適用する毎にメモリ使用量の標本を取得する（デフォルトは0で，実行後だけ）</li>
+ * <li>--jfr[=ファイル名] : ChainVoxelの適用，StructureTableのjoin/leave，OperationQueueの待機をJFRのイベントとして記録する</li>
+ * <li>--jfr-threshold=ms : --jfrを指定した場合に，記録するイベントの時間の閾値（指定しない場合はイベント毎の既定値）</li>
+ * </ul>
+ * @author kengo92i
+ */
+public class Simulator {
+    /**
+     * Site毎に別のプロセスで実行する場合に，全てのSiteとの接続を待つ最大時間(秒)
+     */
+    static final long CONNECT_TIMEOUT_SECONDS = 60;
+
+    /**
+     * Site毎に別のプロセスで実行する場合に，--hostsが指定されていない時に使用するポート番号の初期値
+     */
+    static final int DEFAULT_PORT = 7000;
+
+    /**
+     * シミュレータ上で動作するsite総数
+     */
+    int numberOfSites;
+
+    /**
+     * 個々のsiteが行なう操作回数
+     */
+    int numberOfOperations;
+
+    /**
+     * ChainVoxelが扱う領域の最大値 [-limitOfRange, limitOfRange]
+     */
+    int limitOfRange;
+
+    /**
+     * 操作生成に使用する乱数のシード
+     */
+    long seed;
+
+    /**
+     * コマンドラインで指定されたオプション
+     */
+    Map<String, String> options;
+
+    /**
+     * 全てのSiteを同じJVMで実行する場合のグローバルキュー
+     */        
+    OperationQueue opq;
+
+    /**
+     * Site毎に別のプロセスで実行する場合の通信路
+     */
+    SocketTransport socket;
+
+    /**
+     * ネットワークの遅延などを模擬する場合の通信路
+     */
+    SimulatedNetwork network;
+
+    /**
+     * broadcastする操作をまとめて送信する通信路（使用しない場合はnull）
+     */
+    BatchingTransport batching;
+
+    /**
+     * broadcastした操作を因果順序に従って配送する通信路（使用しない場合はnull）
+     */
+    CausalTransport causal;
+
+    /**
+     * Siteが使用する通信路
+     */
+    Transport transport;
+
+    /**
+     * 操作の遅延とスループットを記録するMetricsRecorder（記録しない場合はnull）
+     */
+    MetricsRecorder metrics;
+
+    /**
+     * 生成した操作を記録するTraceWriter（記録しない場合はnull）
+     */
+    TraceWriter trace;
+
+    /**
+     * 再生する操作列（再生しない場合はnull）
+     */
+    OperationTrace replay;
+
+    /**
+     * ChainVoxelのイベントを記録するJFRの記録（記録しない場合はnull）
+     */
+    Recording recording;
+
+    /**
+     * 最初に異常終了したSiteの例外（異常終了していない場合はnull）
+     */
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    /**
+     * siteを管理するためのリスト
+     */        
+    List<Site> sites;
+
+    /**
+     * siteを実行するスレッドのリスト（プラットフォームスレッドの場合はsite自身）
+     */
+    List<Thread> threads;
+
+    /**
+     * Simulatorの処理を記述する
+     * @param args コマンドライン引数
+     */
+    public void run(String[] args) {         
+        this.numberOfSites = Integer.parseInt(args[0]);
+        this.numberOfOperations = Integer.parseInt(args[1]);
+        this.limitOfRange = Integer.parseInt(args[2]);
+        this.options = parseOptions(args, 3);
+        this.seed = this.getLongOption("seed", new Random().nextLong());
+        if (this.options.containsKey("jfr")) {
+            try {
+                this.recording = FlightRecorderEvents.startRecording(this.getFileOption("jfr", "chainvoxel.jfr"), this.getDoubleOption("jfr-threshold", -1.0));
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+
+        if ("des".equals(this.getOption("engine", "threads"))) {
+            if (this.options.containsKey("record") || this.options.containsKey("replay")) {
+                throw new IllegalArgumentException("--record and --replay are not supported with --engine=des");
+            }
+            try {
+                this.runDiscreteEvent();
+            } finally {
+                this.stopRecording();
+            }
+            return;
+        }
+
+        this.sites = new ArrayList<Site>();
+        this.threads = new ArrayList<Thread>();
+
+        try {
+            int localSite = -1; // 全てのSiteを同じJVMで実行する場合は-1
+            if ("socket".equals(this.getOption("transport", "memory"))) {
+                localSite = this.getIntOption("site-id", -1);
+                this.socket = new SocketTransport(localSite, this.getSiteAddresses());
+                this.transport = this.socket;
+            } else {
+                this.opq = new OperationQueue(numberOfSites);
+                this.opq.setSpinCount(this.getIntOption("spin", 0));
+                this.transport = this.opq;
+            }
+            int capacity = this.getIntOption("queue-capacity", 0);
+            int policy = parseBackpressurePolicy(this.getOption("backpressure", "block"));
+            if (this.hasNetworkOptions()) {
+                this.network = this.createNetwork(this.transport);
+                this.transport = this.network;
+            }
+            if (this.opq != null) {
+                if (this.network != null && policy != OperationQueue.SPILL) {
+                    // タイマーホイールのスレッドが配送時に待機・失敗しないように，容量は送信するSiteのスレッドで適用する
+                    this.network.setCapacity(capacity, policy);
+                } else {
+                    this.opq.setCapacity(capacity, policy);
+                }
+            }
+            if (this.getIntOption("batch", 0) > 1) {
+                this.batching = new BatchingTransport(this.transport, this.getIntOption("batch", 0), this.getDoubleOption("linger", 1.0));
+                this.transport = this.batching;
+            }
+            if (Boolean.parseBoolean(this.getOption("causal", "false"))) {
+                this.causal = new CausalTransport(this.transport);
+                this.transport = this.causal;
+            }
+            int behavior = parseBehavior(this.getOption("behavior", "chainvoxel"));
+            boolean virtual = parseVirtualThreads(this.getOption("threads", "platform"));
+            if (this.options.containsKey("replay")) {
+                this.loadReplay(behavior);
+            }
+            if (this.options.containsKey("record")) {
+                this.trace = new TraceWriter(this.getFileOption("record", "trace.cvt"), this.numberOfSites, this.limitOfRange);
+            }
+            if (this.options.containsKey("metrics")) {
+                this.metrics = new MetricsRecorder(this.getDoubleOption("metrics-interval", 1000.0));
+                if (this.opq != null) this.metrics.setQueue(this.opq);
+            }
+            
+            // 1つのSiteが異常終了した場合は，他のSiteが待ち続けないように全てのSiteに割り込む
+            Thread.UncaughtExceptionHandler abort = new Thread.UncaughtExceptionHandler() {
+                @Override
+                public void uncaughtException(Thread t, Throwable e) {
+                    if (!Simulator.this.failure.compareAndSet(null, e)) {
+                        return; // 最初の異常終了によって割り込まれたSite
+                    }
+                    System.err.print(t.getName() + " aborted: ");
+                    e.printStackTrace();
+                    for (Thread thread : Simulator.this.threads) {
+                        if (thread != t) thread.interrupt();
+                    }
+                }
+            };
+
+            for (int i = 0; i < this.numberOfSites; i++) {
+                if (localSite >= 0 && i != localSite) {
+                    continue; // 他のプロセスで実行される
+                }
+                Site site = new Site(i, this.transport, numberOfOperations, limitOfRange, this.seed + i);
+                Thread thread = virtual ? newVirtualThread(site, "site" + i) : site;
+                thread.setUncaughtExceptionHandler(abort);
+                site.setBehavior(behavior);
+                site.setGossip(this.getIntOption("fanout", 3), Gossip.parseMode(this.getOption("gossip", "push-pull")));
+                site.setRaftPipeline(this.getIntOption("raft-batch", 64), this.getIntOption("raft-window", 4));
+                site.setTransactions(this.getIntOption("tx-window", 4), this.getDoubleOption("tx-backoff", 1.0));
+                site.getClock().setPhysicalClockEnabled(!"logical".equals(this.getOption("clock", "hlc")));
+                site.setCoalescingWindow(this.getIntOption("coalesce", 0));
+                this.configureWorkload(site.getGenerator());
+                site.setMetrics(this.metrics);
+                site.setTrace(this.trace);
+                site.getChainVoxel().setFootprintInterval(this.getFootprintInterval());
+                if (this.replay != null) {
+                    site.setReplay(this.replay.getOperations(i), this.replay.getOffsets(i), this.getDoubleOption("replay-speed", 0.0));
+                }
+                this.sites.add(site);
+                this.threads.add(thread);
+            }
+
+            if (this.socket != null) {
+                this.socket.awaitConnections(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+
+            if (this.metrics != null) {
+                this.metrics.start();
+            }
+            long start = System.nanoTime();
+            for (Thread thread : this.threads) {
+                thread.start();
+            }
+            long startup = System.nanoTime() - start;
+
+            for (Thread thread : this.threads) {
+                thread.join();
+            }
+            long elapsed = System.nanoTime() - start;
+            if (this.metrics != null) {
+                this.metrics.stop();
+            }
+            if (this.failure.get() != null) {
+                // 異常終了した実行の結果は正しくないため，結果を出力しない
+                System.err.println("simulation aborted, no summary or result is reported: " + this.failure.get());
+                return;
+            }
+
+            ConvergenceVerifier verifier = null;
+            long drained = 0;
+            if (Boolean.parseBoolean(this.getOption("verify", "false")) && localSite < 0) {
+                verifier = new ConvergenceVerifier(Runtime.getRuntime().availableProcessors(), this.getIntOption("verify-diffs", 10));
+                drained = this.verifySites(verifier);
+            }
+
+            this.transport.close();
+            if (this.trace != null) {
+                this.trace.close();
+            }
+
+            Site first = this.sites.get(0);
+            long messages = this.countMessages(behavior);
+            System.out.println(
+                this.numberOfOperations * this.numberOfSites + 
+                " " + first.getNumberOfSteps() + " " + messages);
+                
+            if (this.getIntOption("coalesce", 0) > 0) {
+                this.printCoalescingReport();
+            }
+            if (this.opq != null && this.getIntOption("queue-capacity", 0) > 0) {
+                this.printQueueReport();
+            }
+            if (this.socket != null) {
+                this.printTransportReport();
+            }
+            if (this.network != null) {
+                this.printNetworkReport(elapsed);
+            }
+            if (this.batching != null) {
+                this.printBatchingReport(elapsed);
+            }
+            if (this.causal != null) {
+                this.printCausalReport();
+            }
+            if (behavior == Site.GOSSIP) {
+                List<Gossip> states = new ArrayList<Gossip>();
+                int[] load = new int[this.sites.size()];
+                for (int i = 0; i < this.sites.size(); ++i) {
+                    states.add(this.sites.get(i).getGossip());
+                    load[i] = this.sites.get(i).getNumberOfMessages();
+                }
+                this.printGossipReport(states, load);
+            }
+            if (behavior == Site.CONCURRENT_TWO_PHASE_COMMIT) {
+                this.printTransactionReport();
+            }
+            if (this.options.containsKey("threads")) {
+                this.printThreadReport(virtual, startup, elapsed);
+            }
+            if (this.trace != null) {
+                this.printRecordReport();
+            }
+            if (this.replay != null) {
+                this.printReplayReport(elapsed);
+            }
+            if (this.metrics != null) {
+                this.printMetricsReport();
+                String filename = this.getOption("metrics", "true");
+                if (!"true".equals(filename)) {
+                    this.metrics.write(filename, this.getOption("behavior", "chainvoxel"));
+                }
+            }
+
+            if (this.options.containsKey("counters")) {
+                List<ChainVoxel> chainVoxels = new ArrayList<ChainVoxel>();
+                for (Site site : this.sites) {
+                    chainVoxels.add(site.getChainVoxel());
+                }
+                this.printCounterReport(chainVoxels);
+            }
+            if (this.options.containsKey("footprint")) {
+                List<ChainVoxel> chainVoxels = new ArrayList<ChainVoxel>();
+                for (Site site : this.sites) {
+                    chainVoxels.add(site.getChainVoxel());
+                }
+                this.printFootprintReport(chainVoxels);
+            }
+            if (verifier != null) {
+                this.printVerifyReport(verifier, drained);
+            } else if (this.options.containsKey("verify") && localSite >= 0) {
+                System.out.println("verify: skipped, only site " + localSite + " runs in this process");
+            }
+
+            if (this.options.containsKey("result")) {
+                if (verifier != null) {
+                    this.printResult("threads", first.getNumberOfSteps(), messages, elapsed, "states", verifier.getNumberOfStates());
+                } else {
+                    this.printResult("threads", first.getNumberOfSteps(), messages, elapsed);
+                }
+            }
+
+            } catch (RuntimeException re) {
+                this.failure.compareAndSet(null, re);
+                re.printStackTrace();
+            } catch (InterruptedException ie) {
+                this.failure.compareAndSet(null, ie);
+                ie.printStackTrace();
+            } catch (IOException ioe) {
+                this.failure.compareAndSet(null, ioe);
+                ioe.printStackTrace();
+            } finally {
+                if (this.transport != null) this.transport.close();
+                if (this.trace != null) {
+                    try {
+                        this.trace.close();
+                    } catch (IOException ioe) {
+                        ioe.printStackTrace();
+                    }
+                }
+                this.stopRecording();
+            }
+        }
+
+    /**
+     * JFRの記録を停止し，ファイルに書き出す．記録していない場合は何もしない．
+     * @see FlightRecorderEvents#startRecording
+     */
+    void stopRecording() {
+        if (this.recording == null) {
+            return;
+        }
+        this.recording.stop();
+        try {
+            System.out.println(String.format("jfr: %d bytes recorded to %s",
+                    Files.size(this.recording.getDestination()), this.recording.getDestination()));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        this.recording.close();
+        this.recording = null;
+    }
+
+    /**
+     * --replayで指定されたトレースファイルを読み込み，Site毎の操作の実行回数をトレースに合わせる．<br>
+     * 全てのSiteが交代で操作を実行する振る舞いでは，全てのSiteの操作数が等しいトレースだけを再生できる．
+     * @param behavior Siteの振る舞い
+     * @throws IOException トレースファイルを読み込めない場合
+     * @see OperationTrace
+     */
+    void loadReplay(int behavior) throws IOException {
+        this.replay = OperationTrace.read(this.getFileOption("replay", "trace.cvt"));
+        if (this.replay.getNumberOfSites() != this.numberOfSites) {
+            throw new IllegalArgumentException("Trace was recorded with " + this.replay.getNumberOfSites() +
+                    " sites, but " + this.numberOfSites + " sites are given.");
+        }
+        int operations = this.replay.getNumberOfOperations(0);
+        for (int i = 1; i < this.numberOfSites; i++) {
+            if (this.replay.getNumberOfOperations(i) != operations &&
+                    behavior != Site.CHAINVOXEL && behavior != Site.STRUCTURE_LAYER && behavior != Site.CONCURRENT_TWO_PHASE_COMMIT) {
+                throw new IllegalArgumentException("Sites in the trace generated different numbers of operations, " +
+                        "which can only be replayed with --behavior=chainvoxel, structure or 2pc-concurrent");
+            }
+        }
+        this.numberOfOperations = this.replay.size() / this.numberOfSites;
+    }
+
+    /**
+     * 記録した操作の数と，トレースファイルの大きさを出力する
+     * @see TraceWriter
+     */
+    void printRecordReport() {
+        long records = this.trace.getNumberOfRecords();
+        long bytes = this.trace.getNumberOfBytes();
+        System.out.println(String.format("record: %d operations, %d bytes (%.1f bytes/op) to %s",
+                records, bytes, records == 0 ? 0.0 : (double) bytes / records, this.getFileOption("record", "trace.cvt")));
+    }
+
+    /**
+     * 再生した操作の数と，記録した時と再生した時の時間とスループットを出力する
+     * @param elapsed 全てのSiteが終了するまでの時間(ナノ秒)
+     * @see OperationTrace
+     */
+    void printReplayReport(long elapsed) {
+        long operations = 0;
+        for (Site site : this.sites) {
+            operations += site.getNumberOfGeneratedOperations();
+        }
+        double recorded = this.replay.getDurationNanos() / 1e9;
+        double seconds = elapsed / 1e9;
+        double speed = this.getDoubleOption("replay-speed", 0.0);
+        System.out.println(String.format("replay: %d operations from %s (%s), recorded over %.3f s (%.0f ops/s), replayed in %.3f s (%.0f ops/s)",
+                operations, this.getFileOption("replay", "trace.cvt"), speed > 0 ? "speed " + speed : "as fast as possible",
+                recorded, recorded > 0 ? this.replay.size() / recorded : 0.0, seconds, operations / seconds));
+    }
+
+    /**
+     * 全てのSiteに残っている操作を並行して適用し，ChainVoxelが同じ状態に収束したかを検証する．<br>
+     * 遅延を模擬する通信路やまとめて送信する通信路を使用する場合は，配送中の操作が届くのを待つため，
+     * --verify-quiet(デフォルトは100ms)毎に届いた操作を適用し，新しい操作が届かなくなってから検証する．
+     * @param verifier 検証に使用するConvergenceVerifier
+     * @return 適用した操作の総数
+     * @throws InterruptedException 検証中に割り込まれた場合
+     * @see Site#drainOperations
+     */
+    long verifySites(ConvergenceVerifier verifier) throws InterruptedException {
+        boolean inFlight = this.network != null || this.batching != null || this.causal != null;
+        long quiet = (long) (this.getDoubleOption("verify-quiet", inFlight ? 100.0 : 0.0) * 1e6);
+        final AtomicLong drained = new AtomicLong();
+        if (quiet > 0) {
+            long n;
+            do {
+                TimeUnit.NANOSECONDS.sleep(quiet);
+                n = 0;
+                for (Site site : this.sites) {
+                    n += site.drainOperations();
+                }
+                drained.addAndGet(n);
+            } while (n > 0);
+        }
+        verifier.verify(this.sites.size(), new IntFunction<ChainVoxel>() {
+            @Override
+            public ChainVoxel apply(int id) {
+                Site site = Simulator.this.sites.get(id);
+                drained.addAndGet(site.drainOperations());
+                return site.getChainVoxel();
+            }
+        });
+        return drained.get();
+    }
+
+    /**
+     * ChainVoxelとStructureTableが常に数えている操作数と，OperationQueueで受信と送信が待機した回数と時間を全てのSiteについて合計して出力する．<br>
+     * 適用した操作数は自身の操作を含み，グループ化中のvoxelに対するために無視したinsert/deleteも含む．
+     * @param chainVoxels Site毎のChainVoxel
+     * @see ChainVoxel#getNumberOfAppliedOperations
+     * @see StructureTable#getNumberOfJoins
+     * @see OperationQueue#getNumberOfDequeueWaits
+     */
+    void printCounterReport(List<ChainVoxel> chainVoxels) {
+        long[] applied = new long[Operation.LEAVE + 1];
+        long ignored = 0, joins = 0, leaves = 0, rejected = 0;
+        for (ChainVoxel chainVoxel : chainVoxels) {
+            if (chainVoxel == null) {
+                continue; // 操作を適用しないSite
+            }
+            for (int type = Operation.INSERT; type <= Operation.LEAVE; ++type) {
+                applied[type] += chainVoxel.getNumberOfAppliedOperations(type);
+            }
+            ignored += chainVoxel.getNumberOfIgnoredOperations();
+            joins += chainVoxel.getStructureTable().getNumberOfJoins();
+            leaves += chainVoxel.getStructureTable().getNumberOfLeaves();
+            rejected += chainVoxel.getStructureTable().getNumberOfRejected();
+        }
+        System.out.println(String.format("counters: applied insert %d, delete %d, create %d, join %d, leave %d (ignored on grouped voxels %d), structure joined %d, left %d, rejected %d",
+                applied[Operation.INSERT], applied[Operation.DELETE], applied[Operation.CREATE], applied[Operation.JOIN], applied[Operation.LEAVE],
+                ignored, joins, leaves, rejected));
+        if (this.opq != null) {
+            long waits = 0, waitNanos = 0, blocked = 0, blockedNanos = 0;
+            for (int i = 0; i < this.numberOfSites; ++i) {
+                waits += this.opq.getNumberOfDequeueWaits(i);
+                waitNanos += this.opq.getDequeueWaitNanos(i);
+                blocked += this.opq.getNumberOfBlockedEnqueues(i);
+                blockedNanos += this.opq.getEnqueueWaitNanos(i);
+            }
+            System.out.println(String.format("counters: queue dequeue waits %d (%.1f ms in total), blocked enqueues %d (%.1f ms in total)",
+                    waits, waitNanos / 1e6, blocked, blockedNanos / 1e6));
+        }
+    }
+
+    /**
+     * --footprintを指定した場合に，Siteが操作を適用する毎にメモリ使用量の標本を取得する操作数の間隔を取得する
+     * @return 操作数の間隔（標本を取得しない場合は0）
+     */
+    int getFootprintInterval() {
+        return this.options.containsKey("footprint") ? this.getIntOption("footprint-every", 0) : 0;
+    }
+
+    /**
+     * Site毎のメモリ使用量の内訳と，全てのSiteの合計とvoxelチェインの長さの分布を出力する．<br>
+     * --footprintでファイル名を指定した場合は，実行中に取得した標本と実行後の値をCSVで出力する．
+     * @param chainVoxels Site毎のChainVoxel（操作を適用しないSiteはnull）
+     * @see ChainVoxel#footprint
+     */
+    void printFootprintReport(List<ChainVoxel> chainVoxels) {
+        long start = System.nanoTime();
+        List<MemoryFootprint> footprints = new ArrayList<MemoryFootprint>();
+        MemoryFootprint total = new MemoryFootprint(0);
+        for (ChainVoxel chainVoxel : chainVoxels) {
+            MemoryFootprint footprint = chainVoxel != null ? chainVoxel.footprint() : null;
+            footprints.add(footprint);
+            if (footprint != null) {
+                total.add(footprint);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        for (int i = 0; i < footprints.size(); ++i) {
+            if (footprints.get(i) != null) {
+                System.out.println("footprint: " + describeFootprint("site" + this.siteIdAt(i), footprints.get(i)));
+            }
+        }
+        System.out.println("footprint: " + describeFootprint("total", total));
+        System.out.println(String.format("footprint: chain lengths %s, computed in %.1f ms", total.getChainLengthString(), elapsed / 1e6));
+
+        String filename = this.getOption("footprint", "true");
+        if (!"true".equals(filename)) {
+            this.writeFootprintCsv(filename, chainVoxels, footprints);
+        }
+    }
+
+    /**
+     * 出力する順番に対応するSiteの識別子を求める．Siteを1つだけ実行するプロセスではそのSiteの識別子になる．
+     * @param index 出力する順番
+     * @return Siteの識別子
+     */
+    private int siteIdAt(int index) {
+        return this.sites != null && index < this.sites.size() ? this.sites.get(index).getSiteId() : index;
+    }
+
+    /**
+     * メモリ使用量を1行の文字列で表現する
+     * @param label 行の先頭に付けるラベル
+     * @param footprint メモリ使用量
+     * @return 文字列
+     */
+    static String describeFootprint(String label, MemoryFootprint footprint) {
+        return String.format("%s %.1f KiB = atoms %.1f + empty chains %.1f + negative voxels %.1f + group members %.1f + group entries %.1f KiB, "
+                + "%d cells (%d conflicting, max chain %d), %d empty chains, %d negative voxels, %d groups",
+                label, footprint.getTotalBytes() / 1024.0, footprint.getAtomsBytes() / 1024.0, footprint.getEmptyChainsBytes() / 1024.0,
+                footprint.getNegativeVoxelsBytes() / 1024.0, footprint.getGroupMembersBytes() / 1024.0, footprint.getGroupEntriesBytes() / 1024.0,
+                footprint.getCells(), footprint.getConflictingCells(), footprint.getMaxChainLength(),
+                footprint.getEmptyChains(), footprint.getNegativeVoxels(), footprint.getGroups());
+    }
+
+    /**
+     * Site毎のメモリ使用量の標本をCSVで出力する．<br>
+     * 1行が1つの標本であり，Site毎に実行中に取得した標本の後に実行後の値を出力する．
+     * @param filename 出力するファイル名
+     * @param chainVoxels Site毎のChainVoxel（操作を適用しないSiteはnull）
+     * @param footprints Site毎の実行後のメモリ使用量
+     */
+    void writeFootprintCsv(String filename, List<ChainVoxel> chainVoxels, List<MemoryFootprint> footprints) {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
+            writer.println("site,operations,atoms_bytes,empty_chains_bytes,negative_voxels_bytes,group_members_bytes,group_entries_bytes,total_bytes,"
+                    + "cells,empty_chains,voxels,negative_voxels,conflicting_cells,max_chain_length,groups,members,group_entries");
+            for (int i = 0; i < chainVoxels.size(); ++i) {
+                if (chainVoxels.get(i) == null) {
+                    continue;
+                }
+                List<MemoryFootprint> samples = new ArrayList<MemoryFootprint>(chainVoxels.get(i).getFootprints());
+                samples.add(footprints.get(i));
+                for (MemoryFootprint f : samples) {
+                    writer.println(this.siteIdAt(i) + "," + f.getOperations() + "," + f.getAtomsBytes() + "," + f.getEmptyChainsBytes() + ","
+                            + f.getNegativeVoxelsBytes() + "," + f.getGroupMembersBytes() + "," + f.getGroupEntriesBytes() + "," + f.getTotalBytes() + ","
+                            + f.getCells() + "," + f.getEmptyChains() + "," + f.getVoxels() + "," + f.getNegativeVoxels() + ","
+                            + f.getConflictingCells() + "," + f.getMaxChainLength() + "," + f.getGroups() + "," + f.getMembers() + "," + f.getGroupEntries());
+                }
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        System.out.println("footprint: samples written to " + filename);
+    }
+
+    /**
+     * 収束の検証結果を出力する．収束していない場合は，基準と異なるSite毎に状態が異なるセルとグループを出力する．
+     * @param verifier 検証したConvergenceVerifier
+     * @param drained 検証の前に適用した操作の総数
+     * @see ConvergenceVerifier
+     */
+    void printVerifyReport(ConvergenceVerifier verifier, long drained) {
+        System.out.println(String.format("verify: %s, %d distinct states, reference site %d (digest %016x, %d voxels), drained %d operations, verified in %.1f ms",
+                verifier.isConverged() ? "converged" : "DIVERGED", verifier.getNumberOfStates(), verifier.getReference(),
+                verifier.getReferenceDigest(), verifier.getReferenceSize(), drained, verifier.getElapsedNanos() / 1e6));
+        for (int id : verifier.getDivergentSites()) {
+            List<String> diffs = verifier.getDiffs(id);
+            int total = verifier.getNumberOfDiffs(id);
+            System.out.println(String.format("verify: site %d differs from site %d in %d cells and groups (site %d | site %d)",
+                    id, verifier.getReference(), total, id, verifier.getReference()));
+            for (String diff : diffs) {
+                System.out.println("  " + diff);
+            }
+            if (total > diffs.size()) {
+                System.out.println("  ... " + (total - diffs.size()) + " more");
+            }
+        }
+    }
+
+    /**
+     * 離散事象シミュレータで全てのSiteを1つのスレッドで実行する．<br>
+     * 出力の1行目はスレッドで実行する場合と同じ形式であり，続けて処理した事象の数と仮想時間を出力する．
+     * @see DiscreteEventSimulator
+     */
+    void runDiscreteEvent() {
+        int behavior = parseBehavior(this.getOption("behavior", "chainvoxel"));
+        if (behavior == Site.PIPELINED_RAFT || behavior == Site.CONCURRENT_TWO_PHASE_COMMIT) {
+            throw new IllegalArgumentException("--behavior=" + this.getOption("behavior", "chainvoxel") + " is not supported with --engine=des");
+        }
+        boolean apply = Boolean.parseBoolean(this.getOption("apply", "true"));
+        long interval = (long) (this.getDoubleOption("op-interval", 1.0) * 1000);
+
+        long start = System.nanoTime();
+        final DiscreteEventSimulator sim = new DiscreteEventSimulator(this.numberOfSites, this.seed);
+        sim.setLatency(this.getDoubleOption("latency", 1.0), this.getDoubleOption("jitter", 0.0),
+                parseJitterDistribution(this.getOption("jitter-dist", "uniform")));
+        for (int i = 0; i < this.numberOfSites; i++) {
+            EventDrivenSite site = new EventDrivenSite(i, sim, behavior, this.numberOfOperations, this.limitOfRange, this.seed + i, interval, apply);
+            if (behavior == Site.GOSSIP) {
+                site.setGossip(this.getIntOption("fanout", 3), Gossip.parseMode(this.getOption("gossip", "push-pull")), this.seed + i);
+            }
+            this.configureWorkload(site.getGenerator());
+            if (site.getChainVoxel() != null) {
+                site.getChainVoxel().setFootprintInterval(this.getFootprintInterval());
+            }
+            sim.setSite(site);
+        }
+        long setup = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        sim.run();
+        long elapsed = System.nanoTime() - start;
+
+        EventDrivenSite first = sim.getSite(0);
+        long messages = first.getNumberOfMessages() * (long) this.numberOfSites;
+        if (behavior == Site.RAFT) {
+            messages = first.getNumberOfMessages();
+        } else if (behavior == Site.GOSSIP) {
+            messages = 0;
+            for (int i = 0; i < this.numberOfSites; i++) {
+                messages += sim.getSite(i).getNumberOfMessages();
+            }
+        }
+        System.out.println(
+            this.numberOfOperations * this.numberOfSites + 
+            " " + first.getNumberOfSteps() + " " + messages);
+        System.out.println(String.format("des: %d sites, %d events in %.1f ms (setup %.1f ms), %.0f events/s, virtual time %.3f ms",
+                this.numberOfSites, sim.getNumberOfProcessedEvents(), elapsed / 1e6, setup / 1e6,
+                sim.getNumberOfProcessedEvents() / (elapsed / 1e9), sim.now() / 1e3));
+        System.out.println(String.format("des: %d operations reached all sites, latency mean %.3f ms, max %.3f ms",
+                sim.getNumberOfCompletedOperations(), sim.getAverageLatency() / 1e3, sim.getMaxLatency() / 1e3));
+        if (this.options.containsKey("counters")) {
+            List<ChainVoxel> chainVoxels = new ArrayList<ChainVoxel>();
+            for (int i = 0; i < this.numberOfSites; i++) {
+                chainVoxels.add(sim.getSite(i).getChainVoxel());
+            }
+            this.printCounterReport(chainVoxels);
+        }
+        if (this.options.containsKey("footprint")) {
+            List<ChainVoxel> chainVoxels = new ArrayList<ChainVoxel>();
+            for (int i = 0; i < this.numberOfSites; i++) {
+                chainVoxels.add(sim.getSite(i).getChainVoxel());
+            }
+            this.printFootprintReport(chainVoxels);
+        }
+        ConvergenceVerifier verifier = null;
+        if (Boolean.parseBoolean(this.getOption("verify", "false"))) {
+            verifier = new ConvergenceVerifier(Runtime.getRuntime().availableProcessors(), this.getIntOption("verify-diffs", 10));
+            try {
+                verifier.verify(this.numberOfSites, new IntFunction<ChainVoxel>() {
+                    @Override
+                    public ChainVoxel apply(int id) {
+                        return sim.getSite(id).getChainVoxel();
+                    }
+                });
+                this.printVerifyReport(verifier, 0);
+            } catch (InterruptedException ie) {
+                ie.printStackTrace();
+                verifier = null;
+            }
+        }
+        if (this.options.containsKey("result")) {
+            if (verifier != null) {
+                this.printResult("des", first.getNumberOfSteps(), messages, elapsed,
+                        "latency_mean_ms", sim.getAverageLatency() / 1e3, "latency_max_ms", sim.getMaxLatency() / 1e3,
+                        "states", verifier.getNumberOfStates());
+            } else {
+                this.printResult("des", first.getNumberOfSteps(), messages, elapsed,
+                        "latency_mean_ms", sim.getAverageLatency() / 1e3, "latency_max_ms", sim.getMaxLatency() / 1e3);
+            }
+        }
+        if (behavior == Site.GOSSIP) {
+            List<Gossip> states = new ArrayList<Gossip>();
+            int[] load = new int[this.numberOfSites];
+            for (int i = 0; i < this.numberOfSites; i++) {
+                states.add(sim.getSite(i).getGossip());
+                load[i] = sim.getSite(i).getNumberOfMessages();
+            }
+            this.printGossipReport(states, load);
+        }
+    }
+
+    /**
+     * シミュレーション全体のメッセージ総数を求める
+     * @param behavior Siteの振る舞い
+     * @return メッセージ総数
+     */
+    long countMessages(int behavior) {
+        Site first = this.sites.get(0);
+        if (behavior == Site.RAFT || behavior == Site.PIPELINED_RAFT) { // Leaderのメッセージ総数が全体のメッセージ総数になる
+            return first.getNumberOfMessages();
+        }
+        if (behavior == Site.GOSSIP || behavior == Site.CONCURRENT_TWO_PHASE_COMMIT) { // Site毎にメッセージ数が異なるため合計する
+            long messages = 0;
+            for (Site site : this.sites) {
+                messages += site.getNumberOfMessages();
+            }
+            return messages;
+        }
+        return first.getNumberOfMessages() * (long) this.numberOfSites; // chainVoxel and tpc
+    }
+
+    /**
+     * 実験の条件と結果を "RESULT 名前=値 ..." の形式で1行に出力する．<br>
+     * 実験を繰り返し実行するSweepが結果を集めるために使用する．--metricsを指定した場合は遅延も出力する．
+     * @param engine 実行したエンジン
+     * @param steps ステップ数
+     * @param messages メッセージ総数
+     * @param elapsed 全てのSiteが終了するまでの時間(ナノ秒)
+     * @param extra 追加で出力する名前と値の組
+     * @see Sweep
+     */
+    void printResult(String engine, int steps, long messages, long elapsed, Object... extra) {
+        long operations = (long) this.numberOfOperations * this.numberOfSites;
+        StringBuilder sb = new StringBuilder("RESULT");
+        sb.append(" engine=").append(engine);
+        sb.append(" behavior=").append(this.getOption("behavior", "chainvoxel"));
+        sb.append(" workload=").append(this.getOption("workload", "uniform"));
+        sb.append(" sites=").append(this.numberOfSites);
+        sb.append(" operations=").append(this.numberOfOperations);
+        sb.append(" limit=").append(this.limitOfRange);
+        sb.append(" steps=").append(steps);
+        sb.append(" messages=").append(messages);
+        sb.append(String.format(Locale.ROOT, " elapsed_ms=%.3f", elapsed / 1e6));
+        sb.append(String.format(Locale.ROOT, " throughput=%.1f", operations / (elapsed / 1e9)));
+        if (this.metrics != null) {
+            LatencyHistogram latency = this.metrics.getLatency();
+            sb.append(String.format(Locale.ROOT, " latency_mean_ms=%.3f latency_p50_ms=%.3f latency_p99_ms=%.3f latency_max_ms=%.3f",
+                    latency.getMean() / 1e6, latency.getPercentile(50) / 1e6, latency.getPercentile(99) / 1e6, latency.getMax() / 1e6));
+        }
+        for (int i = 0; i + 1 < extra.length; i += 2) {
+            Object value = extra[i + 1];
+            sb.append(' ').append(extra[i]).append('=');
+            sb.append(value instanceof Double ? String.format(Locale.ROOT, "%.3f", (Double) value) : String.valueOf(value));
+        }
+        System.out.println(sb.toString());
+    }
+
+    /**
+     * 操作をまとめたことによるメッセージ数の削減量を出力する
+     * @see OperationCoalescer
+     */
+    void printCoalescingReport() {
+        long generated = 0, broadcast = 0;
+        for (Site site : this.sites) {
+            generated += site.getNumberOfGeneratedOperations();
+            broadcast += site.getNumberOfBroadcastOperations();
+        }
+        long before = generated * (this.numberOfSites - 1);
+        long after = broadcast * (this.numberOfSites - 1);
+        double reduction = before == 0 ? 0.0 : 100.0 * (before - after) / before;
+        System.out.println(String.format("coalescing: operations %d -> %d, messages %d -> %d (-%.1f%%)",
+                generated, broadcast, before, after, reduction));
+    }
+
+    /**
+     * 宛先毎のQueueの高水位標と，送信の待機・退避・拒否の回数を出力する．
+     * ネットワークを模擬する場合はSimulatedNetworkが送信時に適用した容量についての値を出力する
+     * @see OperationQueue
+     * @see SimulatedNetwork#setCapacity
+     */
+    void printQueueReport() {
+        if (this.network != null && this.network.getCapacity() > 0) {
+            for (int i = 0; i < this.numberOfSites; ++i) {
+                System.out.println(String.format("queue%d: high-water %d, blocked %d (%.1f ms, max %.1f ms), spilled 0, rejected %d",
+                        i, this.network.getHighWaterMark(i), this.network.getNumberOfBlockedSends(i),
+                        this.network.getSendWaitNanos(i) / 1e6, this.network.getMaxSendWaitNanos(i) / 1e6,
+                        this.network.getNumberOfRejectedSends(i)));
+            }
+            return;
+        }
+        for (int i = 0; i < this.numberOfSites; ++i) {
+            System.out.println(String.format("queue%d: high-water %d, blocked %d (%.1f ms, max %.1f ms), spilled %d, rejected %d",
+                    i, this.opq.getHighWaterMark(i), this.opq.getNumberOfBlockedEnqueues(i),
+                    this.opq.getEnqueueWaitNanos(i) / 1e6, this.opq.getMaxEnqueueWaitNanos(i) / 1e6,
+                    this.opq.getNumberOfSpilledOperations(i), this.opq.getNumberOfRejectedOperations(i)));
+        }
+    }
+
+    /**
+     * 通信路で送受信したフレーム数とバイト数，変換に要した時間を出力する
+     * @see SocketTransport
+     */
+    void printTransportReport() {
+        System.out.println(String.format("transport: site%d sent %d frames (%d bytes), received %d frames (%d bytes), encode %.0f ns/op, decode %.0f ns/frame",
+                this.sites.get(0).getSiteId(),
+                this.socket.getNumberOfFramesSent(), this.socket.getNumberOfBytesSent(),
+                this.socket.getNumberOfFramesReceived(), this.socket.getNumberOfBytesReceived(),
+                this.socket.getAverageEncodeNanos(), this.socket.getAverageDecodeNanos()));
+    }
+
+    /**
+     * 配送した操作の数と配送までの時間，全てのSiteが終了するまでの時間とスループットを出力する
+     * @param elapsed 全てのSiteが終了するまでの時間(ナノ秒)
+     * @see SimulatedNetwork
+     */
+    void printNetworkReport(long elapsed) {
+        long operations = 0;
+        for (Site site : this.sites) {
+            operations += site.getNumberOfGeneratedOperations();
+        }
+        System.out.println(String.format("network: delivered %d, mean delay %.2f ms, max delay %.2f ms, retransmitted %d, reordered %d",
+                this.network.getNumberOfDeliveredOperations(), this.network.getAverageDelayNanos() / 1e6,
+                this.network.getMaxDelayNanos() / 1e6, this.network.getNumberOfRetransmissions(),
+                this.network.getNumberOfReorderedOperations()));
+        System.out.println(String.format("network: finished in %.1f ms, %.0f ops/s",
+                elapsed / 1e6, operations / (elapsed / 1e9)));
+    }
+
+    /**
+     * ゴシップの方式と，全ての操作を受信するまでのラウンド数，Site毎の送信の負荷を出力する．<br>
+     * 送信の負荷はSite毎に送信したメッセージ数であり，直接broadcastする場合は全てのSiteが(Site数 - 1) * 操作数となる．
+     * @param states Site毎のゴシップの状態
+     * @param messages Site毎に送信したメッセージ数
+     * @see Gossip
+     */
+    void printGossipReport(List<Gossip> states, int[] messages) {
+        long received = 0, duplicates = 0, rounds = 0, total = 0;
+        int maxRound = 0, converged = 0, minLoad = Integer.MAX_VALUE, maxLoad = 0;
+        for (int i = 0; i < states.size(); ++i) {
+            Gossip gossip = states.get(i);
+            received += gossip.getNumberOfReceivedOperations();
+            duplicates += gossip.getNumberOfDuplicateOperations();
+            if (gossip.isComplete()) {
+                converged++;
+                rounds += gossip.getConvergenceRound();
+                maxRound = Math.max(maxRound, gossip.getConvergenceRound());
+            }
+            minLoad = Math.min(minLoad, messages[i]);
+            maxLoad = Math.max(maxLoad, messages[i]);
+            total += messages[i];
+        }
+        System.out.println(String.format("gossip: %s, fanout %d, %d/%d sites converged, rounds to convergence mean %.1f, max %d",
+                Gossip.getModeName(Gossip.parseMode(this.getOption("gossip", "push-pull"))), this.getIntOption("fanout", 3),
+                converged, states.size(), converged == 0 ? 0.0 : (double) rounds / converged, maxRound));
+        System.out.println(String.format("gossip: messages %d (broadcast %d), per-site load min %d, mean %.1f, max %d, operations received %d, duplicates %d (%.1f%%)",
+                total, (long) this.numberOfOperations * this.numberOfSites * (this.numberOfSites - 1),
+                minLoad, (double) total / states.size(), maxLoad, received, duplicates,
+                received == 0 ? 0.0 : 100.0 * duplicates / received));
+    }
+
+    /**
+     * 並行two-phase commitで，コミットしたトランザクションと中止した試行の数，ロックの競合，バックオフした時間を出力する．<br>
+     * 競合は調停者が自身でロックを取得できなかった数(local)と，参加者が反対した数(remote)である．
+     * 中止率は全ての試行のうち中止した試行の割合であり，ロックの競合によって無駄になった２相コミットの割合を表す．
+     * @see TwoPhaseCommit
+     */
+    void printTransactionReport() {
+        long committed = 0, aborted = 0, local = 0, rejected = 0, backoff = 0;
+        int maxAttempts = 0;
+        for (Site site : this.sites) {
+            TwoPhaseCommit tpc = site.getTwoPhaseCommit();
+            committed += tpc.getNumberOfCommittedTransactions();
+            aborted += tpc.getNumberOfAbortedAttempts();
+            local += tpc.getNumberOfLocalConflicts();
+            rejected += tpc.getNumberOfRejectedPrepares();
+            backoff += tpc.getTotalBackoffNanos();
+            maxAttempts = Math.max(maxAttempts, tpc.getMaxAttempts());
+        }
+        long attempts = committed + aborted;
+        System.out.println(String.format("2pc-concurrent: window %d, backoff %.3f ms, %d transactions committed in %d attempts, aborted %d (%.1f%%), attempts per transaction mean %.2f, max %d",
+                this.getIntOption("tx-window", 4), this.getDoubleOption("tx-backoff", 1.0), committed, attempts, aborted,
+                attempts == 0 ? 0.0 : 100.0 * aborted / attempts, committed == 0 ? 0.0 : (double) attempts / committed, maxAttempts));
+        System.out.println(String.format("2pc-concurrent: conflicts local %d, remote %d (votes against), backoff %.1f ms in total, mean %.3f ms per abort",
+                local, rejected, backoff / 1e6, aborted == 0 ? 0.0 : backoff / 1e6 / aborted));
+    }
+
+    /**
+     * Siteを実行したスレッドの種類と，全てのSiteを開始するまでの時間，スレッド数とメモリ使用量の最大値を出力する．<br>
+     * スレッド数はJVMのプラットフォームスレッドの最大数であり，仮想スレッドは含まない．
+     * メモリ使用量はスレッドのスタックを含むプロセスの常駐メモリの最大値であり，取得できない場合はヒープの使用量を出力する．
+     * @param virtual 仮想スレッドで実行した場合はtrue
+     * @param startup 全てのSiteを開始するまでの時間(ナノ秒)
+     * @param elapsed 全てのSiteが終了するまでの時間(ナノ秒)
+     */
+    void printThreadReport(boolean virtual, long startup, long elapsed) {
+        long peakResident = readPeakResidentKiB();
+        String memory;
+        if (peakResident >= 0) {
+            memory = String.format("peak RSS %.1f MiB", peakResident / 1024.0);
+        } else {
+            Runtime runtime = Runtime.getRuntime();
+            memory = String.format("heap used %.1f MiB", (runtime.totalMemory() - runtime.freeMemory()) / 1048576.0);
+        }
+        System.out.println(String.format("threads: %s, %d sites started in %.1f ms, finished in %.1f ms, peak platform threads %d, %s",
+                virtual ? "virtual" : "platform", this.threads.size(), startup / 1e6, elapsed / 1e6,
+                ManagementFactory.getThreadMXBean().getPeakThreadCount(), memory));
+    }
+
+    /**
+     * プロセスの常駐メモリの最大値を/proc/self/statusから読み込む
+     * @return 常駐メモリの最大値(KiB)．取得できない場合は-1
+     */
+    static long readPeakResidentKiB() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException ioe) {
+            // Linux以外では取得できない
+        }
+        return -1;
+    }
+
+    /**
+     * 指定した処理を実行する仮想スレッドを開始せずに作成する．<br>
+     * Java 8でもコンパイルできるように，Java 21で追加されたThread.ofVirtualはリフレクションで呼び出す．
+     * @param task 実行する処理
+     * @param name スレッドの名前
+     * @return 仮想スレッド
+     * @throws IllegalStateException 仮想スレッドに対応していないJavaで実行した場合
+     */
+    static Thread newVirtualThread(Runnable task, String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method setName = builderClass.getMethod("name", String.class);
+            Method unstarted = builderClass.getMethod("unstarted", Runnable.class);
+            return (Thread) unstarted.invoke(setName.invoke(builder, name), task);
+        } catch (NoSuchMethodException | ClassNotFoundException e) {
+            throw new IllegalStateException("Virtual threads require Java 21 or later.", e);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Failed to create a virtual thread.", e);
+        }
+    }
+
+    /**
+     * broadcastした操作の数とフレームの数，フレームを送信した理由，操作をバッチに溜めていた時間，スループットを出力する．<br>
+     * 宛先毎のメッセージ数は，まとめない場合は操作数 * (Site数 - 1)，まとめた場合はフレーム数 * (Site数 - 1)となる．
+     * @param elapsed 全てのSiteが終了するまでの時間(ナノ秒)
+     * @see BatchingTransport
+     */
+    void printBatchingReport(long elapsed) {
+        long ops = this.batching.getNumberOfBatchedOperations();
+        long frames = this.batching.getNumberOfFrames();
+        System.out.println(String.format("batching: %d ops in %d frames (%.1f ops/frame), messages %d -> %d, flushed by size %d, linger %d, wait %d",
+                ops, frames, frames == 0 ? 0.0 : (double) ops / frames,
+                ops * (this.numberOfSites - 1), frames * (this.numberOfSites - 1),
+                this.batching.getNumberOfFlushesBySize(), this.batching.getNumberOfFlushesByLinger(),
+                this.batching.getNumberOfFlushesByWait()));
+        System.out.println(String.format("batching: batching delay mean %.3f ms, max %.3f ms, finished in %.1f ms, %.0f ops/s",
+                this.batching.getAverageBatchingNanos() / 1e6, this.batching.getMaxBatchingNanos() / 1e6,
+                elapsed / 1e6, ops / (elapsed / 1e9)));
+    }
+
+    /**
+     * 因果順序に従って配送するために操作に付けたベクトル時計の大きさと，保留バッファに留めた封筒の数と時間，
+     * 安定した操作の割合を出力する．<br>
+     * ベクトル時計は差分で送るため，依存関係1つあたり8バイト(送信元と通し番号)と通し番号の4バイトを，
+     * 全てのSiteの通し番号を送る場合(4 * Site数バイト)と比較する．
+     * @see CausalTransport
+     */
+    void printCausalReport() {
+        long sent = 0, dependencies = 0, delivered = 0, held = 0, heldNanos = 0, maxHeldNanos = 0;
+        long known = 0, stable = 0;
+        int maxHeld = 0;
+        double minStable = 1.0;
+        for (Site site : this.sites) {
+            int id = site.getSiteId();
+            sent += this.causal.getNumberOfSentEnvelopes(id);
+            dependencies += this.causal.getNumberOfSentDependencies(id);
+            delivered += this.causal.getNumberOfDeliveredEnvelopes(id);
+            held += this.causal.getNumberOfHeldEnvelopes(id);
+            heldNanos += this.causal.getHeldNanos(id);
+            maxHeldNanos = Math.max(maxHeldNanos, this.causal.getMaxHeldNanos(id));
+            maxHeld = Math.max(maxHeld, this.causal.getMaxNumberOfHeld(id));
+            long[] stability = this.causal.getStability(id);
+            known += stability[0];
+            stable += stability[1];
+            minStable = Math.min(minStable, stability[0] == 0 ? 1.0 : (double) stability[1] / stability[0]);
+        }
+        double meanDependencies = sent == 0 ? 0.0 : (double) dependencies / sent;
+        System.out.println(String.format("causal: %d envelopes, %.2f deps/msg, %.1f bytes/msg (full vector %d bytes), delivered %d, held back %d (%.1f%%), hold mean %.3f ms, max %.3f ms, max buffered %d",
+                sent, meanDependencies, 4 + 8 * meanDependencies, 4 * this.numberOfSites, delivered,
+                held, delivered == 0 ? 0.0 : 100.0 * held / delivered, held == 0 ? 0.0 : heldNanos / 1e6 / held,
+                maxHeldNanos / 1e6, maxHeld));
+        System.out.println(String.format("causal: stable %d of %d delivered operations (%.1f%%, min per site %.1f%%)",
+                stable, known, known == 0 ? 0.0 : 100.0 * stable / known, 100.0 * minStable));
+    }
+
+    /**
+     * 操作の生成から他のSiteでの適用までの遅延のパーセンタイルと，間隔毎のスループット，Queueの長さを出力する．<br>
+     * 遅延は適用したSite毎に1つ記録するため，broadcastした操作は(Site数 - 1)個の記録となる．
+     * Queueの長さは間隔の終わり毎に取得した未受信の操作数であり，Siteが同じJVMのOperationQueueを使用する場合だけ出力する．
+     * @see MetricsRecorder
+     */
+    void printMetricsReport() {
+        LatencyHistogram latency = this.metrics.getLatency();
+        System.out.println(String.format("latency: %d remote applications, mean %.3f ms, p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms",
+                latency.getCount(), latency.getMean() / 1e6, latency.getPercentile(50) / 1e6,
+                latency.getPercentile(99) / 1e6, latency.getPercentile(99.9) / 1e6, latency.getMax() / 1e6));
+
+        int intervals = this.metrics.getNumberOfIntervals();
+        double seconds = this.metrics.getIntervalNanos() / 1e9;
+        long generated = 0, applied = 0, peak = 0;
+        int peakInterval = 0;
+        for (int t = 0; t < intervals; ++t) {
+            generated += this.metrics.getNumberOfGeneratedOperations(t);
+            long n = this.metrics.getNumberOfAppliedOperations(t);
+            applied += n;
+            if (n > peak) {
+                peak = n;
+                peakInterval = t;
+            }
+        }
+        double elapsed = this.metrics.getElapsedNanos() / 1e9;
+        System.out.println(String.format("throughput: %d intervals of %.0f ms in %.3f s, generated %.0f ops/s, applied %.0f ops/s, peak interval %.0f ops/s at %.1f s",
+                intervals, seconds * 1e3, elapsed, generated / elapsed, applied / elapsed, peak / seconds, peakInterval * seconds));
+
+        List<int[]> depths = this.metrics.getQueueDepths();
+        if (depths.isEmpty()) {
+            return;
+        }
+        long sum = 0, count = 0;
+        int max = 0, maxSite = 0, maxSample = 0;
+        for (int t = 0; t < depths.size(); ++t) {
+            int[] sample = depths.get(t);
+            for (int i = 0; i < sample.length; ++i) {
+                sum += sample[i];
+                count++;
+                if (sample[i] > max) {
+                    max = sample[i];
+                    maxSite = i;
+                    maxSample = t;
+                }
+            }
+        }
+        System.out.println(String.format("queues: %d samples, depth mean %.1f, max %d (site%d, interval %d)",
+                depths.size(), (double) sum / count, max, maxSite, maxSample));
+    }
+
+    /**
+     * ネットワークを模擬するオプションが指定されているか確認する
+     * @return 指定されている場合はtrue
+     */
+    boolean hasNetworkOptions() {
+        for (String name : new String[] {"latency", "jitter", "bandwidth", "loss", "reorder", "links"}) {
+            if (this.options.containsKey(name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * オプションに従って，通信路をラップするSimulatedNetworkを作成する．<br>
+     * --linksは "送信元-宛先:遅延(ミリ秒)" をカンマで区切ったものであり，指定したリンクの基本遅延を両方向とも上書きする．
+     * @param inner 実際に操作を配送する通信路
+     * @return SimulatedNetwork
+     */
+    SimulatedNetwork createNetwork(Transport inner) {
+        SimulatedNetwork network = new SimulatedNetwork(inner);
+        network.setLatency(this.getDoubleOption("latency", 0.0));
+        network.setJitter(this.getDoubleOption("jitter", 0.0), parseJitterDistribution(this.getOption("jitter-dist", "uniform")));
+        network.setBandwidth(this.getDoubleOption("bandwidth", 0.0));
+        network.setLoss(this.getDoubleOption("loss", 0.0));
+        network.setReorder(this.getDoubleOption("reorder", 0.0));
+
+        String links = this.getOption("links", null);
+        if (links != null) {
+            for (String entry : links.split(",")) {
+                int dash = entry.indexOf('-'), colon = entry.indexOf(':');
+                if (dash < 0 || colon < dash) {
+                    throw new IllegalArgumentException("Invalid link: " + entry);
+                }
+                int a = Integer.parseInt(entry.substring(0, dash));
+                int b = Integer.parseInt(entry.substring(dash + 1, colon));
+                double latency = Double.parseDouble(entry.substring(colon + 1));
+                network.setLinkLatency(a, b, latency);
+                network.setLinkLatency(b, a, latency);
+            }
+        }
+        return network;
+    }
+
+    /**
+     * ジッタの分布を表す文字列を定数に変換する
+     * @param name 分布の名前（uniform, normal, exponential）
+     * @return 分布を表す定数
+     * @see SimulatedNetwork#setJitter
+     */
+    static int parseJitterDistribution(String name) {
+        switch (name) {
+            case "uniform": return SimulatedNetwork.UNIFORM;
+            case "normal": return SimulatedNetwork.NORMAL;
+            case "exponential": return SimulatedNetwork.EXPONENTIAL;
+            default: throw new IllegalArgumentException("Unknown jitter distribution: " + name);
+        }
+    }
+
+    /**
+     * 全てのSiteのアドレスを取得する．<br>
+     * --hostsが指定されている場合は "ホスト:ポート" をカンマで区切ったものをSiteの識別子の順に解析する．
+     * 指定されていない場合は，localhostの--port(デフォルトは{@value #DEFAULT_PORT})から連続するポートを使用する．
+     * @return Siteの識別子の順に並んだアドレス
+     */
+    InetSocketAddress[] getSiteAddresses() {
+        InetSocketAddress[] addresses = new InetSocketAddress[this.numberOfSites];
+        String hosts = this.getOption("hosts", null);
+        if (hosts == null) {
+            int port = this.getIntOption("port", DEFAULT_PORT);
+            for (int i = 0; i < this.numberOfSites; ++i) {
+                addresses[i] = new InetSocketAddress("localhost", port + i);
+            }
+            return addresses;
+        }
+
+        String[] entries = hosts.split(",");
+        if (entries.length != this.numberOfSites) {
+            throw new IllegalArgumentException("--hosts has " + entries.length + " entries, but number of sites is " + this.numberOfSites);
+        }
+        for (int i = 0; i < entries.length; ++i) {
+            int colon = entries[i].lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Invalid host: " + entries[i]);
+            }
+            addresses[i] = new InetSocketAddress(entries[i].substring(0, colon), Integer.parseInt(entries[i].substring(colon + 1)));
+        }
+        return addresses;
+    }
+
+    /**
+     * Siteの振る舞いを表す文字列を定数に変換する
+     * @param name 振る舞いの名前（chainvoxel, structure, 2pc, raft, gossip, raft-pipeline, 2pc-concurrent）
+     * @return 振る舞いを表す定数
+     * @see Site#setBehavior
+     */
+    static int parseBehavior(String name) {
+        switch (name) {
+            case "chainvoxel": return Site.CHAINVOXEL;
+            case "structure": return Site.STRUCTURE_LAYER;
+            case "2pc": return Site.TWO_PHASE_COMMIT;
+            case "raft": return Site.RAFT;
+            case "gossip": return Site.GOSSIP;
+            case "raft-pipeline": return Site.PIPELINED_RAFT;
+            case "2pc-concurrent": return Site.CONCURRENT_TWO_PHASE_COMMIT;
+            default: throw new IllegalArgumentException("Unknown behavior: " + name);
+        }
+    }
+
+    /**
+     * オプションに従って，操作生成器のワークロードと操作の種類毎の重みを設定する
+     * @param generator Siteの操作生成器
+     * @see OperationGenerator#setWorkload
+     * @see OperationGenerator#setMix
+     */
+    void configureWorkload(OperationGenerator generator) {
+        generator.setWorkload(OperationGenerator.parseWorkload(this.getOption("workload", "uniform")),
+                this.getDoubleOption("zipf", 1.0), this.getIntOption("stroke", 20), this.getIntOption("brush-radius", 1));
+        String mix = this.getOption("mix", null);
+        if (mix != null) {
+            generator.setMix(parseMix(mix));
+        }
+    }
+
+    /**
+     * 操作の種類毎の重みを解析する．省略した末尾の種類の重みは0とする．
+     * @param mix insert,delete,create,join,leaveの順にカンマで区切った重み
+     * @return 操作の種類毎の重み
+     */
+    static int[] parseMix(String mix) {
+        String[] values = mix.split(",");
+        if (values.length > Operation.LEAVE + 1) {
+            throw new IllegalArgumentException("Invalid mix: " + mix);
+        }
+        int[] weights = new int[Operation.LEAVE + 1];
+        for (int i = 0; i < values.length; ++i) {
+            weights[i] = Integer.parseInt(values[i].trim());
+        }
+        return weights;
+    }
+
+    /**
+     * Siteを実行するスレッドの種類を表す文字列を解析する
+     * @param name スレッドの種類の名前（platform, virtual）
+     * @return 仮想スレッドの場合はtrue
+     */
+    static boolean parseVirtualThreads(String name) {
+        switch (name) {
+            case "platform": return false;
+            case "virtual": return true;
+            default: throw new IllegalArgumentException("Unknown threads: " + name);
+        }
+    }
+
+    /**
+     * Queueの容量を超えた場合の方針を表す文字列を定数に変換する
+     * @param name 方針の名前（block, fail, spill）
+     * @return 方針を表す定数
+     * @see OperationQueue#setCapacity
+     */
+    static int parseBackpressurePolicy(String name) {
+        switch (name) {
+            case "block": return OperationQueue.BLOCK;
+            case "fail": return OperationQueue.FAIL;
+            case "spill": return OperationQueue.SPILL;
+            default: throw new IllegalArgumentException("Unknown backpressure policy: " + name);
+        }
+    }
+
+    /**
+     * "--名前=値" 形式のオプションを解析する．
+     * @param args コマンドライン引数
+     * @param from 解析を開始する位置
+     * @return オプション名と値のマップ
+     */
+    static Map<String, String> parseOptions(String[] args, int from) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = from; i < args.length; ++i) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+        return options;
+    }
+
+    /**
+     * 文字列型のオプション値を取得する
+     * @param name オプション名
+     * @param defaultValue 指定されていない場合の値
+     * @return オプション値
+     */
+    String getOption(String name, String defaultValue) {
+        String value = this.options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * 整数型のオプション値を取得する
+     * @param name オプション名
+     * @param defaultValue 指定されていない場合の値
+     * @return オプション値
+     */
+    int getIntOption(String name, int defaultValue) {
+        String value = this.options.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    /**
+     * long型のオプション値を取得する
+     * @param name オプション名
+     * @param defaultValue 指定されていない場合の値
+     * @return オプション値
+     */
+    long getLongOption(String name, long defaultValue) {
+        String value = this.options.get(name);
+        return value != null ? Long.parseLong(value) : defaultValue;
+    }
+
+    /**
+     * double型のオプション値を取得する
+     * @param name オプション名
+     * @param defaultValue 指定されていない場合の値
+     * @return オプション値
+     */
+    double getDoubleOption(String name, double defaultValue) {
+        String value = this.options.get(name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    /**
+     * ファイル名を値に持つオプションを取得する．値を省略した場合は既定のファイル名を返す．
+     * @param name オプション名
+     * @param defaultValue 既定のファイル名
+     * @return ファイル名
+     */
+    String getFileOption(String name, String defaultValue) {
+        String value = this.options.get(name);
+        return value == null || "true".equals(value) ? defaultValue : value;
+    }
+
+    /**
+     * シュミレータを起動する
+     * @param args コマンドライン引数
+     */
+    public static void main(String[] args) {
+        if(args.length < 3) {
+            System.out.println("usage: java Simulator [number of sites] [number of operations] [limit of range] [options...]");
+            System.exit(1);
+        }
+        Simulator aSimulator = new Simulator();
+        aSimulator.run(args);    
+        if (aSimulator.isAborted()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 実行が異常終了したかどうか．異常終了した場合は結果(--resultの行を含む)を出力しない．
+     * @return Siteやシミュレータが例外で終了した場合はtrue
+     */
+    public boolean isAborted() {
+        return this.failure.get() != null;
+    }
+}
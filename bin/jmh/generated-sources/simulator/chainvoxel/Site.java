@@ -0,0 +1,1612 @@
+package chainvoxel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Siteを表すクラス<br>
+ * <br>
+ * Siteはスレッドとして開始する他に，{@link Runnable}として仮想スレッドなど別のスレッドで実行できる．
+ * 受信の待機はスレッドをparkするため，仮想スレッドで実行した場合はキャリアスレッドを占有しない．
+ * @author kengo92i
+ */
+public class Site extends Thread {    
+    /**
+     * ChainVoxelのプリミティブ層の振る舞いを示す定数
+     */
+    public static final int CHAINVOXEL = 0;
+
+    /**
+     * ChainVoxelの構造層の振る舞いを示す定数
+     */
+    public static final int STRUCTURE_LAYER = 1;
+
+    /**
+     * two-phase commitの振る舞いを示す定数
+     */
+    public static final int TWO_PHASE_COMMIT = 2;
+
+    /**
+     * Raftの振る舞いを示す定数
+     */
+    public static final int RAFT = 3;
+
+    /**
+     * ゴシップで操作を共有する振る舞いを示す定数
+     */
+    public static final int GOSSIP = 4;
+
+    /**
+     * 複製ログをまとめて送信し，複数のAppendEntriesを並行して送るRaftの振る舞いを示す定数
+     */
+    public static final int PIPELINED_RAFT = 5;
+
+    /**
+     * 全てのSiteが並行してトランザクションを調停するtwo-phase commitの振る舞いを示す定数
+     */
+    public static final int CONCURRENT_TWO_PHASE_COMMIT = 6;
+
+    /**
+     * 1度にまとめて受信する操作の最大数
+     */
+    private static final int RECEIVE_BATCH_SIZE = 256;
+
+    /**
+     * 操作の受信を待機する際の1回あたりの最大待機時間(ミリ秒)
+     */
+    private static final long RECEIVE_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * Siteの識別子
+     */
+    private int id;
+
+    /**
+     * ChainVoxel型のオブジェクト
+     */        
+    private ChainVoxel chainVoxel;
+
+    /**
+     * 操作を共有するための通信路
+     */
+    private Transport opq;
+    
+    /**
+     * 操作の実行回数
+     */
+    private int numberOfOperations;    
+
+    /**
+     * XYZ座標軸の限界値
+     */
+    private int limitOfRange;    
+
+    /**
+     * ステップ数
+     */
+    private int numberOfSteps;
+
+    /**
+     * メッセージ総数
+     */
+    private int numberOfMessages;
+
+    /**
+     * 操作のタイムスタンプを管理するハイブリッド論理時計
+     */
+    private HybridLogicalClock clock;
+
+    /**
+     * 操作生成器
+     */
+    private OperationGenerator generator;
+
+    /**
+     * 送信前の操作をまとめるOperationCoalescer（使用しない場合はnull）
+     */
+    private OperationCoalescer coalescer;
+
+    /**
+     * OperationCoalescerから送信される操作を受け取るリスト
+     */
+    private ArrayList<Operation> outbox;
+
+    /**
+     * 生成した操作の総数
+     */
+    private int numberOfGeneratedOperations;
+
+    /**
+     * 他のSiteに共有した操作の総数
+     */
+    private int numberOfBroadcastOperations;
+
+    /**
+     * 実行する振る舞い
+     */
+    private int behavior;
+
+    /**
+     * 受信した操作を逐次ChainVoxelに適用するかどうか
+     */
+    private boolean applyOnReceive;
+
+    /**
+     * 送信が待機している間に，受信した操作を後で処理するためにbacklogへ受け取るかどうか
+     */
+    private boolean receiveWhileBlocked;
+
+    /**
+     * 送信が待機している間に受け取り，まだ処理していない操作．receiveメソッドは先にこれらを返す
+     */
+    private ArrayList<Operation> backlog;
+
+    /**
+     * 受信した操作を一時的に格納するリスト
+     */
+    private ArrayList<Operation> inbox;
+
+    /**
+     * Site毎の，受信したプリミティブ層・構造層の操作数
+     */
+    private int[] receivedFrom;
+
+    /**
+     * Site毎の，FINで通知された操作数（FINを受信していない場合は-1）
+     */
+    private int[] expectedFrom;
+
+    /**
+     * 全ての操作を受信し終えていない他のSiteの数
+     */
+    private int remainingPeers;
+
+    /**
+     * 操作生成に使用する乱数のシード
+     */
+    private long seed;
+
+    /**
+     * ゴシップの状態（ゴシップの振る舞いを実行するまではnull）
+     */
+    private Gossip gossip;
+
+    /**
+     * ゴシップで1ラウンドに通信するSiteの数
+     */
+    private int gossipFanout;
+
+    /**
+     * ゴシップの方式
+     */
+    private int gossipMode;
+
+    /**
+     * パイプライン化したRaftで，1つのAppendEntriesに含める操作の最大数
+     */
+    private int raftBatchSize;
+
+    /**
+     * パイプライン化したRaftで，Follower毎に応答を待たずに送信できるAppendEntriesの数
+     */
+    private int raftWindow;
+
+    /**
+     * 並行two-phase commitで，同時に実行するトランザクションの最大数
+     */
+    private int transactionWindow;
+
+    /**
+     * 並行two-phase commitで，中止したトランザクションを再試行するまでのバックオフの初期の範囲(ミリ秒)
+     */
+    private double transactionBackoffMillis;
+
+    /**
+     * 並行two-phase commitの状態（並行two-phase commitの振る舞いを実行するまではnull）
+     */
+    private TwoPhaseCommit twoPhaseCommit;
+
+    /**
+     * 受信したが後で処理するために取っておいた操作（two-phase commitで先行した調停者のREQUEST）
+     */
+    private ArrayList<Operation> deferred;
+
+    /**
+     * 操作の遅延とスループットを記録するMetricsRecorder（記録しない場合はnull）
+     */
+    private MetricsRecorder metrics;
+
+    /**
+     * 生成した操作を記録するTraceWriter（記録しない場合はnull）
+     */
+    private TraceWriter trace;
+
+    /**
+     * 操作を生成する代わりに再生する操作のリスト（再生しない場合はnull）
+     */
+    private List<Operation> replay;
+
+    /**
+     * 再生する操作毎の，トレースの最初のレコードからの経過時間(ナノ秒)
+     */
+    private long[] replayOffsets;
+
+    /**
+     * 再生の速さ（記録した時の間隔の何倍の速さで再生するか．0の場合は待機せずに再生する）
+     */
+    private double replaySpeed;
+
+    /**
+     * 再生を開始した時刻(System.nanoTime)
+     */
+    private long replayStart;
+
+    /**
+     * 宛先が受信できずに送信が待機している間に実行する処理
+     */
+    private final Runnable relief = this::relieveBackpressure;
+
+    /**
+     * 指定された操作数を実行するSiteを作成します．
+     * @param id Siteの識別子
+     * @param opq 操作を共有するための通信路
+     * @param numberOfOperations 操作の実行回数
+     * @param limitOfRange XYZ座標軸の限界値
+     * @see Transport
+     */
+    Site(int id, Transport opq, int numberOfOperations, int limitOfRange) {
+        this(id, opq, numberOfOperations, limitOfRange, System.nanoTime() + id);
+    }
+
+    /**
+     * 指定された操作数を実行するSiteを作成します．<br>
+     * 同じシードを与えたSiteは同じ操作列を生成します．
+     * @param id Siteの識別子
+     * @param opq 操作を共有するための通信路
+     * @param numberOfOperations 操作の実行回数
+     * @param limitOfRange XYZ座標軸の限界値
+     * @param seed 操作生成に使用する乱数のシード
+     * @see Transport
+     * @see OperationGenerator
+     */
+    Site(int id, Transport opq, int numberOfOperations, int limitOfRange, long seed) {
+        this.id = id;
+        this.seed = seed;
+        this.opq = opq;
+        this.numberOfOperations = numberOfOperations;
+        this.limitOfRange = limitOfRange;
+        this.chainVoxel = new ChainVoxel();
+        this.numberOfSteps = 0;
+        this.numberOfMessages = 0;
+        this.clock = new HybridLogicalClock();
+        this.generator = new OperationGenerator(id, limitOfRange, seed, this.clock);
+        this.coalescer = null;
+        this.outbox = new ArrayList<Operation>();
+        this.numberOfGeneratedOperations = 0;
+        this.numberOfBroadcastOperations = 0;
+        this.behavior = CHAINVOXEL;
+        this.applyOnReceive = false;
+        this.receiveWhileBlocked = false;
+        this.backlog = new ArrayList<Operation>();
+        this.inbox = new ArrayList<Operation>(RECEIVE_BATCH_SIZE);
+        this.deferred = new ArrayList<Operation>();
+        this.gossipFanout = 3;
+        this.gossipMode = Gossip.PUSH_PULL;
+        this.raftBatchSize = 64;
+        this.raftWindow = 4;
+        this.transactionWindow = 4;
+        this.transactionBackoffMillis = 1.0;
+    }
+
+    /**
+     * 実行する振る舞いを設定する．
+     * @param behavior 振る舞い（{@link #CHAINVOXEL}，{@link #STRUCTURE_LAYER}，{@link #TWO_PHASE_COMMIT}，{@link #RAFT}，{@link #GOSSIP}，{@link #PIPELINED_RAFT}，{@link #CONCURRENT_TWO_PHASE_COMMIT}）
+     */
+    public void setBehavior(int behavior) {
+        if (behavior < CHAINVOXEL || behavior > CONCURRENT_TWO_PHASE_COMMIT) {
+            throw new IllegalArgumentException("Unknown behavior: " + behavior);
+        }
+        this.behavior = behavior;
+    }
+
+    /**
+     * 実行する振る舞いを取得する
+     * @return 振る舞い
+     */
+    public int getBehavior() {
+        return this.behavior;
+    }
+
+    /**
+     * ゴシップの振る舞いで1ラウンドに通信するSiteの数と方式を設定する．
+     * @param fanout 1ラウンドで通信するSiteの数
+     * @param mode 方式（{@link Gossip#PUSH}，{@link Gossip#PULL}，{@link Gossip#PUSH_PULL}）
+     */
+    public void setGossip(int fanout, int mode) {
+        if (fanout <= 0) {
+            throw new IllegalArgumentException("fanout must be positive: " + fanout);
+        }
+        this.gossipFanout = fanout;
+        this.gossipMode = mode;
+    }
+
+    /**
+     * パイプライン化したRaftの振る舞いで，1つのAppendEntriesに含める操作の最大数と，応答を待たずに送信できるAppendEntriesの数を設定する．
+     * 設定しない場合は，それぞれ64と4となる．
+     * @param batchSize 1つのAppendEntriesに含める操作の最大数
+     * @param window Follower毎に応答を待たずに送信できるAppendEntriesの数
+     */
+    public void setRaftPipeline(int batchSize, int window) {
+        if (batchSize <= 0 || window <= 0) {
+            throw new IllegalArgumentException("batchSize and window must be positive: " + batchSize + ", " + window);
+        }
+        this.raftBatchSize = batchSize;
+        this.raftWindow = window;
+    }
+
+    /**
+     * 並行two-phase commitの振る舞いで，同時に実行するトランザクションの最大数と，再試行するまでのバックオフの初期の範囲を設定する．
+     * 設定しない場合は，それぞれ4と1ミリ秒となる．
+     * @param window 同時に実行するトランザクションの最大数
+     * @param backoffMillis バックオフの初期の範囲(ミリ秒)．中止する度に2倍になる
+     */
+    public void setTransactions(int window, double backoffMillis) {
+        if (window <= 0 || backoffMillis < 0) {
+            throw new IllegalArgumentException("window must be positive and backoff must not be negative: " + window + ", " + backoffMillis);
+        }
+        this.transactionWindow = window;
+        this.transactionBackoffMillis = backoffMillis;
+    }
+
+    /**
+     * 並行two-phase commitの状態を取得する
+     * @return 並行two-phase commitの状態（並行two-phase commitの振る舞いを実行していない場合はnull）
+     */
+    public TwoPhaseCommit getTwoPhaseCommit() {
+        return this.twoPhaseCommit;
+    }
+
+    /**
+     * ゴシップの状態を取得する
+     * @return ゴシップの状態（ゴシップの振る舞いを実行していない場合はnull）
+     */
+    public Gossip getGossip() {
+        return this.gossip;
+    }
+
+    /**
+     * 操作の生成と，他のSiteで生成された操作の適用を記録するMetricsRecorderを設定する．
+     * @param metrics 記録するMetricsRecorder（記録しない場合はnull）
+     * @see MetricsRecorder
+     */
+    public void setMetrics(MetricsRecorder metrics) {
+        this.metrics = metrics;
+        this.generator.setTimed(metrics != null);
+    }
+
+    /**
+     * 生成した操作を記録するTraceWriterを設定する．
+     * @param trace 記録するTraceWriter（記録しない場合はnull）
+     * @see TraceWriter
+     */
+    public void setTrace(TraceWriter trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * 操作を生成する代わりに，記録された操作を再生するように設定する．<br>
+     * 操作の実行回数は再生する操作の数になる．速さが0より大きい場合は，Siteの実行を開始した時刻を記録の開始時刻として，
+     * 各操作を記録した時刻(を速さで割った時刻)になるまで待機してから生成する．
+     * @param ops 再生する操作のリスト
+     * @param offsets 操作毎の，トレースの最初のレコードからの経過時間(ナノ秒)
+     * @param speed 再生の速さ（1の場合は記録した時と同じ間隔．0の場合は待機しない）
+     * @see OperationTrace
+     */
+    public void setReplay(List<Operation> ops, long[] offsets, double speed) {
+        if (ops.size() != offsets.length) {
+            throw new IllegalArgumentException("ops and offsets must have the same length.");
+        }
+        if (speed < 0) {
+            throw new IllegalArgumentException("speed must not be negative: " + speed);
+        }
+        this.replay = ops;
+        this.replayOffsets = offsets;
+        this.replaySpeed = speed;
+        this.numberOfOperations = ops.size();
+    }
+
+    /**
+     * 生成した操作を記録する
+     * @param op 生成した操作
+     */
+    private void recordGenerated(Operation op) {
+        if (this.metrics != null) {
+            this.metrics.recordGenerated(op);
+        }
+        if (this.trace != null) {
+            this.trace.record(this.id, op);
+        }
+    }
+
+    /**
+     * 再生する次の操作を取得する．再生の速さが指定されている場合は，操作を記録した時刻まで待機する．
+     * @return 操作オブジェクト
+     */
+    private Operation nextReplayedOperation() {
+        int index = this.numberOfGeneratedOperations - 1;
+        if (this.replaySpeed > 0) {
+            long deadline = this.replayStart + (long) (this.replayOffsets[index] / this.replaySpeed);
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+        Operation op = this.replay.get(index);
+        this.clock.update(op.getTimestamp()); // 以降に生成する操作が再生した操作より後になるようにする
+        if (this.metrics != null && op.getParams() == null) { // 遅延を計測するため，再生した時刻を生成時刻とする
+            op = new Operation(op.getOpType(), op.getId(), op.getPosID(), op.getGid(), op.getTimestamp(), System.nanoTime());
+        }
+        return op;
+    }
+
+    /**
+     * 他のSiteで生成された操作を適用したことを記録する
+     * @param op 適用した操作
+     */
+    private void recordApplied(Operation op) {
+        if (this.metrics != null && op.getId() != this.id) {
+            this.metrics.recordApplied(op);
+        }
+    }
+
+    /**
+     * 送信前に操作をまとめるウィンドウサイズを設定する．0の場合は操作をまとめない．
+     * @param window まとめる操作数
+     * @see OperationCoalescer
+     */
+    public void setCoalescingWindow(int window) {
+        this.coalescer = window > 0 ? new OperationCoalescer(window) : null;
+    }
+    
+    /**
+     * 指定した宛先に操作オブジェクトを送信する <br>
+     * 宛先のQueueが容量を超えて待機している間は，自身が受信した操作を処理する．
+     * @param dest 宛先Siteの識別子
+     * @param op 操作オブジェクト
+     * @see Operation
+     * @see Transport#send
+     */
+    public void send(int dest, Operation op) {
+        this.opq.send(this.id, dest, op, this.relief);
+    }
+
+    /**
+     * 操作を他のSiteに共有するメソッド <br>
+     * 操作は全Siteで共有するログに1度だけ追加され，自身を除く全てのSiteが受信する．
+     * 宛先のQueueが容量を超えて待機している間は，自身が受信した操作を処理する．
+     * @param op 操作オブジェクト
+     * @see Transport#broadcast
+     */
+    public void broadcast(Operation op) {
+        // this.delay();     
+        this.opq.broadcast(this.id, op, this.relief); // remote operation
+        this.numberOfBroadcastOperations++;
+    }
+    
+    /**
+     * 操作オブジェクトを受信するメソッド <br>
+     * receiveメソッドは受信した操作を１つ返します．受信した操作が空の場合は，nullを返す．<br>
+     * 送信の待機中にbacklogへ受け取った操作がある場合は，先にそれらを返す．<br>
+     * 受信した操作のタイムスタンプでSiteの時計を更新する．
+     * @return 操作オブジェクト
+     * @see Operation
+     * @see Transport#dequeue
+     * @see HybridLogicalClock#update
+     */
+    public Operation receive() {
+        if (!this.backlog.isEmpty()) {
+            return this.backlog.remove(0);
+        }
+        Operation op = opq.dequeue(id);
+        if (op != null) {
+            this.clock.update(op.getTimestamp());
+        }
+        return op;
+    }
+
+    /**
+     * 受信した操作オブジェクトをまとめて取得するメソッド <br>
+     * 最大max個の受信した操作をbufferに追加し，追加した操作数を返す．受信した操作が空の場合は0を返す．<br>
+     * 送信の待機中にbacklogへ受け取った操作がある場合は，待機せずに先にそれらを返す．
+     * @param buffer 受信した操作を追加するリスト
+     * @param max 受信する操作の最大数
+     * @return 受信した操作数
+     * @see Operation
+     * @see Transport#drainTo(int, java.util.Collection, int)
+     */
+    public int receive(List<Operation> buffer, int max) {
+        if (!this.backlog.isEmpty()) {
+            return this.takeBacklog(buffer, max);
+        }
+        int from = buffer.size();
+        int n = opq.drainTo(id, buffer, max);
+        for (int i = from; i < from + n; ++i) {
+            this.clock.update(buffer.get(i).getTimestamp());
+        }
+        return n;
+    }
+
+    /**
+     * 受信した操作オブジェクトをまとめて取得するメソッド <br>
+     * 受信した操作が空の場合は，操作が届くかタイムアウトするまでスレッドをparkして待機する．タイムアウトした場合は0を返す．<br>
+     * 送信の待機中にbacklogへ受け取った操作がある場合は，待機せずに先にそれらを返す．
+     * @param buffer 受信した操作を追加するリスト
+     * @param max 受信する操作の最大数
+     * @param timeout 待機する最大時間
+     * @param unit timeoutの単位
+     * @return 受信した操作数
+     * @see Operation
+     * @see Transport#drainTo(int, java.util.Collection, int, long, TimeUnit)
+     */
+    public int receive(List<Operation> buffer, int max, long timeout, TimeUnit unit) {
+        if (!this.backlog.isEmpty()) {
+            return this.takeBacklog(buffer, max);
+        }
+        int from = buffer.size();
+        int n = opq.drainTo(id, buffer, max, timeout, unit);
+        for (int i = from; i < from + n; ++i) {
+            this.clock.update(buffer.get(i).getTimestamp());
+        }
+        return n;
+    }
+
+    /**
+     * 送信の待機中に受け取った操作を，受け取った順に最大max個bufferに移す．時計は受け取った時に更新済みである．
+     * @param buffer 操作を追加するリスト
+     * @param max 移す操作の最大数
+     * @return 移した操作数
+     */
+    private int takeBacklog(List<Operation> buffer, int max) {
+        int n = Math.min(max, this.backlog.size());
+        List<Operation> head = this.backlog.subList(0, n);
+        buffer.addAll(head);
+        head.clear();
+        return n;
+    }
+
+    /**
+     * Siteの識別子を取得する
+     * @return Siteの識別子
+     */
+    public int getSiteId() {
+        return this.id;
+    }
+
+    /**
+     * Siteが保持するChainVoxelを取得する
+     * @return ChainVoxel型のオブジェクト
+     */
+    public ChainVoxel getChainVoxel() {
+        return this.chainVoxel;
+    }
+
+    /**
+     * Siteが操作の生成に使用する操作生成器を取得する
+     * @return 操作生成器
+     */
+    public OperationGenerator getGenerator() {
+        return this.generator;
+    }
+
+    /**
+     * Siteが保持するハイブリッド論理時計を取得する
+     * @return ハイブリッド論理時計
+     */
+    public HybridLogicalClock getClock() {
+        return this.clock;
+    }
+
+    /**
+     * Siteが保持するメッセージ総数を取得する
+     * @return メッセージ総数
+     */
+    public int getNumberOfMessages() {
+        return this.numberOfMessages;
+    }
+
+    /**
+     * Siteが生成した操作の総数を取得する
+     * @return 生成した操作の総数
+     */
+    public int getNumberOfGeneratedOperations() {
+        return this.numberOfGeneratedOperations;
+    }
+
+    /**
+     * Siteが他のSiteに共有した操作の総数を取得する
+     * @return 共有した操作の総数
+     */
+    public int getNumberOfBroadcastOperations() {
+        return this.numberOfBroadcastOperations;
+    }
+
+    /**
+     * Siteが保持する操作の実行回数を取得する
+     * @return 操作の実行回数
+     */
+    public int getNumberOfOperations() {
+        return this.numberOfOperations;
+    }
+
+    /**
+     * Siteが保持するステップ数を取得する
+     * @return ステップ数
+     */
+    public int getNumberOfSteps() {
+        return this.numberOfSteps;
+    }
+    
+    /**
+     * Siteに遅延を発生させるメソッド
+     * @deprecated 送信したスレッドを停止させるため，ネットワークの遅延の模擬には {@link SimulatedNetwork} を使用する
+     */
+    @Deprecated
+    public void delay() {
+        try {
+            Thread.sleep((long) Math.ceil(Math.random()*10));
+        } catch (InterruptedException ie) {
+            ie.printStackTrace();        
+        }
+    }
+
+    /**
+     * ChainVoxelに操作を適用するメソッド
+     * @return ChainVoxelの容量
+     * @see ChainVoxel
+     * @see Operation
+     */
+    public int applyOperation() {
+        ArrayList<Operation> batch = new ArrayList<Operation>(RECEIVE_BATCH_SIZE);
+        while (this.receive(batch, RECEIVE_BATCH_SIZE) > 0) {
+            chainVoxel.apply(batch);
+            batch.clear();
+        }
+        chainVoxel.show();
+        chainVoxel.exportCollada(Integer.toString(this.id));
+        // System.out.println(chainVoxel.stt.getStatusString());
+        return chainVoxel.size();
+    }
+
+    /**
+     * 実行を終えた後に受信した操作を全てChainVoxelに適用するメソッド <br>
+     * 操作が届いていない場合は待機しない．状態を表示せず，ファイルも出力しないため，全てのSiteの収束を検証する前に並行して実行できる．
+     * ChainVoxelの操作ではないメッセージ（FINや合意のためのメッセージ）は破棄する．
+     * @return 適用した操作数
+     * @see ConvergenceVerifier
+     */
+    public int drainOperations() {
+        ArrayList<Operation> batch = new ArrayList<Operation>(RECEIVE_BATCH_SIZE);
+        int applied = 0;
+        while (this.receive(batch, RECEIVE_BATCH_SIZE) > 0) {
+            int size = 0;
+            for (Operation op : batch) {
+                if (op.getOpType() <= Operation.LEAVE) batch.set(size++, op);
+            }
+            batch.subList(size, batch.size()).clear();
+            this.chainVoxel.apply(batch);
+            applied += size;
+            batch.clear();
+        }
+        return applied;
+    }
+
+    /**
+     * 操作をランダムに生成するメソッド<br>
+     * プリミティブ層の操作にしか対応していない．
+     * @deprecated プリミティブ層以外の操作に対応 {@link #randomOperation}
+     * @return 操作オブジェクト
+     * @see OperationGenerator#nextPrimitiveOperation
+     */
+    private Operation generateRandomOperation() {
+        this.numberOfGeneratedOperations++;
+        Operation op = this.replay != null ? this.nextReplayedOperation() : this.generator.nextPrimitiveOperation();
+        this.recordGenerated(op);
+        return op;
+    }
+
+    /**
+     * 操作をランダムに生成するメソッド
+     * @return 操作オブジェクト
+     * @see OperationGenerator#nextOperation
+     */
+    private Operation randomOperation() {
+        this.numberOfGeneratedOperations++;
+        Operation op = this.replay != null ? this.nextReplayedOperation() : this.generator.nextOperation();
+        this.recordGenerated(op);
+        return op;
+    }
+
+    /**
+     * 生成した操作を送信する操作としてoutboxに追加する．<br>
+     * OperationCoalescerが設定されている場合は，まとめられた後の操作が追加される．
+     * @param op 操作オブジェクト
+     * @see OperationCoalescer
+     */
+    private void stage(Operation op) {
+        if (this.coalescer == null) {
+            this.outbox.add(op);
+        } else {
+            this.coalescer.offer(op, this.outbox);
+        }
+    }
+
+    /**
+     * OperationCoalescerが保持している操作を全てoutboxに追加する．
+     * @see OperationCoalescer#flush
+     */
+    private void flushStage() {
+        if (this.coalescer != null) {
+            this.coalescer.flush(this.outbox);
+        }
+    }
+
+    /**
+     * 宛先が受信できずに送信が待機している間に呼び出される．<br>
+     * 受信した操作を逐次適用する振る舞いの場合は，自身のQueueを空けるために受信した操作を適用する．
+     * 受信した操作をラウンド毎に処理する振る舞いの場合は，処理中の操作を変更しないように，受信した操作をbacklogに受け取るだけにする．
+     * 全てのSiteが送信で待機した場合でも，互いのQueueが空くためデッドロックしない．
+     * @see Transport#send
+     */
+    private void relieveBackpressure() {
+        if (this.applyOnReceive) {
+            this.applyReceivedOperations();
+        } else if (this.receiveWhileBlocked) {
+            int from = this.backlog.size();
+            int n = this.opq.drainTo(this.id, this.backlog, RECEIVE_BATCH_SIZE);
+            for (int i = from; i < from + n; ++i) {
+                this.clock.update(this.backlog.get(i).getTimestamp());
+            }
+        }
+    }
+
+    /**
+     * 受信済みの操作を全てChainVoxelに適用する．操作が届いていない場合は待機しない．
+     * @return 受信した操作数
+     */
+    private int applyReceivedOperations() {
+        int total = 0, n;
+        while ((n = this.receive(this.inbox, RECEIVE_BATCH_SIZE)) > 0) {
+            this.applyInbox();
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * inboxに格納された操作をChainVoxelに適用し，inboxを空にする．<br>
+     * FINは適用せずに，送信元から受信すべき操作数として記録する．
+     * @see Operation#FIN
+     */
+    private void applyInbox() {
+        int size = 0;
+        for (Operation op : this.inbox) {
+            int sid = op.getId();
+            if (op.getOpType() == Operation.FIN) {
+                this.expectedFrom[sid] = (Integer) op.getParam("count");
+                if (this.receivedFrom[sid] == this.expectedFrom[sid]) this.remainingPeers--;
+                continue;
+            }
+            if (sid != this.id && ++this.receivedFrom[sid] == this.expectedFrom[sid]) {
+                this.remainingPeers--;
+            }
+            this.inbox.set(size++, op);
+        }
+        this.inbox.subList(size, this.inbox.size()).clear();
+        this.chainVoxel.apply(this.inbox);
+        for (Operation op : this.inbox) {
+            this.recordApplied(op);
+        }
+        this.inbox.clear();
+    }
+
+    /**
+     * 受信した操作を逐次適用するための状態を初期化する
+     */
+    private void startApplyOnReceive() {
+        int numberOfSites = this.opq.getNumberOfSites();
+        this.applyOnReceive = true;
+        this.receivedFrom = new int[numberOfSites];
+        this.expectedFrom = new int[numberOfSites];
+        Arrays.fill(this.expectedFrom, -1);
+        this.remainingPeers = numberOfSites - 1;
+    }
+
+    /**
+     * 他のSiteに共有した操作数をFINで通知し，全ての他のSiteから操作を受信し終えるまで受信した操作を適用する．<br>
+     * 送信元毎の順序は保証されないため，FINの到着ではなく通知された操作数で終了を判定する．
+     * FINは終了判定のためのものであり，メッセージ総数には含めない．
+     * @see Operation#FIN
+     */
+    private void finishApplyOnReceive() {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("sid", this.id);
+        params.put("count", this.numberOfBroadcastOperations);
+        this.opq.broadcast(this.id, new Operation(Operation.FIN, params, this.clock.tick()), this.relief);
+
+        while (this.remainingPeers > 0) {
+            if (Thread.currentThread().isInterrupted()) { // 他のSiteが異常終了した
+                return;
+            }
+            if (this.receive(this.inbox, RECEIVE_BATCH_SIZE, RECEIVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) > 0) {
+                this.applyInbox();
+            }
+        }
+        this.applyReceivedOperations(); // 自身に送信したlocal operation
+        this.applyOnReceive = false;
+    }
+
+    /**
+     * 操作を指定数受け取るまで待機するメソッド <br>
+     * 操作が届いていない間はスレッドをparkして待機するため，CPUを消費しない．
+     * 後で処理するために取っておいた操作がある場合は，それらを先に受け取る．
+     * @param num 操作を受け取る数
+     * @return 受信した操作のリスト
+     * @throws CancellationException 待機中にスレッドが割り込まれた（他のSiteが異常終了した）場合
+     */
+    public ArrayList<Operation> waitReceiveOperation(int num) {
+        ArrayList<Operation> operationList = new ArrayList<Operation>(num);
+        int count = Math.min(num, this.deferred.size());
+        operationList.addAll(this.deferred.subList(0, count));
+        this.deferred.subList(0, count).clear();
+        while (count < num) {
+            this.checkInterrupted();
+            count += this.receive(operationList, num - count, RECEIVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return operationList;
+    }
+
+
+    /**
+     * 操作を1つ受け取るまで待機するメソッド <br>
+     * 後で処理するために取っておいた操作は受け取らない．
+     * @return 受信した操作
+     * @throws CancellationException 待機中にスレッドが割り込まれた（他のSiteが異常終了した）場合
+     */
+    private Operation receiveOperation() {
+        while (this.inbox.isEmpty()) {
+            this.checkInterrupted();
+            this.receive(this.inbox, 1, RECEIVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        Operation op = this.inbox.get(0);
+        this.inbox.clear();
+        return op;
+    }
+
+    /**
+     * スレッドが割り込まれている場合は，待機を中断するために例外を投げる．<br>
+     * 割り込まれたスレッドではparkがすぐに戻るため，確認せずに待機を続けるとCPUを消費し続けて終了しない．
+     * @throws CancellationException スレッドが割り込まれた場合
+     * @see Simulator
+     */
+    private void checkInterrupted() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("site " + this.id + " was interrupted while waiting for operations.");
+        }
+    }
+
+    /**
+     * Raftの振る舞いでLeaderを選出する．<br>
+     * siteの故障は起きないため，idが0のsiteがCandidateとなり，全てのsiteの投票を受けてLeaderになる．
+     */
+    private void electLeader() {
+        int numberOfSites = this.opq.getNumberOfSites();
+        if (this.id == 0) { // idが0の人がCandidateになる
+            // step1: FollowerにrequestVoteを送信する
+            Operation requestVote = new Operation(this.id, Operation.REQUEST_VOTE, "");
+            this.send(0, requestVote);
+            this.broadcast(requestVote);
+            this.numberOfSteps++;
+            this.numberOfMessages += numberOfSites;
+
+            // step2: Followerからの投票を待つ
+            this.waitReceiveOperation(numberOfSites);
+            this.numberOfSteps++;
+            this.numberOfMessages += numberOfSites; // (Leaderになるためには過半数の合意が必要)
+
+            // step3: FollowerにLeaderになったことを報告
+            Operation appendEntries = new Operation(this.id, Operation.APPEND_ENTRIES, "");
+            this.broadcast(appendEntries);
+            this.numberOfSteps++;
+            this.numberOfMessages += numberOfSites - 1;
+        } else {
+            // step1: CandidateからのrequestVoteを待つ
+            this.waitReceiveOperation(1);
+            this.numberOfSteps++;
+            this.numberOfMessages++;
+
+            // step2: 送信元，Candidateに投票する
+            Operation vote = new Operation(this.id, Operation.VOTE, "");
+            this.send(0, vote);
+            this.numberOfSteps++;
+            this.numberOfMessages++;
+
+            // step3: LeaderからのAppendEntriesを待つ
+            // broadcastは1対1の送信を追い越されることがあるため，先に届いたログのAppendEntriesは後で処理するために取っておく
+            Operation appendEntries;
+            while ((appendEntries = this.receiveOperation()).getOpType() != Operation.APPEND_ENTRIES ||
+                    appendEntries.getParam("ops") != null) {
+                this.deferred.add(appendEntries);
+            }
+            this.numberOfSteps++;
+            this.numberOfMessages++;
+        }
+    }
+
+    /**
+     * Raft 時のsiteの振る舞いを実行する<br>
+     * <br>
+     * 全ての操作をRaft に基づいて実行する．siteの故障は起きないためLeaderの選出は１度しか行わない．<br>
+     * また，一貫性の収束にかかるステップ数とメッセージ数の評価が目的のため，ログレプリケーションやハートビートといった操作も考えない．<br>
+     * Raftの場合は全ての操作をLeaderを介して行うため，Leaderのメッセージ数を測定することで総メッセージ数が測定できる．<br>
+     * <br>
+     * シミュレーション実行中のメッセージ総数は，「Leaderのメッセージ総数」で求めることができる (id=0のsite)．
+     * @see Operation
+     */
+    private void runBehaviorOfRaft() {
+        // Leaderの選出 
+        int numberOfSites = this.opq.getNumberOfSites();
+        this.electLeader();
+
+        // 操作の実行を行う
+        int maxTurn = this.numberOfOperations * numberOfSites;
+        for (int turn = 0; turn < maxTurn; ++turn) {
+            if (turn % numberOfSites == this.id) { // 操作を実行する人 
+                // step0: 操作をLeaderに送信する
+                Operation op = this.generateRandomOperation();
+                this.send(0, op);
+            }
+
+            if (this.id == 0) { // Leaderの動作
+                // step1: 送信された操作を受け取る
+                Operation op = this.waitReceiveOperation(1).get(0);
+                this.recordApplied(op);
+                this.numberOfSteps++;
+                this.numberOfMessages++;
+
+                // step2: 操作をFollowerに共有する
+                // this.send(this.id, op); // local operation は省略
+                this.broadcast(op); 
+                this.numberOfSteps++;
+                this.numberOfMessages += numberOfSites;
+            } else { // Followerの動作
+                this.recordApplied(this.waitReceiveOperation(1).get(0));
+                // local operation は省略
+                this.numberOfSteps++;
+                this.numberOfMessages++;
+            }
+        }
+        return;
+    }
+
+    /**
+     * 複製ログをパイプライン化したRaft 時のsiteの振る舞いを実行する<br>
+     * <br>
+     * Leaderの選出は{@link #runBehaviorOfRaft}と同じである．各siteは生成した操作をLeaderに送り，Leaderは受け取った順にログに追加する．
+     * Leaderはログの未送信の操作を最大{@link #raftBatchSize}個ずつAppendEntriesにまとめ，Follower毎に応答を待たずに最大{@link #raftWindow}個まで送信する．
+     * 過半数のsiteが複製した操作はコミットされ，ログの順にChainVoxelに適用される．コミットした位置は次のAppendEntriesで通知し，
+     * 送信する操作がない場合は操作を含まないAppendEntriesで通知する．<br>
+     * 各siteはコミットされていない自身の操作が{@link #raftBatchSize} * {@link #raftWindow}個に達すると，操作の生成を待つ．<br>
+     * <br>
+     * 全てのメッセージがLeaderを介するため，シミュレーション実行中のメッセージ総数は，「Leaderのメッセージ総数」で求めることができる (id=0のsite)．
+     * Leaderのステップ数はコミットした位置を進めた回数である．
+     * @see Operation#APPEND_ENTRIES
+     * @see Operation#APPEND_RESPONSE
+     */
+    private void runBehaviorOfPipelinedRaft() {
+        this.electLeader();
+        int total = this.numberOfOperations * this.opq.getNumberOfSites();
+        if (this.id == 0) {
+            this.leadPipelinedRaft(total);
+        } else {
+            this.followPipelinedRaft(total);
+        }
+        return;
+    }
+
+    /**
+     * パイプライン化したRaftのLeaderの動作を実行する．全ての操作をコミットし，全てのFollowerに通知するまで続ける．
+     * @param total 全てのsiteが生成する操作の総数
+     */
+    private void leadPipelinedRaft(int total) {
+        int numberOfSites = this.opq.getNumberOfSites();
+        int majority = numberOfSites / 2 + 1;
+        int maxPending = this.raftBatchSize * this.raftWindow;
+        ArrayList<Operation> log = new ArrayList<Operation>(total);
+        int[] nextIndex = new int[numberOfSites]; // Follower毎の次に送信するログの位置
+        int[] matchIndex = new int[numberOfSites]; // Follower毎の複製が確認されたログの長さ
+        int[] inflight = new int[numberOfSites]; // Follower毎の応答を待っているAppendEntriesの数
+        int[] notifiedCommit = new int[numberOfSites]; // Follower毎の通知したコミットの位置
+        int[] sorted = new int[numberOfSites];
+        boolean[] informed = new boolean[numberOfSites]; // Follower毎の全ての操作とそのコミットを送信したかどうか
+        int commitIndex = 0, ownCommitted = 0, numberOfInformed = 1; // 自身を含む
+
+        while (commitIndex < total || numberOfInformed < numberOfSites) {
+            boolean progress = false;
+
+            // 自身の操作をログに追加する
+            if (this.numberOfGeneratedOperations < this.numberOfOperations &&
+                    this.numberOfGeneratedOperations - ownCommitted < maxPending) {
+                log.add(this.generateRandomOperation());
+                progress = true;
+            }
+
+            // Follower毎に，未送信の操作と新しいコミットの位置を送信する
+            for (int f = 1; f < numberOfSites; ++f) {
+                while (inflight[f] < this.raftWindow && nextIndex[f] < log.size()) {
+                    int to = Math.min(log.size(), nextIndex[f] + this.raftBatchSize);
+                    this.send(f, this.createAppendEntries(nextIndex[f], new ArrayList<Operation>(log.subList(nextIndex[f], to)), commitIndex));
+                    nextIndex[f] = to;
+                    notifiedCommit[f] = commitIndex;
+                    inflight[f]++;
+                    this.numberOfMessages++;
+                    progress = true;
+                }
+                if (inflight[f] == 0 && notifiedCommit[f] < commitIndex) { // 応答が来ないため，コミットの位置だけを通知する
+                    this.send(f, this.createAppendEntries(nextIndex[f], new ArrayList<Operation>(), commitIndex));
+                    notifiedCommit[f] = commitIndex;
+                    this.numberOfMessages++;
+                    progress = true;
+                }
+                if (!informed[f] && nextIndex[f] == total && notifiedCommit[f] == total) {
+                    informed[f] = true;
+                    numberOfInformed++;
+                }
+            }
+
+            // 操作と応答を受信する．何も送信していない場合は受信するまで待機する
+            if (progress) {
+                this.receive(this.inbox, RECEIVE_BATCH_SIZE);
+            } else {
+                if (Thread.currentThread().isInterrupted()) { // 他のSiteが異常終了した
+                    return;
+                }
+                this.receive(this.inbox, RECEIVE_BATCH_SIZE, RECEIVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            for (Operation message : this.inbox) {
+                this.numberOfMessages++;
+                if (message.getOpType() <= Operation.LEAVE) {
+                    log.add(message);
+                } else if (message.getOpType() == Operation.APPEND_RESPONSE) {
+                    int f = message.getId();
+                    matchIndex[f] = Math.max(matchIndex[f], (Integer) message.getParam("match"));
+                    inflight[f]--;
+                }
+            }
+            this.inbox.clear();
+
+            // 過半数のsiteが複製した位置までコミットし，適用する
+            matchIndex[0] = log.size();
+            System.arraycopy(matchIndex, 0, sorted, 0, numberOfSites);
+            Arrays.sort(sorted);
+            int majorityIndex = sorted[numberOfSites - majority];
+            if (majorityIndex > commitIndex) {
+                List<Operation> committed = log.subList(commitIndex, majorityIndex);
+                this.chainVoxel.apply(committed);
+                for (Operation op : committed) {
+                    if (op.getId() == this.id) ownCommitted++;
+                    this.recordApplied(op);
+                }
+                commitIndex = majorityIndex;
+                this.numberOfSteps++;
+            }
+        }
+        return;
+    }
+
+    /**
+     * パイプライン化したRaftのFollowerの動作を実行する．全ての操作を適用するまで続ける．<br>
+     * 通信路が順序を入れ替えた場合に備えて，ログの末尾に続かないAppendEntriesは続きが届くまで保留する．
+     * @param total 全てのsiteが生成する操作の総数
+     */
+    private void followPipelinedRaft(int total) {
+        int maxPending = this.raftBatchSize * this.raftWindow;
+        ArrayList<Operation> log = new ArrayList<Operation>(total);
+        Map<Integer, Operation> held = new HashMap<Integer, Operation>(); // ログの位置毎の保留したAppendEntries
+        int commitIndex = 0, appliedIndex = 0, ownCommitted = 0;
+        this.inbox.addAll(this.deferred); // Leaderの選出中に届いたAppendEntries
+        this.deferred.clear();
+
+        while (appliedIndex < total) {
+            boolean progress = false;
+
+            // 生成した操作をLeaderに送信する
+            if (this.numberOfGeneratedOperations < this.numberOfOperations &&
+                    this.numberOfGeneratedOperations - ownCommitted < maxPending) {
+                this.send(0, this.generateRandomOperation());
+                this.numberOfMessages++;
+                progress = true;
+            }
+
+            if (progress || !this.inbox.isEmpty()) {
+                this.receive(this.inbox, RECEIVE_BATCH_SIZE);
+            } else {
+                if (Thread.currentThread().isInterrupted()) { // 他のSiteが異常終了した
+                    return;
+                }
+                this.receive(this.inbox, RECEIVE_BATCH_SIZE, RECEIVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            for (Operation message : this.inbox) {
+                if (message.getOpType() != Operation.APPEND_ENTRIES) {
+                    continue;
+                }
+                this.numberOfMessages++;
+                commitIndex = Math.max(commitIndex, (Integer) message.getParam("commit"));
+                if (!getEntries(message).isEmpty()) {
+                    held.put((Integer) message.getParam("prev"), message);
+                }
+            }
+            this.inbox.clear();
+
+            // ログの末尾に続くAppendEntriesを追加し，複製した位置を応答する
+            Operation appendEntries;
+            while ((appendEntries = held.remove(log.size())) != null) {
+                log.addAll(getEntries(appendEntries));
+                Map<String, Object> params = new HashMap<String, Object>();
+                params.put("sid", this.id);
+                params.put("match", log.size());
+                this.send(0, new Operation(Operation.APPEND_RESPONSE, params, this.clock.tick()));
+                this.numberOfMessages++;
+            }
+
+            // コミットされた操作を適用する
+            int applicable = Math.min(commitIndex, log.size());
+            if (applicable > appliedIndex) {
+                List<Operation> committed = log.subList(appliedIndex, applicable);
+                this.chainVoxel.apply(committed);
+                for (Operation op : committed) {
+                    if (op.getId() == this.id) ownCommitted++;
+                    this.recordApplied(op);
+                }
+                appliedIndex = applicable;
+                this.numberOfSteps++;
+            }
+        }
+        return;
+    }
+
+    /**
+     * パイプライン化したRaftのAppendEntriesを作成する
+     * @param prev 含める最初の操作のログの位置（直前までのログの長さ）
+     * @param entries 含める操作のリスト
+     * @param commit コミットしたログの位置
+     * @return AppendEntries
+     */
+    private Operation createAppendEntries(int prev, List<Operation> entries, int commit) {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("sid", this.id);
+        params.put("prev", prev);
+        params.put("commit", commit);
+        params.put("ops", entries);
+        return new Operation(Operation.APPEND_ENTRIES, params, this.clock.tick());
+    }
+
+    /**
+     * AppendEntriesに含まれる操作のリストを取得する
+     * @param appendEntries AppendEntries
+     * @return 操作のリスト
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Operation> getEntries(Operation appendEntries) {
+        return (List<Operation>) appendEntries.getParam("ops");
+    }
+
+    /**
+     * two-phase commit 時のsiteの振る舞いを実行する <br>
+     * <br>
+     * 全ての操作を２層コミットに基づいて実行する．siteが故障することは考えない．<br>
+     * <br>
+     * siteIDの昇順で操作を実行する．最後のsiteの後は，最初のsiteから操作を実行する．<br>
+     * 操作実行を行うsiteが調停者の役割を担う．<br>
+     * <br>
+     * シミュレーション実行中のメッセージ総数は，「site毎のメッセージ総数 * site数」で求める
+     * @see Operation
+     */
+    private void runBehaviorOfTwoPhaseCommit() {
+        int numberOfSites = this.opq.getNumberOfSites();
+        int maxTurn = this.numberOfOperations * numberOfSites;
+        for (int turn = 0; turn < maxTurn; ++turn) {
+            if (turn % numberOfSites == this.id) { // 調停者の動作
+                // step1: 参加者にコミットの準備を求める
+                Operation request = new Operation(this.id, Operation.REQUEST, "");
+                this.broadcast(request);
+                this.numberOfSteps++;
+                this.numberOfMessages += numberOfSites - 1;
+
+                // step2: 参加者からの確認応答を待つ
+                this.waitReceiveOperation(numberOfSites - 1);
+                this.numberOfSteps++;
+
+                // step3: 操作を全員に送信する
+                Operation op = this.generateRandomOperation();
+                this.chainVoxel.apply(op); // local operation
+                this.broadcast(op); // remote operation
+                this.numberOfSteps++;
+                this.numberOfMessages += numberOfSites - 1;
+
+            } else { // 参加者の動作
+                // step1: requestを待つ
+                this.waitReceiveOperation(1);
+                this.numberOfSteps++;
+
+                // step2: 確認応答を返す
+                Operation ack = new Operation(this.id, Operation.ACK, "");
+                this.send(turn % numberOfSites, ack);
+                this.numberOfSteps++;
+                this.numberOfMessages += 1;
+
+                // step3: 操作を適用する
+                Operation op = null;
+                while (true) {
+                    op = this.receiveOperation();
+                    if (op.getOpType() <= Operation.LEAVE) { // ChainVoxelの操作
+                        break;        
+                    }
+                    // 先行した調停者のREQUESTだったので次のターンまで取っておく．
+                    // 自身に送り直すと即座に受信し直して操作が届くまで空回りするため，キューには戻さない．
+                    this.deferred.add(op);
+                }
+                this.chainVoxel.apply(op);
+                this.recordApplied(op);
+                this.numberOfSteps++;
+            }
+        }
+
+        return;
+    }
+
+    /**
+     * 全てのSiteが並行してトランザクションを調停するtwo-phase commit時のSiteの振る舞いを実行する．<br>
+     * <br>
+     * 生成した操作を1つのトランザクションとし，同時に最大{@link #setTransactions window}個のトランザクションを自身が調停者となって実行する．
+     * 他のSiteが調停するトランザクションには，いつでも参加者として投票する．
+     * ロックが競合して中止したトランザクションは，バックオフの後に再試行する．
+     * 操作はコミットした時点でChainVoxelに適用する．
+     * 自身の全てのトランザクションをコミットした後は，コミットした数をFINで全ての他のSiteに通知し，
+     * 他の全てのSiteのトランザクションをコミットし終えるまで投票を続ける．
+     * 送信が待機している間は受信したメッセージをbacklogに受け取り，最後に全ての他のSiteがループを抜けるまで受信を続ける．<br>
+     * ステップ数はトランザクションの試行回数であり，メッセージ総数はSite毎に送信したメッセージ数である．
+     * シミュレーション全体のメッセージ総数は全Siteの合計で求める．
+     * @see TwoPhaseCommit
+     */
+    private void runBehaviorOfConcurrentTwoPhaseCommit() {
+        int numberOfSites = this.opq.getNumberOfSites();
+        this.twoPhaseCommit = new TwoPhaseCommit(this.id, numberOfSites, this.transactionWindow, this.transactionBackoffMillis, this.seed);
+        TwoPhaseCommit tpc = this.twoPhaseCommit;
+        ArrayList<Operation> committed = new ArrayList<Operation>();
+        int[] committedFrom = new int[numberOfSites];
+        int[] expectedFrom = new int[numberOfSites];
+        Arrays.fill(expectedFrom, -1);
+        int remaining = numberOfSites - 1, fins = 0;
+        boolean finSent = false;
+        this.receiveWhileBlocked = true; // 投票や決定を送信中にinboxを変更せずに，自身のQueueを空ける
+
+        while (!finSent || remaining > 0) {
+            if (Thread.currentThread().isInterrupted()) { // 他のSiteが異常終了した
+                return;
+            }
+            // 調停者の動作: バックオフを終えたトランザクションと新しいトランザクションの準備を求める
+            long now = System.nanoTime();
+            while (tpc.hasDueRetry(now)) {
+                this.numberOfSteps++;
+                Operation request = tpc.retry(now, this.clock.tick(), committed);
+                if (request != null) {
+                    this.broadcastMessage(request);
+                }
+            }
+            while (this.numberOfGeneratedOperations < this.numberOfOperations && tpc.hasFreeSlot()) {
+                this.numberOfSteps++;
+                Operation request = tpc.begin(this.generateRandomOperation(), now, this.clock.tick(), committed);
+                if (request != null) {
+                    this.broadcastMessage(request);
+                }
+            }
+
+            // 投票やコミットが届くまで，再試行できるトランザクションがある場合はその時刻まで待機する
+            long wait = tpc.getNanosUntilRetry(System.nanoTime());
+            if (wait < 0) {
+                this.receive(this.inbox, RECEIVE_BATCH_SIZE, RECEIVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } else if (wait > 0) {
+                this.receive(this.inbox, RECEIVE_BATCH_SIZE, wait, TimeUnit.NANOSECONDS);
+            } else {
+                this.receive(this.inbox, RECEIVE_BATCH_SIZE);
+            }
+            for (Operation message : this.inbox) {
+                int sid = message.getId();
+                switch (message.getOpType()) {
+                    case Operation.REQUEST: // 参加者の動作: 投票する
+                        this.send(sid, tpc.onPrepare(message, this.clock.tick()));
+                        this.numberOfMessages++;
+                        break;
+                    case Operation.ACK: { // 調停者の動作: 投票が揃ったら決定を通知する
+                        Operation decision = tpc.onVote(message, System.nanoTime(), this.clock.tick(), committed);
+                        if (decision != null) {
+                            this.broadcastMessage(decision);
+                        }
+                        break;
+                    }
+                    case Operation.COMMIT:
+                    case Operation.ABORT:
+                        tpc.onDecision(message, committed);
+                        break;
+                    case Operation.FIN:
+                        fins++;
+                        if (expectedFrom[sid] >= 0) break; // ループを抜けたことを示す2度目のFIN
+                        expectedFrom[sid] = (Integer) message.getParam("count");
+                        if (committedFrom[sid] == expectedFrom[sid]) remaining--;
+                        break;
+                    default:
+                        throw new IllegalStateException("Unexpected message in two-phase commit: " + message.getOpType());
+                }
+            }
+            this.inbox.clear();
+
+            this.chainVoxel.apply(committed);
+            for (Operation op : committed) {
+                int sid = op.getId();
+                if (sid != this.id && ++committedFrom[sid] == expectedFrom[sid]) {
+                    remaining--;
+                }
+                this.recordApplied(op);
+            }
+            committed.clear();
+
+            if (!finSent && tpc.getNumberOfCommittedTransactions() == this.numberOfOperations) {
+                Map<String, Object> params = new HashMap<String, Object>();
+                params.put("sid", this.id);
+                params.put("count", this.numberOfOperations);
+                this.opq.broadcast(this.id, new Operation(Operation.FIN, params, this.clock.tick()), this.relief);
+                finSent = true;
+            }
+        }
+        this.awaitPeersLeaving(fins, this.numberOfOperations); // 中止した試行への投票が終了したSiteに送られることがある
+        return;
+    }
+
+    /**
+     * ChainVoxelの操作ではないメッセージを自身を除く全てのSiteに送信し，メッセージ総数に加える
+     * @param message メッセージ
+     */
+    private void broadcastMessage(Operation message) {
+        this.opq.broadcast(this.id, message, this.relief);
+        this.numberOfMessages += this.opq.getNumberOfSites() - 1;
+    }
+
+    /**
+     * ChainVoxel時のSiteの振る舞いを実行する．<br>
+     * <br>
+     * 受信した操作は操作を生成する度に適用する．全ての操作を共有した後はFINを送信し，
+     * 他の全てのSiteの操作を適用し終えるまで待機する．<br>
+     * シミュレーション実行中のメッセージ総数は，「site毎のメッセージ総数 * site数」で求める
+     * @see ChainVoxel
+     * @see Operation
+     */
+    private void runBehaviorOfChainVoxel() {
+        int numberOfSites = this.opq.getNumberOfSites();
+        this.startApplyOnReceive();
+        for (int i = 0; i < this.numberOfOperations; ++i) {
+            this.stage(this.generateRandomOperation());
+            for (Operation op : this.outbox) {
+                this.send(this.id, op); // local operation
+                this.broadcast(op); // remote operation
+                this.numberOfMessages += numberOfSites - 1;
+            }
+            this.outbox.clear();
+            this.applyReceivedOperations();
+            this.numberOfSteps++;
+        }
+
+        this.flushStage();
+        for (Operation op : this.outbox) {
+            this.send(this.id, op); // local operation
+            this.broadcast(op); // remote operation
+            this.numberOfMessages += numberOfSites - 1;
+        }
+        this.outbox.clear();
+        this.finishApplyOnReceive();
+        return;
+    }
+
+    /**
+     * ゴシップで操作を共有する時のSiteの振る舞いを実行する．<br>
+     * <br>
+     * ラウンド毎に操作を1つ生成し，ランダムに選んだSiteに新しい操作を転送したり，不足している操作を要求する．
+     * 要求を送ったラウンドでは，応答が届くまで受信した操作を処理しながら待機し，応答が揃うまでは新たに要求しない．他のSiteからの要求にはいつでも応答する．
+     * 送信が待機している間は，受信した操作をbacklogに受け取って自身のQueueを空ける．
+     * 全ての操作を受信した後はFINを送信し，全ての他のSiteからFINを受信するまで要求への応答を続ける．
+     * その後，2度目のFINを送信し，全ての他のSiteから2度目のFINを受信するまで受信を続ける（終了したSiteへの送信が待機し続けないようにする）．<br>
+     * メッセージ総数はSite毎に送信したゴシップのメッセージ数であり，シミュレーション全体のメッセージ総数は全Siteの合計で求める．
+     * @see Gossip
+     */
+    private void runBehaviorOfGossip() {
+        int numberOfSites = this.opq.getNumberOfSites();
+        this.gossip = new Gossip(this.id, numberOfSites, this.numberOfOperations, this.gossipFanout, this.gossipMode, this.seed);
+        ArrayList<Operation> learned = new ArrayList<Operation>();
+        int finished = 0, pendingReplies = 0;
+        boolean finSent = false;
+        this.receiveWhileBlocked = true; // 応答を送信中にinboxを変更せずに，自身のQueueを空ける
+
+        while (!this.gossip.isComplete() || this.gossip.hasPendingPush() || finished < numberOfSites - 1) {
+            if (!this.gossip.isComplete() || this.gossip.hasPendingPush()) {
+                if (this.numberOfGeneratedOperations < this.numberOfOperations) {
+                    Operation op = this.generateRandomOperation();
+                    this.chainVoxel.apply(op); // local operation
+                    this.gossip.add(op);
+                }
+                int[] peers = this.gossip.nextRound();
+                Operation push = this.gossip.createPush(this.clock.tick());
+                if (push != null) {
+                    for (int peer : peers) {
+                        this.send(peer, push);
+                        this.numberOfMessages++;
+                    }
+                }
+                // 前の要求の応答が揃うまでは要求を重ねない（応答の処理が遅いSiteに要求が溜まり続けないようにする）
+                if (pendingReplies == 0 && this.gossip.shouldPull(push != null)) {
+                    Operation pull = this.gossip.createPull(this.clock.tick());
+                    for (int i = 0; i < this.gossip.getPullFanout(); ++i) {
+                        this.send(peers[i], pull);
+                        this.numberOfMessages++;
+                        pendingReplies++;
+                    }
+                }
+                this.numberOfSteps++;
+            }
+
+            // 要求の応答を待つ間や，全ての操作を受信した後は，操作が届くまで待機する
+            if (this.gossip.isComplete() || pendingReplies > 0) {
+                if (Thread.currentThread().isInterrupted()) { // 他のSiteが異常終了した
+                    return;
+                }
+                this.receive(this.inbox, RECEIVE_BATCH_SIZE, RECEIVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } else {
+                this.receive(this.inbox, RECEIVE_BATCH_SIZE);
+            }
+            for (Operation message : this.inbox) {
+                if (message.getOpType() == Operation.FIN) {
+                    finished++;
+                    continue;
+                }
+                if (Gossip.isReply(message)) {
+                    pendingReplies--;
+                }
+                Operation reply = this.gossip.receive(message, this.clock.tick(), learned);
+                if (reply != null) {
+                    this.send(message.getId(), reply);
+                    this.numberOfMessages++;
+                }
+            }
+            this.inbox.clear();
+            this.chainVoxel.apply(learned);
+            for (Operation op : learned) {
+                this.recordApplied(op);
+            }
+            learned.clear();
+
+            if (!finSent && this.gossip.isComplete()) {
+                Map<String, Object> params = new HashMap<String, Object>();
+                params.put("sid", this.id);
+                params.put("count", this.gossip.getConvergenceRound());
+                this.opq.broadcast(this.id, new Operation(Operation.FIN, params, this.clock.tick()), this.relief);
+                finSent = true;
+            }
+        }
+
+        this.awaitPeersLeaving(finished, this.gossip.getConvergenceRound()); // 残っていた転送が終了したSiteに送られることがある
+        return;
+    }
+
+    /**
+     * ループを抜けたことを示す2度目のFINを送信し，全ての他のSiteから2度目のFINを受信するまで受信を続ける．<br>
+     * 受信した操作をラウンド毎に処理する振る舞いでは，ループを抜けた後も他のSiteから送信されることがあるため，
+     * 容量を設定した場合に終了したSiteへの送信が待機し続けないようにする．FIN以外のメッセージは破棄する．
+     * @param received 既に受信したFINの数（1度目と2度目の合計）
+     * @param count FINで通知する値
+     */
+    private void awaitPeersLeaving(int received, int count) {
+        int numberOfSites = this.opq.getNumberOfSites();
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("sid", this.id);
+        params.put("count", count);
+        this.opq.broadcast(this.id, new Operation(Operation.FIN, params, this.clock.tick()), this.relief);
+        while (received < 2 * (numberOfSites - 1)) {
+            this.checkInterrupted();
+            this.receive(this.inbox, RECEIVE_BATCH_SIZE, RECEIVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            for (Operation message : this.inbox) {
+                if (message.getOpType() == Operation.FIN) received++;
+            }
+            this.inbox.clear();
+        }
+    }
+
+    /**
+     * ChainVoxelの構造層のテストをする
+     * @see ChainVoxel
+     * @see Operation
+     * @see StructureTable
+     */
+    private void runBehaviorOfChainVoxelForStructureLayer() {
+        int numberOfSites = this.opq.getNumberOfSites();
+        for (int i = 0; i < this.numberOfOperations; ++i) {
+            this.stage(this.randomOperation());
+            for (Operation op : this.outbox) {
+                //this.send(this.id, op); // local operation
+                this.chainVoxel.apply(op); // local operation
+                this.broadcast(op); // remote operation
+                this.numberOfMessages += numberOfSites - 1;
+            }
+            this.outbox.clear();
+            this.numberOfSteps++;
+        }
+
+        this.flushStage();
+        for (Operation op : this.outbox) {
+            this.chainVoxel.apply(op); // local operation
+            this.broadcast(op); // remote operation
+            this.numberOfMessages += numberOfSites - 1;
+        }
+        this.outbox.clear();
+        return;
+    }
+
+    /**
+     * Siteの動作を記述するメソッド．
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {    
+        // this.delay();     
+        this.replayStart = System.nanoTime();
+        
+        try {
+            this.runBehavior();
+        } catch (CancellationException ce) {
+            // 他のSiteが異常終了したため，待機を中断して終了する
+        }
+
+        return;
+    }
+
+    /**
+     * 設定されたふるまいを実行する
+     */
+    private void runBehavior() {
+        switch (this.behavior) {
+            case STRUCTURE_LAYER:
+                this.runBehaviorOfChainVoxelForStructureLayer();
+                break;
+            case TWO_PHASE_COMMIT:
+                this.runBehaviorOfTwoPhaseCommit();
+                break;
+            case RAFT:
+                this.runBehaviorOfRaft();
+                break;
+            case GOSSIP:
+                this.runBehaviorOfGossip();
+                break;
+            case PIPELINED_RAFT:
+                this.runBehaviorOfPipelinedRaft();
+                break;
+            case CONCURRENT_TWO_PHASE_COMMIT:
+                this.runBehaviorOfConcurrentTwoPhaseCommit();
+                break;
+            default:
+                this.runBehaviorOfChainVoxel();
+                break;
+        }
+    }
+}
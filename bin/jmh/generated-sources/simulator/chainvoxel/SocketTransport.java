@@ -0,0 +1,720 @@
+package chainvoxel;import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * TCPで他のプロセスのSiteと操作オブジェクトを共有する通信路を実装したクラス．<br>
+ * <br>
+ * 1つのSocketTransportは1つのSite(自Site)のためのものであり，Site毎に別のJVMで動作させる．
+ * 自Siteは他の全てのSiteに送信用の接続を張り，他の全てのSiteからの接続を受信用として受け付ける．
+ * 送信用の接続では最初に自Siteの識別子(int)を送信する．<br>
+ * 操作オブジェクトは{@link OperationCodec}で変換し，長さ(int)を先頭に付けたフレームとして送信する．
+ * broadcastでは1度だけ変換したフレームを全ての宛先で共有する．<br>
+ * 通信はノンブロッキングのNIOで行い，1つのI/Oスレッドが全ての接続の送受信を処理する．
+ * 送信するSiteのスレッドはフレームを宛先毎のキューに追加するだけであり，ソケットへの書き込みを待たない．
+ * 宛先毎の未送信のバイト数が上限を超えた場合は，送信が完了するまで送信元を待機させる．<br>
+ * {@link #close}は未送信のフレームを全て送信した後に送信用の接続を片側だけ閉じ(EOF)，
+ * 他の全てのSiteからEOFを受け取るまで待機する．
+ * @author kengo92i
+ * @see Transport
+ * @see OperationCodec
+ */
+public class SocketTransport implements Transport {
+    /**
+     * 宛先毎の未送信のバイト数の上限
+     */
+    private static final long MAX_PENDING_BYTES = 4L << 20;
+
+    /**
+     * 受信用バッファの初期サイズ
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 1回の書き込みでまとめて送信するフレームの最大数
+     */
+    private static final int GATHER_SIZE = 64;
+
+    /**
+     * 接続に失敗した場合に再接続するまでの時間(ミリ秒)
+     */
+    private static final long CONNECT_RETRY_MILLIS = 100;
+
+    /**
+     * 送信元を待機させる際の1回あたりのpark時間(ナノ秒)
+     */
+    private static final long BACKOFF_NANOS = 50000L;
+
+    /**
+     * 送信用の接続の状態
+     */
+    private static final class Peer {
+        /**
+         * 宛先Siteの識別子
+         */
+        final int id;
+
+        /**
+         * 送信待ちのフレーム
+         */
+        final MpscQueue<ByteBuffer> frames;
+
+        /**
+         * 送信待ちのバイト数
+         */
+        final AtomicLong pendingBytes;
+
+        /**
+         * 宛先Siteとの接続（I/Oスレッドのみが使用する）
+         */
+        SocketChannel channel;
+
+        /**
+         * 接続が確立しているかどうか（I/Oスレッドのみが使用する）
+         */
+        boolean connected;
+
+        /**
+         * 次に接続を試みる時刻(ミリ秒)（I/Oスレッドのみが使用する）
+         */
+        long retryAt;
+
+        /**
+         * 書き込み途中のフレーム（I/Oスレッドのみが使用する）
+         */
+        final ByteBuffer[] gather;
+
+        /**
+         * gatherに格納されているフレームの数（I/Oスレッドのみが使用する）
+         */
+        int gathered;
+
+        Peer(int id) {
+            this.id = id;
+            this.frames = new MpscQueue<ByteBuffer>();
+            this.pendingBytes = new AtomicLong();
+            this.gather = new ByteBuffer[GATHER_SIZE];
+        }
+    }
+
+    /**
+     * 受信用の接続の状態
+     */
+    private static final class Inbound {
+        /**
+         * 送信元Siteの識別子（受信していない場合は-1）
+         */
+        int peerId = -1;
+
+        /**
+         * 受信用バッファ
+         */
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    }
+
+    /**
+     * 自Siteの識別子
+     */
+    private final int siteId;
+
+    /**
+     * 全てのSiteのアドレス
+     */
+    private final InetSocketAddress[] addresses;
+
+    /**
+     * 全ての接続を監視するセレクタ
+     */
+    private final Selector selector;
+
+    /**
+     * 受信用の接続を受け付けるチャネル
+     */
+    private final ServerSocketChannel server;
+
+    /**
+     * 宛先毎の送信用の接続（自Siteはnull）
+     */
+    private final Peer[] peers;
+
+    /**
+     * 受信した操作オブジェクト
+     */
+    private final MpscQueue<Operation> inbox;
+
+    /**
+     * 受信を待機しているスレッド
+     */
+    private volatile Thread waiter;
+
+    /**
+     * セレクタの起床を要求済みかどうか
+     */
+    private final AtomicBoolean wakeupPending;
+
+    /**
+     * 全ての送信用・受信用の接続が確立するまで待機するためのラッチ
+     */
+    private final CountDownLatch connections;
+
+    /**
+     * 全ての受信用の接続でEOFを受け取るまで待機するためのラッチ
+     */
+    private final CountDownLatch finished;
+
+    /**
+     * 通信路を閉じる処理を開始したかどうか
+     */
+    private volatile boolean closing;
+
+    /**
+     * 送受信を処理するI/Oスレッド
+     */
+    private final Thread ioThread;
+
+    /**
+     * 送信したフレームの数
+     */
+    private final AtomicLong framesSent;
+
+    /**
+     * 送信したバイト数
+     */
+    private final AtomicLong bytesSent;
+
+    /**
+     * 操作オブジェクトの変換に要した時間(ナノ秒)
+     */
+    private final AtomicLong encodeNanos;
+
+    /**
+     * 変換した操作オブジェクトの数
+     */
+    private final AtomicLong encodedOperations;
+
+    /**
+     * 受信したフレームの数（I/Oスレッドのみが更新する）
+     */
+    private volatile long framesReceived;
+
+    /**
+     * 受信したバイト数（I/Oスレッドのみが更新する）
+     */
+    private volatile long bytesReceived;
+
+    /**
+     * 受信したフレームの復元に要した時間(ナノ秒)（I/Oスレッドのみが更新する）
+     */
+    private volatile long decodeNanos;
+
+    /**
+     * 自Siteのための通信路を作成し，受信用の接続の受け付けと他のSiteへの接続を開始する．
+     * @param siteId 自Siteの識別子
+     * @param addresses 全てのSiteのアドレス（識別子の順）
+     * @throws IOException 受け付け用のポートを開けない場合
+     */
+    public SocketTransport(int siteId, InetSocketAddress[] addresses) throws IOException {
+        if (siteId < 0 || siteId >= addresses.length) {
+            throw new IllegalArgumentException("site id " + siteId + " is out of range [0, " + addresses.length + ")");
+        }
+        int n = addresses.length;
+        this.siteId = siteId;
+        this.addresses = addresses;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        this.server.bind(new InetSocketAddress(addresses[siteId].getPort()));
+        this.server.configureBlocking(false);
+        this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+        this.peers = new Peer[n];
+        this.inbox = new MpscQueue<Operation>();
+        this.wakeupPending = new AtomicBoolean();
+        this.connections = new CountDownLatch(2 * (n - 1));
+        this.finished = new CountDownLatch(n - 1);
+        this.closing = false;
+        this.framesSent = new AtomicLong();
+        this.bytesSent = new AtomicLong();
+        this.encodeNanos = new AtomicLong();
+        this.encodedOperations = new AtomicLong();
+
+        for (int i = 0; i < n; ++i) {
+            if (i == siteId) continue;
+            Peer peer = new Peer(i);
+            ByteBuffer handshake = ByteBuffer.allocate(4);
+            handshake.putInt(0, siteId);
+            peer.frames.offer(handshake);
+            peer.pendingBytes.addAndGet(4);
+            this.peers[i] = peer;
+        }
+
+        this.ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SocketTransport.this.runLoop();
+            }
+        }, "SocketTransport-" + siteId);
+        this.ioThread.setDaemon(true);
+        this.ioThread.start();
+    }
+
+    /**
+     * 全ての送信用・受信用の接続が確立するまで待機する．
+     * @param timeout 待機する最大時間
+     * @param unit timeoutの単位
+     * @throws IllegalStateException タイムアウトした場合
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    public void awaitConnections(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!this.connections.await(timeout, unit)) {
+            throw new IllegalStateException("site " + this.siteId + " could not connect to all sites within " + timeout + " " + unit);
+        }
+    }
+
+    @Override
+    public int getNumberOfSites() {
+        return this.addresses.length;
+    }
+
+    @Override
+    public void send(int src, int dest, Operation op, Runnable whileBlocked) {
+        if (dest == this.siteId) { // 自Siteへの送信はソケットを経由しない
+            this.inbox.offer(op);
+            this.wakeUp();
+            return;
+        }
+        this.send(this.peers[dest], this.encode(op), whileBlocked);
+        this.wakeUpSelector();
+    }
+
+    @Override
+    public void broadcast(int src, Operation op, Runnable whileBlocked) {
+        byte[] frame = this.encode(op);
+        for (Peer peer : this.peers) {
+            if (peer != null && peer.id != src) {
+                this.send(peer, frame, whileBlocked);
+            }
+        }
+        this.wakeUpSelector();
+    }
+
+    /**
+     * 操作オブジェクトを長さを先頭に付けたフレームに変換する．
+     * @param op 操作オブジェクト
+     * @return フレーム
+     */
+    private byte[] encode(Operation op) {
+        long start = System.nanoTime();
+        byte[] payload = OperationCodec.toBytes(op);
+        byte[] frame = new byte[4 + payload.length];
+        ByteBuffer.wrap(frame).putInt(payload.length);
+        System.arraycopy(payload, 0, frame, 4, payload.length);
+        this.encodeNanos.addAndGet(System.nanoTime() - start);
+        this.encodedOperations.incrementAndGet();
+        return frame;
+    }
+
+    /**
+     * フレームを宛先の送信待ちのキューに追加する．未送信のバイト数が上限を超えている場合は待機する．
+     * @param peer 宛先
+     * @param frame フレーム
+     * @param whileBlocked 待機中に実行する処理（null可）
+     */
+    private void send(Peer peer, byte[] frame, Runnable whileBlocked) {
+        while (peer.pendingBytes.get() >= MAX_PENDING_BYTES && !this.closing) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("Interrupted while waiting for site " + peer.id + " to receive operations.");
+            }
+            this.wakeUpSelector();
+            if (whileBlocked != null) {
+                whileBlocked.run();
+            }
+            LockSupport.parkNanos(this, BACKOFF_NANOS);
+        }
+        peer.pendingBytes.addAndGet(frame.length);
+        peer.frames.offer(ByteBuffer.wrap(frame));
+        this.framesSent.incrementAndGet();
+        this.bytesSent.addAndGet(frame.length);
+    }
+
+    @Override
+    public Operation dequeue(int id) {
+        this.checkSiteId(id);
+        return this.inbox.poll();
+    }
+
+    @Override
+    public int drainTo(int id, Collection<? super Operation> buffer, int max) {
+        this.checkSiteId(id);
+        return this.inbox.drainTo(buffer, max);
+    }
+
+    @Override
+    public int drainTo(int id, Collection<? super Operation> buffer, int max, long timeout, TimeUnit unit) {
+        int n = this.drainTo(id, buffer, max);
+        if (n > 0 || timeout <= 0) {
+            return n;
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Thread current = Thread.currentThread();
+        this.waiter = current;
+        try {
+            while (true) {
+                // 待機スレッドを登録した後に再確認することで，通知の取りこぼしを防ぐ
+                if ((n = this.inbox.drainTo(buffer, max)) > 0) {
+                    return n;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || current.isInterrupted()) {
+                    return 0;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            this.waiter = null;
+        }
+    }
+
+    /**
+     * 自Siteの識別子であることを確認する．
+     * @param id Siteの識別子
+     */
+    private void checkSiteId(int id) {
+        if (id != this.siteId) {
+            throw new IllegalArgumentException("SocketTransport of site " + this.siteId + " cannot receive for site " + id);
+        }
+    }
+
+    /**
+     * 受信を待機しているスレッドがあれば起こす．
+     */
+    private void wakeUp() {
+        Thread t = this.waiter;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * I/Oスレッドが送信待ちのフレームを処理するようにセレクタを起こす．
+     */
+    private void wakeUpSelector() {
+        if (this.wakeupPending.compareAndSet(false, true)) {
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * 未送信のフレームを全て送信した後に，他の全てのSiteからEOFを受け取るまで待機し，通信路を閉じる．
+     */
+    @Override
+    public void close() {
+        this.closing = true;
+        this.selector.wakeup();
+        try {
+            this.ioThread.join();
+        } catch (InterruptedException ie) {
+            ie.printStackTrace();
+        }
+    }
+
+    /**
+     * I/Oスレッドの処理．接続の確立，フレームの送受信，終了処理を行う．
+     */
+    private void runLoop() {
+        boolean outputShutdown = false;
+        try {
+            for (Peer peer : this.peers) {
+                if (peer != null) this.connect(peer);
+            }
+
+            while (true) {
+                this.selector.select(this.hasUnconnectedPeer() ? CONNECT_RETRY_MILLIS : 0);
+                this.wakeupPending.set(false);
+
+                Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        this.accept();
+                    } else if (key.isConnectable()) {
+                        this.finishConnect((Peer) key.attachment(), key);
+                    } else if (key.isReadable()) {
+                        this.read((Inbound) key.attachment(), key);
+                    } else if (key.isWritable()) {
+                        this.flush((Peer) key.attachment());
+                    }
+                }
+
+                boolean flushed = true;
+                long now = System.currentTimeMillis();
+                for (Peer peer : this.peers) {
+                    if (peer == null) continue;
+                    if (!peer.connected) {
+                        flushed = false;
+                        if (peer.channel == null && now >= peer.retryAt) this.connect(peer);
+                        continue;
+                    }
+                    flushed &= this.flush(peer);
+                }
+
+                if (this.closing && flushed && !outputShutdown) {
+                    for (Peer peer : this.peers) {
+                        if (peer != null) peer.channel.shutdownOutput(); // EOF
+                    }
+                    outputShutdown = true;
+                }
+                if (outputShutdown && this.finished.getCount() == 0) {
+                    break;
+                }
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        } finally {
+            this.closeChannels();
+        }
+    }
+
+    /**
+     * 接続が確立していない宛先が存在するか確認する．
+     * @return 存在する場合はtrue
+     */
+    private boolean hasUnconnectedPeer() {
+        for (Peer peer : this.peers) {
+            if (peer != null && !peer.connected) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 宛先への接続を開始する．
+     * @param peer 宛先
+     * @throws IOException チャネルを開けない場合
+     */
+    private void connect(Peer peer) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        peer.channel = channel;
+        try {
+            if (channel.connect(this.addresses[peer.id])) {
+                this.connected(peer, channel.register(this.selector, 0, peer));
+            } else {
+                channel.register(this.selector, SelectionKey.OP_CONNECT, peer);
+            }
+        } catch (IOException ioe) { // 宛先がまだ起動していない
+            channel.close();
+            peer.channel = null;
+            peer.retryAt = System.currentTimeMillis() + CONNECT_RETRY_MILLIS;
+        }
+    }
+
+    /**
+     * 宛先への接続を完了する．宛先が起動していない場合は後で再接続する．
+     * @param peer 宛先
+     * @param key 接続のキー
+     */
+    private void finishConnect(Peer peer, SelectionKey key) {
+        try {
+            if (peer.channel.finishConnect()) {
+                this.connected(peer, key);
+            }
+        } catch (IOException ioe) { // 宛先がまだ起動していない
+            key.cancel();
+            try {
+                peer.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            peer.channel = null;
+            peer.retryAt = System.currentTimeMillis() + CONNECT_RETRY_MILLIS;
+        }
+    }
+
+    /**
+     * 宛先への接続が確立した時の処理を行う．
+     * @param peer 宛先
+     * @param key 接続のキー
+     */
+    private void connected(Peer peer, SelectionKey key) {
+        peer.connected = true;
+        key.interestOps(0);
+        this.connections.countDown();
+    }
+
+    /**
+     * 受信用の接続を受け付ける．
+     * @throws IOException 受け付けに失敗した場合
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = this.server.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.register(this.selector, SelectionKey.OP_READ, new Inbound());
+    }
+
+    /**
+     * 宛先の送信待ちのフレームを書き込めるだけ書き込む．書き込みきれない場合は書き込み可能になるのを待つ．
+     * @param peer 宛先
+     * @return 全て書き込んだ場合はtrue
+     * @throws IOException 書き込みに失敗した場合
+     */
+    private boolean flush(Peer peer) throws IOException {
+        SelectionKey key = peer.channel.keyFor(this.selector);
+        while (true) {
+            while (peer.gathered < GATHER_SIZE) {
+                ByteBuffer frame = peer.frames.poll();
+                if (frame == null) break;
+                peer.gather[peer.gathered++] = frame;
+            }
+            if (peer.gathered == 0) {
+                key.interestOps(0);
+                return true;
+            }
+
+            long written = peer.channel.write(peer.gather, 0, peer.gathered);
+            peer.pendingBytes.addAndGet(-written);
+            int done = 0;
+            while (done < peer.gathered && !peer.gather[done].hasRemaining()) done++;
+            System.arraycopy(peer.gather, done, peer.gather, 0, peer.gathered - done);
+            for (int i = peer.gathered - done; i < peer.gathered; ++i) peer.gather[i] = null;
+            peer.gathered -= done;
+            if (peer.gathered > 0) { // ソケットの送信バッファが一杯
+                key.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 受信用の接続からフレームを読み込み，操作オブジェクトに復元して受信した操作に追加する．
+     * @param in 受信用の接続の状態
+     * @param key 接続のキー
+     * @throws IOException 読み込みに失敗した場合
+     */
+    private void read(Inbound in, SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        int n = channel.read(in.buffer);
+        if (n < 0) { // 送信元が送信を終えた
+            key.cancel();
+            channel.close();
+            this.finished.countDown();
+            return;
+        }
+        this.bytesReceived += n;
+
+        ByteBuffer buffer = in.buffer;
+        buffer.flip();
+        int received = 0;
+        long start = System.nanoTime();
+        while (buffer.remaining() >= 4) {
+            if (in.peerId < 0) { // 最初の4バイトは送信元Siteの識別子
+                in.peerId = buffer.getInt();
+                this.connections.countDown();
+                continue;
+            }
+            int length = buffer.getInt(buffer.position());
+            if (buffer.remaining() < 4 + length) {
+                break;
+            }
+            buffer.getInt();
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            this.inbox.offer(OperationCodec.fromBytes(payload));
+            received++;
+        }
+        this.decodeNanos += System.nanoTime() - start;
+        this.framesReceived += received;
+        buffer.compact();
+
+        if (buffer.position() >= 4 && buffer.capacity() < 4 + buffer.getInt(0)) { // フレームがバッファより大きい
+            ByteBuffer larger = ByteBuffer.allocate(4 + buffer.getInt(0));
+            buffer.flip();
+            larger.put(buffer);
+            in.buffer = larger;
+        }
+        if (received > 0) {
+            this.wakeUp();
+        }
+    }
+
+    /**
+     * 全てのチャネルとセレクタを閉じる．
+     */
+    private void closeChannels() {
+        try {
+            for (SelectionKey key : this.selector.keys()) {
+                key.channel().close();
+            }
+            this.selector.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * 送信したフレームの数を返す（broadcastは宛先毎に数える）
+     * @return 送信したフレームの数
+     */
+    public long getNumberOfFramesSent() {
+        return this.framesSent.get();
+    }
+
+    /**
+     * 送信したバイト数を返す（broadcastは宛先毎に数える）
+     * @return 送信したバイト数
+     */
+    public long getNumberOfBytesSent() {
+        return this.bytesSent.get();
+    }
+
+    /**
+     * 受信したフレームの数を返す
+     * @return 受信したフレームの数
+     */
+    public long getNumberOfFramesReceived() {
+        return this.framesReceived;
+    }
+
+    /**
+     * 受信したバイト数を返す
+     * @return 受信したバイト数
+     */
+    public long getNumberOfBytesReceived() {
+        return this.bytesReceived;
+    }
+
+    /**
+     * 操作オブジェクト1つあたりの変換に要した平均時間を返す
+     * @return 平均変換時間(ナノ秒)
+     */
+    public double getAverageEncodeNanos() {
+        long n = this.encodedOperations.get();
+        return n == 0 ? 0.0 : (double) this.encodeNanos.get() / n;
+    }
+
+    /**
+     * フレーム1つあたりの復元に要した平均時間を返す
+     * @return 平均復元時間(ナノ秒)
+     */
+    public double getAverageDecodeNanos() {
+        long n = this.framesReceived;
+        return n == 0 ? 0.0 : (double) this.decodeNanos / n;
+    }
+}
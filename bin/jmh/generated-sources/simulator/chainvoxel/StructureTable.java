@@ -0,0 +1,497 @@
+package chainvoxel;import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * 構造層のためのStructureTableを実装したクラス．<br>
+ * <br>
+ * ChainVoxelのための構造層を実現したクラス．ChainVoxelクラスと組み合わせて使う．<br>
+ * StructureTableへの操作はcreate，join，leaveの3種類をサポートしている．
+ * @author kengo92i
+ */
+public class StructureTable {
+    /**
+     * グループ(gid)に属するグループメンバー(posID)を管理するためのテーブル
+     */
+    TreeMap<String, TreeSet<String>> groupMembersTable; 
+
+    /**
+     * voxel(posID)が所属しているグループ(gid, ts)を管理するテーブル
+     */
+    TreeMap<String, TreeSet<GroupEntry<String, Long>>> groupEntriesTable;
+
+    /**
+     * 状態が変化したjoinの数
+     */
+    private long numberOfJoins;
+
+    /**
+     * 状態が変化したleaveの数
+     */
+    private long numberOfLeaves;
+
+    /**
+     * 古いタイムスタンプや存在しないグループのために状態が変化しなかったjoin/leaveの数
+     */
+    private long numberOfRejected;
+
+    /**
+     * Structure Table のコンストラクタ
+     */
+    public StructureTable() {
+        this.groupMembersTable = new TreeMap<String, TreeSet<String>>(); 
+        this.groupEntriesTable = new TreeMap<String, TreeSet<GroupEntry<String, Long>>>();
+    }
+
+    /**
+     * Structure Table にグループ(gid)を作成する．
+     * 既に作成されたグループのgidの場合は実行されない．
+     * @param gid グループ識別子
+     * @see Operation
+     */
+    public void create(String gid) {
+        if (groupMembersTable.containsKey(gid)) { // 既にグループ(gid)が存在する
+            return;
+        }
+        groupMembersTable.put(gid, new TreeSet<String>());
+    }
+
+    /**
+     * グループ(gid)にvoxel(posID)を参加させる．<br>
+     * JFRが記録している場合は{@link FlightRecorderEvents.Structure}イベントを記録する．
+     * @param ts タイムスタンプ
+     * @param posID voxel識別子
+     * @param gid グループ識別子
+     * @see Operation
+     */
+    public void join(long ts, String posID, String gid) {
+        FlightRecorderEvents.Structure event = null;
+        if (FlightRecorderEvents.isActive()) {
+            event = new FlightRecorderEvents.Structure();
+            event.begin();
+        }
+        boolean applied = this.joinGroup(ts, posID, gid);
+        if (applied) {
+            this.numberOfJoins++;
+        } else {
+            this.numberOfRejected++;
+        }
+        this.commit(event, Operation.JOIN, posID, gid, applied);
+    }
+
+    /**
+     * グループ(gid)にvoxel(posID)を参加させる
+     * @param ts タイムスタンプ
+     * @param posID voxel識別子
+     * @param gid グループ識別子
+     * @return 状態が変化した場合はtrue
+     */
+    private boolean joinGroup(long ts, String posID, String gid) {
+        GroupEntry<String, Long> aGroupEntry = new GroupEntry<String, Long>(gid, ts);
+        if (!this.groupMembersTable.containsKey(gid) || Math.abs(this.getTimestamp(posID, gid)) >= ts) {
+            return false;
+        }
+        
+        // groupEntriesTable に GroupEntry(gid, ts) を追加
+        if (!this.groupEntriesTable.containsKey(posID)) {
+            this.groupEntriesTable.put(posID, new TreeSet<GroupEntry<String, Long>>());
+        }
+        this.groupEntriesTable.get(posID).add(aGroupEntry); 
+
+        // groupMembersTable に posID を追加
+        this.groupMembersTable.get(gid).add(posID);
+
+        // タイムスタンプの値を最新の値に更新する
+        long maxTs = Math.max(ts, this.getTimestamp(posID, gid));
+        this.setTimestamp(maxTs, posID, gid);
+        return true;
+    }
+
+    /**
+     * グループ(gid)からvoxel(posID)を脱退させる．<br>
+     * JFRが記録している場合は{@link FlightRecorderEvents.Structure}イベントを記録する．
+     * @param sid site識別子
+     * @param ts タイムスタンプ
+     * @param posID voxel識別子
+     * @param gid グループ識別子
+     * @see Operation
+     */
+    public void leave(int sid, long ts, String posID, String gid) {
+        FlightRecorderEvents.Structure event = null;
+        if (FlightRecorderEvents.isActive()) {
+            event = new FlightRecorderEvents.Structure();
+            event.begin();
+        }
+        boolean applied = this.leaveGroup(ts, posID, gid);
+        if (applied) {
+            this.numberOfLeaves++;
+        } else {
+            this.numberOfRejected++;
+        }
+        this.commit(event, Operation.LEAVE, posID, gid, applied);
+    }
+
+    /**
+     * グループ(gid)からvoxel(posID)を脱退させる
+     * @param ts タイムスタンプ
+     * @param posID voxel識別子
+     * @param gid グループ識別子
+     * @return 状態が変化した場合はtrue
+     */
+    private boolean leaveGroup(long ts, String posID, String gid) {
+        GroupEntry<String, Long> aGroupEntry = new GroupEntry<String, Long>(gid, ts);
+        TreeSet<GroupEntry<String, Long>> groupEntriesSet = this.getGroupEntriesSet(posID);
+        if (groupEntriesSet == null || !groupEntriesSet.contains(aGroupEntry) || Math.abs(this.getTimestamp(posID, gid)) >= ts) {
+            return false;
+        } 
+
+        // groupMembersTable から posID を削除 (グループからの脱退)
+        this.groupMembersTable.get(gid).remove(posID);
+
+        // タイムスタンプの更新 + tombstone化
+        long minTs = Math.min(-1L * ts, this.getTimestamp(posID, gid));
+        this.setTimestamp(minTs, posID, gid);
+        return true;
+    }
+
+    /**
+     * join/leaveのイベントを記録する．JFRが記録していない場合は何もしない．
+     * @param event 開始したイベント（JFRが記録していない場合はnull）
+     * @param opType 操作のタイプ
+     * @param posID voxel識別子
+     * @param gid グループ識別子
+     * @param applied 状態が変化したかどうか
+     */
+    private void commit(FlightRecorderEvents.Structure event, int opType, String posID, String gid, boolean applied) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            TreeSet<GroupEntry<String, Long>> groupEntries = this.groupEntriesTable.get(posID);
+            event.opType = opType;
+            event.posID = posID;
+            event.gid = gid;
+            event.applied = applied;
+            event.entries = groupEntries != null ? groupEntries.size() : 0;
+            event.commit();
+        }
+    }
+
+    /**
+     * 状態が変化したjoinの数を取得する
+     * @return joinの数
+     */
+    public long getNumberOfJoins() {
+        return this.numberOfJoins;
+    }
+
+    /**
+     * 状態が変化したleaveの数を取得する
+     * @return leaveの数
+     */
+    public long getNumberOfLeaves() {
+        return this.numberOfLeaves;
+    }
+
+    /**
+     * 古いタイムスタンプや存在しないグループのために状態が変化しなかったjoin/leaveの数を取得する
+     * @return join/leaveの数
+     */
+    public long getNumberOfRejected() {
+        return this.numberOfRejected;
+    }
+
+    /**
+     * グループ(gid)のグループメンバーの集合を取得する
+     * @param gid グループ識別子
+     * @return グループメンバー(posIDの集合)
+     */
+    public TreeSet<String> getGroupMembersSet(String gid) {
+        return this.groupMembersTable.get(gid);
+    }
+
+    /**
+     * posIDが所属しているのグループ集合を取得する
+     * @param posID voxel識別子
+     * @return グループの集合
+     */
+    public TreeSet<GroupEntry<String, Long>> getGroupEntriesSet(String posID) {
+        return this.groupEntriesTable.get(posID);
+    }
+
+    /**
+     * posIDに関連したグループ(gid)のタイムスタンプを取得
+     * @param posID voxel識別子
+     * @param gid グループ識別子
+     * @return posIDが関連しているgidのタイムスタンプ，存在しない場合は0を返す．
+     */
+    private long getTimestamp(String posID, String gid) {
+        TreeSet<GroupEntry<String, Long>> groupEntries = groupEntriesTable.get(posID);
+        if (groupEntries == null) { return 0; }
+
+        for (GroupEntry<String, Long> aGroupEntry : groupEntries) {
+            if (!Objects.equals(aGroupEntry.getKey(), gid)) {
+                continue;
+            }
+            return aGroupEntry.getValue();
+        }
+        return 0;
+    }
+
+    /**
+     * posIDに関連したグループ(gid)のタイムスタンプを設定
+     * @param ts 更新するタイムスタンプ
+     * @param posID voxel識別子
+     * @param gid グループ識別子
+     * @return 値の更新に成功した場合はtrueを返す．失敗した場合はfalseを返す．
+     */
+    private boolean setTimestamp(long ts, String posID, String gid) {
+        TreeSet<GroupEntry<String, Long>> groupEntries = groupEntriesTable.get(posID);
+        if (groupEntries == null) { return false; }
+
+        for (GroupEntry<String, Long> aGroupEntry : groupEntries) {
+            if (Objects.equals(aGroupEntry.getKey(), gid)) {
+                aGroupEntry.setValue(ts); 
+                return true;
+            } 
+        }
+        return false;
+    }
+
+    /**
+     * posIDに関連したグループ(gid)が墓石か判定する
+     * @param posID voxel識別子
+     * @param gid グループ識別子
+     * @return 墓石ならtrueを返す．それ以外はfalseを返す．
+     */
+    private boolean isTombstone(String posID, String gid) {
+        return this.getTimestamp(posID, gid) < 0; 
+    }
+
+    /**
+     * 指定したvoxelがグループ化中であるか判定する．
+     * @param posID voxel識別子
+     * @return グループ化中ならばtrue，そうでないならfalseを返す．
+     */
+    public boolean isGrouped(String posID) {
+        TreeSet<GroupEntry<String, Long>> groupEntries = groupEntriesTable.get(posID);
+        if (groupEntries == null) { return false; }
+
+        for (GroupEntry<String, Long> aGroupEntry : groupEntries) {
+            if (aGroupEntry.getValue() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * StructureTableの状態を確認するための文字列を取得する
+     * 各siteのStructureTableの状態が同じであるか確認するために使用する
+     * @return StructureTableの状態を示す文字列
+     */
+    public String getStatusString() {
+        String statusString = "";
+        for (Map.Entry<String, TreeSet<String>> entry : this.groupMembersTable.entrySet()) {
+            statusString += entry.getKey(); 
+            for (String gid : entry.getValue()) {
+                statusString += gid;
+            }
+        }
+
+        for (Map.Entry<String, TreeSet<GroupEntry<String, Long>>> entry : this.groupEntriesTable.entrySet()) {
+            statusString += entry.getKey();
+            for (GroupEntry<String, Long> ge : entry.getValue()) {
+                statusString += ge.toString();
+            }
+        }
+
+        return statusString;
+    }
+
+    /**
+     * StructureTableの状態の正規化したダイジェストを求める．グループとvoxelをgidとposIDの順に辿るため，同じ状態であれば同じ値になる．
+     * @return ダイジェスト
+     * @see ChainVoxel#digest
+     */
+    public long digest() {
+        long h = 0;
+        for (Map.Entry<String, TreeSet<String>> entry : this.groupMembersTable.entrySet()) {
+            h = ChainVoxel.mix(h, entry.getKey());
+            h = ChainVoxel.mix(h, entry.getValue().size());
+            for (String posID : entry.getValue()) {
+                h = ChainVoxel.mix(h, posID);
+            }
+        }
+        h = ChainVoxel.mix(h, -1L); // groupMembersTableとgroupEntriesTableの区切り
+        for (Map.Entry<String, TreeSet<GroupEntry<String, Long>>> entry : this.groupEntriesTable.entrySet()) {
+            h = ChainVoxel.mix(h, entry.getKey());
+            h = ChainVoxel.mix(h, entry.getValue().size());
+            for (GroupEntry<String, Long> ge : entry.getValue()) {
+                h = ChainVoxel.mix(h, ge.getKey());
+                h = ChainVoxel.mix(h, ge.getValue());
+            }
+        }
+        return h;
+    }
+
+    /**
+     * 他のStructureTableと状態が異なるグループとvoxelを求める．<br>
+     * 「group gid: 自身だけのメンバー | 他方だけのメンバー」と「entries posID: 自身だけの(gid, ts) | 他方だけの(gid, ts)」の形式の説明をdiffsに最大max個まで追加する．
+     * @param other 比較するStructureTable
+     * @param diffs 差分の説明を追加するリスト
+     * @param max 追加する説明の最大数
+     * @return 状態が異なるグループとvoxelの総数
+     */
+    public int diff(StructureTable other, List<String> diffs, int max) {
+        int count = 0;
+        TreeSet<String> gids = new TreeSet<String>(this.groupMembersTable.keySet());
+        gids.addAll(other.groupMembersTable.keySet());
+        for (String gid : gids) {
+            List<String> mine = difference(this.groupMembersTable.get(gid), other.groupMembersTable.get(gid));
+            List<String> theirs = difference(other.groupMembersTable.get(gid), this.groupMembersTable.get(gid));
+            if (mine.isEmpty() && theirs.isEmpty() && this.groupMembersTable.containsKey(gid) == other.groupMembersTable.containsKey(gid)) {
+                continue;
+            }
+            if (count++ < max) {
+                diffs.add("group " + gid + ": " + (this.groupMembersTable.containsKey(gid) ? mine : "-") +
+                        " | " + (other.groupMembersTable.containsKey(gid) ? theirs : "-"));
+            }
+        }
+        TreeSet<String> posIDs = new TreeSet<String>(this.groupEntriesTable.keySet());
+        posIDs.addAll(other.groupEntriesTable.keySet());
+        for (String posID : posIDs) {
+            List<String> mine = difference(describeEntries(this.groupEntriesTable.get(posID)), describeEntries(other.groupEntriesTable.get(posID)));
+            List<String> theirs = difference(describeEntries(other.groupEntriesTable.get(posID)), describeEntries(this.groupEntriesTable.get(posID)));
+            if (mine.isEmpty() && theirs.isEmpty()) continue;
+            if (count++ < max) {
+                diffs.add("entries " + posID + ": " + mine + " | " + theirs);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 一方の集合だけに含まれる要素を求める
+     * @param a 集合（nullの場合は空の集合）
+     * @param b 集合（nullの場合は空の集合）
+     * @return aに含まれ，bに含まれない要素のリスト
+     */
+    private static List<String> difference(TreeSet<String> a, TreeSet<String> b) {
+        List<String> result = new ArrayList<String>();
+        if (a == null) return result;
+        for (String value : a) {
+            if (b == null || !b.contains(value)) result.add(value);
+        }
+        return result;
+    }
+
+    /**
+     * (gid, ts)の集合を，tsを含めて比較できる文字列の集合に変換する
+     * @param groupEntries (gid, ts)の集合（nullの場合もある）
+     * @return "(gid, ts)"の集合．groupEntriesがnullの場合はnull
+     */
+    private static TreeSet<String> describeEntries(TreeSet<GroupEntry<String, Long>> groupEntries) {
+        if (groupEntries == null) return null;
+        TreeSet<String> result = new TreeSet<String>();
+        for (GroupEntry<String, Long> ge : groupEntries) {
+            result.add(ge.toString());
+        }
+        return result;
+    }
+
+    /**
+     * groupMembersTableとgroupEntriesTableのメモリ使用量をfootprintに加える
+     * @param footprint メモリ使用量
+     * @see ChainVoxel#footprint
+     */
+    void footprint(MemoryFootprint footprint) {
+        for (Map.Entry<String, TreeSet<String>> e : this.groupMembersTable.entrySet()) {
+            footprint.addGroup(e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, TreeSet<GroupEntry<String, Long>>> e : this.groupEntriesTable.entrySet()) {
+            footprint.addGroupEntries(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Structure Table の状態を出力する
+     */
+    public void show() {
+        System.out.println("groupMembersTable:");
+        for (Map.Entry<String, TreeSet<String>> entry : this.groupMembersTable.entrySet()) {
+            System.out.println("| " + entry.getKey() + " | -> " + entry.getValue());
+        }
+        System.out.println("");
+
+        System.out.println("groupEntriesTable:");
+        for (Map.Entry<String, TreeSet<GroupEntry<String, Long>>> entry : this.groupEntriesTable.entrySet()) {
+            System.out.println("| " + entry.getKey() + " | -> " + entry.getValue());
+        }
+        System.out.println("---\n");
+    }
+
+    /**
+     * Structure Table の状態を出力する
+     * @param dumpMsg ダンプメッセージ
+     */
+    public void show(String dumpMsg) {
+        System.out.println(dumpMsg);
+        this.show();
+    }
+
+    /**
+     * Structure Table のサンプル実行用
+     * @param args コマンドライン引数
+     */
+    public static void main(String[] args) {
+        StructureTable stt = new StructureTable();
+        stt.show("初期状態"); // 初期状態
+
+        List<String> gids =  new ArrayList<String>();
+        List<String> posIDs = Arrays.<String>asList("1:1:1", "1:2:3", "5:1:9", "7:8:0", "9:4:1");
+        for (int i = 0; i < 5; ++i) {
+            gids.add(UUID.randomUUID().toString());
+        }
+
+        stt.create(gids.get(0));
+        stt.create(gids.get(0)); // 既にあるグループを作成
+
+        stt.join(1L, posIDs.get(0), gids.get(0));
+        stt.join(2L, posIDs.get(1), gids.get(0));
+        stt.join(3L, posIDs.get(2), gids.get(0));
+        stt.leave(1, 4L, posIDs.get(1), gids.get(0));
+        stt.show("正常な参加・脱退");
+
+        stt.join(5L, posIDs.get(0), gids.get(1)); // 存在しないグループへの参加
+        stt.leave(1, 5L, posIDs.get(1), gids.get(1)); // 参加していないグループからの脱退
+        stt.show("不正な参加・脱退");
+
+        stt.create(gids.get(1));
+        stt.create(gids.get(2));
+        stt.create(gids.get(3));
+        stt.join(6L, posIDs.get(0), gids.get(1));
+        stt.join(7L, posIDs.get(3), gids.get(3));
+        stt.leave(1, 8L, posIDs.get(3), gids.get(3));
+        stt.show("グループの追加");
+
+        stt.join(8L, posIDs.get(1), gids.get(2));
+        stt.join(9L, posIDs.get(1), gids.get(2));
+        stt.join(7L, posIDs.get(1), gids.get(2));
+        stt.leave(1, 8L, posIDs.get(0), gids.get(0));
+        stt.leave(1, 10L, posIDs.get(0), gids.get(0));
+        stt.leave(1, 11L, posIDs.get(0), gids.get(1));
+        stt.show("複数のjoin・leaveの収束結果");
+
+        for (int i = 0; i < 5; ++i) {
+            System.out.println(posIDs.get(i) + " isGrouped() = " + stt.isGrouped(posIDs.get(i)));
+        }
+
+    }
+}
\ No newline at end of file
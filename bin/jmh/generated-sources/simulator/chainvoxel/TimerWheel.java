@@ -0,0 +1,219 @@
+package chainvoxel;import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 指定した時間が経過した後に処理を実行するハッシュ化タイマーホイールを実装したクラス．<br>
+ * <br>
+ * 時間を一定の刻み(tick)に区切り，刻み毎のバケットを環状に並べる．処理は実行時刻の刻みに対応するバケットに格納され，
+ * 1つのスレッドが刻み毎にバケットの処理を実行する．ホイールを1周以上先の処理は残りの周回数を持つ．
+ * 処理の登録と実行はO(1)であり，登録するスレッドを待機させない．<br>
+ * 処理の登録はどのスレッドからでも行えるが，MPSCキューを介してホイールのスレッドがバケットに移す．
+ * 実行時刻の精度は刻みの大きさであり，同じ刻みの処理は登録順に実行される．
+ * 登録されている処理が無い場合，ホイールのスレッドは次の登録までparkする．
+ * @author kengo92i
+ * @see SimulatedNetwork
+ */
+public class TimerWheel {
+    /**
+     * バケットの数（2のべき乗）
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * 登録された処理
+     */
+    private static final class Timeout {
+        /**
+         * 実行時刻（ホイールの開始時刻からのナノ秒）
+         */
+        final long deadline;
+
+        /**
+         * 実行する処理
+         */
+        final Runnable task;
+
+        /**
+         * 実行するまでに残っているホイールの周回数
+         */
+        long remainingRounds;
+
+        Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    /**
+     * 1刻みの時間(ナノ秒)
+     */
+    private final long tickNanos;
+
+    /**
+     * ホイールの開始時刻(System.nanoTime)
+     */
+    private final long startTime;
+
+    /**
+     * 刻み毎のバケット（ホイールのスレッドのみが使用する）
+     */
+    private final ArrayList<ArrayList<Timeout>> buckets;
+
+    /**
+     * 登録されたがバケットに移されていない処理
+     */
+    private final MpscQueue<Timeout> pending;
+
+    /**
+     * バケットに格納されている処理の数（ホイールのスレッドのみが使用する）
+     */
+    private int numberOfTimeouts;
+
+    /**
+     * 次に処理する刻み（ホイールのスレッドのみが使用する）
+     */
+    private long tick;
+
+    /**
+     * ホイールのスレッドが次の登録を待ってparkしているかどうか
+     */
+    private volatile boolean idle;
+
+    /**
+     * ホイールが動作しているかどうか
+     */
+    private volatile boolean running;
+
+    /**
+     * ホイールのスレッド
+     */
+    private final Thread thread;
+
+    /**
+     * 指定した刻みのタイマーホイールを作成し，ホイールのスレッドを開始する．
+     * @param tickNanos 1刻みの時間(ナノ秒)
+     * @param name ホイールのスレッドの名前
+     */
+    public TimerWheel(long tickNanos, String name) {
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("tick must be positive: " + tickNanos);
+        }
+        this.tickNanos = tickNanos;
+        this.buckets = new ArrayList<ArrayList<Timeout>>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; ++i) {
+            this.buckets.add(new ArrayList<Timeout>());
+        }
+        this.pending = new MpscQueue<Timeout>();
+        this.numberOfTimeouts = 0;
+        this.tick = 0;
+        this.idle = false;
+        this.running = true;
+        this.startTime = System.nanoTime();
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                TimerWheel.this.runLoop();
+            }
+        }, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * 指定した時間が経過した後に処理を実行するように登録する．
+     * @param task 実行する処理
+     * @param delayNanos 実行するまでの時間(ナノ秒)
+     */
+    public void schedule(Runnable task, long delayNanos) {
+        this.scheduleAt(task, System.nanoTime() + Math.max(0L, delayNanos));
+    }
+
+    /**
+     * 指定した時刻に処理を実行するように登録する．
+     * @param task 実行する処理
+     * @param nanoTime 実行する時刻(System.nanoTime)
+     */
+    public void scheduleAt(Runnable task, long nanoTime) {
+        this.pending.offer(new Timeout(nanoTime - this.startTime, task));
+        if (this.idle) {
+            LockSupport.unpark(this.thread);
+        }
+    }
+
+    /**
+     * ホイールを停止する．実行されていない処理は破棄される．
+     */
+    public void stop() {
+        this.running = false;
+        LockSupport.unpark(this.thread);
+        try {
+            this.thread.join();
+        } catch (InterruptedException ie) {
+            ie.printStackTrace();
+        }
+    }
+
+    /**
+     * ホイールのスレッドの処理．刻み毎に登録された処理をバケットに移し，現在の刻みのバケットの処理を実行する．
+     */
+    private void runLoop() {
+        while (this.running) {
+            if (this.numberOfTimeouts == 0 && this.pending.isEmpty()) {
+                this.idle = true;
+                // idleを設定した後に再確認することで，登録の取りこぼしを防ぐ
+                if (this.pending.isEmpty() && this.running) {
+                    LockSupport.park(this);
+                }
+                this.idle = false;
+                this.tick = Math.max(this.tick, (System.nanoTime() - this.startTime) / this.tickNanos);
+                continue;
+            }
+
+            long tickEnd = (this.tick + 1) * this.tickNanos;
+            long remaining;
+            while ((remaining = tickEnd - (System.nanoTime() - this.startTime)) > 0 && this.running) {
+                LockSupport.parkNanos(this, remaining);
+            }
+
+            this.transferPending();
+            this.expire(this.buckets.get((int) (this.tick & (WHEEL_SIZE - 1))));
+            this.tick++;
+        }
+    }
+
+    /**
+     * 登録された処理を実行時刻の刻みに対応するバケットに移す．実行時刻を過ぎている処理は現在の刻みで実行する．
+     */
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = this.pending.poll()) != null) {
+            long ticks = Math.max(timeout.deadline / this.tickNanos, this.tick);
+            timeout.remainingRounds = (ticks - this.tick) / WHEEL_SIZE;
+            this.buckets.get((int) (ticks & (WHEEL_SIZE - 1))).add(timeout);
+            this.numberOfTimeouts++;
+        }
+    }
+
+    /**
+     * バケットの処理のうち，残りの周回数が0の処理を実行する．
+     * @param bucket バケット
+     */
+    private void expire(ArrayList<Timeout> bucket) {
+        int size = 0;
+        for (int i = 0; i < bucket.size(); ++i) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+                bucket.set(size++, timeout);
+                continue;
+            }
+            this.numberOfTimeouts--;
+            try {
+                timeout.task.run();
+            } catch (RuntimeException re) {
+                re.printStackTrace();
+            }
+        }
+        bucket.subList(size, bucket.size()).clear();
+    }
+}
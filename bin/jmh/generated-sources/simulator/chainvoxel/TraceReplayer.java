@@ -0,0 +1,117 @@
+package chainvoxel;import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * トレースファイルに記録された操作を1つのChainVoxelに再生し，スループットを計測するクラス．<br>
+ * usage: java TraceReplayer [trace file] [options...] <br>
+ * <br>
+ * 全てのSiteが生成した操作を記録した順に適用するため，Site間の通信を含まないChainVoxel自体の処理性能を実際の操作列で計測できる．
+ * 再生はChainVoxelを作り直して指定回数繰り返し，回毎の時間とスループットを出力する．
+ * 最初の回はJITコンパイルが完了していないため，比較には2回目以降の値を使用する．
+ * <ul>
+ * <li>--speed=x : 記録した時の間隔のx倍の速さで再生する（0の場合は待機せずに再生する）</li>
+ * <li>--repeat=N : 再生を繰り返す回数</li>
+ * </ul>
+ * Siteを含めて再生する場合は，Simulatorの--replayオプションを使用する．
+ * @author kengo92i
+ * @see OperationTrace
+ * @see Simulator
+ */
+public class TraceReplayer {
+    /**
+     * 再生する操作列
+     */
+    private final OperationTrace trace;
+
+    /**
+     * 再生の速さ（0の場合は待機しない）
+     */
+    private final double speed;
+
+    /**
+     * TraceReplayerのコンストラクタ
+     * @param trace 再生する操作列
+     * @param speed 再生の速さ（1の場合は記録した時と同じ間隔．0の場合は待機しない）
+     */
+    public TraceReplayer(OperationTrace trace, double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("speed must not be negative: " + speed);
+        }
+        this.trace = trace;
+        this.speed = speed;
+    }
+
+    /**
+     * 全ての操作をChainVoxelに適用する
+     * @param chainVoxel 操作を適用するChainVoxel
+     * @return 再生に要した時間(ナノ秒)
+     */
+    public long replay(ChainVoxel chainVoxel) {
+        int size = this.trace.size();
+        long start = System.nanoTime();
+        for (int i = 0; i < size; ++i) {
+            if (this.speed > 0) {
+                long deadline = start + (long) (this.trace.getOffsetNanos(i) / this.speed);
+                long remaining;
+                while ((remaining = deadline - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(remaining);
+                }
+            }
+            chainVoxel.apply(this.trace.getOperation(i));
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * 操作のタイプ毎の数を数える
+     * @param trace 操作列
+     * @return 操作のタイプ毎の数（{@link Operation#INSERT}から{@link Operation#LEAVE}まで）
+     */
+    static int[] countByType(OperationTrace trace) {
+        int[] counts = new int[Operation.LEAVE + 1];
+        for (int i = 0; i < trace.size(); ++i) {
+            counts[trace.getOperation(i).getOpType()]++;
+        }
+        return counts;
+    }
+
+    /**
+     * トレースファイルを読み込み，再生を繰り返す
+     * @param args コマンドライン引数
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("usage: java TraceReplayer [trace file] [--speed=x] [--repeat=N]");
+            System.exit(1);
+        }
+        Map<String, String> options = Simulator.parseOptions(args, 1);
+        double speed = options.containsKey("speed") ? Double.parseDouble(options.get("speed")) : 0.0;
+        int repeat = options.containsKey("repeat") ? Integer.parseInt(options.get("repeat")) : 5;
+
+        try {
+            long start = System.nanoTime();
+            OperationTrace trace = OperationTrace.read(args[0]);
+            long load = System.nanoTime() - start;
+            int[] counts = countByType(trace);
+            System.out.println(String.format("trace: %d operations from %d sites (insert %d, delete %d, create %d, join %d, leave %d), recorded over %.3f s, loaded in %.1f ms",
+                    trace.size(), trace.getNumberOfSites(), counts[Operation.INSERT], counts[Operation.DELETE],
+                    counts[Operation.CREATE], counts[Operation.JOIN], counts[Operation.LEAVE],
+                    trace.getDurationNanos() / 1e9, load / 1e6));
+
+            TraceReplayer replayer = new TraceReplayer(trace, speed);
+            double best = 0.0;
+            for (int i = 0; i < repeat; ++i) {
+                ChainVoxel chainVoxel = new ChainVoxel();
+                long elapsed = replayer.replay(chainVoxel);
+                double throughput = trace.size() / (elapsed / 1e9);
+                best = Math.max(best, throughput);
+                System.out.println(String.format("replay %d: %.3f ms, %.0f ops/s, %d voxels",
+                        i + 1, elapsed / 1e6, throughput, chainVoxel.size()));
+            }
+            System.out.println(String.format("replay: best %.0f ops/s (%s)", best, speed > 0 ? "speed " + speed : "as fast as possible"));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package chainvoxel;import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Siteが生成した操作列をバイナリ形式のトレースファイルに記録するクラス．<br>
+ * <br>
+ * ファイルは「ヘッダ，レコードの並び，終端」からなる．
+ * ヘッダは「マジックナンバー(int)，版(byte)，Site数(int)，XYZ座標軸の限界値(int)，記録を開始した時刻(long, System.currentTimeMillis)」である．
+ * レコードは1つの操作を表し，「Siteの識別子+1，前のレコードからの経過時間(ナノ秒)，操作のタイプ(byte)，sid+1，
+ * 同じSiteの前の操作からのタイムスタンプの差，posID，gid」である．
+ * 操作のタイプ以外の整数は可変長(7ビット毎)で書き込み，タイムスタンプの差は負の値も短くなるようにzigzag符号化する．
+ * posIDとgidは種類毎の辞書を参照する番号(0はnull，1は新しい文字列が続くことを示し，2以降は辞書の番号+2)であり，
+ * 新しい文字列は書き込んだ順に辞書に追加される．終端は0とレコード数(long)である．<br>
+ * 同じ操作を繰り返す編集ではposIDとgidが1から2バイトになるため，1操作あたり10バイト程度で記録できる．<br>
+ * 複数のSiteのスレッドから同時に記録でき，レコードは記録した順に並ぶ．
+ * @author kengo92i
+ * @see OperationTrace
+ * @see TraceReplayer
+ */
+public class TraceWriter {
+    /**
+     * トレースファイルであることを示すマジックナンバー("CVTR")
+     */
+    static final int MAGIC = 0x43565452;
+
+    /**
+     * トレースファイルの版
+     */
+    static final int VERSION = 1;
+
+    /**
+     * 書き込み先
+     */
+    private final DataOutputStream out;
+
+    /**
+     * posIDの辞書（posIDから番号への写像）
+     */
+    private final Map<String, Integer> posIDs;
+
+    /**
+     * gidの辞書（gidから番号への写像）
+     */
+    private final Map<String, Integer> gids;
+
+    /**
+     * Site毎の，前に記録した操作のタイムスタンプ
+     */
+    private final long[] lastTimestamps;
+
+    /**
+     * 前のレコードを記録した時刻(System.nanoTime)．記録していない場合は-1
+     */
+    private long lastNanos;
+
+    /**
+     * 記録したレコードの数
+     */
+    private long numberOfRecords;
+
+    /**
+     * 閉じたかどうか
+     */
+    private boolean closed;
+
+    /**
+     * 指定したファイルに記録するTraceWriterを作成する．既に存在するファイルは上書きする．
+     * @param filename ファイル名
+     * @param numberOfSites Site数
+     * @param limitOfRange XYZ座標軸の限界値
+     * @throws IOException ファイルを作成できない場合
+     */
+    public TraceWriter(String filename, int numberOfSites, int limitOfRange) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16));
+        this.posIDs = new HashMap<String, Integer>();
+        this.gids = new HashMap<String, Integer>();
+        this.lastTimestamps = new long[numberOfSites];
+        this.lastNanos = -1;
+        this.numberOfRecords = 0;
+        this.closed = false;
+
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        this.out.writeInt(numberOfSites);
+        this.out.writeInt(limitOfRange);
+        this.out.writeLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Siteが生成した操作を記録する．<br>
+     * 最初のレコードの時刻を0として，記録した時刻を操作を生成した時刻とする．
+     * @param siteId 操作を生成したSiteの識別子
+     * @param op 操作オブジェクト（プリミティブ層または構造層の操作）
+     */
+    public synchronized void record(int siteId, Operation op) {
+        if (this.closed) {
+            throw new IllegalStateException("TraceWriter is already closed.");
+        }
+        if (op.getOpType() > Operation.LEAVE) {
+            throw new IllegalArgumentException("Only ChainVoxel operations can be recorded: " + op.getOpType());
+        }
+        long now = System.nanoTime();
+        long elapsed = this.lastNanos < 0 ? 0 : now - this.lastNanos;
+        this.lastNanos = now;
+        try {
+            writeVarLong(this.out, siteId + 1);
+            writeVarLong(this.out, elapsed);
+            this.out.writeByte(op.getOpType());
+            writeVarLong(this.out, op.getId() + 1);
+            writeVarLong(this.out, zigzag(op.getTimestamp() - this.lastTimestamps[siteId]));
+            this.writeString(op.getPosID(), this.posIDs);
+            this.writeString(op.getGid(), this.gids);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        this.lastTimestamps[siteId] = op.getTimestamp();
+        this.numberOfRecords++;
+    }
+
+    /**
+     * 記録したレコードの数を取得する
+     * @return レコードの数
+     */
+    public synchronized long getNumberOfRecords() {
+        return this.numberOfRecords;
+    }
+
+    /**
+     * 書き込んだバイト数を取得する
+     * @return バイト数
+     */
+    public synchronized long getNumberOfBytes() {
+        return this.out.size();
+    }
+
+    /**
+     * 終端を書き込んでファイルを閉じる．既に閉じている場合は何もしない．
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public synchronized void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            writeVarLong(this.out, 0);
+            this.out.writeLong(this.numberOfRecords);
+        } finally {
+            this.out.close();
+        }
+    }
+
+    /**
+     * 辞書を参照する番号を書き込む．辞書にない文字列の場合は文字列を書き込み，辞書に追加する．
+     * @param value 文字列
+     * @param dictionary 辞書
+     * @throws IOException 書き込みに失敗した場合
+     */
+    private void writeString(String value, Map<String, Integer> dictionary) throws IOException {
+        if (value == null) {
+            writeVarLong(this.out, 0);
+            return;
+        }
+        Integer index = dictionary.get(value);
+        if (index != null) {
+            writeVarLong(this.out, index + 2);
+            return;
+        }
+        writeVarLong(this.out, 1);
+        this.out.writeUTF(value);
+        dictionary.put(value, dictionary.size());
+    }
+
+    /**
+     * 負でない整数を7ビット毎に下位から書き込む．続きがあるバイトは最上位ビットを1にする．
+     * @param out 書き込み先
+     * @param value 負でない整数
+     * @throws IOException 書き込みに失敗した場合
+     */
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * 絶対値の小さい整数が小さい負でない整数になるように変換する(0, -1, 1, -2, ... → 0, 1, 2, 3, ...)
+     * @param value 整数
+     * @return 変換した整数
+     */
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+}
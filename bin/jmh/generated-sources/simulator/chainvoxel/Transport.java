@@ -0,0 +1,69 @@
+package chainvoxel;import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Site間で操作オブジェクトを共有するための通信路を表すインタフェース．<br>
+ * <br>
+ * Siteは送信・broadcast・受信をこのインタフェースを介して行う．
+ * 同一JVM上のSite間で共有する{@link OperationQueue}と，Site毎に別のプロセスで動作する{@link SocketTransport}がある．<br>
+ * 受信(dequeue，drainTo)は宛先のSiteのスレッドからのみ呼び出す．
+ * @author kengo92i
+ * @see Site
+ */
+public interface Transport {
+    /**
+     * 通信路に参加しているSiteの総数を返す
+     * @return Siteの総数
+     */
+    int getNumberOfSites();
+
+    /**
+     * 指定した宛先に操作オブジェクトを送信する．
+     * @param src 送信元Siteの識別子
+     * @param dest 宛先Siteの識別子
+     * @param op 操作オブジェクト
+     * @param whileBlocked 宛先が受信できるまで送信が待機する間に実行する処理（null可）
+     */
+    void send(int src, int dest, Operation op, Runnable whileBlocked);
+
+    /**
+     * 送信元を除く全てのSiteに操作オブジェクトを送信する．
+     * @param src 送信元Siteの識別子
+     * @param op 操作オブジェクト
+     * @param whileBlocked 宛先が受信できるまで送信が待機する間に実行する処理（null可）
+     */
+    void broadcast(int src, Operation op, Runnable whileBlocked);
+
+    /**
+     * 受信した操作オブジェクトを1つ取り出す．受信した操作が無い場合はnullを返す．
+     * @param id 受信するSiteの識別子
+     * @return 操作オブジェクト
+     */
+    Operation dequeue(int id);
+
+    /**
+     * 受信した操作オブジェクトを最大max個取り出してbufferに追加する．
+     * @param id 受信するSiteの識別子
+     * @param buffer 操作オブジェクトを追加するコレクション
+     * @param max 取り出す操作オブジェクトの最大数
+     * @return 取り出した操作オブジェクトの数
+     */
+    int drainTo(int id, Collection<? super Operation> buffer, int max);
+
+    /**
+     * 受信した操作オブジェクトを最大max個取り出してbufferに追加する．
+     * 受信した操作が無い場合は，操作が届くかタイムアウトするまで待機する．
+     * @param id 受信するSiteの識別子
+     * @param buffer 操作オブジェクトを追加するコレクション
+     * @param max 取り出す操作オブジェクトの最大数
+     * @param timeout 待機する最大時間
+     * @param unit timeoutの単位
+     * @return 取り出した操作オブジェクトの数．タイムアウトした場合は0を返す．
+     */
+    int drainTo(int id, Collection<? super Operation> buffer, int max, long timeout, TimeUnit unit);
+
+    /**
+     * 通信路を閉じて資源を解放する
+     */
+    void close();
+}
@@ -0,0 +1,184 @@
+package chainvoxel;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * ChainVoxelのマイクロベンチマーク．<br>
+ * <br>
+ * insertとdeleteは，長さchainLengthのvoxelチェインを持つ{@link #CELLS}個のセルに1つずつ操作を適用し，1操作あたりの時間を計測する．
+ * 適用するとチェインが伸びるため，呼び出し毎にChainVoxelを作り直す(計測しない)．chainLengthが0の場合はまだ操作されていないセルへの適用となる．<br>
+ * exportColladaは，voxels個のvoxelを持つChainVoxelをCollada形式で出力する時間を計測する．
+ * xml/collada.dae があるディレクトリ(bin)で実行する必要がある．
+ * @author kengo92i
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ChainVoxelBenchmark {
+    /**
+     * 1回の呼び出しで操作を適用するセルの数
+     */
+    static final int CELLS = 256;
+
+    /**
+     * 長さchainLengthのvoxelチェインを持つセルと，それらに適用する操作
+     */
+    @State(Scope.Thread)
+    public static class Chains {
+        /**
+         * 適用する前のvoxelチェインの長さ
+         */
+        @Param({"0", "1", "10", "100", "1000"})
+        int chainLength;
+
+        /**
+         * 各セルにvoxelチェインを作るinsert操作
+         */
+        List<Operation> initial;
+
+        /**
+         * 各セルに適用するinsert操作
+         */
+        Operation[] inserts;
+
+        /**
+         * 各セルに適用するdelete操作
+         */
+        Operation[] deletes;
+
+        /**
+         * 計測するChainVoxel
+         */
+        ChainVoxel cv;
+
+        /**
+         * 操作を作成する
+         */
+        @Setup(Level.Trial)
+        public void setUp() {
+            this.initial = new ArrayList<Operation>(CELLS * this.chainLength);
+            this.inserts = new Operation[CELLS];
+            this.deletes = new Operation[CELLS];
+            for (int c = 0; c < CELLS; ++c) {
+                String posID = c + ":0:0";
+                for (int i = 0; i < this.chainLength; ++i) {
+                    this.initial.add(new Operation(Operation.INSERT, i % 16, posID, null, i + 1));
+                }
+                this.inserts[c] = new Operation(Operation.INSERT, c % 16, posID, null, this.chainLength + 1);
+                this.deletes[c] = new Operation(Operation.DELETE, c % 16, posID, null, this.chainLength + 1);
+            }
+        }
+
+        /**
+         * 呼び出し毎に，長さchainLengthのvoxelチェインを持つChainVoxelを作り直す
+         */
+        @Setup(Level.Invocation)
+        public void reset() {
+            this.cv = new ChainVoxel();
+            this.cv.apply(this.initial);
+        }
+    }
+
+    /**
+     * voxels個のvoxelを持つChainVoxel
+     */
+    @State(Scope.Thread)
+    public static class Voxels {
+        /**
+         * voxelの数
+         */
+        @Param({"100", "1000", "10000"})
+        int voxels;
+
+        /**
+         * 出力するChainVoxel
+         */
+        ChainVoxel cv;
+
+        /**
+         * voxelを配置する
+         */
+        @Setup(Level.Trial)
+        public void setUp() {
+            if (!new File("xml/collada.dae").exists()) {
+                throw new IllegalStateException("xml/collada.dae is not found. Run the benchmark in the bin directory.");
+            }
+            this.cv = new ChainVoxel();
+            List<Operation> ops = new ArrayList<Operation>(this.voxels);
+            for (int i = 0; i < this.voxels; ++i) {
+                String posID = (i % 100) + ":" + (i / 100 % 100) + ":" + (i / 10000);
+                ops.add(new Operation(Operation.INSERT, 0, posID, null, 1L));
+            }
+            this.cv.apply(ops);
+        }
+
+        /**
+         * 出力したファイルを削除する
+         */
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            new File("output/benchmark.dae").delete();
+        }
+    }
+
+    /**
+     * 長さchainLengthのvoxelチェインにinsert操作を適用する
+     * @param chains セルと操作
+     * @param blackhole 結果を消費するBlackhole
+     */
+    @Benchmark
+    @OperationsPerInvocation(CELLS)
+    public void insert(Chains chains, Blackhole blackhole) {
+        ChainVoxel cv = chains.cv;
+        for (Operation op : chains.inserts) {
+            cv.apply(op);
+        }
+        blackhole.consume(cv.size(chains.inserts[0].getPosID()));
+    }
+
+    /**
+     * 長さchainLengthのvoxelチェインにdelete操作を適用する
+     * @param chains セルと操作
+     * @param blackhole 結果を消費するBlackhole
+     */
+    @Benchmark
+    @OperationsPerInvocation(CELLS)
+    public void delete(Chains chains, Blackhole blackhole) {
+        ChainVoxel cv = chains.cv;
+        for (Operation op : chains.deletes) {
+            cv.apply(op);
+        }
+        blackhole.consume(cv.size(chains.deletes[0].getPosID()));
+    }
+
+    /**
+     * ChainVoxelをCollada形式で出力する
+     * @param voxels 出力するChainVoxel
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void exportCollada(Voxels voxels) {
+        voxels.cv.exportCollada("benchmark");
+    }
+}
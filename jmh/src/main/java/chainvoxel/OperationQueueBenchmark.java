@@ -0,0 +1,122 @@
+package chainvoxel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * OperationQueueのマイクロベンチマーク．<br>
+ * <br>
+ * producers個のスレッドが合計{@link #OPERATIONS}個の操作を1つのSiteに送信し，そのSiteが全て受信するまでの1操作あたりの時間を計測する．
+ * 送信するスレッドは呼び出し毎に作成し(計測しない)，呼び出しの開始と同時に送信を始める．
+ * @author kengo92i
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class OperationQueueBenchmark {
+    /**
+     * 1回の呼び出しで送受信する操作の数（producersで割り切れる）
+     */
+    static final int OPERATIONS = 1 << 16;
+
+    /**
+     * 送信を待っているスレッドと，受信するOperationQueue
+     */
+    @State(Scope.Thread)
+    public static class Producers {
+        /**
+         * 送信するスレッドの数
+         */
+        @Param({"1", "2", "4", "8", "16", "32", "64"})
+        int producers;
+
+        /**
+         * 受信するOperationQueue
+         */
+        OperationQueue opq;
+
+        /**
+         * 送信するスレッド
+         */
+        Thread[] threads;
+
+        /**
+         * 送信を開始させるラッチ
+         */
+        CountDownLatch start;
+
+        /**
+         * 受信した操作を格納するバッファ
+         */
+        List<Operation> buffer = new ArrayList<Operation>(256);
+
+        /**
+         * 呼び出し毎に，開始を待つ送信スレッドを作成する
+         */
+        @Setup(Level.Invocation)
+        public void prepare() {
+            final OperationQueue opq = new OperationQueue(1);
+            final CountDownLatch start = new CountDownLatch(1);
+            final int n = OPERATIONS / this.producers;
+            this.threads = new Thread[this.producers];
+            for (int p = 0; p < this.producers; ++p) {
+                final Operation op = new Operation(Operation.INSERT, p, "0:0:0", null, 1L);
+                this.threads[p] = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        for (int i = 0; i < n; ++i) {
+                            opq.enqueue(0, op);
+                        }
+                    }
+                });
+                this.threads[p].start();
+            }
+            this.opq = opq;
+            this.start = start;
+        }
+    }
+
+    /**
+     * producers個のスレッドが送信した操作を1つのSiteが受信する
+     * @param producers 送信するスレッド
+     * @param blackhole 結果を消費するBlackhole
+     * @throws InterruptedException 送信スレッドの終了を待つ間に割り込まれた場合
+     */
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public void enqueueDequeue(Producers producers, Blackhole blackhole) throws InterruptedException {
+        int received = 0;
+        producers.start.countDown();
+        while (received < OPERATIONS) {
+            producers.buffer.clear();
+            received += producers.opq.drainTo(0, producers.buffer, 256, 1, TimeUnit.SECONDS);
+        }
+        for (Thread thread : producers.threads) {
+            thread.join();
+        }
+        blackhole.consume(received);
+    }
+}
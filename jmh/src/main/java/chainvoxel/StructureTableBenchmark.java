@@ -0,0 +1,201 @@
+package chainvoxel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * StructureTableのマイクロベンチマーク．<br>
+ * <br>
+ * joinとleaveは，メンバー数groupSizeの{@link #GROUPS}個のグループにそれぞれ1つずつvoxelを参加・脱退させ，1操作あたりの時間を計測する．
+ * 呼び出し毎に参加・脱退したvoxelを元に戻す(計測しない)．<br>
+ * isGroupedは，groups個のグループから脱退したvoxelがグループに属しているかを判定する時間を計測する．
+ * @author kengo92i
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class StructureTableBenchmark {
+    /**
+     * 1回の呼び出しで操作するグループの数
+     */
+    static final int GROUPS = 64;
+
+    /**
+     * isGroupedで判定するvoxelの数（2の冪）
+     */
+    static final int VOXELS = 64;
+
+    /**
+     * メンバー数groupSizeのグループを持つStructureTable．参加させるvoxelと脱退させるvoxelを持つ
+     */
+    @State(Scope.Thread)
+    public static class Groups {
+        /**
+         * グループのメンバー数
+         */
+        @Param({"1", "10", "100", "1000"})
+        int groupSize;
+
+        /**
+         * 計測するStructureTable
+         */
+        StructureTable stt;
+
+        /**
+         * グループの識別子
+         */
+        String[] gids;
+
+        /**
+         * グループ毎の，参加していないvoxel
+         */
+        String[] outsiders;
+
+        /**
+         * グループ毎の，メンバーのvoxel
+         */
+        String[] members;
+
+        /**
+         * 最後に使用したタイムスタンプ
+         */
+        long ts;
+
+        /**
+         * グループを作成し，メンバーを参加させる
+         */
+        @Setup(Level.Trial)
+        public void setUp() {
+            this.stt = new StructureTable();
+            this.gids = new String[GROUPS];
+            this.outsiders = new String[GROUPS];
+            this.members = new String[GROUPS];
+            this.ts = 1L;
+            for (int g = 0; g < GROUPS; ++g) {
+                this.gids[g] = "g" + g;
+                this.stt.create(this.gids[g]);
+                for (int i = 0; i < this.groupSize; ++i) {
+                    this.stt.join(this.ts, g + ":" + i + ":0", this.gids[g]);
+                }
+                this.outsiders[g] = g + ":" + this.groupSize + ":0";
+                this.members[g] = g + ":0:0";
+            }
+        }
+
+        /**
+         * 呼び出し毎に，参加させたvoxelを脱退させ，脱退させたvoxelを参加させる
+         */
+        @Setup(Level.Invocation)
+        public void reset() {
+            ++this.ts;
+            for (int g = 0; g < GROUPS; ++g) {
+                this.stt.leave(0, this.ts, this.outsiders[g], this.gids[g]);
+                this.stt.join(this.ts, this.members[g], this.gids[g]);
+            }
+        }
+    }
+
+    /**
+     * groups個のグループから脱退したvoxelを持つStructureTable
+     */
+    @State(Scope.Thread)
+    public static class Leavers {
+        /**
+         * グループの数
+         */
+        @Param({"1", "10", "100", "1000"})
+        int groups;
+
+        /**
+         * 計測するStructureTable
+         */
+        StructureTable stt;
+
+        /**
+         * 判定するvoxel
+         */
+        String[] posIDs;
+
+        /**
+         * 次に判定するvoxelの番号
+         */
+        int next;
+
+        /**
+         * 全てのvoxelを全てのグループに参加させてから脱退させる
+         */
+        @Setup(Level.Trial)
+        public void setUp() {
+            this.stt = new StructureTable();
+            this.posIDs = new String[VOXELS];
+            for (int g = 0; g < this.groups; ++g) {
+                this.stt.create("g" + g);
+            }
+            for (int v = 0; v < VOXELS; ++v) {
+                this.posIDs[v] = v + ":0:0";
+                for (int g = 0; g < this.groups; ++g) {
+                    this.stt.join(1L, this.posIDs[v], "g" + g);
+                    this.stt.leave(0, 2L, this.posIDs[v], "g" + g);
+                }
+            }
+        }
+    }
+
+    /**
+     * メンバー数groupSizeのグループにvoxelを参加させる
+     * @param groups グループ
+     * @param blackhole 結果を消費するBlackhole
+     */
+    @Benchmark
+    @OperationsPerInvocation(GROUPS)
+    public void join(Groups groups, Blackhole blackhole) {
+        StructureTable stt = groups.stt;
+        long ts = ++groups.ts;
+        for (int g = 0; g < GROUPS; ++g) {
+            stt.join(ts, groups.outsiders[g], groups.gids[g]);
+        }
+        blackhole.consume(stt.getNumberOfJoins());
+    }
+
+    /**
+     * メンバー数groupSizeのグループからvoxelを脱退させる
+     * @param groups グループ
+     * @param blackhole 結果を消費するBlackhole
+     */
+    @Benchmark
+    @OperationsPerInvocation(GROUPS)
+    public void leave(Groups groups, Blackhole blackhole) {
+        StructureTable stt = groups.stt;
+        long ts = ++groups.ts;
+        for (int g = 0; g < GROUPS; ++g) {
+            stt.leave(0, ts, groups.members[g], groups.gids[g]);
+        }
+        blackhole.consume(stt.getNumberOfLeaves());
+    }
+
+    /**
+     * groups個のグループから脱退したvoxelがグループに属しているかを判定する
+     * @param leavers 脱退したvoxel
+     * @return グループに属している場合はtrue
+     */
+    @Benchmark
+    public boolean isGrouped(Leavers leavers) {
+        return leavers.stt.isGrouped(leavers.posIDs[leavers.next++ & (VOXELS - 1)]);
+    }
+}
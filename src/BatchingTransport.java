@@ -0,0 +1,415 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * broadcastする操作を送信元毎にまとめ，1つのフレームとして送信する通信路を実装したクラス．<br>
+ * <br>
+ * 他の通信路をラップし，broadcastされた操作を送信元のバッチに溜める．バッチは以下のいずれかで送信(flush)される．
+ * <ul>
+ * <li>サイズ: バッチの操作数が上限に達した</li>
+ * <li>リンガー: バッチの最初の操作を溜めてから一定時間が経過した({@link TimerWheel}から送信する)</li>
+ * <li>待機: 送信元が受信を待機する，宛先を指定して送信する，または通信路を閉じる</li>
+ * </ul>
+ * 受信を待機する前と宛先を指定した送信の前に送信するため，送信元毎の送信順序は保たれ，
+ * 操作を溜めたまま応答を待ち続けることはない．
+ * 複数の操作を含むバッチは，操作のリストを持つフレーム(FRAME)に包んで送信する．
+ * 受信したSiteはフレームを開封し，含まれていた操作をまとめて受け取る．<br>
+ * 受信(dequeue，drainTo)は宛先のSiteのスレッドからのみ呼び出す．
+ * @author kengo92i
+ * @see Transport
+ * @see Operation#FRAME
+ */
+public class BatchingTransport implements Transport {
+    /**
+     * サイズによる送信を示す定数
+     */
+    private static final int BY_SIZE = 0;
+
+    /**
+     * リンガーによる送信を示す定数
+     */
+    private static final int BY_LINGER = 1;
+
+    /**
+     * 待機などによる送信を示す定数
+     */
+    private static final int BY_WAIT = 2;
+
+    /**
+     * 送信元毎のバッチ．バッチへの追加と送信はこのオブジェクトで同期する．
+     */
+    private static final class Batch {
+        /**
+         * 溜めている操作
+         */
+        final ArrayList<Operation> ops = new ArrayList<Operation>();
+
+        /**
+         * 溜めている操作を追加した時刻の合計(System.nanoTime)
+         */
+        long sumOfAddedAt;
+
+        /**
+         * 最初の操作を追加した時刻(System.nanoTime)
+         */
+        long firstAddedAt;
+
+        /**
+         * 送信した回数（リンガーの処理が送信済みのバッチを送信しないために使用する）
+         */
+        long generation;
+    }
+
+    /**
+     * 実際に操作を配送する通信路
+     */
+    private final Transport inner;
+
+    /**
+     * Siteの総数
+     */
+    private final int numberOfSites;
+
+    /**
+     * 1つのフレームに含める操作の最大数
+     */
+    private final int maxBatchSize;
+
+    /**
+     * 最初の操作を溜めてから送信するまでの最大時間(ナノ秒)
+     */
+    private final long lingerNanos;
+
+    /**
+     * リンガーによる送信を行うタイマーホイール（リンガーが0の場合はnull）
+     */
+    private final TimerWheel wheel;
+
+    /**
+     * 送信元毎のバッチ
+     */
+    private final Batch[] batches;
+
+    /**
+     * 宛先毎の，開封したが受け取られていない操作
+     */
+    private final List<ArrayDeque<Operation>> ready;
+
+    /**
+     * 宛先毎の，ラップしている通信路から受信した操作を一時的に格納するリスト
+     */
+    private final List<ArrayList<Operation>> incoming;
+
+    /**
+     * 宛先毎の，受信を待機する前のバッチの送信が待機している間に，自身宛ての操作をincomingへ受け取る処理
+     */
+    private final List<Runnable> receivers;
+
+    /**
+     * 送信したフレームの数（操作が1つのバッチを含む）
+     */
+    private final AtomicLong frames;
+
+    /**
+     * フレームで送信した操作の数
+     */
+    private final AtomicLong batchedOperations;
+
+    /**
+     * 送信した理由毎のフレームの数
+     */
+    private final AtomicLong[] flushes;
+
+    /**
+     * 操作をバッチに溜めていた時間の合計(ナノ秒)
+     */
+    private final AtomicLong totalBatchingNanos;
+
+    /**
+     * 操作をバッチに溜めていた時間の最大値(ナノ秒)
+     */
+    private final AtomicLong maxBatchingNanos;
+
+    /**
+     * 指定した通信路をラップして，broadcastする操作をまとめて送信する通信路を作成する．
+     * @param inner 実際に操作を配送する通信路
+     * @param maxBatchSize 1つのフレームに含める操作の最大数
+     * @param lingerMillis 最初の操作を溜めてから送信するまでの最大時間(ミリ秒)．0の場合はサイズと待機によってのみ送信する
+     */
+    @SuppressWarnings("unchecked")
+    public BatchingTransport(Transport inner, int maxBatchSize, double lingerMillis) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("batch size must be positive: " + maxBatchSize);
+        }
+        if (lingerMillis < 0) {
+            throw new IllegalArgumentException("linger must not be negative: " + lingerMillis);
+        }
+        this.inner = inner;
+        this.numberOfSites = inner.getNumberOfSites();
+        this.maxBatchSize = maxBatchSize;
+        this.lingerNanos = (long) (lingerMillis * 1e6);
+        this.wheel = this.lingerNanos > 0 ? new TimerWheel(Math.max(TimeUnit.MICROSECONDS.toNanos(100), this.lingerNanos / 4), "batching-linger") : null;
+        this.batches = new Batch[this.numberOfSites];
+        this.ready = new ArrayList<ArrayDeque<Operation>>(this.numberOfSites);
+        this.incoming = new ArrayList<ArrayList<Operation>>(this.numberOfSites);
+        this.receivers = new ArrayList<Runnable>(this.numberOfSites);
+        for (int i = 0; i < this.numberOfSites; ++i) {
+            final int id = i;
+            this.batches[i] = new Batch();
+            this.ready.add(new ArrayDeque<Operation>());
+            this.incoming.add(new ArrayList<Operation>());
+            this.receivers.add(new Runnable() {
+                @Override
+                public void run() {
+                    BatchingTransport.this.inner.drainTo(id, BatchingTransport.this.incoming.get(id), Integer.MAX_VALUE);
+                }
+            });
+        }
+        this.frames = new AtomicLong();
+        this.batchedOperations = new AtomicLong();
+        this.flushes = new AtomicLong[] {new AtomicLong(), new AtomicLong(), new AtomicLong()};
+        this.totalBatchingNanos = new AtomicLong();
+        this.maxBatchingNanos = new AtomicLong();
+    }
+
+    @Override
+    public int getNumberOfSites() {
+        return this.numberOfSites;
+    }
+
+    /**
+     * 送信元のバッチを送信してから，操作を送信する．
+     * {@inheritDoc}
+     */
+    @Override
+    public void send(int src, int dest, Operation op, Runnable whileBlocked) {
+        if (src != dest) {
+            this.flush(src, BY_WAIT, -1, whileBlocked);
+        }
+        this.inner.send(src, dest, op, whileBlocked);
+    }
+
+    /**
+     * 操作を送信元のバッチに溜める．バッチの操作数が上限に達した場合は送信する．
+     * {@inheritDoc}
+     */
+    @Override
+    public void broadcast(int src, Operation op, Runnable whileBlocked) {
+        final Batch batch = this.batches[src];
+        long now = System.nanoTime();
+        final long generation;
+        synchronized (batch) {
+            batch.ops.add(op);
+            batch.sumOfAddedAt += now;
+            if (batch.ops.size() == 1) {
+                batch.firstAddedAt = now;
+            }
+            if (batch.ops.size() >= this.maxBatchSize) {
+                this.flushLocked(src, batch, BY_SIZE, whileBlocked);
+                return;
+            }
+            if (batch.ops.size() > 1 || this.wheel == null) {
+                return;
+            }
+            generation = batch.generation;
+        }
+        final int source = src;
+        this.wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                BatchingTransport.this.flush(source, BY_LINGER, generation, null);
+            }
+        }, this.lingerNanos);
+    }
+
+    @Override
+    public Operation dequeue(int id) {
+        List<Operation> buffer = new ArrayList<Operation>(1);
+        return this.drainTo(id, buffer, 1) > 0 ? buffer.get(0) : null;
+    }
+
+    @Override
+    public int drainTo(int id, Collection<? super Operation> buffer, int max) {
+        if (this.ready.get(id).size() < max) {
+            this.inner.drainTo(id, this.incoming.get(id), max);
+            this.unpack(id);
+        }
+        return this.takeReady(id, buffer, max);
+    }
+
+    /**
+     * 受信を待機する前に，自身のバッチを送信する．
+     * 宛先が容量を超えて送信が待機する間は，互いに待機し続けないように自身宛ての操作を受け取り続ける．
+     * {@inheritDoc}
+     */
+    @Override
+    public int drainTo(int id, Collection<? super Operation> buffer, int max, long timeout, TimeUnit unit) {
+        this.flush(id, BY_WAIT, -1, this.receivers.get(id));
+        this.unpack(id);
+        if (this.ready.get(id).isEmpty()) {
+            this.inner.drainTo(id, this.incoming.get(id), max, timeout, unit);
+            this.unpack(id);
+        }
+        return this.takeReady(id, buffer, max);
+    }
+
+    /**
+     * 全てのバッチを送信し，タイマーホイールを停止してラップしている通信路を閉じる．
+     */
+    @Override
+    public void close() {
+        for (int src = 0; src < this.numberOfSites; ++src) {
+            this.flush(src, BY_WAIT, -1, null);
+        }
+        if (this.wheel != null) {
+            this.wheel.stop();
+        }
+        this.inner.close();
+    }
+
+    /**
+     * 送信元のバッチを送信する．
+     * @param src 送信元Siteの識別子
+     * @param reason 送信する理由
+     * @param generation リンガーによる場合は，リンガーを登録した時のバッチの送信回数（それ以外は-1）
+     * @param whileBlocked 宛先が受信できるまで送信が待機する間に実行する処理（null可）
+     */
+    private void flush(int src, int reason, long generation, Runnable whileBlocked) {
+        Batch batch = this.batches[src];
+        synchronized (batch) {
+            if (batch.ops.isEmpty() || (generation >= 0 && generation != batch.generation)) {
+                return; // 既に送信された
+            }
+            this.flushLocked(src, batch, reason, whileBlocked);
+        }
+    }
+
+    /**
+     * バッチの同期を取った状態でバッチを送信する．同じ送信元のフレームは溜めた順に送信される．
+     * @param src 送信元Siteの識別子
+     * @param batch バッチ
+     * @param reason 送信する理由
+     * @param whileBlocked 宛先が受信できるまで送信が待機する間に実行する処理（null可）
+     */
+    private void flushLocked(int src, Batch batch, int reason, Runnable whileBlocked) {
+        int n = batch.ops.size();
+        long now = System.nanoTime();
+        this.totalBatchingNanos.addAndGet(now * n - batch.sumOfAddedAt);
+        long oldest = now - batch.firstAddedAt;
+        long max;
+        while ((max = this.maxBatchingNanos.get()) < oldest && !this.maxBatchingNanos.compareAndSet(max, oldest)) {}
+        this.frames.incrementAndGet();
+        this.batchedOperations.addAndGet(n);
+        this.flushes[reason].incrementAndGet();
+
+        Operation frame;
+        if (n == 1) {
+            frame = batch.ops.get(0); // 操作が1つの場合はフレームに包まない
+        } else {
+            Map<String, Object> params = new HashMap<String, Object>();
+            params.put("sid", src);
+            params.put("ops", new ArrayList<Operation>(batch.ops));
+            frame = new Operation(Operation.FRAME, params, batch.ops.get(n - 1).getTimestamp());
+        }
+        batch.ops.clear();
+        batch.sumOfAddedAt = 0;
+        batch.generation++;
+        this.inner.broadcast(src, frame, whileBlocked);
+    }
+
+    /**
+     * ラップしている通信路から受信した操作のうち，フレームを開封して含まれていた操作を受け取れる状態にする．
+     * @param id 受信したSiteの識別子
+     */
+    @SuppressWarnings("unchecked")
+    private void unpack(int id) {
+        for (Operation op : this.incoming.get(id)) {
+            if (op.getOpType() == Operation.FRAME) {
+                this.ready.get(id).addAll((List<Operation>) op.getParam("ops"));
+            } else {
+                this.ready.get(id).addLast(op);
+            }
+        }
+        this.incoming.get(id).clear();
+    }
+
+    /**
+     * 受け取れる操作を最大max個bufferに移す．
+     * @param id 受信するSiteの識別子
+     * @param buffer 操作オブジェクトを追加するコレクション
+     * @param max 取り出す操作オブジェクトの最大数
+     * @return 取り出した操作オブジェクトの数
+     */
+    private int takeReady(int id, Collection<? super Operation> buffer, int max) {
+        int n = 0;
+        Operation op;
+        while (n < max && (op = this.ready.get(id).pollFirst()) != null) {
+            buffer.add(op);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * 送信したフレームの数を返す（操作が1つでフレームに包まなかったものを含む）
+     * @return フレームの数
+     */
+    public long getNumberOfFrames() {
+        return this.frames.get();
+    }
+
+    /**
+     * フレームで送信した操作の数を返す
+     * @return 操作の数
+     */
+    public long getNumberOfBatchedOperations() {
+        return this.batchedOperations.get();
+    }
+
+    /**
+     * 操作数が上限に達して送信したフレームの数を返す
+     * @return フレームの数
+     */
+    public long getNumberOfFlushesBySize() {
+        return this.flushes[BY_SIZE].get();
+    }
+
+    /**
+     * リンガーにより送信したフレームの数を返す
+     * @return フレームの数
+     */
+    public long getNumberOfFlushesByLinger() {
+        return this.flushes[BY_LINGER].get();
+    }
+
+    /**
+     * 受信の待機，宛先を指定した送信，通信路を閉じたことにより送信したフレームの数を返す
+     * @return フレームの数
+     */
+    public long getNumberOfFlushesByWait() {
+        return this.flushes[BY_WAIT].get();
+    }
+
+    /**
+     * 操作をバッチに溜めていた平均時間を返す
+     * @return 平均時間(ナノ秒)
+     */
+    public double getAverageBatchingNanos() {
+        long n = this.batchedOperations.get();
+        return n == 0 ? 0.0 : (double) this.totalBatchingNanos.get() / n;
+    }
+
+    /**
+     * 操作をバッチに溜めていた最大時間を返す
+     * @return 最大時間(ナノ秒)
+     */
+    public long getMaxBatchingNanos() {
+        return this.maxBatchingNanos.get();
+    }
+}
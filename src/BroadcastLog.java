@@ -0,0 +1,309 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 全Siteで共有するbroadcast用のログを実装したクラス．<br>
+ * <br>
+ * broadcastされた操作はログに1度だけ追加され，各Siteは自身のカーソル(読み出し位置)からログを順に読み出す．
+ * 送信元のSiteは自身が追加した操作を読み飛ばす．これにより，broadcastはSite数によらず1回の追加で完了する．<br>
+ * ログは固定長のセグメントを連結したものであり，全てのカーソルが通過したセグメントはどこからも参照されなくなり回収される．<br>
+ * 操作の追加はどのスレッドからでも行えるが，読み出しは各カーソルに対応するSiteのスレッドからのみ行う．
+ * @author kengo92i
+ * @see OperationQueue
+ */
+public class BroadcastLog {
+    /**
+     * 1セグメントあたりの操作数
+     */
+    private static final int SEGMENT_SIZE = 1024;
+
+    /**
+     * パディングとして確保する要素数（キャッシュラインの2倍を超える大きさ）
+     */
+    private static final int PAD = 32;
+
+    /**
+     * Site毎の値を格納する際の間隔（false sharingを避けるため）
+     */
+    private static final int STRIDE = 16;
+
+    /**
+     * 操作を格納するセグメント
+     */
+    private static final class Segment {
+        /**
+         * セグメントの先頭要素の通し番号
+         */
+        final long base;
+
+        /**
+         * 操作を格納する配列
+         */
+        final AtomicReferenceArray<Operation> slots;
+
+        /**
+         * 操作を追加したSiteの識別子
+         */
+        final int[] senders;
+
+        /**
+         * 追加するSiteが確保した位置の数（インデックスPADを使用する）
+         */
+        final AtomicIntegerArray claimed;
+
+        /**
+         * 次のセグメント
+         */
+        final AtomicReference<Segment> next;
+
+        Segment(long base) {
+            this.base = base;
+            this.slots = new AtomicReferenceArray<Operation>(SEGMENT_SIZE);
+            this.senders = new int[SEGMENT_SIZE];
+            this.claimed = new AtomicIntegerArray(2 * PAD + 1);
+            this.next = new AtomicReference<Segment>();
+        }
+    }
+
+    /**
+     * Siteの総数
+     */
+    private final int numberOfSites;
+
+    /**
+     * 操作を追加するセグメント（インデックスPADを使用する）
+     */
+    private final AtomicReferenceArray<Segment> tail;
+
+    /**
+     * Site毎のカーソルが指しているセグメント（インデックスid*STRIDEを使用する）
+     */
+    private final Segment[] cursorSegments;
+
+    /**
+     * Site毎のカーソルの位置（インデックスid*STRIDEを使用する）
+     */
+    private final AtomicLongArray cursors;
+
+    /**
+     * Site毎の，自身が追加した操作の数から自身が読み飛ばした操作の数を引いた値（インデックスid*STRIDEを使用する）
+     */
+    private final AtomicLongArray ownPending;
+
+    /**
+     * 最後に計算した全カーソルの最小値（インデックスPADを使用する）
+     */
+    private final AtomicLongArray minimumCursor;
+
+    /**
+     * 指定されたSite数のためのBroadcastLogを作成する．
+     * @param numberOfSites Siteの総数
+     */
+    public BroadcastLog(int numberOfSites) {
+        Segment first = new Segment(0L);
+        this.numberOfSites = numberOfSites;
+        this.tail = new AtomicReferenceArray<Segment>(2 * PAD + 1);
+        this.tail.set(PAD, first);
+        this.cursorSegments = new Segment[(numberOfSites + 1) * STRIDE];
+        this.cursors = new AtomicLongArray((numberOfSites + 1) * STRIDE);
+        this.ownPending = new AtomicLongArray((numberOfSites + 1) * STRIDE);
+        this.minimumCursor = new AtomicLongArray(2 * PAD + 1);
+        for (int i = 0; i < numberOfSites; ++i) {
+            this.cursorSegments[i * STRIDE] = first;
+        }
+    }
+
+    /**
+     * ログに操作を追加する．
+     * @param sender 操作を追加するSiteの識別子
+     * @param op 操作オブジェクト
+     */
+    public void publish(int sender, Operation op) {
+        if (op == null) {
+            throw new NullPointerException();
+        }
+        this.ownPending.getAndIncrement(sender * STRIDE);
+        Segment s = this.tail.get(PAD);
+        while (true) {
+            int i = s.claimed.getAndIncrement(PAD);
+            if (i < SEGMENT_SIZE) {
+                s.senders[i] = sender;
+                s.slots.lazySet(i, op);
+                return;
+            }
+            Segment n = s.next.get();
+            if (n == null) {
+                Segment created = new Segment(s.base + SEGMENT_SIZE);
+                n = s.next.compareAndSet(null, created) ? created : s.next.get();
+            }
+            this.tail.compareAndSet(PAD, s, n);
+            s = this.tail.get(PAD);
+        }
+    }
+
+    /**
+     * カーソルの位置から最大max個の操作を読み出してbufferに追加する．自身が追加した操作は読み飛ばす．
+     * @param id 読み出すSiteの識別子
+     * @param buffer 操作を追加するコレクション
+     * @param max 読み出す操作の最大数
+     * @return 読み出した操作数
+     */
+    public int drainTo(int id, Collection<? super Operation> buffer, int max) {
+        int index = id * STRIDE;
+        Segment s = this.cursorSegments[index];
+        long start = this.cursors.get(index);
+        long pos = start;
+        int n = 0, skipped = 0;
+        while (n < max) {
+            int i = (int) (pos - s.base);
+            if (i == SEGMENT_SIZE) {
+                Segment next = s.next.get();
+                if (next == null) {
+                    break;
+                }
+                s = next;
+                i = 0;
+            }
+
+            Operation op = s.slots.get(i);
+            if (op == null) {
+                if (s.claimed.get(PAD) <= i) {
+                    break;
+                }
+                // 位置を確保したSiteが書き込むまで待つ
+                for (int spins = 0; (op = s.slots.get(i)) == null; ++spins) {
+                    MpscQueue.spin(spins);
+                }
+            }
+            pos++;
+            if (s.senders[i] == id) {
+                skipped++;
+                continue;
+            }
+            buffer.add(op);
+            n++;
+        }
+        this.cursorSegments[index] = s;
+        if (pos != start) {
+            this.cursors.lazySet(index, pos);
+        }
+        if (skipped > 0) {
+            this.ownPending.addAndGet(index, -skipped);
+        }
+        return n;
+    }
+
+    /**
+     * カーソルの位置から操作を1つ読み出す．自身が追加した操作は読み飛ばす．
+     * @param id 読み出すSiteの識別子
+     * @return 操作．読み出せる操作がない場合はnull
+     */
+    public Operation poll(int id) {
+        int index = id * STRIDE;
+        Segment s = this.cursorSegments[index];
+        long start = this.cursors.get(index);
+        long pos = start;
+        int skipped = 0;
+        Operation found = null;
+        while (found == null) {
+            int i = (int) (pos - s.base);
+            if (i == SEGMENT_SIZE) {
+                Segment next = s.next.get();
+                if (next == null) {
+                    break;
+                }
+                s = next;
+                i = 0;
+            }
+
+            Operation op = s.slots.get(i);
+            if (op == null) {
+                if (s.claimed.get(PAD) <= i) {
+                    break;
+                }
+                // 位置を確保したSiteが書き込むまで待つ
+                for (int spins = 0; (op = s.slots.get(i)) == null; ++spins) {
+                    MpscQueue.spin(spins);
+                }
+            }
+            pos++;
+            if (s.senders[i] == id) {
+                skipped++;
+                continue;
+            }
+            found = op;
+        }
+        this.cursorSegments[index] = s;
+        if (pos != start) {
+            this.cursors.lazySet(index, pos);
+        }
+        if (skipped > 0) {
+            this.ownPending.addAndGet(index, -skipped);
+        }
+        return found;
+    }
+
+    /**
+     * カーソルをログの末尾まで進める．
+     * @param id Siteの識別子
+     */
+    public void clear(int id) {
+        ArrayList<Operation> discard = new ArrayList<Operation>(SEGMENT_SIZE);
+        while (this.drainTo(id, discard, SEGMENT_SIZE) > 0) {
+            discard.clear();
+        }
+    }
+
+    /**
+     * ログに追加された操作の総数を返す．並行して追加が行われている場合は概算値になる．
+     * @return 追加された操作の総数
+     */
+    public long getNumberOfPublishedOperations() {
+        Segment t = this.tail.get(PAD);
+        return t.base + Math.min(t.claimed.get(PAD), SEGMENT_SIZE);
+    }
+
+    /**
+     * 最後に計算した全カーソルの最小値を返す．カーソルは後退しないため，実際の最小値以下の値である．
+     * @return 全カーソルの最小値
+     */
+    public long getCachedMinimumCursor() {
+        return this.minimumCursor.get(PAD);
+    }
+
+    /**
+     * 全カーソルの最小値を計算し直す．
+     * @return 全カーソルの最小値
+     */
+    public long refreshMinimumCursor() {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < this.numberOfSites; ++i) {
+            min = Math.min(min, this.cursors.get(i * STRIDE));
+        }
+        this.minimumCursor.lazySet(PAD, min);
+        return min;
+    }
+
+    /**
+     * 指定されたSiteがまだ読み出していない操作数を返す．並行して追加・読み出しが行われている場合は概算値になる．
+     * @param id Siteの識別子
+     * @return 読み出していない操作数
+     */
+    public int size(int id) {
+        long published = this.getNumberOfPublishedOperations();
+        long size = published - this.cursors.get(id * STRIDE) - this.ownPending.get(id * STRIDE);
+        return (int) Math.max(0L, Math.min(size, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Siteの総数を返す．
+     * @return Siteの総数
+     */
+    public int getNumberOfSites() {
+        return this.numberOfSites;
+    }
+}
@@ -2,9 +2,12 @@
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.TreeSet;
 
 import java.io.File;
 import java.io.IOException;
@@ -53,6 +56,41 @@ public class ChainVoxel extends CRDT<TreeMap<String, ArrayList<Voxel>>, Operatio
      */
     private StructureTable stt;
 
+    /**
+     * 操作をまとめて実行している間に，ソートを保留しているvoxelチェインの集合
+     */
+    private Set<ArrayList<Voxel>> unsortedVoxelLists;
+
+    /**
+     * 操作をまとめて実行している最中であるか
+     */
+    private boolean batching;
+
+    /**
+     * 操作のタイプ毎の，適用した操作数
+     */
+    private long[] numberOfAppliedOperations;
+
+    /**
+     * グループ化中のvoxelに対する操作であるために無視したinsert/deleteの数
+     */
+    private long numberOfIgnoredOperations;
+
+    /**
+     * メモリ使用量の標本を取得する操作数の間隔（0の場合は取得しない）
+     */
+    private int footprintInterval;
+
+    /**
+     * 次にメモリ使用量の標本を取得するまでの操作数
+     */
+    private int operationsUntilFootprint;
+
+    /**
+     * 取得したメモリ使用量の標本（取得しない場合はnull）
+     */
+    private List<MemoryFootprint> footprints;
+
     /**
      * ChainVoxelのコンストラクタ
      */
@@ -60,23 +98,62 @@ public class ChainVoxel extends CRDT<TreeMap<String, ArrayList<Voxel>>, Operatio
         this.atoms = new TreeMap<String, ArrayList<Voxel>>();
         this.negativeVoxels = new TreeMap<String, Voxel>();
         this.stt = new StructureTable();
+        this.unsortedVoxelLists = Collections.newSetFromMap(new IdentityHashMap<ArrayList<Voxel>, Boolean>());
+        this.batching = false;
+        this.numberOfAppliedOperations = new long[Operation.LEAVE + 1];
+        this.numberOfIgnoredOperations = 0;
+        this.footprintInterval = 0;
+        this.footprints = null;
+    }
+
+    /**
+     * 複数の操作オブジェクトをまとめて実行するメソッド．<br>
+     * 実行中に挿入されたvoxelチェインのソートは，全ての操作の実行後にチェイン毎に1度だけ行う．
+     * @param ops 操作オブジェクトのリスト
+     * @see ChainVoxel#apply(Operation)
+     */
+    public void apply(List<Operation> ops) {
+        this.batching = true;
+        try {
+            for (Operation op : ops) {
+                this.apply(op);
+            }
+        } finally {
+            this.batching = false;
+            for (ArrayList<Voxel> voxelList : this.unsortedVoxelLists) {
+                Collections.sort(voxelList);
+            }
+            this.unsortedVoxelLists.clear();
+        }
     }
 
     /**
      * 操作オブジェクトに対応する操作を実行するメソッド．<br>
-     * ChainVoxelに対する操作はapplyメソッドを用いて実行することを推奨しています．
+     * ChainVoxelに対する操作はapplyメソッドを用いて実行することを推奨しています．<br>
+     * 操作のタイプ毎の適用数を数え，JFRが記録している場合は{@link FlightRecorderEvents.Apply}イベントを記録する．
      * @param op 操作オブジェクト
      * @see Operation
      */
     public void apply(Operation op) {
+        FlightRecorderEvents.Apply event = null;
+        if (FlightRecorderEvents.isActive()) {
+            event = new FlightRecorderEvents.Apply();
+            event.begin();
+        }
         String posID = op.getPosID();
         switch (op.getOpType()) {
             case Operation.INSERT:
-                if (this.stt.isGrouped(posID)) break;
+                if (this.stt.isGrouped(posID)) {
+                    this.numberOfIgnoredOperations++;
+                    break;
+                }
                 this.insert(op);
                 break;
             case Operation.DELETE:
-                if (this.stt.isGrouped(posID)) break;
+                if (this.stt.isGrouped(posID)) {
+                    this.numberOfIgnoredOperations++;
+                    break;
+                }
                 this.delete(op);
                 break;
             case Operation.CREATE:
@@ -90,10 +167,107 @@ public class ChainVoxel extends CRDT<TreeMap<String, ArrayList<Voxel>>, Operatio
                 break;
             default:
                 assert false;
+                return;
+        }
+        this.numberOfAppliedOperations[op.getOpType()]++;
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                ArrayList<Voxel> voxelList = posID != null ? this.atoms.get(posID) : null;
+                event.opType = op.getOpType();
+                event.posID = posID;
+                event.chainLength = voxelList != null ? voxelList.size() : 0;
+                event.batched = this.batching;
+                event.commit();
+            }
+        }
+        if (this.footprints != null && --this.operationsUntilFootprint == 0) {
+            this.footprints.add(this.footprint());
+            this.operationsUntilFootprint = this.footprintInterval;
         }
         return;
     }
 
+    /**
+     * 適用した操作数を取得する
+     * @param opType 操作のタイプ（{@link Operation#INSERT}から{@link Operation#LEAVE}まで）
+     * @return 適用した操作数（グループ化中のために無視した操作を含む）
+     */
+    public long getNumberOfAppliedOperations(int opType) {
+        return this.numberOfAppliedOperations[opType];
+    }
+
+    /**
+     * グループ化中のvoxelに対する操作であるために無視したinsert/deleteの数を取得する
+     * @return 無視した操作数
+     */
+    public long getNumberOfIgnoredOperations() {
+        return this.numberOfIgnoredOperations;
+    }
+
+    /**
+     * 適用した全ての種類の操作数を取得する
+     * @return 適用した操作数
+     */
+    public long getNumberOfAppliedOperations() {
+        long total = 0;
+        for (long n : this.numberOfAppliedOperations) {
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * 操作をinterval個適用する毎に，メモリ使用量の標本を取得するように設定する．<br>
+     * 標本は操作を適用したスレッドで取得するため，ChainVoxelを他のスレッドと共有する必要はない．
+     * @param interval 標本を取得する操作数の間隔（0の場合は取得しない）
+     * @see #getFootprints
+     */
+    public void setFootprintInterval(int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("interval must not be negative: " + interval);
+        }
+        this.footprintInterval = interval;
+        this.operationsUntilFootprint = interval;
+        this.footprints = interval > 0 ? new ArrayList<MemoryFootprint>() : null;
+    }
+
+    /**
+     * 取得したメモリ使用量の標本を取得する
+     * @return 標本のリスト（取得した順，取得しない場合は空のリスト）
+     * @see #setFootprintInterval
+     */
+    public List<MemoryFootprint> getFootprints() {
+        return this.footprints != null ? this.footprints : Collections.<MemoryFootprint>emptyList();
+    }
+
+    /**
+     * 現在のメモリ使用量とvoxelチェインの形を求める．<br>
+     * 空でないvoxelチェイン，空のvoxelチェイン，負のvoxel，StructureTableの2つの表を辿るため，セル数とグループ数に比例した時間がかかる．
+     * @return メモリ使用量
+     * @see MemoryFootprint
+     */
+    public MemoryFootprint footprint() {
+        MemoryFootprint footprint = new MemoryFootprint(this.getNumberOfAppliedOperations());
+        footprint.addTables();
+        for (Map.Entry<String, ArrayList<Voxel>> e : this.atoms.entrySet()) {
+            footprint.addChain(e.getKey(), e.getValue().size());
+        }
+        for (String posID : this.negativeVoxels.keySet()) {
+            footprint.addNegativeVoxel(posID);
+        }
+        this.stt.footprint(footprint);
+        return footprint;
+    }
+
+    /**
+     * 構造管理のためのStructureTableを取得する
+     * @return StructureTable
+     */
+    public StructureTable getStructureTable() {
+        return this.stt;
+    }
+
     /**
      * ChainVoxel内にvoxelを挿入するメソッド
      * @param op 操作オブジェクト
@@ -116,7 +290,11 @@ public class ChainVoxel extends CRDT<TreeMap<String, ArrayList<Voxel>>, Operatio
 
         // step2: insertVoxelを挿入する
         voxelList.add(insertVoxel);
-        Collections.sort(voxelList);
+        if (this.batching) {
+            this.unsortedVoxelLists.add(voxelList); // まとめて実行する場合は最後にソートする
+        } else {
+            Collections.sort(voxelList);
+        }
         return;
     }
 
@@ -146,7 +324,9 @@ public class ChainVoxel extends CRDT<TreeMap<String, ArrayList<Voxel>>, Operatio
             }
         }
 
-        Collections.sort(voxelList);
+        if (!this.batching) {
+            Collections.sort(voxelList);
+        }
         return;
     }
 
@@ -156,7 +336,7 @@ public class ChainVoxel extends CRDT<TreeMap<String, ArrayList<Voxel>>, Operatio
      * @see Operation
      */
     public void create(Operation op) {
-        String gid = (String) op.getParam("gid"); 
+        String gid = op.getGid(); 
         this.stt.create(gid);
     }
 
@@ -167,8 +347,8 @@ public class ChainVoxel extends CRDT<TreeMap<String, ArrayList<Voxel>>, Operatio
      */
     public void join(Operation op) {
         long ts = op.getTimestamp(); 
-        String posID = (String) op.getParam("posID"); 
-        String gid = (String) op.getParam("gid"); 
+        String posID = op.getPosID(); 
+        String gid = op.getGid(); 
 
         this.stt.join(ts, posID, gid);
     }
@@ -179,10 +359,10 @@ public class ChainVoxel extends CRDT<TreeMap<String, ArrayList<Voxel>>, Operatio
      * @see Operation
      */
     public void leave(Operation op) {
-        int sid = (int) op.getParam("sid"); 
+        int sid = op.getId(); 
         long ts = op.getTimestamp(); 
-        String posID = (String) op.getParam("posID"); 
-        String gid = (String) op.getParam("gid"); 
+        String posID = op.getPosID(); 
+        String gid = op.getGid(); 
 
         this.stt.leave(sid, ts, posID, gid);
         this.insert(op);
@@ -238,6 +418,104 @@ public class ChainVoxel extends CRDT<TreeMap<String, ArrayList<Voxel>>, Operatio
         return this.atoms.get(posID).size();
     }
 
+    /**
+     * ChainVoxelの状態の正規化したダイジェストを求める．<br>
+     * 空でないvoxelチェイン，負のvoxel，StructureTableをposIDとgidの順に辿って64ビットの値にまとめるため，
+     * 操作を適用した順序によらず，同じ状態のChainVoxelは同じ値になる．異なる状態が同じ値になる確率は無視できるほど小さい．
+     * @return ダイジェスト
+     * @see #diff
+     */
+    public long digest() {
+        long h = 0;
+        for (Map.Entry<String, ArrayList<Voxel>> e : this.atoms.entrySet()) {
+            ArrayList<Voxel> voxelList = e.getValue();
+            if (voxelList.size() == 0) continue;
+            h = mix(h, e.getKey());
+            h = mix(h, voxelList.size());
+            for (Voxel voxel : voxelList) {
+                h = mix(h, voxel.getId());
+                h = mix(h, voxel.getTimestamp());
+            }
+        }
+        h = mix(h, -1L); // voxelチェインと負のvoxelの区切り
+        for (Map.Entry<String, Voxel> e : this.negativeVoxels.entrySet()) {
+            h = mix(h, e.getKey());
+            h = mix(h, e.getValue().getTimestamp());
+        }
+        return mix(h, this.stt.digest());
+    }
+
+    /**
+     * 他のChainVoxelと状態が異なるセル(posID)とグループを求める．<br>
+     * 異なるセル毎に「posID: 自身のvoxelチェイン | 他方のvoxelチェイン」の形式の説明をdiffsに最大max個まで追加する．
+     * StructureTableの差分はセルの後に追加する．
+     * @param other 比較するChainVoxel
+     * @param diffs 差分の説明を追加するリスト
+     * @param max 追加する説明の最大数
+     * @return 状態が異なるセルとグループの総数
+     * @see StructureTable#diff
+     */
+    public int diff(ChainVoxel other, List<String> diffs, int max) {
+        TreeSet<String> posIDs = new TreeSet<String>(this.atoms.keySet());
+        posIDs.addAll(other.atoms.keySet());
+        posIDs.addAll(this.negativeVoxels.keySet());
+        posIDs.addAll(other.negativeVoxels.keySet());
+        int count = 0;
+        for (String posID : posIDs) {
+            String mine = this.describeCell(posID);
+            String theirs = other.describeCell(posID);
+            if (mine.equals(theirs)) continue;
+            if (count++ < max) {
+                diffs.add(posID + ": " + mine + " | " + theirs);
+            }
+        }
+        return count + this.stt.diff(other.stt, diffs, Math.max(0, max - count));
+    }
+
+    /**
+     * セルの状態を表す文字列を作成する
+     * @param posID voxelの識別子
+     * @return voxelチェインの(id,timestamp)の並びと負のvoxelのタイムスタンプ．どちらもない場合は"-"
+     */
+    private String describeCell(String posID) {
+        StringBuilder sb = new StringBuilder();
+        ArrayList<Voxel> voxelList = this.atoms.get(posID);
+        if (voxelList != null) {
+            for (Voxel voxel : voxelList) {
+                if (sb.length() > 0) sb.append(" -> ");
+                sb.append('(').append(voxel.getId()).append(',').append(voxel.getTimestamp()).append(')');
+            }
+        }
+        Voxel negativeVoxel = this.negativeVoxels.get(posID);
+        if (negativeVoxel != null) {
+            if (sb.length() > 0) sb.append(' ');
+            sb.append("neg=").append(negativeVoxel.getTimestamp());
+        }
+        return sb.length() > 0 ? sb.toString() : "-";
+    }
+
+    /**
+     * ダイジェストに値を加える
+     * @param h これまでのダイジェスト
+     * @param value 加える値
+     * @return 新しいダイジェスト
+     */
+    static long mix(long h, long value) {
+        long v = value * 0x9E3779B97F4A7C15L;
+        v ^= v >>> 32;
+        return (h ^ v) * 0xBF58476D1CE4E5B9L + 0x94D049BB133111EBL;
+    }
+
+    /**
+     * ダイジェストに文字列を加える
+     * @param h これまでのダイジェスト
+     * @param value 加える文字列
+     * @return 新しいダイジェスト
+     */
+    static long mix(long h, String value) {
+        return mix(mix(h, value.length()), value.hashCode());
+    }
+
     /**
      * ChainVoxelをCollada形式でファイル出力するメソッド
      * @param filename 出力するファイル名
@@ -0,0 +1,256 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+/**
+ * シミュレーションの実行後に，全てのSiteのChainVoxelが同じ状態に収束したかを検証するクラス．<br>
+ * <br>
+ * Site毎に残っている操作の適用とダイジェスト({@link ChainVoxel#digest})の計算をスレッドプールで並行して行い，
+ * ダイジェストが最も多くのSiteで一致した状態を基準とする．基準と異なるSiteは，基準のSiteとの間で状態が異なるセルとグループを求める．
+ * ChainVoxelの状態を表示したりファイルに出力したりしないため，大きなモデルを持つ数千のSiteでも数秒で検証できる．
+ * @author kengo92i
+ * @see Simulator
+ */
+public class ConvergenceVerifier {
+    /**
+     * 並行して検証するスレッドの数
+     */
+    private final int parallelism;
+
+    /**
+     * Site毎に出力する差分の最大数
+     */
+    private final int maxDiffs;
+
+    /**
+     * Site毎のChainVoxel
+     */
+    private ChainVoxel[] states;
+
+    /**
+     * Site毎のダイジェスト
+     */
+    private long[] digests;
+
+    /**
+     * 基準とするSiteの識別子
+     */
+    private int reference;
+
+    /**
+     * 異なるダイジェストの数
+     */
+    private int numberOfStates;
+
+    /**
+     * 基準と異なるSiteの識別子
+     */
+    private List<Integer> divergentSites;
+
+    /**
+     * 基準と異なるSite毎の，差分の説明
+     */
+    private Map<Integer, List<String>> diffs;
+
+    /**
+     * 基準と異なるSite毎の，状態が異なるセルとグループの総数
+     */
+    private Map<Integer, Integer> numberOfDiffs;
+
+    /**
+     * 検証に要した時間(ナノ秒)
+     */
+    private long elapsedNanos;
+
+    /**
+     * ConvergenceVerifierのコンストラクタ
+     * @param parallelism 並行して検証するスレッドの数
+     * @param maxDiffs Site毎に出力する差分の最大数
+     */
+    public ConvergenceVerifier(int parallelism, int maxDiffs) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.maxDiffs = maxDiffs;
+    }
+
+    /**
+     * 全てのSiteの状態を検証する．<br>
+     * prepareはSiteの識別子を受け取り，残っている操作を適用した後のChainVoxelを返す．prepareは複数のスレッドから並行して呼び出される．
+     * @param numberOfSites Site数
+     * @param prepare Site毎にChainVoxelを用意する関数
+     * @throws InterruptedException 検証中に割り込まれた場合
+     */
+    public void verify(int numberOfSites, final IntFunction<ChainVoxel> prepare) throws InterruptedException {
+        long start = System.nanoTime();
+        this.states = new ChainVoxel[numberOfSites];
+        this.digests = new long[numberOfSites];
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(this.parallelism, Math.max(1, numberOfSites)));
+        try {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numberOfSites);
+            for (int i = 0; i < numberOfSites; ++i) {
+                final int id = i;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        ChainVoxel chainVoxel = prepare.apply(id);
+                        ConvergenceVerifier.this.states[id] = chainVoxel;
+                        ConvergenceVerifier.this.digests[id] = chainVoxel.digest();
+                        return null;
+                    }
+                });
+            }
+            await(pool.invokeAll(tasks));
+
+            this.chooseReference();
+
+            this.diffs = new HashMap<Integer, List<String>>();
+            this.numberOfDiffs = new HashMap<Integer, Integer>();
+            final ChainVoxel expected = this.states[this.reference];
+            List<Callable<Void>> diffTasks = new ArrayList<Callable<Void>>();
+            for (final int id : this.divergentSites) {
+                final List<String> lines = new ArrayList<String>();
+                this.diffs.put(id, lines);
+                diffTasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        int count = ConvergenceVerifier.this.states[id].diff(expected, lines, ConvergenceVerifier.this.maxDiffs);
+                        synchronized (ConvergenceVerifier.this.numberOfDiffs) {
+                            ConvergenceVerifier.this.numberOfDiffs.put(id, count);
+                        }
+                        return null;
+                    }
+                });
+            }
+            await(pool.invokeAll(diffTasks));
+        } finally {
+            pool.shutdown();
+        }
+        this.elapsedNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * 最も多くのSiteで一致したダイジェストを持つSiteを基準とし，基準と異なるSiteを求める．
+     * 同数の場合は識別子の小さいSiteの状態を基準とする．
+     */
+    private void chooseReference() {
+        Map<Long, Integer> counts = new HashMap<Long, Integer>();
+        for (long digest : this.digests) {
+            counts.put(digest, counts.getOrDefault(digest, 0) + 1);
+        }
+        this.numberOfStates = counts.size();
+        this.reference = 0;
+        for (int i = 1; i < this.digests.length; ++i) {
+            if (counts.get(this.digests[i]) > counts.get(this.digests[this.reference])) {
+                this.reference = i;
+            }
+        }
+        this.divergentSites = new ArrayList<Integer>();
+        for (int i = 0; i < this.digests.length; ++i) {
+            if (this.digests[i] != this.digests[this.reference]) {
+                this.divergentSites.add(i);
+            }
+        }
+    }
+
+    /**
+     * 全てのタスクの終了を確認し，タスクで発生した例外を呼び出し元に伝える
+     * @param futures タスクの結果
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    private static void await(List<Future<Void>> futures) throws InterruptedException {
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException ee) {
+                if (ee.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ee.getCause();
+                }
+                throw new IllegalStateException(ee.getCause());
+            }
+        }
+    }
+
+    /**
+     * 全てのSiteが同じ状態に収束したかどうか
+     * @return 全てのSiteのダイジェストが一致した場合はtrue
+     */
+    public boolean isConverged() {
+        return this.numberOfStates <= 1;
+    }
+
+    /**
+     * 異なるダイジェストの数を取得する
+     * @return 異なるダイジェストの数（収束した場合は1）
+     */
+    public int getNumberOfStates() {
+        return this.numberOfStates;
+    }
+
+    /**
+     * 基準とするSiteの識別子を取得する
+     * @return Siteの識別子
+     */
+    public int getReference() {
+        return this.reference;
+    }
+
+    /**
+     * 基準とするSiteのダイジェストを取得する
+     * @return ダイジェスト
+     */
+    public long getReferenceDigest() {
+        return this.digests[this.reference];
+    }
+
+    /**
+     * 基準とするSiteのChainVoxelの容量を取得する
+     * @return ChainVoxelの容量
+     */
+    public int getReferenceSize() {
+        return this.states[this.reference].size();
+    }
+
+    /**
+     * 基準と異なるSiteの識別子を取得する
+     * @return Siteの識別子のリスト（識別子の昇順）
+     */
+    public List<Integer> getDivergentSites() {
+        return this.divergentSites;
+    }
+
+    /**
+     * 基準と異なるSiteの差分の説明を取得する
+     * @param id Siteの識別子
+     * @return 最大maxDiffs個の差分の説明（「posID: そのSiteの状態 | 基準の状態」の形式）
+     * @see ChainVoxel#diff
+     */
+    public List<String> getDiffs(int id) {
+        return this.diffs.get(id);
+    }
+
+    /**
+     * 基準と異なるSiteの，状態が異なるセルとグループの総数を取得する
+     * @param id Siteの識別子
+     * @return 状態が異なるセルとグループの総数
+     */
+    public int getNumberOfDiffs(int id) {
+        return this.numberOfDiffs.get(id);
+    }
+
+    /**
+     * 検証に要した時間を取得する
+     * @return 時間(ナノ秒)
+     */
+    public long getElapsedNanos() {
+        return this.elapsedNanos;
+    }
+}
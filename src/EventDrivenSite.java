@@ -0,0 +1,505 @@
+import java.util.ArrayList;
+
+/**
+ * 離散事象シミュレータ上で事象駆動で振る舞うSiteを表すクラス．<br>
+ * <br>
+ * {@link Site}の各振る舞い(ChainVoxel，two-phase commit，Raft)を，受信を待機する代わりに
+ * 事象(操作の受信，タイマーの満了)を受け取る状態機械として実装する．
+ * ステップ数とメッセージ総数の数え方は{@link Site}と同じである．<br>
+ * two-phase commitでは，現在のターンに関係しない操作(先行した調停者のREQUESTなど)は保留し，ターンが進んだ時に処理し直す．<br>
+ * ゴシップでは，操作を生成する間隔毎にラウンドを実行し，要求には受信した時に応答する．
+ * 全ての操作を受信したSiteはラウンドを止めるが，他のSiteからの要求には応答し続ける．
+ * @author kengo92i
+ * @see DiscreteEventSimulator
+ * @see Site
+ */
+public class EventDrivenSite {
+    /**
+     * Siteの識別子
+     */
+    private int id;
+
+    /**
+     * 離散事象シミュレータ
+     */
+    private DiscreteEventSimulator sim;
+
+    /**
+     * 実行する振る舞い
+     */
+    private int behavior;
+
+    /**
+     * ChainVoxel型のオブジェクト（操作を適用しない場合はnull）
+     */
+    private ChainVoxel chainVoxel;
+
+    /**
+     * 操作の実行回数
+     */
+    private int numberOfOperations;
+
+    /**
+     * ChainVoxelの振る舞いで操作を生成する間隔(マイクロ秒)
+     */
+    private long interval;
+
+    /**
+     * ステップ数
+     */
+    private int numberOfSteps;
+
+    /**
+     * メッセージ総数
+     */
+    private int numberOfMessages;
+
+    /**
+     * 操作のタイムスタンプを管理するハイブリッド論理時計
+     */
+    private HybridLogicalClock clock;
+
+    /**
+     * 操作生成器
+     */
+    private OperationGenerator generator;
+
+    /**
+     * 生成した操作の総数
+     */
+    private int numberOfGeneratedOperations;
+
+    /**
+     * two-phase commit，Raftの現在のターン
+     */
+    private int turn;
+
+    /**
+     * two-phase commitの調停者が受信した確認応答の数，Raftの候補者が受信した投票の数
+     */
+    private int votes;
+
+    /**
+     * two-phase commitの参加者が現在のターンの確認応答を返したかどうか
+     */
+    private boolean acked;
+
+    /**
+     * two-phase commitで現在のターンに関係しないために保留している操作
+     */
+    private ArrayList<Operation> deferred;
+
+    /**
+     * ゴシップの状態（ゴシップ以外の振る舞いの場合はnull）
+     */
+    private Gossip gossip;
+
+    /**
+     * ゴシップで新しく受信した操作を受け取るリスト
+     */
+    private ArrayList<Operation> learned;
+
+    /**
+     * 離散事象シミュレータ上で振る舞うSiteを作成する．
+     * @param id Siteの識別子
+     * @param sim 離散事象シミュレータ
+     * @param behavior 振る舞い（{@link Site#CHAINVOXEL}，{@link Site#STRUCTURE_LAYER}，{@link Site#TWO_PHASE_COMMIT}，{@link Site#RAFT}，{@link Site#GOSSIP}）
+     * @param numberOfOperations 操作の実行回数
+     * @param limitOfRange XYZ座標軸の限界値
+     * @param seed 操作生成に使用する乱数のシード
+     * @param interval ChainVoxelの振る舞いで操作を生成する間隔(マイクロ秒)
+     * @param apply 操作をChainVoxelに適用するかどうか
+     */
+    public EventDrivenSite(int id, DiscreteEventSimulator sim, int behavior, int numberOfOperations,
+                           int limitOfRange, long seed, long interval, boolean apply) {
+        this.id = id;
+        this.sim = sim;
+        this.behavior = behavior;
+        this.numberOfOperations = numberOfOperations;
+        this.interval = interval;
+        this.chainVoxel = apply ? new ChainVoxel() : null;
+        this.clock = new HybridLogicalClock();
+        this.clock.setPhysicalClockEnabled(false); // 実行毎に同じタイムスタンプを生成する
+        this.generator = new OperationGenerator(id, limitOfRange, seed, this.clock);
+        this.numberOfSteps = 0;
+        this.numberOfMessages = 0;
+        this.numberOfGeneratedOperations = 0;
+        this.turn = 0;
+        this.votes = 0;
+        this.acked = false;
+        this.deferred = new ArrayList<Operation>();
+        this.learned = new ArrayList<Operation>();
+        this.gossip = null;
+    }
+
+    /**
+     * ゴシップの振る舞いで1ラウンドに通信するSiteの数と方式を設定する．
+     * 設定しない場合は，fanoutは3，方式は{@link Gossip#PUSH_PULL}となる．
+     * @param fanout 1ラウンドで通信するSiteの数
+     * @param mode 方式（{@link Gossip#PUSH}，{@link Gossip#PULL}，{@link Gossip#PUSH_PULL}）
+     * @param seed 通信するSiteを選ぶ乱数のシード
+     */
+    public void setGossip(int fanout, int mode, long seed) {
+        this.gossip = new Gossip(this.id, this.sim.getNumberOfSites(), this.numberOfOperations, fanout, mode, seed);
+    }
+
+    /**
+     * ゴシップの状態を取得する
+     * @return ゴシップの状態（ゴシップ以外の振る舞いの場合はnull）
+     */
+    public Gossip getGossip() {
+        return this.gossip;
+    }
+
+    /**
+     * 振る舞いを開始する．シミュレーションの開始時に1度だけ呼び出される．
+     */
+    public void start() {
+        int numberOfSites = this.sim.getNumberOfSites();
+        if (this.behavior == Site.GOSSIP && this.gossip == null) {
+            this.setGossip(3, Gossip.PUSH_PULL, this.id);
+        }
+        switch (this.behavior) {
+            case Site.TWO_PHASE_COMMIT:
+                if (this.coordinatorOf(0) == this.id && this.numberOfOperations > 0) {
+                    this.requestCommit();
+                }
+                break;
+            case Site.RAFT:
+                if (this.id == 0) { // idが0の人がCandidateになる
+                    Operation requestVote = new Operation(Operation.REQUEST_VOTE, this.id, null, null, this.clock.tick());
+                    this.sim.send(this.id, 0, requestVote);
+                    this.sim.broadcast(this.id, requestVote);
+                    this.numberOfSteps++;
+                    this.numberOfMessages += numberOfSites;
+                }
+                break;
+            default:
+                if (this.numberOfOperations > 0) { // 各Siteの操作の生成時刻をずらす
+                    this.sim.schedule(this.id, this.interval * this.id / numberOfSites);
+                }
+                break;
+        }
+    }
+
+    /**
+     * タイマーが満了した時の処理．ChainVoxelの振る舞いで操作を生成して共有する．
+     * ゴシップの場合はラウンドを実行する．
+     */
+    public void onTimer() {
+        if (this.behavior == Site.GOSSIP) {
+            this.runGossipRound();
+            return;
+        }
+        Operation op = this.behavior == Site.STRUCTURE_LAYER ? this.generator.nextOperation() : this.generator.nextPrimitiveOperation();
+        this.numberOfGeneratedOperations++;
+        this.apply(op); // local operation
+        this.sim.broadcast(this.id, op); // remote operation
+        this.numberOfMessages += this.sim.getNumberOfSites() - 1;
+        this.numberOfSteps++;
+        if (this.numberOfGeneratedOperations < this.numberOfOperations) {
+            this.sim.schedule(this.id, this.interval);
+        }
+    }
+
+    /**
+     * 操作を受信した時の処理
+     * @param op 操作オブジェクト
+     */
+    public void onReceive(Operation op) {
+        this.clock.update(op.getTimestamp());
+        switch (this.behavior) {
+            case Site.TWO_PHASE_COMMIT:
+                this.receiveTwoPhaseCommit(op);
+                break;
+            case Site.RAFT:
+                this.receiveRaft(op);
+                break;
+            case Site.GOSSIP:
+                this.receiveGossip(op);
+                break;
+            default:
+                this.apply(op);
+                break;
+        }
+    }
+
+    /**
+     * ゴシップのラウンドを実行する．操作を生成し，新しい操作を転送したり不足している操作を要求する．
+     * 全ての操作を受信して転送し終えるまで，次のラウンドを登録する．
+     * @see Gossip
+     */
+    private void runGossipRound() {
+        if (this.numberOfGeneratedOperations < this.numberOfOperations) {
+            Operation op = this.generator.nextPrimitiveOperation();
+            this.numberOfGeneratedOperations++;
+            this.apply(op); // local operation
+            this.gossip.add(op);
+            this.sim.track(this.id, op);
+        }
+        int[] peers = this.gossip.nextRound();
+        Operation push = this.gossip.createPush(this.clock.tick());
+        if (push != null) {
+            for (int peer : peers) {
+                this.sim.send(this.id, peer, push);
+                this.numberOfMessages++;
+            }
+        }
+        if (this.gossip.shouldPull(push != null)) {
+            Operation pull = this.gossip.createPull(this.clock.tick());
+            for (int i = 0; i < this.gossip.getPullFanout(); ++i) {
+                this.sim.send(this.id, peers[i], pull);
+                this.numberOfMessages++;
+            }
+        }
+        this.numberOfSteps++;
+        if (!this.gossip.isComplete() || this.gossip.hasPendingPush()) {
+            this.sim.schedule(this.id, this.interval);
+        }
+    }
+
+    /**
+     * ゴシップのメッセージを受信した時の処理．新しい操作を適用し，要求には応答する．
+     * @param message メッセージ
+     */
+    private void receiveGossip(Operation message) {
+        Operation reply = this.gossip.receive(message, this.clock.tick(), this.learned);
+        for (Operation op : this.learned) {
+            this.apply(op);
+            this.sim.reached(this.id, op);
+        }
+        this.learned.clear();
+        if (reply != null) {
+            this.sim.send(this.id, message.getId(), reply);
+            this.numberOfMessages++;
+        }
+    }
+
+    /**
+     * 操作をChainVoxelに適用する．操作を適用しない場合は何もしない．
+     * @param op 操作オブジェクト
+     */
+    private void apply(Operation op) {
+        if (this.chainVoxel != null) {
+            this.chainVoxel.apply(op);
+        }
+    }
+
+    /**
+     * two-phase commitで指定したターンの調停者を返す
+     * @param turn ターン
+     * @return 調停者の識別子
+     */
+    private int coordinatorOf(int turn) {
+        return turn % this.sim.getNumberOfSites();
+    }
+
+    /**
+     * two-phase commitの調停者として，参加者にコミットの準備を求める
+     */
+    private void requestCommit() {
+        int numberOfSites = this.sim.getNumberOfSites();
+        Operation request = new Operation(Operation.REQUEST, this.id, null, null, this.clock.tick());
+        this.sim.broadcast(this.id, request);
+        this.numberOfSteps++;
+        this.numberOfMessages += numberOfSites - 1;
+        this.votes = 0;
+        if (numberOfSites == 1) {
+            this.commit();
+        }
+    }
+
+    /**
+     * two-phase commitの調停者として，操作を全員に送信し，次のターンに進む
+     */
+    private void commit() {
+        this.numberOfSteps++; // 確認応答を全て受け取った
+
+        Operation op = this.generator.nextPrimitiveOperation();
+        this.numberOfGeneratedOperations++;
+        this.apply(op); // local operation
+        this.sim.broadcast(this.id, op); // remote operation
+        this.numberOfSteps++;
+        this.numberOfMessages += this.sim.getNumberOfSites() - 1;
+        this.nextTurn();
+    }
+
+    /**
+     * two-phase commitで操作を受信した時の処理．現在のターンに関係しない操作は保留する．
+     * @param op 操作オブジェクト
+     */
+    private void receiveTwoPhaseCommit(Operation op) {
+        int maxTurn = this.numberOfOperations * this.sim.getNumberOfSites();
+        int coordinator = this.coordinatorOf(this.turn);
+        int opType = op.getOpType();
+        if (this.turn >= maxTurn) {
+            return;
+        }
+
+        if (coordinator == this.id) { // 調停者の動作
+            if (opType == Operation.ACK) {
+                if (++this.votes == this.sim.getNumberOfSites() - 1) {
+                    this.commit();
+                }
+                return;
+            }
+        } else if (opType == Operation.REQUEST && op.getId() == coordinator && !this.acked) { // 参加者の動作
+            this.numberOfSteps++;
+            this.sim.send(this.id, coordinator, new Operation(Operation.ACK, this.id, null, null, this.clock.tick()));
+            this.numberOfSteps++;
+            this.numberOfMessages += 1;
+            this.acked = true;
+            return;
+        } else if (opType <= Operation.LEAVE && this.acked) { // ChainVoxelの操作
+            this.apply(op);
+            this.numberOfSteps++;
+            this.nextTurn();
+            return;
+        }
+        this.deferred.add(op); // 先行した調停者のREQUESTなので保留する
+    }
+
+    /**
+     * two-phase commitで次のターンに進み，保留していた操作を処理し直す
+     */
+    private void nextTurn() {
+        this.turn++;
+        this.acked = false;
+        if (this.turn >= this.numberOfOperations * this.sim.getNumberOfSites()) {
+            return;
+        }
+        if (this.coordinatorOf(this.turn) == this.id) {
+            this.requestCommit();
+        }
+        if (!this.deferred.isEmpty()) {
+            ArrayList<Operation> ops = this.deferred;
+            this.deferred = new ArrayList<Operation>();
+            for (Operation op : ops) {
+                this.receiveTwoPhaseCommit(op);
+            }
+        }
+    }
+
+    /**
+     * Raftで操作を受信した時の処理
+     * @param op 操作オブジェクト
+     */
+    private void receiveRaft(Operation op) {
+        int numberOfSites = this.sim.getNumberOfSites();
+        int maxTurn = this.numberOfOperations * numberOfSites;
+        switch (op.getOpType()) {
+            case Operation.REQUEST_VOTE:
+                if (this.id == 0) { // Candidate自身のrequestVote
+                    this.receiveVote();
+                    return;
+                }
+                this.numberOfSteps++;
+                this.numberOfMessages++;
+                this.sim.send(this.id, 0, new Operation(Operation.VOTE, this.id, null, null, this.clock.tick()));
+                this.numberOfSteps++;
+                this.numberOfMessages++;
+                return;
+            case Operation.VOTE:
+                this.receiveVote();
+                return;
+            case Operation.APPEND_ENTRIES:
+                this.numberOfSteps++;
+                this.numberOfMessages++;
+                return;
+            default:
+                break;
+        }
+
+        if (this.id == 0) { // Leaderの動作: 送信された操作を共有する
+            this.numberOfSteps++;
+            this.numberOfMessages++;
+            this.sim.broadcast(this.id, op);
+            this.numberOfSteps++;
+            this.numberOfMessages += numberOfSites;
+        } else { // Followerの動作
+            this.numberOfSteps++;
+            this.numberOfMessages++;
+        }
+        if (++this.turn < maxTurn) {
+            this.proposeIfMyTurn();
+        }
+    }
+
+    /**
+     * Raftの候補者として投票を受け取り，過半数ではなく全員の投票が揃った時にLeaderになったことを報告する
+     */
+    private void receiveVote() {
+        int numberOfSites = this.sim.getNumberOfSites();
+        if (++this.votes < numberOfSites) {
+            return;
+        }
+        this.numberOfSteps++;
+        this.numberOfMessages += numberOfSites;
+
+        this.sim.broadcast(this.id, new Operation(Operation.APPEND_ENTRIES, this.id, null, null, this.clock.tick()));
+        this.numberOfSteps++;
+        this.numberOfMessages += numberOfSites - 1;
+        if (this.numberOfOperations > 0) {
+            this.proposeIfMyTurn();
+        }
+    }
+
+    /**
+     * Raftで現在のターンの操作を実行する番であれば，操作を生成してLeaderに送信する
+     */
+    private void proposeIfMyTurn() {
+        if (this.turn % this.sim.getNumberOfSites() == this.id) {
+            Operation op = this.generator.nextPrimitiveOperation();
+            this.numberOfGeneratedOperations++;
+            this.sim.send(this.id, 0, op);
+        }
+    }
+
+    /**
+     * Siteの識別子を取得する
+     * @return Siteの識別子
+     */
+    public int getSiteId() {
+        return this.id;
+    }
+
+    /**
+     * Siteが保持するChainVoxelを取得する
+     * @return ChainVoxel型のオブジェクト（操作を適用しない場合はnull）
+     */
+    public ChainVoxel getChainVoxel() {
+        return this.chainVoxel;
+    }
+
+    /**
+     * Siteが操作の生成に使用する操作生成器を取得する
+     * @return 操作生成器
+     */
+    public OperationGenerator getGenerator() {
+        return this.generator;
+    }
+
+    /**
+     * Siteが保持するステップ数を取得する
+     * @return ステップ数
+     */
+    public int getNumberOfSteps() {
+        return this.numberOfSteps;
+    }
+
+    /**
+     * Siteが保持するメッセージ総数を取得する
+     * @return メッセージ総数
+     */
+    public int getNumberOfMessages() {
+        return this.numberOfMessages;
+    }
+
+    /**
+     * Siteが生成した操作の総数を取得する
+     * @return 生成した操作の総数
+     */
+    public int getNumberOfGeneratedOperations() {
+        return this.numberOfGeneratedOperations;
+    }
+}
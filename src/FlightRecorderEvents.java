@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * ChainVoxel，StructureTable，OperationQueueの処理を記録するJava Flight Recorder(JFR)のイベントを定義するクラス．<br>
+ * <br>
+ * 操作毎に発生するApplyとStructureのイベントは，JFRが記録を開始した後({@link #isActive}がtrueの場合)だけ作成する．
+ * QueueWaitのイベントは待機する場合だけ作成する．
+ * JFRはコードを変更せずに，JVMのオプション(-XX:StartFlightRecording)や jcmd JFR.start で実行中のプロセスに対して開始できる．
+ * Simulatorの--jfrオプションは，これらのイベントを閾値を指定して記録する．<br>
+ * 記録したイベントは jfr print --categories ChainVoxel [ファイル] やJDK Mission Controlで確認できる．
+ * JFRのAPIを使用するため，Java 11以降(Java 8の場合は8u262以降)が必要である．
+ * @author kengo92i
+ * @see Simulator
+ */
+public class FlightRecorderEvents {
+    /**
+     * ChainVoxelに1つの操作を適用したことを示すイベント（閾値より時間がかかった適用だけを記録する）
+     * @see ChainVoxel#apply(Operation)
+     */
+    @Name("chainvoxel.Apply")
+    @Label("ChainVoxel Apply")
+    @Description("An operation applied to a ChainVoxel")
+    @Category({"ChainVoxel", "CRDT"})
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class Apply extends Event {
+        /**
+         * 操作のタイプ
+         */
+        @Label("Operation Type")
+        int opType;
+
+        /**
+         * 操作したセル(posID)
+         */
+        @Label("Position")
+        String posID;
+
+        /**
+         * 適用した後のvoxelチェインの長さ
+         */
+        @Label("Chain Length")
+        int chainLength;
+
+        /**
+         * 操作をまとめて適用している最中（チェインのソートが保留されている）かどうか
+         */
+        @Label("Batched")
+        boolean batched;
+    }
+
+    /**
+     * StructureTableでvoxelがグループに参加・脱退したことを示すイベント
+     * @see StructureTable#join
+     * @see StructureTable#leave
+     */
+    @Name("chainvoxel.Structure")
+    @Label("StructureTable Join/Leave")
+    @Description("A voxel joined or left a group in a StructureTable")
+    @Category({"ChainVoxel", "CRDT"})
+    @StackTrace(false)
+    @Threshold("0 ms")
+    static class Structure extends Event {
+        /**
+         * 操作のタイプ（{@link Operation#JOIN}または{@link Operation#LEAVE}）
+         */
+        @Label("Operation Type")
+        int opType;
+
+        /**
+         * 参加・脱退したvoxel(posID)
+         */
+        @Label("Position")
+        String posID;
+
+        /**
+         * グループ(gid)
+         */
+        @Label("Group")
+        String gid;
+
+        /**
+         * 状態が変化したかどうか（古いタイムスタンプや存在しないグループの場合はfalse）
+         */
+        @Label("Applied")
+        boolean applied;
+
+        /**
+         * 適用した後にvoxelが関連しているグループの数
+         */
+        @Label("Group Entries")
+        int entries;
+    }
+
+    /**
+     * OperationQueueで送信や受信が待機したことを示すイベント（閾値より長く待機した場合だけを記録する）
+     * @see OperationQueue
+     */
+    @Name("chainvoxel.QueueWait")
+    @Label("OperationQueue Wait")
+    @Description("A send blocked on a full queue, or a receive parked on an empty queue")
+    @Category({"ChainVoxel", "Transport"})
+    @Threshold("1 ms")
+    static class QueueWait extends Event {
+        /**
+         * Queueの識別子（宛先Siteの識別子）
+         */
+        @Label("Site")
+        int site;
+
+        /**
+         * 待機した処理（"enqueue"は容量を超えた宛先への送信，"dequeue"は空のQueueからの受信）
+         */
+        @Label("Kind")
+        String kind;
+
+        /**
+         * 待機した後に受信した操作数（enqueueの場合は0）
+         */
+        @Label("Operations")
+        int operations;
+    }
+
+    /**
+     * 操作毎のイベントを作成するかどうかを判定する．<br>
+     * JFRはいずれかの記録が開始された時に初期化されるため，それまではChainVoxel#applyとStructureTableのjoin/leaveはイベントを作成しない．
+     * EventType#isEnabledと異なりJFRを初期化しないため，記録しない実行の起動時間に影響しない．
+     * @return JFRが初期化されている場合はtrue
+     */
+    static boolean isActive() {
+        return FlightRecorder.isInitialized();
+    }
+
+    /**
+     * このクラスのイベントを記録するJFRの記録を開始する．<br>
+     * JVMの他のイベントは記録しない．記録は{@link Recording#stop}を呼び出した時に指定したファイルに書き出される．
+     * @param filename 記録を書き出すファイル名
+     * @param thresholdMillis 記録するイベントの時間の閾値(ミリ秒)．負の場合はイベント毎の既定の閾値を使用する
+     * @return 開始した記録
+     * @throws IOException ファイルを作成できない場合
+     */
+    static Recording startRecording(String filename, double thresholdMillis) throws IOException {
+        Recording recording = new Recording();
+        recording.setName("ChainVoxel");
+        recording.setToDisk(true);
+        recording.setDestination(Paths.get(filename));
+        for (Class<? extends Event> type : Arrays.<Class<? extends Event>>asList(Apply.class, Structure.class, QueueWait.class)) {
+            if (thresholdMillis >= 0) {
+                recording.enable(type).withThreshold(Duration.ofNanos((long) (thresholdMillis * 1e6)));
+            } else {
+                recording.enable(type);
+            }
+        }
+        recording.start();
+        return recording;
+    }
+}
@@ -0,0 +1,460 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * ゴシップ(epidemic)プロトコルで操作を共有するSiteの状態を管理するクラス．<br>
+ * <br>
+ * 全てのSiteに直接broadcastする代わりに，各Siteはラウンド毎にランダムに選んだfanout個のSiteとだけ通信する．
+ * 操作は作成したSite(origin)毎に作成順の通し番号で識別し，Siteはorigin毎に連続して受信した操作数(digest)を保持する．
+ * 既に受信した操作はdigestと比較して破棄するため，ChainVoxelに同じ操作が2度適用されることはない．<br>
+ * <br>
+ * ラウンドの動作は方式によって異なる．
+ * <ul>
+ * <li>{@link #PUSH} : 前のラウンド以降に新しく受信・生成した操作を選んだSiteに転送する．転送する操作が無く，
+ * 全ての操作を受信していない場合は，1つのSiteにdigestを送って不足している操作を要求する．</li>
+ * <li>{@link #PULL} : 全ての操作を受信するまで，選んだSiteにdigestを送って不足している操作を要求する．</li>
+ * <li>{@link #PUSH_PULL} : 新しい操作を転送し，全ての操作を受信するまで不足している操作も要求する．</li>
+ * </ul>
+ * 要求を受信したSiteは，digestに含まれる範囲より先の操作を応答する．digestには全て受信していないoriginだけを含める．<br>
+ * このクラスは送受信を行わない．{@link Site}と{@link EventDrivenSite}が作成したメッセージを送信し，受信したメッセージを渡す．
+ * @author kengo92i
+ * @see Operation#GOSSIP
+ */
+public class Gossip {
+    /**
+     * 新しい操作を転送する方式を示す定数
+     */
+    public static final int PUSH = 0;
+
+    /**
+     * 不足している操作を要求する方式を示す定数
+     */
+    public static final int PULL = 1;
+
+    /**
+     * 転送と要求を両方行う方式を示す定数
+     */
+    public static final int PUSH_PULL = 2;
+
+    /**
+     * メッセージの種類：新しい操作の転送
+     */
+    static final int KIND_PUSH = 0;
+
+    /**
+     * メッセージの種類：不足している操作の要求
+     */
+    static final int KIND_PULL = 1;
+
+    /**
+     * メッセージの種類：要求に対する応答
+     */
+    static final int KIND_REPLY = 2;
+
+    /**
+     * Siteの識別子
+     */
+    private final int id;
+
+    /**
+     * Siteの総数
+     */
+    private final int numberOfSites;
+
+    /**
+     * 各Siteが生成する操作数
+     */
+    private final int operationsPerSite;
+
+    /**
+     * 1ラウンドで通信するSiteの数
+     */
+    private final int fanout;
+
+    /**
+     * 方式（{@link #PUSH}，{@link #PULL}，{@link #PUSH_PULL}）
+     */
+    private final int mode;
+
+    /**
+     * 通信するSiteを選ぶ乱数生成器
+     */
+    private final Random random;
+
+    /**
+     * origin毎に受信した操作（受信していないoriginはnull）
+     */
+    private final Operation[][] logs;
+
+    /**
+     * origin毎に連続して受信した操作数
+     */
+    private final int[] have;
+
+    /**
+     * origin毎に転送を終えた操作数
+     */
+    private final int[] pushed;
+
+    /**
+     * 前の転送以降に新しい操作を受信したorigin
+     */
+    private final ArrayList<Integer> dirty;
+
+    /**
+     * 受信した操作の総数
+     */
+    private long known;
+
+    /**
+     * 開始したラウンドの数
+     */
+    private int round;
+
+    /**
+     * 全ての操作を受信した時のラウンド（受信していない場合は-1）
+     */
+    private int convergenceRound;
+
+    /**
+     * 受信したメッセージに含まれていた操作の総数
+     */
+    private long receivedOperations;
+
+    /**
+     * 受信したが既に受信していたため破棄した操作の総数
+     */
+    private long duplicateOperations;
+
+    /**
+     * ゴシップの状態を作成する．
+     * @param id Siteの識別子
+     * @param numberOfSites Siteの総数
+     * @param operationsPerSite 各Siteが生成する操作数
+     * @param fanout 1ラウンドで通信するSiteの数
+     * @param mode 方式（{@link #PUSH}，{@link #PULL}，{@link #PUSH_PULL}）
+     * @param seed 通信するSiteを選ぶ乱数のシード
+     */
+    public Gossip(int id, int numberOfSites, int operationsPerSite, int fanout, int mode, long seed) {
+        if (fanout <= 0) {
+            throw new IllegalArgumentException("fanout must be positive: " + fanout);
+        }
+        if (mode < PUSH || mode > PUSH_PULL) {
+            throw new IllegalArgumentException("Unknown gossip mode: " + mode);
+        }
+        this.id = id;
+        this.numberOfSites = numberOfSites;
+        this.operationsPerSite = operationsPerSite;
+        this.fanout = Math.min(fanout, numberOfSites - 1);
+        this.mode = mode;
+        this.random = new Random(seed);
+        this.logs = new Operation[numberOfSites][];
+        this.have = new int[numberOfSites];
+        this.pushed = new int[numberOfSites];
+        this.dirty = new ArrayList<Integer>();
+        this.known = 0;
+        this.round = 0;
+        this.convergenceRound = -1;
+        this.receivedOperations = 0;
+        this.duplicateOperations = 0;
+        this.checkConvergence();
+    }
+
+    /**
+     * 自身が生成した操作を追加する．操作は次の転送で他のSiteに共有される．
+     * @param op 操作オブジェクト
+     */
+    public void add(Operation op) {
+        this.learn(this.id, this.have[this.id], op);
+        this.checkConvergence();
+    }
+
+    /**
+     * 新しいラウンドを開始し，通信するSiteをランダムに選ぶ．
+     * @return 通信するSiteの識別子（重複しない）
+     */
+    public int[] nextRound() {
+        this.round++;
+        int[] peers = new int[this.fanout];
+        for (int i = 0; i < peers.length; ++i) {
+            int peer;
+            do {
+                peer = this.random.nextInt(this.numberOfSites);
+            } while (peer == this.id || contains(peers, i, peer));
+            peers[i] = peer;
+        }
+        return peers;
+    }
+
+    /**
+     * 前の転送以降に新しく受信・生成した操作を転送するメッセージを作成する．
+     * @param timestamp メッセージのタイムスタンプ
+     * @return メッセージ．転送しない方式の場合や，新しい操作が無い場合はnull
+     */
+    public Operation createPush(long timestamp) {
+        if (this.mode == PULL || this.dirty.isEmpty()) {
+            return null;
+        }
+        int[] ranges = new int[this.dirty.size() * 3];
+        List<Operation> ops = new ArrayList<Operation>();
+        int n = 0;
+        for (int origin : this.dirty) {
+            n = this.appendRange(origin, this.pushed[origin], ranges, n, ops);
+            this.pushed[origin] = this.have[origin];
+        }
+        this.dirty.clear();
+        return this.createMessage(KIND_PUSH, timestamp, null, ranges, ops);
+    }
+
+    /**
+     * このラウンドで不足している操作を要求するかどうかを判定する．
+     * @param pushed このラウンドで新しい操作を転送した場合はtrue
+     * @return 要求する場合はtrue
+     */
+    public boolean shouldPull(boolean pushed) {
+        if (this.isComplete()) {
+            return false;
+        }
+        return this.mode != PUSH || !pushed;
+    }
+
+    /**
+     * 要求を送るSiteの数を返す．{@link #PUSH}の場合は，転送する操作が無い時だけ1つのSiteに要求する．
+     * @return 要求を送るSiteの数
+     */
+    public int getPullFanout() {
+        return this.mode == PUSH ? 1 : this.fanout;
+    }
+
+    /**
+     * 不足している操作を要求するメッセージを作成する．
+     * @param timestamp メッセージのタイムスタンプ
+     * @return メッセージ
+     */
+    public Operation createPull(long timestamp) {
+        int incomplete = 0;
+        for (int origin = 0; origin < this.numberOfSites; ++origin) {
+            if (this.have[origin] < this.operationsPerSite) incomplete++;
+        }
+        int[] digest = new int[incomplete * 2];
+        int n = 0;
+        for (int origin = 0; origin < this.numberOfSites; ++origin) {
+            if (this.have[origin] < this.operationsPerSite) {
+                digest[n++] = origin;
+                digest[n++] = this.have[origin];
+            }
+        }
+        return this.createMessage(KIND_PULL, timestamp, digest, null, null);
+    }
+
+    /**
+     * 受信したメッセージを処理する．新しく受信した操作をlearnedに追加し，要求の場合は応答を返す．
+     * @param message メッセージ
+     * @param timestamp 応答のタイムスタンプ
+     * @param learned 新しく受信した操作を追加するリスト
+     * @return 応答．要求以外の場合はnull
+     */
+    @SuppressWarnings("unchecked")
+    public Operation receive(Operation message, long timestamp, List<Operation> learned) {
+        int[] ranges = (int[]) message.getParam("ranges");
+        if (ranges != null) {
+            List<Operation> ops = (List<Operation>) message.getParam("ops");
+            this.receivedOperations += ops.size();
+            int k = 0;
+            for (int i = 0; i < ranges.length; i += 3) {
+                int origin = ranges[i], from = ranges[i + 1], count = ranges[i + 2];
+                for (int seq = from; seq < from + count; ++seq) {
+                    Operation op = ops.get(k++);
+                    if (seq == this.have[origin]) {
+                        this.learn(origin, seq, op);
+                        learned.add(op);
+                    } else {
+                        this.duplicateOperations++; // 受信済み，または先行する操作が未着のため破棄する
+                    }
+                }
+            }
+            this.checkConvergence();
+        }
+
+        if ((Integer) message.getParam("kind") != KIND_PULL) {
+            return null;
+        }
+        int[] digest = (int[]) message.getParam("digest");
+        int[] reply = new int[digest.length / 2 * 3];
+        List<Operation> ops = new ArrayList<Operation>();
+        int n = 0;
+        for (int i = 0; i < digest.length; i += 2) {
+            n = this.appendRange(digest[i], digest[i + 1], reply, n, ops);
+        }
+        return this.createMessage(KIND_REPLY, timestamp, null, n == reply.length ? reply : Arrays.copyOf(reply, n), ops);
+    }
+
+    /**
+     * メッセージが要求に対する応答かどうかを判定する．
+     * @param message メッセージ
+     * @return 応答の場合はtrue
+     */
+    public static boolean isReply(Operation message) {
+        return (Integer) message.getParam("kind") == KIND_REPLY;
+    }
+
+    /**
+     * 転送していない操作が残っているかどうかを判定する．
+     * @return 残っている場合はtrue
+     */
+    public boolean hasPendingPush() {
+        return this.mode != PULL && !this.dirty.isEmpty();
+    }
+
+    /**
+     * 全てのSiteの操作を受信したかどうかを判定する．
+     * @return 受信した場合はtrue
+     */
+    public boolean isComplete() {
+        return this.convergenceRound >= 0;
+    }
+
+    /**
+     * 開始したラウンドの数を返す
+     * @return ラウンドの数
+     */
+    public int getRound() {
+        return this.round;
+    }
+
+    /**
+     * 全ての操作を受信した時のラウンドを返す
+     * @return ラウンド．受信していない場合は-1
+     */
+    public int getConvergenceRound() {
+        return this.convergenceRound;
+    }
+
+    /**
+     * 受信したメッセージに含まれていた操作の総数を返す
+     * @return 操作の総数
+     */
+    public long getNumberOfReceivedOperations() {
+        return this.receivedOperations;
+    }
+
+    /**
+     * 受信したが既に受信していたため破棄した操作の総数を返す
+     * @return 操作の総数
+     */
+    public long getNumberOfDuplicateOperations() {
+        return this.duplicateOperations;
+    }
+
+    /**
+     * 方式を表す文字列を定数に変換する
+     * @param name 方式の名前（push, pull, push-pull）
+     * @return 方式を表す定数
+     */
+    public static int parseMode(String name) {
+        switch (name) {
+            case "push": return PUSH;
+            case "pull": return PULL;
+            case "push-pull": return PUSH_PULL;
+            default: throw new IllegalArgumentException("Unknown gossip mode: " + name);
+        }
+    }
+
+    /**
+     * 方式を表す定数を文字列に変換する
+     * @param mode 方式を表す定数
+     * @return 方式の名前
+     */
+    public static String getModeName(int mode) {
+        return mode == PUSH ? "push" : (mode == PULL ? "pull" : "push-pull");
+    }
+
+    /**
+     * 操作をoriginの次の操作として記録する．
+     * @param origin 操作を作成したSiteの識別子
+     * @param seq originでの通し番号
+     * @param op 操作オブジェクト
+     */
+    private void learn(int origin, int seq, Operation op) {
+        if (this.logs[origin] == null) {
+            this.logs[origin] = new Operation[this.operationsPerSite];
+        }
+        if (this.pushed[origin] == this.have[origin]) {
+            this.dirty.add(origin);
+        }
+        this.logs[origin][seq] = op;
+        this.have[origin]++;
+        this.known++;
+    }
+
+    /**
+     * 全ての操作を受信していれば，受信した時のラウンドを記録する．
+     */
+    private void checkConvergence() {
+        if (this.convergenceRound < 0 && this.known == (long) this.numberOfSites * this.operationsPerSite) {
+            this.convergenceRound = this.round;
+        }
+    }
+
+    /**
+     * originの通し番号from以降の受信済みの操作を，範囲(origin, from, 操作数)とともに追加する．
+     * @param origin 操作を作成したSiteの識別子
+     * @param from 追加する最初の通し番号
+     * @param ranges 範囲を書き込む配列
+     * @param n rangesに書き込む位置
+     * @param ops 操作を追加するリスト
+     * @return 次にrangesに書き込む位置
+     */
+    private int appendRange(int origin, int from, int[] ranges, int n, List<Operation> ops) {
+        int count = this.have[origin] - from;
+        if (count <= 0) {
+            return n;
+        }
+        ranges[n++] = origin;
+        ranges[n++] = from;
+        ranges[n++] = count;
+        for (int seq = from; seq < this.have[origin]; ++seq) {
+            ops.add(this.logs[origin][seq]);
+        }
+        return n;
+    }
+
+    /**
+     * メッセージを作成する．
+     * @param kind メッセージの種類
+     * @param timestamp タイムスタンプ
+     * @param digest 要求する範囲（null可）
+     * @param ranges 含める操作の範囲（null可）
+     * @param ops 含める操作（null可）
+     * @return メッセージ
+     */
+    private Operation createMessage(int kind, long timestamp, int[] digest, int[] ranges, List<Operation> ops) {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("sid", this.id);
+        params.put("kind", kind);
+        if (digest != null) params.put("digest", digest);
+        if (ranges != null) {
+            params.put("ranges", ranges);
+            params.put("ops", ops);
+        }
+        return new Operation(Operation.GOSSIP, params, timestamp);
+    }
+
+    /**
+     * 配列の先頭n個に値が含まれるか判定する
+     * @param values 配列
+     * @param n 確認する要素数
+     * @param value 値
+     * @return 含まれる場合はtrue
+     */
+    private static boolean contains(int[] values, int n, int value) {
+        for (int i = 0; i < n; ++i) {
+            if (values[i] == value) return true;
+        }
+        return false;
+    }
+}
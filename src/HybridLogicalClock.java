@@ -0,0 +1,100 @@
+/**
+ * ハイブリッド論理時計(Hybrid Logical Clock)を実装したクラス．<br>
+ * <br>
+ * タイムスタンプは上位ビットに物理時刻(ミリ秒)，下位{@value #LOGICAL_BITS}ビットに論理カウンタを詰めたlong値で表す．
+ * 同じSiteが生成するタイムスタンプは狭義単調増加するため，同じミリ秒内に生成された操作も一意に順序付けられる．
+ * 操作の送信時に{@link #tick}，受信時に{@link #update}を呼び出すことで，因果関係と矛盾しないタイムスタンプが得られる．<br>
+ * 物理時刻を無効にした場合は論理時計として動作し，実行毎に同じタイムスタンプ列を生成する．<br>
+ * <br>
+ * S. S. Kulkarni, M. Demirbas, D. Madappa, B. Avva and M. Leone,
+ * “Logical Physical Clocks,” Principles of Distributed Systems (OPODIS), 2014.
+ *
+ * @author kengo92i
+ */
+public class HybridLogicalClock {
+    /**
+     * 論理カウンタに割り当てるビット数
+     */
+    public static final int LOGICAL_BITS = 16;
+
+    /**
+     * 最後に発行・観測したタイムスタンプ
+     */
+    private long last;
+
+    /**
+     * 物理時刻を使用するか
+     */
+    private boolean physicalClockEnabled;
+
+    /**
+     * 物理時刻を使用するハイブリッド論理時計を作成する．
+     */
+    public HybridLogicalClock() {
+        this.last = 0L;
+        this.physicalClockEnabled = true;
+    }
+
+    /**
+     * 物理時刻を使用するかを設定する．使用しない場合は論理時計として動作する．
+     * @param enabled 物理時刻を使用する場合はtrue
+     */
+    public void setPhysicalClockEnabled(boolean enabled) {
+        this.physicalClockEnabled = enabled;
+    }
+
+    /**
+     * 論理カウンタを0とした現在の物理時刻を返す．
+     * @return タイムスタンプ形式の物理時刻
+     */
+    private long physicalTime() {
+        return this.physicalClockEnabled ? System.currentTimeMillis() << LOGICAL_BITS : 0L;
+    }
+
+    /**
+     * 送信・ローカル操作のためのタイムスタンプを発行する．
+     * @return 新しいタイムスタンプ
+     */
+    public long tick() {
+        long next = Math.max(this.last + 1, this.physicalTime());
+        this.last = next;
+        return next;
+    }
+
+    /**
+     * 受信した操作のタイムスタンプで時計を更新する．
+     * @param timestamp 受信した操作のタイムスタンプ
+     * @return 更新後のタイムスタンプ
+     */
+    public long update(long timestamp) {
+        long next = Math.max(Math.max(this.last, timestamp) + 1, this.physicalTime());
+        this.last = next;
+        return next;
+    }
+
+    /**
+     * 最後に発行・観測したタイムスタンプを返す．
+     * @return タイムスタンプ
+     */
+    public long getLastTimestamp() {
+        return this.last;
+    }
+
+    /**
+     * タイムスタンプの物理時刻部分(ミリ秒)を返す．
+     * @param timestamp タイムスタンプ
+     * @return 物理時刻(ミリ秒)
+     */
+    public static long physicalPart(long timestamp) {
+        return timestamp >>> LOGICAL_BITS;
+    }
+
+    /**
+     * タイムスタンプの論理カウンタ部分を返す．
+     * @param timestamp タイムスタンプ
+     * @return 論理カウンタ
+     */
+    public static long logicalPart(long timestamp) {
+        return timestamp & ((1L << LOGICAL_BITS) - 1);
+    }
+}
@@ -0,0 +1,171 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 遅延(ナノ秒)の分布を記録する，ロックを使用しない対数バケットのヒストグラムを実装したクラス．<br>
+ * <br>
+ * 値は2のべき乗毎の区間に分けられ，各区間はさらに{@link #SUB_BUCKETS}個の等幅のバケットに分けられる．
+ * そのため，バケットの幅は値の約3%以下であり，パーセンタイルの相対誤差もその範囲に収まる．
+ * {@link #SUB_BUCKETS}未満の値はそれぞれ1つのバケットとなる．<br>
+ * 記録はバケットの数をアトミックに加算するだけであり，複数のSiteのスレッドから同時に記録できる．
+ * 最大値は正確な値を記録する．
+ * @author kengo92i
+ * @see MetricsRecorder
+ */
+public class LatencyHistogram {
+    /**
+     * 2のべき乗毎の区間を分割するバケットの数を表すビット数
+     */
+    private static final int SUB_BITS = 5;
+
+    /**
+     * 2のべき乗毎の区間を分割するバケットの数
+     */
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * バケットの総数（long型の全ての非負の値を表せる数）
+     */
+    private static final int NUMBER_OF_BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    /**
+     * バケット毎の記録数
+     */
+    private final AtomicLongArray counts;
+
+    /**
+     * 記録した値の合計
+     */
+    private final AtomicLong sum;
+
+    /**
+     * 記録した値の最大値
+     */
+    private final AtomicLong max;
+
+    /**
+     * LatencyHistogramのコンストラクタ
+     */
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(NUMBER_OF_BUCKETS);
+        this.sum = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * 値が属するバケットの番号を求める
+     * @param value 値(負の場合は0として扱う)
+     * @return バケットの番号
+     */
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(value, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value); // SUB_BITS以上
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * バケットに含まれる最小の値を求める
+     * @param index バケットの番号
+     * @return バケットの下限
+     */
+    static long lowerBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        return (1L << exponent) + (sub << (exponent - SUB_BITS));
+    }
+
+    /**
+     * バケットに含まれる最大の値を求める
+     * @param index バケットの番号
+     * @return バケットの上限
+     */
+    static long upperBoundOf(int index) {
+        return index + 1 < NUMBER_OF_BUCKETS ? lowerBoundOf(index + 1) - 1 : Long.MAX_VALUE;
+    }
+
+    /**
+     * 値を記録する
+     * @param nanos 遅延(ナノ秒)
+     */
+    public void record(long nanos) {
+        this.counts.getAndIncrement(indexOf(nanos));
+        this.sum.getAndAdd(Math.max(nanos, 0));
+        long current;
+        while (nanos > (current = this.max.get())) {
+            if (this.max.compareAndSet(current, nanos)) break;
+        }
+    }
+
+    /**
+     * 記録した値の数を取得する
+     * @return 記録した値の数
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < NUMBER_OF_BUCKETS; ++i) {
+            count += this.counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * 記録した値の平均を取得する
+     * @return 平均(ナノ秒)．記録がない場合は0
+     */
+    public double getMean() {
+        long count = this.getCount();
+        return count == 0 ? 0.0 : (double) this.sum.get() / count;
+    }
+
+    /**
+     * 記録した値の最大値を取得する
+     * @return 最大値(ナノ秒)
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * 指定したパーセンタイルの値を取得する．<br>
+     * 値はパーセンタイルが属するバケットの上限であり，最大値を超えない．
+     * @param percentile パーセンタイル(0から100)
+     * @return パーセンタイルの値(ナノ秒)．記録がない場合は0
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = this.getCounts();
+        long count = 0;
+        for (long c : snapshot) {
+            count += c;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; ++i) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), this.getMax());
+            }
+        }
+        return this.getMax();
+    }
+
+    /**
+     * バケット毎の記録数の複製を取得する
+     * @return バケット毎の記録数
+     */
+    public long[] getCounts() {
+        long[] snapshot = new long[NUMBER_OF_BUCKETS];
+        for (int i = 0; i < NUMBER_OF_BUCKETS; ++i) {
+            snapshot[i] = this.counts.get(i);
+        }
+        return snapshot;
+    }
+}
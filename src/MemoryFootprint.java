@@ -0,0 +1,518 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+/**
+ * ChainVoxelのメモリ使用量とvoxelチェインの形を表すクラス．<br>
+ * <br>
+ * メモリ使用量は，ChainVoxelとStructureTableの表を辿りながら，各オブジェクト(TreeMapのエントリ，キーの文字列，ArrayListと配列，Voxel，TreeSet，GroupEntry)の
+ * 大きさをJVMのオブジェクトレイアウト(圧縮参照の有無とアラインメント)から見積もって求める．
+ * リフレクションやヒープダンプを使用せず，表の大きさに比例した時間で求められるため，実行中に定期的に標本を取得できる．<br>
+ * 見積もりには以下の近似を含む．
+ * <ul>
+ * <li>ArrayListの容量は要素数から拡張の規則に従って推定する．空のvoxelチェインは容量0とする（挿入の後に全て削除されたチェインは実際には容量10以上を保持する）</li>
+ * <li>キーの文字列は表毎に数える．同じ文字列のオブジェクトを複数の表で共有している場合は重複して数える</li>
+ * <li>文字列はLatin-1で表現できるとする(Java 9以降)</li>
+ * </ul>
+ * @author kengo92i
+ * @see ChainVoxel#footprint
+ * @see StructureTable#footprint
+ */
+public class MemoryFootprint {
+    /**
+     * オブジェクトヘッダの大きさ(バイト)
+     */
+    private static final int HEADER;
+
+    /**
+     * 参照の大きさ(バイト)
+     */
+    private static final int REFERENCE;
+
+    /**
+     * オブジェクトのアラインメント(バイト)
+     */
+    private static final int ALIGNMENT;
+
+    /**
+     * 文字列の1文字の大きさ(バイト)
+     */
+    private static final int CHAR_WIDTH;
+
+    static {
+        boolean compressedOops = true;
+        boolean compressedClassPointers = true;
+        int alignment = 8;
+        try {
+            HotSpotDiagnosticMXBean hotspot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            compressedOops = Boolean.parseBoolean(hotspot.getVMOption("UseCompressedOops").getValue());
+            compressedClassPointers = Boolean.parseBoolean(hotspot.getVMOption("UseCompressedClassPointers").getValue());
+            alignment = Integer.parseInt(hotspot.getVMOption("ObjectAlignmentInBytes").getValue());
+        } catch (RuntimeException re) {
+            // HotSpot以外のJVMでは，64ビットのHotSpotの既定値を仮定する
+        }
+        HEADER = compressedClassPointers ? 12 : 16;
+        REFERENCE = compressedOops ? 4 : 8;
+        ALIGNMENT = alignment;
+        CHAR_WIDTH = System.getProperty("java.specification.version").startsWith("1.") ? 2 : 1;
+    }
+
+    /**
+     * TreeMapのエントリの大きさ(key，value，left，right，parent，color)
+     */
+    static final long TREE_MAP_ENTRY = align(HEADER + 5 * REFERENCE + 1);
+
+    /**
+     * TreeMapの大きさ
+     */
+    static final long TREE_MAP = align(HEADER + 7 * REFERENCE + 2 * 4);
+
+    /**
+     * TreeSetの大きさ(内部のTreeMapを除く)
+     */
+    static final long TREE_SET = align(HEADER + REFERENCE);
+
+    /**
+     * ArrayListの大きさ(要素の配列を除く)
+     */
+    static final long ARRAY_LIST = align(HEADER + 2 * 4 + REFERENCE);
+
+    /**
+     * Voxelの大きさ(id，timestamp)
+     */
+    static final long VOXEL = align(HEADER + 4 + 8);
+
+    /**
+     * GroupEntryの大きさ(key，value)
+     */
+    static final long GROUP_ENTRY = align(HEADER + 2 * REFERENCE);
+
+    /**
+     * Longの大きさ
+     */
+    static final long LONG = align(HEADER + 8);
+
+    /**
+     * 文字列の大きさ(文字の配列を除く)
+     */
+    static final long STRING = align(HEADER + REFERENCE + 4 + (CHAR_WIDTH == 1 ? 2 : 0));
+
+    /**
+     * voxelチェインの長さの分布の階級の数（0，1，2，3-4，5-8，...）
+     */
+    private static final int BUCKETS = 33;
+
+    /**
+     * 標本を取得した時点でChainVoxelに適用した操作数
+     */
+    private long operations;
+
+    /**
+     * 空でないvoxelチェイン(atoms)のバイト数
+     */
+    private long atomsBytes;
+
+    /**
+     * 空のvoxelチェインのバイト数
+     */
+    private long emptyChainsBytes;
+
+    /**
+     * 負のvoxel(negativeVoxels)のバイト数
+     */
+    private long negativeVoxelsBytes;
+
+    /**
+     * StructureTableのgroupMembersTableのバイト数
+     */
+    private long groupMembersBytes;
+
+    /**
+     * StructureTableのgroupEntriesTableのバイト数
+     */
+    private long groupEntriesBytes;
+
+    /**
+     * 空でないvoxelチェインの数
+     */
+    private long cells;
+
+    /**
+     * 空のvoxelチェインの数
+     */
+    private long emptyChains;
+
+    /**
+     * voxelチェインに含まれるvoxelの総数
+     */
+    private long voxels;
+
+    /**
+     * 負のvoxelの数
+     */
+    private long negativeVoxels;
+
+    /**
+     * 長さが2以上のvoxelチェイン（競合しているセル）の数
+     */
+    private long conflictingCells;
+
+    /**
+     * voxelチェインの最大の長さ
+     */
+    private int maxChainLength;
+
+    /**
+     * グループの数
+     */
+    private long groups;
+
+    /**
+     * 全てのグループのメンバー数の合計
+     */
+    private long members;
+
+    /**
+     * 全てのvoxelの(gid, ts)の数の合計
+     */
+    private long groupEntries;
+
+    /**
+     * voxelチェインの長さの階級毎のチェインの数
+     */
+    private final long[] chainLengths;
+
+    /**
+     * MemoryFootprintのコンストラクタ
+     * @param operations 標本を取得した時点で適用した操作数
+     */
+    public MemoryFootprint(long operations) {
+        this.operations = operations;
+        this.chainLengths = new long[BUCKETS];
+    }
+
+    /**
+     * オブジェクトの大きさをアラインメントの倍数に切り上げる
+     * @param bytes オブジェクトのフィールドの合計
+     * @return オブジェクトの大きさ
+     */
+    private static long align(long bytes) {
+        return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * 参照の配列の大きさを求める
+     * @param length 配列の長さ
+     * @return 配列の大きさ
+     */
+    private static long referenceArray(int length) {
+        return align(HEADER + 4 + (long) REFERENCE * length);
+    }
+
+    /**
+     * 文字列の大きさを求める
+     * @param s 文字列
+     * @return 文字の配列を含む文字列の大きさ
+     */
+    static long string(String s) {
+        return STRING + align(HEADER + 4 + (long) CHAR_WIDTH * s.length());
+    }
+
+    /**
+     * 要素数から，追加によって拡張されたArrayListの容量を推定する
+     * @param size 要素数
+     * @return 容量
+     */
+    static int capacity(int size) {
+        if (size == 0) {
+            return 0;
+        }
+        int capacity = 10;
+        while (capacity < size) {
+            capacity += capacity >> 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * voxelチェインの長さの階級を求める
+     * @param length voxelチェインの長さ
+     * @return 階級（0は空のチェイン，1は長さ1，k≧2は長さ2^(k-2)+1から2^(k-1)）
+     */
+    static int bucketOf(int length) {
+        return length == 0 ? 0 : 1 + (32 - Integer.numberOfLeadingZeros(length - 1));
+    }
+
+    /**
+     * 階級の表す長さの範囲を文字列で表現する
+     * @param bucket 階級
+     * @return 長さの範囲（例えば"3-4"）
+     */
+    static String bucketLabel(int bucket) {
+        if (bucket <= 2) {
+            return String.valueOf(bucket);
+        }
+        return ((1L << (bucket - 2)) + 1) + "-" + (1L << (bucket - 1));
+    }
+
+    /**
+     * ChainVoxelとStructureTableの表(4つのTreeMap)自体を追加する
+     */
+    void addTables() {
+        this.atomsBytes += TREE_MAP;
+        this.negativeVoxelsBytes += TREE_MAP;
+        this.groupMembersBytes += TREE_MAP;
+        this.groupEntriesBytes += TREE_MAP;
+    }
+
+    /**
+     * posIDに対応するvoxelチェインを追加する
+     * @param posID voxelの識別子
+     * @param length voxelチェインの長さ
+     */
+    void addChain(String posID, int length) {
+        long bytes = TREE_MAP_ENTRY + string(posID) + ARRAY_LIST + VOXEL * length;
+        int capacity = capacity(length);
+        if (capacity > 0) {
+            bytes += referenceArray(capacity);
+        }
+        if (length == 0) {
+            this.emptyChains++;
+            this.emptyChainsBytes += bytes;
+        } else {
+            this.cells++;
+            this.atomsBytes += bytes;
+            this.voxels += length;
+            if (length > 1) {
+                this.conflictingCells++;
+            }
+            this.maxChainLength = Math.max(this.maxChainLength, length);
+        }
+        this.chainLengths[bucketOf(length)]++;
+    }
+
+    /**
+     * posIDに対応する負のvoxelを追加する
+     * @param posID voxelの識別子
+     */
+    void addNegativeVoxel(String posID) {
+        this.negativeVoxels++;
+        this.negativeVoxelsBytes += TREE_MAP_ENTRY + string(posID) + VOXEL;
+    }
+
+    /**
+     * グループ(gid)とそのメンバーを追加する
+     * @param gid グループ識別子
+     * @param groupMembers グループメンバー(posID)の集合
+     */
+    void addGroup(String gid, TreeSet<String> groupMembers) {
+        long bytes = TREE_MAP_ENTRY + string(gid) + TREE_SET + TREE_MAP;
+        for (String posID : groupMembers) {
+            bytes += TREE_MAP_ENTRY + string(posID);
+        }
+        this.groups++;
+        this.members += groupMembers.size();
+        this.groupMembersBytes += bytes;
+    }
+
+    /**
+     * voxel(posID)が所属しているグループ(gid, ts)を追加する
+     * @param posID voxel識別子
+     * @param entries 所属しているグループ(gid, ts)の集合
+     */
+    void addGroupEntries(String posID, TreeSet<GroupEntry<String, Long>> entries) {
+        long bytes = TREE_MAP_ENTRY + string(posID) + TREE_SET + TREE_MAP;
+        for (GroupEntry<String, Long> entry : entries) {
+            bytes += TREE_MAP_ENTRY + GROUP_ENTRY + string(entry.getKey()) + LONG;
+        }
+        this.groupEntries += entries.size();
+        this.groupEntriesBytes += bytes;
+    }
+
+    /**
+     * 他のMemoryFootprintを加える．複数のSiteの合計を求めるために使用する．
+     * @param other 加えるMemoryFootprint
+     */
+    public void add(MemoryFootprint other) {
+        this.operations += other.operations;
+        this.atomsBytes += other.atomsBytes;
+        this.emptyChainsBytes += other.emptyChainsBytes;
+        this.negativeVoxelsBytes += other.negativeVoxelsBytes;
+        this.groupMembersBytes += other.groupMembersBytes;
+        this.groupEntriesBytes += other.groupEntriesBytes;
+        this.cells += other.cells;
+        this.emptyChains += other.emptyChains;
+        this.voxels += other.voxels;
+        this.negativeVoxels += other.negativeVoxels;
+        this.conflictingCells += other.conflictingCells;
+        this.maxChainLength = Math.max(this.maxChainLength, other.maxChainLength);
+        this.groups += other.groups;
+        this.members += other.members;
+        this.groupEntries += other.groupEntries;
+        for (int i = 0; i < BUCKETS; ++i) {
+            this.chainLengths[i] += other.chainLengths[i];
+        }
+    }
+
+    /**
+     * 標本を取得した時点でChainVoxelに適用した操作数を取得する
+     * @return 操作数
+     */
+    public long getOperations() {
+        return this.operations;
+    }
+
+    /**
+     * 空でないvoxelチェイン(キー，ArrayList，配列，Voxelを含む)のバイト数を取得する
+     * @return バイト数
+     */
+    public long getAtomsBytes() {
+        return this.atomsBytes;
+    }
+
+    /**
+     * 空のvoxelチェインのバイト数を取得する
+     * @return バイト数
+     */
+    public long getEmptyChainsBytes() {
+        return this.emptyChainsBytes;
+    }
+
+    /**
+     * 負のvoxelのバイト数を取得する
+     * @return バイト数
+     */
+    public long getNegativeVoxelsBytes() {
+        return this.negativeVoxelsBytes;
+    }
+
+    /**
+     * StructureTableのgroupMembersTableのバイト数を取得する
+     * @return バイト数
+     */
+    public long getGroupMembersBytes() {
+        return this.groupMembersBytes;
+    }
+
+    /**
+     * StructureTableのgroupEntriesTableのバイト数を取得する
+     * @return バイト数
+     */
+    public long getGroupEntriesBytes() {
+        return this.groupEntriesBytes;
+    }
+
+    /**
+     * 全ての構成要素のバイト数の合計を取得する
+     * @return バイト数
+     */
+    public long getTotalBytes() {
+        return this.atomsBytes + this.emptyChainsBytes + this.negativeVoxelsBytes + this.groupMembersBytes + this.groupEntriesBytes;
+    }
+
+    /**
+     * 空でないvoxelチェインの数を取得する
+     * @return セルの数
+     */
+    public long getCells() {
+        return this.cells;
+    }
+
+    /**
+     * 空のvoxelチェインの数を取得する
+     * @return チェインの数
+     */
+    public long getEmptyChains() {
+        return this.emptyChains;
+    }
+
+    /**
+     * voxelチェインに含まれるvoxelの総数を取得する
+     * @return voxelの数
+     */
+    public long getVoxels() {
+        return this.voxels;
+    }
+
+    /**
+     * 負のvoxelの数を取得する
+     * @return 負のvoxelの数
+     */
+    public long getNegativeVoxels() {
+        return this.negativeVoxels;
+    }
+
+    /**
+     * 長さが2以上のvoxelチェイン（競合しているセル）の数を取得する
+     * @return 競合しているセルの数
+     */
+    public long getConflictingCells() {
+        return this.conflictingCells;
+    }
+
+    /**
+     * voxelチェインの最大の長さを取得する
+     * @return 最大の長さ
+     */
+    public int getMaxChainLength() {
+        return this.maxChainLength;
+    }
+
+    /**
+     * グループの数を取得する
+     * @return グループの数
+     */
+    public long getGroups() {
+        return this.groups;
+    }
+
+    /**
+     * 全てのグループのメンバー数の合計を取得する
+     * @return メンバー数
+     */
+    public long getMembers() {
+        return this.members;
+    }
+
+    /**
+     * 全てのvoxelが所属しているグループ(gid, ts)の数の合計を取得する
+     * @return (gid, ts)の数
+     */
+    public long getGroupEntries() {
+        return this.groupEntries;
+    }
+
+    /**
+     * voxelチェインの長さの階級毎のチェインの数を取得する
+     * @return 階級毎のチェインの数（最後の空でない階級まで）
+     * @see #bucketLabel
+     */
+    public long[] getChainLengthHistogram() {
+        int last = BUCKETS;
+        while (last > 0 && this.chainLengths[last - 1] == 0) {
+            last--;
+        }
+        return Arrays.copyOf(this.chainLengths, last);
+    }
+
+    /**
+     * voxelチェインの長さの分布を文字列で表現する
+     * @return 「長さの範囲: チェインの数」の並び（例えば"0: 12, 1: 800, 2: 50, 3-4: 8"，チェインがない場合は"none"）
+     */
+    public String getChainLengthString() {
+        StringBuilder sb = new StringBuilder();
+        long[] histogram = this.getChainLengthHistogram();
+        for (int i = 0; i < histogram.length; ++i) {
+            if (histogram[i] == 0) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(bucketLabel(i)).append(": ").append(histogram[i]);
+        }
+        return sb.length() > 0 ? sb.toString() : "none";
+    }
+}
@@ -34,6 +34,12 @@ public class Operation {
      */
     public static final int LEAVE = 4;
 
+    /**
+     * 操作の共有を終えたことを示す定数（パラメータcountに共有した操作数を持つ）
+     * @see Site#runBehaviorOfChainVoxel
+     */
+    public static final int FIN = 123;
+
     /**
      * appendEntriesを示す定数（Raftのために使用）
      * @see Site#runBehaviorOfRaft
@@ -64,6 +70,42 @@ public class Operation {
      */
     public static final int ACK = 128;
 
+    /**
+     * ゴシップのメッセージを示す定数（パラメータkindにメッセージの種類を持つ）
+     * @see Gossip
+     */
+    public static final int GOSSIP = 129;
+
+    /**
+     * 因果順序に従って配送するための封筒を示す定数（パラメータopsに包んだ操作を持つ）
+     * @see CausalTransport
+     */
+    public static final int CAUSAL = 130;
+
+    /**
+     * 複数の操作をまとめて送信するフレームを示す定数（パラメータopsにまとめた操作を持つ）
+     * @see BatchingTransport
+     */
+    public static final int FRAME = 131;
+
+    /**
+     * AppendEntriesへの応答を示す定数（パラメータmatchに複製したログの長さを持つ）
+     * @see Site#runBehaviorOfPipelinedRaft
+     */
+    public static final int APPEND_RESPONSE = 132;
+
+    /**
+     * トランザクションのコミットを示す定数（パラメータtxにトランザクションの通し番号を持つ）
+     * @see TwoPhaseCommit
+     */
+    public static final int COMMIT = 133;
+
+    /**
+     * トランザクションの中止を示す定数（パラメータtxにトランザクションの通し番号を持つ）
+     * @see TwoPhaseCommit
+     */
+    public static final int ABORT = 134;
+
     /**
      * 操作を行なったSiteの識別子
      */
@@ -87,10 +129,14 @@ public class Operation {
     private String gid;
 
     /**
-     * 操作のタイムスタンプ（作成時に自動的に設定される）
+     * 操作のタイムスタンプ（指定されない場合は作成時の時刻が設定される）
      */
     private long timestamp;
 
+    /**
+     * 操作を生成した時刻(System.nanoTime)．同じJVM内での遅延の計測に使用し，他のプロセスには送信しない（不明な場合は0）
+     */
+    private long generatedAt;
 
     /**
      * 操作のパラメータを保持するマップ
@@ -111,6 +157,60 @@ public class Operation {
         this.posID = posID;
     }
 
+    /**
+     * 指定されたタイプの操作オブジェクトを作成する．<br>
+     * パラメータをフィールドに直接保持するため，パラメータ用のマップを作成しない．
+     * 使用しないパラメータには，sidの場合は-1を，posIDとgidの場合はnullを与える．
+     * 操作に必要なパラメータを満たしていない場合は異常終了させる．
+     * @param opType 操作のタイプ
+     * @param sid 操作を作成したSiteの識別子
+     * @param posID voxelの識別子
+     * @param gid groupの識別子
+     * @see Operation#satisfyRequirements
+     */
+    public Operation(int opType, int sid, String posID, String gid) {
+        this(opType, sid, posID, gid, System.currentTimeMillis());
+    }
+
+    /**
+     * タイムスタンプを指定して操作オブジェクトを作成する．<br>
+     * パラメータをフィールドに直接保持するため，パラメータ用のマップを作成しない．
+     * 使用しないパラメータには，sidの場合は-1を，posIDとgidの場合はnullを与える．
+     * 操作に必要なパラメータを満たしていない場合は異常終了させる．
+     * @param opType 操作のタイプ
+     * @param sid 操作を作成したSiteの識別子
+     * @param posID voxelの識別子
+     * @param gid groupの識別子
+     * @param timestamp 操作のタイムスタンプ
+     * @see HybridLogicalClock
+     */
+    public Operation(int opType, int sid, String posID, String gid, long timestamp) {
+        this(opType, sid, posID, gid, timestamp, 0L);
+    }
+
+    /**
+     * タイムスタンプと生成時刻を指定して操作オブジェクトを作成する．<br>
+     * 生成時刻は同じJVM内で生成から適用までの遅延を計測するために使用し，他のプロセスには送信しない．
+     * @param opType 操作のタイプ
+     * @param sid 操作を作成したSiteの識別子
+     * @param posID voxelの識別子
+     * @param gid groupの識別子
+     * @param timestamp 操作のタイムスタンプ
+     * @param generatedAt 操作を生成した時刻(System.nanoTime)．計測しない場合は0
+     * @see MetricsRecorder
+     */
+    public Operation(int opType, int sid, String posID, String gid, long timestamp, long generatedAt) {
+        this.id = sid;
+        this.opType = opType;
+        this.timestamp = timestamp;
+        this.posID = posID;
+        this.gid = gid;
+        this.generatedAt = generatedAt;
+        if (!this.satisfyFieldRequirements()) {
+            throw new IllegalStateException("Insufficient parameters for operation.");
+        }
+    }
+
     /**
      * 指定されたタイプの操作オブジェクトを作成する．<br>
      * 操作を作成する場合は，操作の種類とパラメータ値を引数に与える．
@@ -120,8 +220,21 @@ public class Operation {
      * @see Operation#satisfyRequirements
      */
     public Operation(int opType, Map<String, Object> params) {
+        this(opType, params, System.currentTimeMillis());
+    }
+
+    /**
+     * タイムスタンプを指定して操作オブジェクトを作成する．<br>
+     * 操作を作成する場合は，操作の種類とパラメータ値を引数に与える．
+     * 操作に必要なパラメータを満たしていない場合は異常終了させる．
+     * @param opType 操作のタイプ
+     * @param params パラメータを保持するマップ
+     * @param timestamp 操作のタイムスタンプ
+     * @see Operation#satisfyRequirements
+     */
+    public Operation(int opType, Map<String, Object> params, long timestamp) {
         this.opType = opType;
-        this.timestamp = System.currentTimeMillis();
+        this.timestamp = timestamp;
         params.put("ts", this.timestamp);
         this.params = params;
         if (!this.satisfyRequirements()) {
@@ -129,23 +242,103 @@ public class Operation {
         }
     }
 
+    /**
+     * 操作のタイプ毎の必要なパラメータ（insertからleaveまで）
+     */
+    private static final String[][] REQUIREMENTS = {
+        {"sid", "ts", "posID"}, // insert
+        {"sid", "ts", "posID"}, // delete
+        {"ts", "gid"}, // create
+        {"ts", "posID", "gid"}, // join
+        {"sid", "ts", "posID", "gid"} // leave
+    };
+
+    /**
+     * 必要なパラメータがない操作のためのパラメータ
+     */
+    private static final String[] NO_REQUIREMENTS = {};
+
+    /**
+     * finに必要なパラメータ
+     */
+    private static final String[] FIN_REQUIREMENTS = {"sid", "ts", "count"};
+
+    /**
+     * gossipに必要なパラメータ
+     */
+    private static final String[] GOSSIP_REQUIREMENTS = {"sid", "ts", "kind"};
+
+    /**
+     * causalに必要なパラメータ
+     */
+    private static final String[] CAUSAL_REQUIREMENTS = {"sid", "ts", "seq", "deps", "ops"};
+
+    /**
+     * frameに必要なパラメータ
+     */
+    private static final String[] FRAME_REQUIREMENTS = {"sid", "ts", "ops"};
+
+    /**
+     * append responseに必要なパラメータ
+     */
+    private static final String[] APPEND_RESPONSE_REQUIREMENTS = {"sid", "ts", "match"};
+
+    /**
+     * commitとabortに必要なパラメータ
+     */
+    private static final String[] DECISION_REQUIREMENTS = {"sid", "ts", "tx"};
+
+    /**
+     * 操作のタイプに必要なパラメータを返す．新しい操作を定義する場合は，操作に必要なパラメータ条件を追加する．
+     * @param opType 操作のタイプ
+     * @return 必要なパラメータ名の配列（共有されるため変更してはいけない）
+     */
+    private static String[] requirementsOf(int opType) {
+        if (opType >= 0 && opType < REQUIREMENTS.length) {
+            return REQUIREMENTS[opType];
+        }
+        switch (opType) {
+            case FIN: return FIN_REQUIREMENTS;
+            case GOSSIP: return GOSSIP_REQUIREMENTS;
+            case CAUSAL: return CAUSAL_REQUIREMENTS;
+            case FRAME: return FRAME_REQUIREMENTS;
+            case APPEND_RESPONSE: return APPEND_RESPONSE_REQUIREMENTS;
+            case COMMIT: case ABORT: return DECISION_REQUIREMENTS;
+            default: return NO_REQUIREMENTS;
+        }
+    }
+
+    /**
+     * パラメータをフィールドに保持する操作が，必要なパラメータを満たしているか判定する．<br>
+     * 操作生成器が操作毎に呼び出すため，配列を辿らずにフィールドを直接確認する．
+     * @return 操作に必要なパラメータを満たしているかの真偽値
+     * @see #satisfyRequirements
+     */
+    private boolean satisfyFieldRequirements() {
+        switch (this.opType) {
+            case INSERT:
+            case DELETE:
+                return this.id != -1 && this.posID != null;
+            case CREATE:
+                return this.gid != null;
+            case JOIN:
+                return this.posID != null && this.gid != null;
+            case LEAVE:
+                return this.id != -1 && this.posID != null && this.gid != null;
+            default:
+                return this.satisfyRequirements();
+        }
+    }
+
     /**
      * 必要なパラメータを満たしているか判定する． <br>
-     * 新しい操作を定義する場合は，操作に必要なパラメータ条件を追加する．
      * 操作に必要なパラメータを満たしている場合はtrueを返す．満たしていない場合はfalseを返す．
      * @return 操作に必要なパラメータを満たしているかの真偽値
+     * @see #requirementsOf
      */
     private boolean satisfyRequirements() {
-        String[][] requirements = {
-            {"sid", "ts", "posID"}, // insert
-            {"sid", "ts", "posID"}, // delete
-            {"ts", "gid"}, // create
-            {"ts", "posID", "gid"}, // join
-            {"sid", "ts", "posID", "gid"} // leave
-        };
-
-        for (String requirement : requirements[this.opType]) {
-            if (!this.params.containsKey(requirement)) {
+        for (String requirement : requirementsOf(this.opType)) {
+            if (!this.hasParam(requirement)) {
                return false;
             } 
         }
@@ -153,6 +346,24 @@ public class Operation {
         return true;
     }
 
+    /**
+     * 指定したパラメータを保持しているか判定する．
+     * @param name パラメータ名
+     * @return パラメータを保持している場合はtrueを返す．それ以外はfalseを返す．
+     */
+    private boolean hasParam(String name) {
+        if (this.params != null) {
+            return this.params.containsKey(name);
+        }
+        switch (name) {
+            case "sid": return this.id != -1;
+            case "ts": return true;
+            case "posID": return this.posID != null;
+            case "gid": return this.gid != null;
+            default: return false;
+        }
+    }
+
     /* Not exist setter method. Because, class field should not be changed since init. */
 
     /**
@@ -160,7 +371,10 @@ public class Operation {
      * @return Siteの識別子
      */
     public int getId() {
-        return this.id != -1 ? this.id : (int) this.params.get("sid");
+        if (this.id != -1 || this.params == null) {
+            return this.id;
+        }
+        return (int) this.params.get("sid");
     }
 
     /**
@@ -176,7 +390,15 @@ public class Operation {
      * @return voxelの識別子
      */
     public String getPosID() {
-        return this.posID != null ? this.posID : (String) this.params.get("posID");
+        return this.posID != null ? this.posID : (this.params != null ? (String) this.params.get("posID") : null);
+    }
+
+    /**
+     * groupの識別子を返す．
+     * @return groupの識別子
+     */
+    public String getGid() {
+        return this.gid != null ? this.gid : (this.params != null ? (String) this.params.get("gid") : null);
     }
 
     /**
@@ -187,12 +409,38 @@ public class Operation {
         return this.timestamp;
     }
 
+    /**
+     * 操作を生成した時刻を返す．
+     * @return 操作を生成した時刻(System.nanoTime)．他のプロセスから受信した操作など，不明な場合は0
+     * @see MetricsRecorder
+     */
+    public long getGeneratedAt() {
+        return this.generatedAt;
+    }
+
+    /**
+     * パラメータを保持するマップを返す．パラメータをフィールドに保持している操作の場合はnullを返す．
+     * @return パラメータを保持するマップ
+     */
+    Map<String, Object> getParams() {
+        return this.params;
+    }
+
     /**
      * 指定したパラメータの値を取得する
      * @param name パラメータ名
      * @return パラメータの値
      */
     public Object getParam(String name) {
-        return this.params.get(name);
+        if (this.params != null) {
+            return this.params.get(name);
+        }
+        switch (name) {
+            case "sid": return this.id != -1 ? this.id : null;
+            case "ts": return this.timestamp;
+            case "posID": return this.posID;
+            case "gid": return this.gid;
+            default: return null;
+        }
     }
 }
@@ -0,0 +1,143 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 送信前の操作をposID毎にまとめ，冗長な操作を取り除くクラス．<br>
+ * <br>
+ * 指定された操作数(ウィンドウ)の間に生成された操作をposID毎に保持し，実際に効果のある操作だけを送信する．
+ * <ul>
+ * <li>insertの後のinsertは，最新のinsertだけを残す</li>
+ * <li>deleteは，それ以前に保持しているinsertとdeleteを全て置き換える（新しい負のvoxelが古いvoxelを全て削除するため）</li>
+ * <li>deleteの後のinsertは，deleteとinsertの両方を残す（他Siteの古いvoxelを削除する必要があるため）</li>
+ * </ul>
+ * 構造層の操作(create, join, leave)はまとめずに，保持している操作を全て送信してから送信する．
+ * これにより，構造層の操作とプリミティブ層の操作の順序は保たれる．<br>
+ * 自Siteへの操作(local operation)にも同じ結果を適用することで，全てのSiteが同じ操作集合を受け取り，ChainVoxelの収束性は保たれる．
+ * @author kengo92i
+ */
+public class OperationCoalescer {
+    /**
+     * まとめる操作数（ウィンドウサイズ）
+     */
+    private final int window;
+
+    /**
+     * posID毎に保持している操作．[0]がdelete，[1]がinsertを表す．
+     */
+    private final LinkedHashMap<String, Operation[]> pending;
+
+    /**
+     * 使い回すための操作の保持領域
+     */
+    private final List<Operation[]> freeSlots;
+
+    /**
+     * 現在のウィンドウで受け取った操作数
+     */
+    private int count;
+
+    /**
+     * 受け取った操作の総数
+     */
+    private long numberOfOfferedOperations;
+
+    /**
+     * 送信した操作の総数
+     */
+    private long numberOfEmittedOperations;
+
+    /**
+     * 指定されたウィンドウサイズで操作をまとめるOperationCoalescerを作成する．
+     * @param window まとめる操作数
+     */
+    public OperationCoalescer(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be positive: " + window);
+        }
+        this.window = window;
+        this.pending = new LinkedHashMap<String, Operation[]>();
+        this.freeSlots = new ArrayList<Operation[]>();
+        this.count = 0;
+        this.numberOfOfferedOperations = 0;
+        this.numberOfEmittedOperations = 0;
+    }
+
+    /**
+     * 操作を受け取る．ウィンドウが一杯になった場合は，送信する操作をoutに追加する．
+     * @param op 操作オブジェクト
+     * @param out 送信する操作を追加するリスト
+     * @see Operation
+     */
+    public void offer(Operation op, List<Operation> out) {
+        this.numberOfOfferedOperations++;
+        int opType = op.getOpType();
+        if (opType != Operation.INSERT && opType != Operation.DELETE) {
+            this.flush(out);
+            this.emit(op, out);
+            return;
+        }
+
+        String posID = op.getPosID();
+        Operation[] slot = this.pending.get(posID);
+        if (slot == null) {
+            slot = this.freeSlots.isEmpty() ? new Operation[2] : this.freeSlots.remove(this.freeSlots.size() - 1);
+            this.pending.put(posID, slot);
+        }
+
+        if (opType == Operation.DELETE) {
+            slot[0] = op;
+            slot[1] = null;
+        } else {
+            slot[1] = op;
+        }
+
+        if (++this.count >= this.window) {
+            this.flush(out);
+        }
+    }
+
+    /**
+     * 保持している操作を全てoutに追加する．
+     * @param out 送信する操作を追加するリスト
+     */
+    public void flush(List<Operation> out) {
+        for (Map.Entry<String, Operation[]> e : this.pending.entrySet()) {
+            Operation[] slot = e.getValue();
+            if (slot[0] != null) this.emit(slot[0], out);
+            if (slot[1] != null) this.emit(slot[1], out);
+            slot[0] = null;
+            slot[1] = null;
+            this.freeSlots.add(slot);
+        }
+        this.pending.clear();
+        this.count = 0;
+    }
+
+    /**
+     * 操作を送信する操作としてoutに追加する．
+     * @param op 操作オブジェクト
+     * @param out 送信する操作を追加するリスト
+     */
+    private void emit(Operation op, List<Operation> out) {
+        out.add(op);
+        this.numberOfEmittedOperations++;
+    }
+
+    /**
+     * 受け取った操作の総数を返す．
+     * @return 受け取った操作の総数
+     */
+    public long getNumberOfOfferedOperations() {
+        return this.numberOfOfferedOperations;
+    }
+
+    /**
+     * 送信した操作の総数を返す．
+     * @return 送信した操作の総数
+     */
+    public long getNumberOfEmittedOperations() {
+        return this.numberOfEmittedOperations;
+    }
+}
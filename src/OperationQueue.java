@@ -1,15 +1,61 @@
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Collection;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Simulator上で共有される操作オブジェクトを管理するクラス <br>
- * Simulator上でSiteを作成する場合に，このクラスのインスタンスを渡すことで，操作の共有が行なえる．
+ * Simulator上でSiteを作成する場合に，このクラスのインスタンスを渡すことで，操作の共有が行なえる．<br>
+ * 宛先毎のQueueはロックを使用しないMPSCキューであり，OperationQueue全体のロックは存在しない．
+ * 任意のSiteがenqueueできるが，dequeueとclearは宛先のSite(消費者)からのみ呼び出す．<br>
+ * broadcastされた操作は宛先毎のQueueには格納せず，全Siteで共有するBroadcastLogに1度だけ追加する．
+ * 各Siteはdequeue時にBroadcastLogを先に確認し，その後に宛先毎のQueueを確認する．
+ * そのため，同じ送信元からのbroadcastとsendの間の順序は保証されない．<br>
+ * タイムアウトを指定したdequeueとdrainToは，操作が届くまで呼び出したスレッドをparkして待機する．<br>
+ * <br>
+ * 容量を設定した場合は，宛先毎の未受信の操作数(共有ログの未読分を含む)が容量を超えないように，
+ * 設定された方針({@link #BLOCK}，{@link #FAIL}，{@link #SPILL})に従って送信を制御する．
+ * 容量の確認と追加は不可分ではないため，同時に送信するSite数の分だけ容量を超えることがある．<br>
+ * 宛先毎に，未受信の操作数の最大値(高水位標)，送信の待機回数と待機時間，退避・拒否した操作数を記録する．
+ * 高水位標は宛先のSiteがdequeueする時点の未受信の操作数から求める．
  * @author kengo92i
+ * @see MpscQueue
+ * @see BroadcastLog
+ * @see SpillQueue
+ * @see Transport
  */
-public class OperationQueue {
+public class OperationQueue implements Transport {
+    /**
+     * 容量を超えた場合に，空きができるまで送信元を待機させる方針を示す定数
+     */
+    public static final int BLOCK = 0;
+
+    /**
+     * 容量を超えた場合に，IllegalStateExceptionを投げて送信を失敗させる方針を示す定数
+     */
+    public static final int FAIL = 1;
+
+    /**
+     * 容量を超えた場合に，操作を一時ファイルに退避する方針を示す定数
+     */
+    public static final int SPILL = 2;
+
+    /**
+     * 送信元を待機させる際の1回あたりのpark時間(ナノ秒)
+     */
+    private static final long BACKOFF_NANOS = 50000L;
+
+    /**
+     * 宛先毎の計測値を格納する際の間隔（false sharingを避けるため）
+     */
+    private static final int STRIDE = 16;
+
     /**
      * Siteの総数
      */
@@ -18,7 +64,77 @@ public class OperationQueue {
     /**
      * 操作オブジェクトを管理するQueueのリスト    
      */
-    List<LinkedBlockingQueue<Operation>> opq;
+    List<MpscQueue<Operation>> opq;
+
+    /**
+     * broadcastされた操作を管理する共有ログ
+     */
+    BroadcastLog log;
+
+    /**
+     * 識別子に対応するQueueで操作を待機しているスレッド
+     */
+    AtomicReferenceArray<Thread> waiters;
+
+    /**
+     * 操作を待機しているスレッドの数
+     */
+    AtomicInteger numberOfWaiters;
+
+    /**
+     * park する前にQueueを確認する回数
+     */
+    int spinCount = 0;
+
+    /**
+     * 宛先毎の容量（0の場合は容量を制限しない）
+     */
+    int capacity = 0;
+
+    /**
+     * 容量を超えた場合の方針
+     */
+    int policy = BLOCK;
+
+    /**
+     * 宛先毎の退避用キュー（最初に退避が必要になった時に作成する）
+     */
+    AtomicReferenceArray<SpillQueue> spills;
+
+    /**
+     * 宛先毎の未受信の操作数の最大値（容量を設定した場合だけ記録する．インデックスid*STRIDEを使用する）
+     */
+    AtomicLongArray highWaterMarks;
+
+    /**
+     * 宛先毎の送信が待機した回数（インデックスid*STRIDEを使用する）
+     */
+    AtomicLongArray blockedEnqueues;
+
+    /**
+     * 宛先毎の送信が待機した合計時間(ナノ秒)（インデックスid*STRIDEを使用する）
+     */
+    AtomicLongArray enqueueWaitNanos;
+
+    /**
+     * 宛先毎の送信が待機した最大時間(ナノ秒)（インデックスid*STRIDEを使用する）
+     */
+    AtomicLongArray maxEnqueueWaitNanos;
+
+    /**
+     * 宛先毎の拒否した操作数（インデックスid*STRIDEを使用する）
+     */
+    AtomicLongArray rejectedOperations;
+
+    /**
+     * Queue毎の，空のQueueで受信が待機した回数（インデックスid*STRIDEを使用する）
+     */
+    AtomicLongArray dequeueWaits;
+
+    /**
+     * Queue毎の，空のQueueで受信が待機した合計時間(ナノ秒)（インデックスid*STRIDEを使用する）
+     */
+    AtomicLongArray dequeueWaitNanos;
 
     /**
      * OperationQueueのコンストラクタ
@@ -26,12 +142,44 @@ public class OperationQueue {
      */    
     public OperationQueue(int n) {
         this.numberOfSites = n;    
-        this.opq = new ArrayList<LinkedBlockingQueue<Operation>>();
+        this.opq = new ArrayList<MpscQueue<Operation>>();
+        this.log = new BroadcastLog(n);
+        this.waiters = new AtomicReferenceArray<Thread>(n);
+        this.numberOfWaiters = new AtomicInteger();
+        this.spills = new AtomicReferenceArray<SpillQueue>(n);
+        this.highWaterMarks = new AtomicLongArray((n + 1) * STRIDE);
+        this.blockedEnqueues = new AtomicLongArray((n + 1) * STRIDE);
+        this.enqueueWaitNanos = new AtomicLongArray((n + 1) * STRIDE);
+        this.maxEnqueueWaitNanos = new AtomicLongArray((n + 1) * STRIDE);
+        this.rejectedOperations = new AtomicLongArray((n + 1) * STRIDE);
+        this.dequeueWaits = new AtomicLongArray((n + 1) * STRIDE);
+        this.dequeueWaitNanos = new AtomicLongArray((n + 1) * STRIDE);
     
         for (int i = 0; i < this.numberOfSites; ++i) {
-            this.opq.add(new LinkedBlockingQueue<Operation>());
+            this.opq.add(new MpscQueue<Operation>());
         }
     }
+
+    /**
+     * 宛先毎の容量と，容量を超えた場合の方針を設定する．
+     * @param capacity 宛先毎の容量（0の場合は容量を制限しない）
+     * @param policy 容量を超えた場合の方針（{@link #BLOCK}，{@link #FAIL}，{@link #SPILL}）
+     */
+    public void setCapacity(int capacity, int policy) {
+        if (policy != BLOCK && policy != FAIL && policy != SPILL) {
+            throw new IllegalArgumentException("Unknown backpressure policy: " + policy);
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * 操作を待機する際に，parkする前にQueueを確認する回数を設定する．
+     * @param spinCount parkする前にQueueを確認する回数
+     */
+    public void setSpinCount(int spinCount) {
+        this.spinCount = spinCount;
+    }
     
     /**
      * 現在シュミレータ上に存在しているSiteの総数を返す.
@@ -46,26 +194,382 @@ public class OperationQueue {
      * @param dest Queueの識別子
      * @param op 操作オブジェクト
      */
-    public synchronized void enqueue(int dest, Operation op) {
-        (this.opq.get(dest)).add(op);
+    public void enqueue(int dest, Operation op) {
+        this.enqueue(dest, op, null);
     }
-    
+
+    /**
+     * 識別子に対応するQueueに操作オブジェクトをenqueueする．<br>
+     * 容量を超えている場合は設定された方針に従う．{@link #BLOCK}の場合は，待機中にwhileBlockedを繰り返し実行する．
+     * @param dest Queueの識別子
+     * @param op 操作オブジェクト
+     * @param whileBlocked 待機中に実行する処理（null可）
+     * @throws IllegalStateException 方針が{@link #FAIL}で容量を超えている場合
+     * @throws CancellationException {@link #BLOCK}で待機中にスレッドが割り込まれた場合
+     */
+    public void enqueue(int dest, Operation op, Runnable whileBlocked) {
+        if (this.capacity > 0) {
+            SpillQueue spill = this.spills.get(dest);
+            if (spill != null && !spill.isEmpty()) { // 退避中の操作より先に受信されないようにする
+                spill.add(op);
+                this.wakeUp(dest);
+                return;
+            }
+            if (this.size(dest) >= this.capacity && this.handleFull(dest, op, whileBlocked)) {
+                return;
+            }
+        }
+        (this.opq.get(dest)).offer(op);
+        this.wakeUp(dest);
+    }
+
+    /**
+     * 宛先のQueueに操作オブジェクトをenqueueする．送信元は使用しない．
+     * @param src 送信元Siteの識別子
+     * @param dest 宛先Siteの識別子
+     * @param op 操作オブジェクト
+     * @param whileBlocked 待機中に実行する処理（null可）
+     * @see #enqueue(int, Operation, Runnable)
+     */
+    public void send(int src, int dest, Operation op, Runnable whileBlocked) {
+        this.enqueue(dest, op, whileBlocked);
+    }
+
+    /**
+     * 送信元を除く全てのSiteに操作オブジェクトを共有する．<br>
+     * 操作オブジェクトは共有ログに1度だけ追加される．
+     * @param src 送信元Siteの識別子
+     * @param op 操作オブジェクト
+     * @see BroadcastLog#publish
+     */
+    public void broadcast(int src, Operation op) {
+        this.broadcast(src, op, null);
+    }
+
+    /**
+     * 送信元を除く全てのSiteに操作オブジェクトを共有する．<br>
+     * 操作オブジェクトは共有ログに1度だけ追加される．
+     * いずれかの宛先が容量を超えている場合は設定された方針に従う．
+     * {@link #SPILL}の場合は，この操作に限り宛先毎のQueueまたは退避用キューに個別に格納する．
+     * @param src 送信元Siteの識別子
+     * @param op 操作オブジェクト
+     * @param whileBlocked 待機中に実行する処理（null可）
+     * @throws IllegalStateException 方針が{@link #FAIL}で容量を超えている場合
+     * @see BroadcastLog#publish
+     */
+    public void broadcast(int src, Operation op, Runnable whileBlocked) {
+        if (this.capacity > 0 && this.log.getNumberOfPublishedOperations() - this.log.getCachedMinimumCursor() >= this.capacity) {
+            int fullest = this.findFullDestination(src);
+            if (fullest >= 0) {
+                if (this.policy == SPILL) {
+                    for (int i = 0; i < this.numberOfSites; ++i) {
+                        if (i != src) this.enqueue(i, op, null);
+                    }
+                    return;
+                }
+                this.handleFull(fullest, op, whileBlocked, src);
+            }
+        }
+
+        this.log.publish(src, op);
+        if (this.numberOfWaiters.get() == 0) {
+            return;
+        }
+        for (int i = 0; i < this.numberOfSites; ++i) {
+            if (i != src) this.wakeUp(i);
+        }
+    }
+
+    /**
+     * 宛先のQueueが容量を超えている場合の処理を行う．
+     * @param dest Queueの識別子
+     * @param op 操作オブジェクト
+     * @param whileBlocked 待機中に実行する処理（null可）
+     * @return 操作を退避した場合はtrue，Queueに格納する必要がある場合はfalse
+     */
+    private boolean handleFull(int dest, Operation op, Runnable whileBlocked) {
+        if (this.policy == SPILL) {
+            this.getSpillQueue(dest).add(op);
+            this.wakeUp(dest);
+            return true;
+        }
+        this.handleFull(dest, op, whileBlocked, -1);
+        return false;
+    }
+
+    /**
+     * 方針が{@link #BLOCK}の場合は容量に空きができるまで待機し，{@link #FAIL}の場合は例外を投げる．
+     * @param dest 容量を超えているQueueの識別子
+     * @param op 操作オブジェクト
+     * @param whileBlocked 待機中に実行する処理（null可）
+     * @param src broadcastの送信元Siteの識別子（broadcastでない場合は-1）
+     */
+    private void handleFull(int dest, Operation op, Runnable whileBlocked, int src) {
+        int index = dest * STRIDE;
+        if (this.policy == FAIL) {
+            this.rejectedOperations.getAndIncrement(index);
+            throw new IllegalStateException("OperationQueue is full: site " + dest + " has " + this.size(dest) + " pending operations.");
+        }
+
+        FlightRecorderEvents.QueueWait event = new FlightRecorderEvents.QueueWait();
+        event.begin();
+        long start = System.nanoTime();
+        while (src < 0 ? this.size(dest) >= this.capacity : this.findFullDestination(src) >= 0) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("Interrupted while waiting for site " + dest + " to receive operations.");
+            }
+            if (whileBlocked != null) {
+                whileBlocked.run();
+            }
+            LockSupport.parkNanos(this, BACKOFF_NANOS);
+        }
+        long waited = System.nanoTime() - start;
+        this.blockedEnqueues.getAndIncrement(index);
+        this.enqueueWaitNanos.getAndAdd(index, waited);
+        long max;
+        while ((max = this.maxEnqueueWaitNanos.get(index)) < waited && !this.maxEnqueueWaitNanos.compareAndSet(index, max, waited)) {}
+        event.end();
+        if (event.shouldCommit()) {
+            event.site = dest;
+            event.kind = "enqueue";
+            event.commit();
+        }
+    }
+
+    /**
+     * 送信元を除いて，未受信の操作数が最も多く，容量を超えている宛先を探す．
+     * @param src 送信元Siteの識別子
+     * @return 容量を超えている宛先の識別子．存在しない場合は-1を返す．
+     */
+    private int findFullDestination(int src) {
+        this.log.refreshMinimumCursor();
+        int fullest = -1;
+        int max = this.capacity - 1;
+        for (int i = 0; i < this.numberOfSites; ++i) {
+            if (i == src) continue;
+            int size = this.size(i);
+            if (size > max) {
+                max = size;
+                fullest = i;
+            }
+        }
+        return fullest;
+    }
+
+    /**
+     * 宛先の退避用キューを取得する．存在しない場合は作成する．
+     * @param dest Queueの識別子
+     * @return 退避用キュー
+     */
+    private synchronized SpillQueue getSpillQueue(int dest) {
+        SpillQueue spill = this.spills.get(dest);
+        if (spill == null) {
+            spill = new SpillQueue("opq-" + dest + "-");
+            this.spills.set(dest, spill);
+        }
+        return spill;
+    }
+
+    /**
+     * 宛先のQueueで待機しているスレッドがあれば起こす．
+     * @param dest Queueの識別子
+     */
+    private void wakeUp(int dest) {
+        Thread waiter = this.waiters.get(dest);
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * 識別子に対応するQueueから操作オブジェクトをdequeueする．<br>
+     * Queueの要素が空の場合はnullを返す．drainToと同じ順序(ログ，Queue，退避用キュー)で，バッファを作成せずに1つだけ取り出す．
+     * @param id Queueの識別子
+     * @return 操作オブジェクト
+     */
+    public Operation dequeue(int id) {
+        this.sampleHighWaterMark(id);
+        Operation op = this.log.poll(id);
+        if (op == null) {
+            op = (this.opq.get(id)).poll();
+        }
+        if (op == null) {
+            SpillQueue spill = this.spills.get(id);
+            if (spill != null) {
+                op = spill.poll();
+            }
+        }
+        return op;
+    }
+
+    /**
+     * 容量を設定している場合に，未受信の操作数の最大値を更新する．<br>
+     * 未受信の操作数は送信側のキャッシュラインを読むため，容量を設定していない場合は受信の度に確認しない．
+     * @param id Queueの識別子
+     */
+    private void sampleHighWaterMark(int id) {
+        if (this.capacity <= 0) {
+            return;
+        }
+        int index = id * STRIDE;
+        long depth = this.size(id);
+        if (depth > this.highWaterMarks.get(index)) {
+            this.highWaterMarks.lazySet(index, depth);
+        }
+    }
+
+    /**
+     * 識別子に対応するQueueから最大max個の操作オブジェクトをまとめてdequeueし，bufferに追加する．
+     * @param id Queueの識別子
+     * @param buffer 操作オブジェクトを追加するコレクション
+     * @param max dequeueする操作オブジェクトの最大数
+     * @return dequeueした操作オブジェクトの数
+     */
+    public int drainTo(int id, Collection<? super Operation> buffer, int max) {
+        this.sampleHighWaterMark(id);
+
+        int n = this.log.drainTo(id, buffer, max);
+        if (n < max) {
+            n += (this.opq.get(id)).drainTo(buffer, max - n);
+        }
+        SpillQueue spill = this.spills.get(id);
+        if (n < max && spill != null) {
+            n += spill.drainTo(buffer, max - n);
+        }
+        return n;
+    }
+
     /**
      * 識別子に対応するQueueから操作オブジェクトをdequeueする．<br>
-     * Queueの要素が空の場合はnullを返す
+     * Queueが空の場合は，操作が届くかタイムアウトするまで待機する．タイムアウトした場合はnullを返す．
      * @param id Queueの識別子
+     * @param timeout 待機する最大時間
+     * @param unit timeoutの単位
      * @return 操作オブジェクト
      */
-    public synchronized Operation dequeue(int id) {
-        return (this.opq.get(id)).poll();
+    public Operation dequeue(int id, long timeout, TimeUnit unit) {
+        Operation op = this.dequeue(id);
+        if (op != null || timeout <= 0) {
+            return op;
+        }
+
+        for (int i = 0; i < this.spinCount; ++i) {
+            if ((op = this.dequeue(id)) != null) {
+                return op;
+            }
+        }
+
+        FlightRecorderEvents.QueueWait event = new FlightRecorderEvents.QueueWait();
+        event.begin();
+        long start = this.beginWait(id);
+        long deadline = start + unit.toNanos(timeout);
+        Thread current = Thread.currentThread();
+        try {
+            while (true) {
+                // 待機スレッドを登録した後に再確認することで，通知の取りこぼしを防ぐ
+                if ((op = this.dequeue(id)) != null) {
+                    return op;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || current.isInterrupted()) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            this.endWait(id, start, event, op != null ? 1 : 0);
+        }
+    }
+
+    /**
+     * 識別子に対応するQueueから最大max個の操作オブジェクトをまとめてdequeueし，bufferに追加する．<br>
+     * Queueが空の場合は，設定された回数だけQueueを確認した後，操作が届くかタイムアウトするまでスレッドをparkして待機する．
+     * タイムアウトした場合やスレッドが割り込まれた場合は0を返す．
+     * parkして待機した回数と時間を数え，JFRが記録している場合は{@link FlightRecorderEvents.QueueWait}イベントを記録する．
+     * @param id Queueの識別子
+     * @param buffer 操作オブジェクトを追加するコレクション
+     * @param max dequeueする操作オブジェクトの最大数
+     * @param timeout 待機する最大時間
+     * @param unit timeoutの単位
+     * @return dequeueした操作オブジェクトの数
+     */
+    public int drainTo(int id, Collection<? super Operation> buffer, int max, long timeout, TimeUnit unit) {
+        int n = this.drainTo(id, buffer, max);
+        if (n > 0 || timeout <= 0) {
+            return n;
+        }
+
+        for (int i = 0; i < this.spinCount; ++i) {
+            if ((n = this.drainTo(id, buffer, max)) > 0) {
+                return n;
+            }
+        }
+
+        FlightRecorderEvents.QueueWait event = new FlightRecorderEvents.QueueWait();
+        event.begin();
+        long start = this.beginWait(id);
+        long deadline = start + unit.toNanos(timeout);
+        Thread current = Thread.currentThread();
+        try {
+            while (true) {
+                // 待機スレッドを登録した後に再確認することで，通知の取りこぼしを防ぐ
+                if ((n = this.drainTo(id, buffer, max)) > 0) {
+                    return n;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || current.isInterrupted()) {
+                    return 0;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            this.endWait(id, start, event, n);
+        }
+    }
+
+    /**
+     * 受信を待機するスレッドとして現在のスレッドを登録する．
+     * @param id Queueの識別子
+     * @return 待機を開始した時刻(System.nanoTime)
+     */
+    private long beginWait(int id) {
+        this.waiters.set(id, Thread.currentThread());
+        this.numberOfWaiters.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * 待機スレッドの登録を解除し，待機した回数と時間を記録する．
+     * @param id Queueの識別子
+     * @param start 待機を開始した時刻(System.nanoTime)
+     * @param event 待機を記録するJFRのイベント
+     * @param n 待機した後に受信した操作数
+     */
+    private void endWait(int id, long start, FlightRecorderEvents.QueueWait event, int n) {
+        this.waiters.set(id, null);
+        this.numberOfWaiters.decrementAndGet();
+        this.dequeueWaits.getAndIncrement(id * STRIDE);
+        this.dequeueWaitNanos.getAndAdd(id * STRIDE, System.nanoTime() - start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.site = id;
+            event.kind = "dequeue";
+            event.operations = n;
+            event.commit();
+        }
     }
 
     /**
      * 識別子に対応するQueueを空にする．
      * @param id Queueの識別子
      */    
-    public synchronized void clear(int id) {
+    public void clear(int id) {
+        this.log.clear(id);
         (this.opq.get(id)).clear();
+        SpillQueue spill = this.spills.get(id);
+        if (spill != null) {
+            spill.drainTo(new ArrayList<Operation>(), Integer.MAX_VALUE);
+        }
     }
 
     /**
@@ -74,7 +578,8 @@ public class OperationQueue {
      * @return Queueの容量
      */
     public int size(int id) {
-        return (this.opq.get(id)).size();
+        SpillQueue spill = this.spills.get(id);
+        return this.log.size(id) + (this.opq.get(id)).size() + (spill != null ? spill.size() : 0);
     }
 
     /**
@@ -86,4 +591,86 @@ public class OperationQueue {
         return this.size(id) == 0;    
     }
 
+    /**
+     * 識別子に対応するQueueの未受信の操作数の最大値(高水位標)を返す
+     * @param id Queueの識別子
+     * @return 未受信の操作数の最大値（容量を設定していない場合は0）
+     */
+    public long getHighWaterMark(int id) {
+        return this.highWaterMarks.get(id * STRIDE);
+    }
+
+    /**
+     * 識別子に対応するQueueへの送信が待機した回数を返す
+     * @param id Queueの識別子
+     * @return 送信が待機した回数
+     */
+    public long getNumberOfBlockedEnqueues(int id) {
+        return this.blockedEnqueues.get(id * STRIDE);
+    }
+
+    /**
+     * 識別子に対応するQueueへの送信が待機した合計時間を返す
+     * @param id Queueの識別子
+     * @return 送信が待機した合計時間(ナノ秒)
+     */
+    public long getEnqueueWaitNanos(int id) {
+        return this.enqueueWaitNanos.get(id * STRIDE);
+    }
+
+    /**
+     * 識別子に対応するQueueへの送信が待機した最大時間を返す
+     * @param id Queueの識別子
+     * @return 送信が待機した最大時間(ナノ秒)
+     */
+    public long getMaxEnqueueWaitNanos(int id) {
+        return this.maxEnqueueWaitNanos.get(id * STRIDE);
+    }
+
+    /**
+     * 識別子に対応するQueueに送信できずに拒否した操作数を返す
+     * @param id Queueの識別子
+     * @return 拒否した操作数
+     */
+    public long getNumberOfRejectedOperations(int id) {
+        return this.rejectedOperations.get(id * STRIDE);
+    }
+
+    /**
+     * 識別子に対応するQueueで，空のQueueから受信するためにparkして待機した回数を返す
+     * @param id Queueの識別子
+     * @return 受信が待機した回数
+     */
+    public long getNumberOfDequeueWaits(int id) {
+        return this.dequeueWaits.get(id * STRIDE);
+    }
+
+    /**
+     * 識別子に対応するQueueで，空のQueueから受信するためにparkして待機した合計時間を返す
+     * @param id Queueの識別子
+     * @return 受信が待機した合計時間(ナノ秒)
+     */
+    public long getDequeueWaitNanos(int id) {
+        return this.dequeueWaitNanos.get(id * STRIDE);
+    }
+
+    /**
+     * 識別子に対応するQueueのために一時ファイルに退避した操作数を返す
+     * @param id Queueの識別子
+     * @return 退避した操作数
+     */
+    public long getNumberOfSpilledOperations(int id) {
+        SpillQueue spill = this.spills.get(id);
+        return spill != null ? spill.getNumberOfSpilledOperations() : 0;
+    }
+
+    /**
+     * 一時ファイルに退避するために使用した資源を解放する
+     */
+    public void close() {
+        for (int i = 0; i < this.numberOfSites; ++i) {
+            SpillQueue spill = this.spills.get(i);
+            if (spill != null) spill.close();
+        }
+    }
 }
@@ -0,0 +1,192 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+
+/**
+ * 操作オブジェクトを一時ファイルに退避するFIFOキューを実装したクラス．<br>
+ * <br>
+ * OperationQueueが一杯になった場合の退避先として使用する．操作オブジェクトはOperationCodecで変換し，
+ * 長さを先頭に付けてファイルの末尾に追加する．キューが空になった場合はファイルを切り詰める．
+ * 退避は過負荷時にのみ発生する処理であるため，全てのメソッドは同期化されている．
+ * @author kengo92i
+ * @see OperationQueue
+ * @see OperationCodec
+ */
+public class SpillQueue {
+    /**
+     * 退避先の一時ファイル
+     */
+    private final File file;
+
+    /**
+     * 退避先のファイルにアクセスするためのオブジェクト
+     */
+    private final RandomAccessFile raf;
+
+    /**
+     * 操作オブジェクトを変換するためのバッファ
+     */
+    private final ByteArrayOutputStream buffer;
+
+    /**
+     * 次に読み込む位置
+     */
+    private long readPosition;
+
+    /**
+     * 次に書き込む位置
+     */
+    private long writePosition;
+
+    /**
+     * 退避されている操作オブジェクトの数
+     */
+    private int count;
+
+    /**
+     * 退避した操作オブジェクトの総数
+     */
+    private long numberOfSpilledOperations;
+
+    /**
+     * 一時ファイルを作成してSpillQueueを作成する．
+     * @param name 一時ファイル名の接頭辞
+     */
+    public SpillQueue(String name) {
+        try {
+            this.file = File.createTempFile(name, ".spill");
+            this.file.deleteOnExit();
+            this.raf = new RandomAccessFile(this.file, "rw");
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        this.buffer = new ByteArrayOutputStream(64);
+        this.readPosition = 0;
+        this.writePosition = 0;
+        this.count = 0;
+        this.numberOfSpilledOperations = 0;
+    }
+
+    /**
+     * 操作オブジェクトを退避する．
+     * @param op 操作オブジェクト
+     */
+    public synchronized void add(Operation op) {
+        try {
+            this.buffer.reset();
+            OperationCodec.encode(op, new DataOutputStream(this.buffer));
+            this.raf.seek(this.writePosition);
+            this.raf.writeInt(this.buffer.size());
+            this.raf.write(this.buffer.toByteArray());
+            this.writePosition = this.raf.getFilePointer();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        this.count++;
+        this.numberOfSpilledOperations++;
+    }
+
+    /**
+     * 退避されている操作オブジェクトを古い順に最大max個読み込んでcに追加する．
+     * @param c 操作オブジェクトを追加するコレクション
+     * @param max 読み込む最大数
+     * @return 読み込んだ数
+     */
+    public synchronized int drainTo(Collection<? super Operation> c, int max) {
+        int n = 0;
+        try {
+            this.raf.seek(this.readPosition);
+            while (n < max && this.count > 0) {
+                c.add(this.read());
+                n++;
+            }
+            this.advance();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return n;
+    }
+
+    /**
+     * 退避されている最も古い操作オブジェクトを1つ読み込む．
+     * @return 操作オブジェクト．退避されている操作オブジェクトがない場合はnull
+     */
+    public synchronized Operation poll() {
+        if (this.count == 0) {
+            return null;
+        }
+        try {
+            this.raf.seek(this.readPosition);
+            Operation op = this.read();
+            this.advance();
+            return op;
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * ファイルの現在の位置から操作オブジェクトを1つ読み込む．
+     * @return 操作オブジェクト
+     * @throws IOException 読み込みに失敗した場合
+     */
+    private Operation read() throws IOException {
+        byte[] bytes = new byte[this.raf.readInt()];
+        this.raf.readFully(bytes);
+        this.count--;
+        return OperationCodec.fromBytes(bytes);
+    }
+
+    /**
+     * 読み込んだ位置を記録し，全て読み込んだ場合はファイルを切り詰める．
+     * @throws IOException ファイルの操作に失敗した場合
+     */
+    private void advance() throws IOException {
+        this.readPosition = this.raf.getFilePointer();
+        if (this.count == 0) {
+            this.raf.setLength(0);
+            this.readPosition = 0;
+            this.writePosition = 0;
+        }
+    }
+
+    /**
+     * 退避されている操作オブジェクトの数を返す．
+     * @return 操作オブジェクトの数
+     */
+    public synchronized int size() {
+        return this.count;
+    }
+
+    /**
+     * 退避されている操作オブジェクトが存在しないか確認する．
+     * @return 空の場合にtrueを返す．それ以外はfalse.
+     */
+    public synchronized boolean isEmpty() {
+        return this.count == 0;
+    }
+
+    /**
+     * 退避した操作オブジェクトの総数を返す．
+     * @return 退避した操作オブジェクトの総数
+     */
+    public synchronized long getNumberOfSpilledOperations() {
+        return this.numberOfSpilledOperations;
+    }
+
+    /**
+     * 一時ファイルを閉じて削除する．
+     */
+    public synchronized void close() {
+        try {
+            this.raf.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        this.file.delete();
+    }
+}
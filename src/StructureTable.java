@@ -25,6 +25,21 @@ public class StructureTable {
      */
     TreeMap<String, TreeSet<GroupEntry<String, Long>>> groupEntriesTable;
 
+    /**
+     * 状態が変化したjoinの数
+     */
+    private long numberOfJoins;
+
+    /**
+     * 状態が変化したleaveの数
+     */
+    private long numberOfLeaves;
+
+    /**
+     * 古いタイムスタンプや存在しないグループのために状態が変化しなかったjoin/leaveの数
+     */
+    private long numberOfRejected;
+
     /**
      * Structure Table のコンストラクタ
      */
@@ -47,16 +62,39 @@ public class StructureTable {
     }
 
     /**
-     * グループ(gid)にvoxel(posID)を参加させる
+     * グループ(gid)にvoxel(posID)を参加させる．<br>
+     * JFRが記録している場合は{@link FlightRecorderEvents.Structure}イベントを記録する．
      * @param ts タイムスタンプ
      * @param posID voxel識別子
      * @param gid グループ識別子
      * @see Operation
      */
     public void join(long ts, String posID, String gid) {
+        FlightRecorderEvents.Structure event = null;
+        if (FlightRecorderEvents.isActive()) {
+            event = new FlightRecorderEvents.Structure();
+            event.begin();
+        }
+        boolean applied = this.joinGroup(ts, posID, gid);
+        if (applied) {
+            this.numberOfJoins++;
+        } else {
+            this.numberOfRejected++;
+        }
+        this.commit(event, Operation.JOIN, posID, gid, applied);
+    }
+
+    /**
+     * グループ(gid)にvoxel(posID)を参加させる
+     * @param ts タイムスタンプ
+     * @param posID voxel識別子
+     * @param gid グループ識別子
+     * @return 状態が変化した場合はtrue
+     */
+    private boolean joinGroup(long ts, String posID, String gid) {
         GroupEntry<String, Long> aGroupEntry = new GroupEntry<String, Long>(gid, ts);
         if (!this.groupMembersTable.containsKey(gid) || Math.abs(this.getTimestamp(posID, gid)) >= ts) {
-            return;
+            return false;
         }
         
         // groupEntriesTable に GroupEntry(gid, ts) を追加
@@ -71,10 +109,12 @@ public class StructureTable {
         // タイムスタンプの値を最新の値に更新する
         long maxTs = Math.max(ts, this.getTimestamp(posID, gid));
         this.setTimestamp(maxTs, posID, gid);
+        return true;
     }
 
     /**
-     * グループ(gid)からvoxel(posID)を脱退させる
+     * グループ(gid)からvoxel(posID)を脱退させる．<br>
+     * JFRが記録している場合は{@link FlightRecorderEvents.Structure}イベントを記録する．
      * @param sid site識別子
      * @param ts タイムスタンプ
      * @param posID voxel識別子
@@ -82,10 +122,32 @@ public class StructureTable {
      * @see Operation
      */
     public void leave(int sid, long ts, String posID, String gid) {
+        FlightRecorderEvents.Structure event = null;
+        if (FlightRecorderEvents.isActive()) {
+            event = new FlightRecorderEvents.Structure();
+            event.begin();
+        }
+        boolean applied = this.leaveGroup(ts, posID, gid);
+        if (applied) {
+            this.numberOfLeaves++;
+        } else {
+            this.numberOfRejected++;
+        }
+        this.commit(event, Operation.LEAVE, posID, gid, applied);
+    }
+
+    /**
+     * グループ(gid)からvoxel(posID)を脱退させる
+     * @param ts タイムスタンプ
+     * @param posID voxel識別子
+     * @param gid グループ識別子
+     * @return 状態が変化した場合はtrue
+     */
+    private boolean leaveGroup(long ts, String posID, String gid) {
         GroupEntry<String, Long> aGroupEntry = new GroupEntry<String, Long>(gid, ts);
         TreeSet<GroupEntry<String, Long>> groupEntriesSet = this.getGroupEntriesSet(posID);
         if (groupEntriesSet == null || !groupEntriesSet.contains(aGroupEntry) || Math.abs(this.getTimestamp(posID, gid)) >= ts) {
-            return;
+            return false;
         } 
 
         // groupMembersTable から posID を削除 (グループからの脱退)
@@ -94,6 +156,55 @@ public class StructureTable {
         // タイムスタンプの更新 + tombstone化
         long minTs = Math.min(-1L * ts, this.getTimestamp(posID, gid));
         this.setTimestamp(minTs, posID, gid);
+        return true;
+    }
+
+    /**
+     * join/leaveのイベントを記録する．JFRが記録していない場合は何もしない．
+     * @param event 開始したイベント（JFRが記録していない場合はnull）
+     * @param opType 操作のタイプ
+     * @param posID voxel識別子
+     * @param gid グループ識別子
+     * @param applied 状態が変化したかどうか
+     */
+    private void commit(FlightRecorderEvents.Structure event, int opType, String posID, String gid, boolean applied) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            TreeSet<GroupEntry<String, Long>> groupEntries = this.groupEntriesTable.get(posID);
+            event.opType = opType;
+            event.posID = posID;
+            event.gid = gid;
+            event.applied = applied;
+            event.entries = groupEntries != null ? groupEntries.size() : 0;
+            event.commit();
+        }
+    }
+
+    /**
+     * 状態が変化したjoinの数を取得する
+     * @return joinの数
+     */
+    public long getNumberOfJoins() {
+        return this.numberOfJoins;
+    }
+
+    /**
+     * 状態が変化したleaveの数を取得する
+     * @return leaveの数
+     */
+    public long getNumberOfLeaves() {
+        return this.numberOfLeaves;
+    }
+
+    /**
+     * 古いタイムスタンプや存在しないグループのために状態が変化しなかったjoin/leaveの数を取得する
+     * @return join/leaveの数
+     */
+    public long getNumberOfRejected() {
+        return this.numberOfRejected;
     }
 
     /**
@@ -204,6 +315,111 @@ public class StructureTable {
         return statusString;
     }
 
+    /**
+     * StructureTableの状態の正規化したダイジェストを求める．グループとvoxelをgidとposIDの順に辿るため，同じ状態であれば同じ値になる．
+     * @return ダイジェスト
+     * @see ChainVoxel#digest
+     */
+    public long digest() {
+        long h = 0;
+        for (Map.Entry<String, TreeSet<String>> entry : this.groupMembersTable.entrySet()) {
+            h = ChainVoxel.mix(h, entry.getKey());
+            h = ChainVoxel.mix(h, entry.getValue().size());
+            for (String posID : entry.getValue()) {
+                h = ChainVoxel.mix(h, posID);
+            }
+        }
+        h = ChainVoxel.mix(h, -1L); // groupMembersTableとgroupEntriesTableの区切り
+        for (Map.Entry<String, TreeSet<GroupEntry<String, Long>>> entry : this.groupEntriesTable.entrySet()) {
+            h = ChainVoxel.mix(h, entry.getKey());
+            h = ChainVoxel.mix(h, entry.getValue().size());
+            for (GroupEntry<String, Long> ge : entry.getValue()) {
+                h = ChainVoxel.mix(h, ge.getKey());
+                h = ChainVoxel.mix(h, ge.getValue());
+            }
+        }
+        return h;
+    }
+
+    /**
+     * 他のStructureTableと状態が異なるグループとvoxelを求める．<br>
+     * 「group gid: 自身だけのメンバー | 他方だけのメンバー」と「entries posID: 自身だけの(gid, ts) | 他方だけの(gid, ts)」の形式の説明をdiffsに最大max個まで追加する．
+     * @param other 比較するStructureTable
+     * @param diffs 差分の説明を追加するリスト
+     * @param max 追加する説明の最大数
+     * @return 状態が異なるグループとvoxelの総数
+     */
+    public int diff(StructureTable other, List<String> diffs, int max) {
+        int count = 0;
+        TreeSet<String> gids = new TreeSet<String>(this.groupMembersTable.keySet());
+        gids.addAll(other.groupMembersTable.keySet());
+        for (String gid : gids) {
+            List<String> mine = difference(this.groupMembersTable.get(gid), other.groupMembersTable.get(gid));
+            List<String> theirs = difference(other.groupMembersTable.get(gid), this.groupMembersTable.get(gid));
+            if (mine.isEmpty() && theirs.isEmpty() && this.groupMembersTable.containsKey(gid) == other.groupMembersTable.containsKey(gid)) {
+                continue;
+            }
+            if (count++ < max) {
+                diffs.add("group " + gid + ": " + (this.groupMembersTable.containsKey(gid) ? mine : "-") +
+                        " | " + (other.groupMembersTable.containsKey(gid) ? theirs : "-"));
+            }
+        }
+        TreeSet<String> posIDs = new TreeSet<String>(this.groupEntriesTable.keySet());
+        posIDs.addAll(other.groupEntriesTable.keySet());
+        for (String posID : posIDs) {
+            List<String> mine = difference(describeEntries(this.groupEntriesTable.get(posID)), describeEntries(other.groupEntriesTable.get(posID)));
+            List<String> theirs = difference(describeEntries(other.groupEntriesTable.get(posID)), describeEntries(this.groupEntriesTable.get(posID)));
+            if (mine.isEmpty() && theirs.isEmpty()) continue;
+            if (count++ < max) {
+                diffs.add("entries " + posID + ": " + mine + " | " + theirs);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 一方の集合だけに含まれる要素を求める
+     * @param a 集合（nullの場合は空の集合）
+     * @param b 集合（nullの場合は空の集合）
+     * @return aに含まれ，bに含まれない要素のリスト
+     */
+    private static List<String> difference(TreeSet<String> a, TreeSet<String> b) {
+        List<String> result = new ArrayList<String>();
+        if (a == null) return result;
+        for (String value : a) {
+            if (b == null || !b.contains(value)) result.add(value);
+        }
+        return result;
+    }
+
+    /**
+     * (gid, ts)の集合を，tsを含めて比較できる文字列の集合に変換する
+     * @param groupEntries (gid, ts)の集合（nullの場合もある）
+     * @return "(gid, ts)"の集合．groupEntriesがnullの場合はnull
+     */
+    private static TreeSet<String> describeEntries(TreeSet<GroupEntry<String, Long>> groupEntries) {
+        if (groupEntries == null) return null;
+        TreeSet<String> result = new TreeSet<String>();
+        for (GroupEntry<String, Long> ge : groupEntries) {
+            result.add(ge.toString());
+        }
+        return result;
+    }
+
+    /**
+     * groupMembersTableとgroupEntriesTableのメモリ使用量をfootprintに加える
+     * @param footprint メモリ使用量
+     * @see ChainVoxel#footprint
+     */
+    void footprint(MemoryFootprint footprint) {
+        for (Map.Entry<String, TreeSet<String>> e : this.groupMembersTable.entrySet()) {
+            footprint.addGroup(e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, TreeSet<GroupEntry<String, Long>>> e : this.groupEntriesTable.entrySet()) {
+            footprint.addGroupEntries(e.getKey(), e.getValue());
+        }
+    }
+
     /**
      * Structure Table の状態を出力する
      */
@@ -0,0 +1,450 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 振る舞い，Site数，操作数，領域，ワークロードの組み合わせ毎にSimulatorを繰り返し実行し，結果を1つの表にまとめるクラス．<br>
+ * usage: java Sweep [options...] <br>
+ * <br>
+ * 各軸はカンマ区切りで複数の値を指定でき，全ての組み合わせ(点)を実行する．
+ * 点毎に新しいJVMを起動し(fork)，ウォームアップの実行の後に計測の実行を繰り返す．
+ * 各実行はSimulatorの--resultで出力される1行の結果を集め，スループット，遅延，メッセージ数の平均を表とCSVファイルに出力する．
+ * 繰り返し毎に異なるシードを使用するため，ばらつきには操作列の違いも含まれる．
+ * <ul>
+ * <li>--behavior=chainvoxel,2pc,raft,... : Siteの振る舞い</li>
+ * <li>--sites=N,... : Site数</li>
+ * <li>--operations=N,... : Site毎の操作数</li>
+ * <li>--limit=N,... : XYZ座標軸の限界値</li>
+ * <li>--workload=uniform,zipf,brush : 操作するセルの選び方</li>
+ * <li>--options="..." : 全ての実行でSimulatorに追加するオプション(空白区切り)</li>
+ * <li>--warmup=N : 点毎に結果を捨てる実行の回数</li>
+ * <li>--repeat=N : 点毎に計測する実行の回数</li>
+ * <li>--seed=N : 最初の実行で使用するシード(繰り返し毎に1000ずつ増やす)</li>
+ * <li>--fork=0|1 : 0の場合は全ての点を同じJVMで実行する</li>
+ * <li>--metrics=true|false : 遅延を記録するかどうか(記録するとスループットが下がる)</li>
+ * <li>--csv=ファイル名 : 結果を出力するCSVファイル</li>
+ * </ul>
+ * @author kengo92i
+ * @see Simulator#printResult
+ */
+public class Sweep {
+    /**
+     * 表とCSVファイルに出力する，実行結果の平均を求める項目
+     */
+    static final String[] COLUMNS = {
+        "throughput", "elapsed_ms", "messages", "frames", "steps", "latency_mean_ms", "latency_p50_ms", "latency_p99_ms", "latency_max_ms"
+    };
+
+    /**
+     * 1つの点（Simulatorの引数の組み合わせ）を表すクラス
+     */
+    static class Point {
+        /**
+         * Siteの振る舞い
+         */
+        final String behavior;
+
+        /**
+         * Site数
+         */
+        final int sites;
+
+        /**
+         * Site毎の操作数
+         */
+        final int operations;
+
+        /**
+         * XYZ座標軸の限界値
+         */
+        final int limit;
+
+        /**
+         * ワークロード
+         */
+        final String workload;
+
+        /**
+         * 点のコンストラクタ
+         * @param behavior Siteの振る舞い
+         * @param sites Site数
+         * @param operations Site毎の操作数
+         * @param limit XYZ座標軸の限界値
+         * @param workload ワークロード
+         */
+        Point(String behavior, int sites, int operations, int limit, String workload) {
+            this.behavior = behavior;
+            this.sites = sites;
+            this.operations = operations;
+            this.limit = limit;
+            this.workload = workload;
+        }
+
+        /**
+         * Simulatorの引数を作成する
+         * @param seed 操作生成に使用する乱数のシード
+         * @param extra 追加するオプション
+         * @param metrics 遅延を記録するかどうか
+         * @return Simulatorの引数
+         */
+        List<String> toArguments(long seed, List<String> extra, boolean metrics) {
+            List<String> args = new ArrayList<String>();
+            args.add(Integer.toString(this.sites));
+            args.add(Integer.toString(this.operations));
+            args.add(Integer.toString(this.limit));
+            args.add("--behavior=" + this.behavior);
+            args.add("--workload=" + this.workload);
+            args.add("--seed=" + seed);
+            args.add("--result");
+            if (metrics) {
+                args.add("--metrics");
+            }
+            args.addAll(extra);
+            return args;
+        }
+
+        /**
+         * 点を表す文字列を取得する
+         * @return "振る舞い/Site数/操作数/限界値/ワークロード"
+         */
+        String getName() {
+            return this.behavior + "/" + this.sites + "/" + this.operations + "/" + this.limit + "/" + this.workload;
+        }
+    }
+
+    /**
+     * 1つの点の計測結果を表すクラス
+     */
+    static class Result {
+        /**
+         * 計測した点
+         */
+        final Point point;
+
+        /**
+         * 実行毎の結果（"RESULT"の行の名前と値）
+         */
+        final List<Map<String, String>> runs;
+
+        /**
+         * 計測結果のコンストラクタ
+         * @param point 計測した点
+         * @param runs 実行毎の結果
+         */
+        Result(Point point, List<Map<String, String>> runs) {
+            this.point = point;
+            this.runs = runs;
+        }
+
+        /**
+         * 項目の平均を求める
+         * @param column 項目名
+         * @return 平均．項目を含む実行がない場合はNaN
+         */
+        double getMean(String column) {
+            double sum = 0;
+            int n = 0;
+            for (Map<String, String> run : this.runs) {
+                String value = run.get(column);
+                if (value == null) continue;
+                sum += Double.parseDouble(value);
+                n++;
+            }
+            return n == 0 ? Double.NaN : sum / n;
+        }
+
+        /**
+         * 項目の標本標準偏差を求める
+         * @param column 項目名
+         * @return 標本標準偏差．項目を含む実行が2つ未満の場合はNaN
+         */
+        double getStandardDeviation(String column) {
+            double mean = this.getMean(column);
+            double sum = 0;
+            int n = 0;
+            for (Map<String, String> run : this.runs) {
+                String value = run.get(column);
+                if (value == null) continue;
+                double d = Double.parseDouble(value) - mean;
+                sum += d * d;
+                n++;
+            }
+            return n < 2 ? Double.NaN : Math.sqrt(sum / (n - 1));
+        }
+    }
+
+    /**
+     * 各軸の値の全ての組み合わせを作成する
+     * @param behaviors 振る舞いの値
+     * @param sites Site数の値
+     * @param operations 操作数の値
+     * @param limits 限界値の値
+     * @param workloads ワークロードの値
+     * @return 点のリスト
+     */
+    static List<Point> createPoints(String[] behaviors, String[] sites, String[] operations, String[] limits, String[] workloads) {
+        List<Point> points = new ArrayList<Point>();
+        for (String behavior : behaviors) {
+            Simulator.parseBehavior(behavior); // 不正な値は実行前に異常終了させる
+            for (String workload : workloads) {
+                OperationGenerator.parseWorkload(workload);
+                for (String n : sites) {
+                    for (String ops : operations) {
+                        for (String limit : limits) {
+                            points.add(new Point(behavior, Integer.parseInt(n), Integer.parseInt(ops), Integer.parseInt(limit), workload));
+                        }
+                    }
+                }
+            }
+        }
+        return points;
+    }
+
+    /**
+     * "RESULT 名前=値 ..."の行を解析する
+     * @param line 行
+     * @return 名前と値のマップ．RESULTの行ではない場合はnull
+     */
+    static Map<String, String> parseResult(String line) {
+        if (!line.startsWith("RESULT ")) {
+            return null;
+        }
+        Map<String, String> result = new HashMap<String, String>();
+        for (String field : line.substring(7).trim().split(" +")) {
+            int eq = field.indexOf('=');
+            if (eq > 0) {
+                result.put(field.substring(0, eq), field.substring(eq + 1));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 1つの点を現在のJVMで実行し，計測の実行の"RESULT"の行を返す．<br>
+     * Simulatorの出力は捨てるため，標準出力を一時的に置き換える．
+     * @param point 実行する点
+     * @param warmup 結果を捨てる実行の回数
+     * @param repeat 計測する実行の回数
+     * @param seed 最初の実行で使用するシード
+     * @param extra 追加するオプション
+     * @param metrics 遅延を記録するかどうか
+     * @return 計測した実行の"RESULT"の行のリスト
+     */
+    static List<String> measure(Point point, int warmup, int repeat, long seed, List<String> extra, boolean metrics) {
+        List<String> lines = new ArrayList<String>();
+        PrintStream stdout = System.out;
+        for (int i = 0; i < warmup + repeat; ++i) {
+            List<String> args = point.toArguments(seed + 1000L * i, extra, metrics);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            System.gc(); // 前の実行のゴミを計測中に回収しないようにする
+            Simulator simulator = new Simulator();
+            try {
+                System.setOut(new PrintStream(buffer, true, "UTF-8"));
+                simulator.run(args.toArray(new String[args.size()]));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                System.setOut(stdout);
+            }
+            String result = null;
+            for (String line : buffer.toString().split("\n")) {
+                if (line.startsWith("RESULT ")) result = line.trim();
+            }
+            if (simulator.isAborted()) {
+                throw new IllegalStateException("Simulator aborted: " + point.getName());
+            }
+            if (result == null) {
+                throw new IllegalStateException("Simulator did not report a result: " + point.getName());
+            }
+            System.err.printf(Locale.ROOT, "# %s %s %d: %s ops/s%n", point.getName(),
+                    i < warmup ? "warmup" : "run", i < warmup ? i + 1 : i - warmup + 1, parseResult(result).get("throughput"));
+            if (i >= warmup) {
+                lines.add(result);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * 1つの点を新しいJVMで実行する．<br>
+     * 子のJVMは同じクラスパスとJVMオプションで起動し，計測の実行の"RESULT"の行を出力する．
+     * @param point 実行する点
+     * @param warmup 結果を捨てる実行の回数
+     * @param repeat 計測する実行の回数
+     * @param seed 最初の実行で使用するシード
+     * @param options 子のJVMに渡すSweepのオプション
+     * @return 計測した実行の"RESULT"の行のリスト
+     */
+    static List<String> fork(Point point, int warmup, int repeat, long seed, Map<String, String> options) {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("Sweep");
+        command.add("--run=" + point.getName());
+        command.add("--warmup=" + warmup);
+        command.add("--repeat=" + repeat);
+        command.add("--seed=" + seed);
+        command.add("--metrics=" + options.getOrDefault("metrics", "true"));
+        if (options.containsKey("options")) {
+            command.add("--options=" + options.get("options"));
+        }
+
+        List<String> lines = new ArrayList<String>();
+        try {
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            Process process = builder.start();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("RESULT ")) lines.add(line);
+            }
+            if (process.waitFor() != 0) {
+                throw new IllegalStateException("Forked JVM failed: " + point.getName());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot fork JVM: " + point.getName(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted: " + point.getName(), e);
+        }
+        if (lines.size() != repeat) {
+            throw new IllegalStateException("Forked JVM reported " + lines.size() + " results instead of " + repeat + ": " + point.getName());
+        }
+        return lines;
+    }
+
+    /**
+     * 数値を整形する．NaNの場合は"-"とする
+     * @param format 書式
+     * @param value 数値
+     * @return 整形した文字列
+     */
+    static String format(String format, double value) {
+        return Double.isNaN(value) ? "-" : String.format(Locale.ROOT, format, value);
+    }
+
+    /**
+     * 計測結果をCSVファイルに出力する．項目毎に平均と標本標準偏差を出力する．
+     * @param filename 出力するファイル名
+     * @param results 計測結果のリスト
+     */
+    static void writeCsv(String filename, List<Result> results) {
+        PrintWriter writer = null;
+        try {
+            writer = new PrintWriter(new FileWriter(filename));
+            StringBuilder header = new StringBuilder("behavior,sites,operations,limit,workload,runs");
+            for (String column : COLUMNS) {
+                header.append(',').append(column).append(',').append(column).append("_sd");
+            }
+            writer.println(header);
+            for (Result result : results) {
+                Point p = result.point;
+                StringBuilder row = new StringBuilder();
+                row.append(p.behavior).append(',').append(p.sites).append(',').append(p.operations).append(',')
+                    .append(p.limit).append(',').append(p.workload).append(',').append(result.runs.size());
+                for (String column : COLUMNS) {
+                    double mean = result.getMean(column), sd = result.getStandardDeviation(column);
+                    row.append(',').append(Double.isNaN(mean) ? "" : String.format(Locale.ROOT, "%.3f", mean));
+                    row.append(',').append(Double.isNaN(sd) ? "" : String.format(Locale.ROOT, "%.3f", sd));
+                }
+                writer.println(row);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (writer != null) writer.close();
+        }
+    }
+
+    /**
+     * オプションの値をカンマで分割する
+     * @param options オプション
+     * @param name オプション名
+     * @param defaultValue 指定されていない場合の値
+     * @return 値の配列
+     */
+    static String[] getList(Map<String, String> options, String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue).split(",");
+    }
+
+    /**
+     * 全ての点を実行し，結果を出力する
+     * @param args コマンドライン引数
+     */
+    public static void main(String[] args) {
+        Map<String, String> options = Simulator.parseOptions(args, 0);
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "1"));
+        int repeat = Integer.parseInt(options.getOrDefault("repeat", "3"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+        int forks = Integer.parseInt(options.getOrDefault("fork", "1"));
+        boolean metrics = Boolean.parseBoolean(options.getOrDefault("metrics", "true"));
+        String csv = options.getOrDefault("csv", "sweep.csv");
+        List<String> extra = new ArrayList<String>();
+        for (String option : options.getOrDefault("options", "").trim().split(" +")) {
+            if (!option.isEmpty()) extra.add(option);
+        }
+        if (repeat < 1) {
+            throw new IllegalArgumentException("--repeat must be positive");
+        }
+
+        // forkされたJVMでは指定された1つの点だけを実行し，"RESULT"の行を標準出力に出力する
+        String run = options.get("run");
+        if (run != null) {
+            String[] axes = run.split("/");
+            if (axes.length != 5) {
+                throw new IllegalArgumentException("Invalid point: " + run);
+            }
+            Point point = new Point(axes[0], Integer.parseInt(axes[1]), Integer.parseInt(axes[2]), Integer.parseInt(axes[3]), axes[4]);
+            for (String line : measure(point, warmup, repeat, seed, extra, metrics)) {
+                System.out.println(line);
+            }
+            return;
+        }
+
+        List<Point> points = createPoints(
+            getList(options, "behavior", "chainvoxel,2pc,raft"), getList(options, "sites", "10"),
+            getList(options, "operations", "100"), getList(options, "limit", "1"), getList(options, "workload", "uniform"));
+        List<Result> results = new ArrayList<Result>();
+        for (Point point : points) {
+            List<String> lines = forks <= 0
+                ? measure(point, warmup, repeat, seed, extra, metrics)
+                : fork(point, warmup, repeat, seed, options);
+            List<Map<String, String>> runs = new ArrayList<Map<String, String>>();
+            for (String line : lines) {
+                runs.add(parseResult(line));
+            }
+            results.add(new Result(point, runs));
+        }
+
+        System.out.printf(Locale.ROOT, "%-14s %5s %6s %5s %-8s %4s  %12s %10s  %9s %9s %9s  %10s %8s %10s%n",
+            "behavior", "sites", "ops", "limit", "workload", "runs", "ops/s", "sd", "mean ms", "p50 ms", "p99 ms", "messages", "msgs/op", "frames");
+        for (Result result : results) {
+            Point p = result.point;
+            double messages = result.getMean("messages");
+            System.out.printf(Locale.ROOT, "%-14s %5d %6d %5d %-8s %4d  %12s %10s  %9s %9s %9s  %10s %8s %10s%n",
+                p.behavior, p.sites, p.operations, p.limit, p.workload, result.runs.size(),
+                format("%.0f", result.getMean("throughput")), format("%.0f", result.getStandardDeviation("throughput")),
+                format("%.3f", result.getMean("latency_mean_ms")), format("%.3f", result.getMean("latency_p50_ms")),
+                format("%.3f", result.getMean("latency_p99_ms")),
+                format("%.0f", messages), format("%.2f", messages / ((double) p.sites * p.operations)),
+                format("%.0f", result.getMean("frames")));
+        }
+        writeCsv(csv, results);
+        System.out.println("results: " + csv);
+    }
+}
@@ -0,0 +1,487 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 全てのSiteが並行してトランザクションを調停する２相コミットの状態を管理するクラス．<br>
+ * <br>
+ * 各Siteは生成した操作を1つのトランザクションとして，自身が調停者となって最大window個まで並行して実行する．
+ * トランザクションは調停者の識別子と試行毎の通し番号で識別する．
+ * <ol>
+ * <li>調停者は操作するセル(posID，posIDを持たない操作はgid)のロックを自身で取得し，{@link Operation#REQUEST REQUEST}で他の全てのSiteに準備を求める．</li>
+ * <li>参加者はセルがロックされていなければロックを取得して賛成し，他のトランザクションがロックしていれば反対する({@link Operation#ACK ACK})．
+ * ロックを待たずに反対するため，デッドロックは起きない．</li>
+ * <li>調停者は全ての投票が揃った時点で，全員が賛成していれば{@link Operation#COMMIT COMMIT}を，そうでなければ{@link Operation#ABORT ABORT}を全ての参加者に送る．
+ * 参加者はCOMMITで準備した操作を適用し，ロックを解放する．</li>
+ * <li>中止したトランザクションは，試行回数に応じて指数的に伸びる範囲からランダムに選んだ時間(バックオフ)の後に，新しい通し番号で再試行する．
+ * 調停者が自身でロックを取得できない場合は，メッセージを送らずに中止する．</li>
+ * </ol>
+ * このクラスは送受信を行わない．{@link Site}が作成したメッセージを送信し，受信したメッセージを渡す．
+ * @author kengo92i
+ * @see Site#runBehaviorOfConcurrentTwoPhaseCommit
+ */
+public class TwoPhaseCommit {
+    /**
+     * バックオフの範囲を伸ばす最大の回数
+     */
+    static final int MAX_BACKOFF_EXPONENT = 10;
+
+    /**
+     * 実行中のトランザクションを表すクラス
+     */
+    static class Transaction {
+        /**
+         * トランザクションの操作
+         */
+        final Operation op;
+
+        /**
+         * 試行回数
+         */
+        int attempts;
+
+        /**
+         * 現在の試行の通し番号
+         */
+        int tx;
+
+        /**
+         * 現在の試行で受け取った投票の数
+         */
+        int votes;
+
+        /**
+         * 現在の試行で全員が賛成しているかどうか
+         */
+        boolean agreed;
+
+        /**
+         * 再試行する時刻(System.nanoTime)
+         */
+        long retryAt;
+
+        /**
+         * トランザクションのコンストラクタ
+         * @param op トランザクションの操作
+         */
+        Transaction(Operation op) {
+            this.op = op;
+        }
+    }
+
+    /**
+     * Siteの識別子
+     */
+    private final int id;
+
+    /**
+     * Siteの総数
+     */
+    private final int numberOfSites;
+
+    /**
+     * 並行して実行するトランザクションの最大数
+     */
+    private final int window;
+
+    /**
+     * バックオフの初期の範囲(ナノ秒)
+     */
+    private final long backoffNanos;
+
+    /**
+     * バックオフの時間を選ぶ乱数生成器
+     */
+    private final Random random;
+
+    /**
+     * セル毎のロックを保持しているトランザクション
+     */
+    private final Map<String, Long> locks;
+
+    /**
+     * 参加者として賛成したトランザクション毎の操作
+     */
+    private final Map<Long, Operation> prepared;
+
+    /**
+     * 投票を待っているトランザクション（試行の通し番号から）
+     */
+    private final Map<Integer, Transaction> voting;
+
+    /**
+     * 再試行を待っているトランザクション
+     */
+    private final List<Transaction> backingOff;
+
+    /**
+     * 次の試行の通し番号
+     */
+    private int nextTx;
+
+    /**
+     * コミットしたトランザクションの数
+     */
+    private int numberOfCommitted;
+
+    /**
+     * 中止した試行の数
+     */
+    private int numberOfAborted;
+
+    /**
+     * 自身でロックを取得できずに中止した試行の数
+     */
+    private int numberOfLocalConflicts;
+
+    /**
+     * 参加者として反対した数
+     */
+    private int numberOfRejectedPrepares;
+
+    /**
+     * コミットしたトランザクションの試行回数の最大値
+     */
+    private int maxAttempts;
+
+    /**
+     * バックオフした時間の合計(ナノ秒)
+     */
+    private long totalBackoffNanos;
+
+    /**
+     * ２相コミットの状態を作成する
+     * @param id Siteの識別子
+     * @param numberOfSites Siteの総数
+     * @param window 並行して実行するトランザクションの最大数
+     * @param backoffMillis バックオフの初期の範囲(ミリ秒)
+     * @param seed バックオフの時間を選ぶ乱数のシード
+     */
+    public TwoPhaseCommit(int id, int numberOfSites, int window, double backoffMillis, long seed) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be positive: " + window);
+        }
+        if (backoffMillis < 0) {
+            throw new IllegalArgumentException("backoff must not be negative: " + backoffMillis);
+        }
+        this.id = id;
+        this.numberOfSites = numberOfSites;
+        this.window = window;
+        this.backoffNanos = (long) (backoffMillis * 1e6);
+        this.random = new Random(seed);
+        this.locks = new HashMap<String, Long>();
+        this.prepared = new HashMap<Long, Operation>();
+        this.voting = new HashMap<Integer, Transaction>();
+        this.backingOff = new ArrayList<Transaction>();
+        this.nextTx = 0;
+    }
+
+    /**
+     * 新しいトランザクションを開始できるかどうか
+     * @return 実行中のトランザクションがwindow個未満の場合はtrue
+     */
+    public boolean hasFreeSlot() {
+        return this.voting.size() + this.backingOff.size() < this.window;
+    }
+
+    /**
+     * 操作を新しいトランザクションとして開始する．
+     * @param op 操作
+     * @param now 現在時刻(System.nanoTime)
+     * @param timestamp メッセージのタイムスタンプ
+     * @param committed 参加者がいないためにコミットした操作を追加するリスト
+     * @return 他の全てのSiteに送る準備の要求．ロックを取得できずに中止した場合やコミットした場合はnull
+     */
+    public Operation begin(Operation op, long now, long timestamp, List<Operation> committed) {
+        return this.attempt(new Transaction(op), now, timestamp, committed);
+    }
+
+    /**
+     * バックオフを終えたトランザクションを1つ再試行する．
+     * @param now 現在時刻(System.nanoTime)
+     * @param timestamp メッセージのタイムスタンプ
+     * @param committed 参加者がいないためにコミットした操作を追加するリスト
+     * @return 他の全てのSiteに送る準備の要求．再試行するトランザクションがない場合や，再び中止した場合はnull
+     */
+    public Operation retry(long now, long timestamp, List<Operation> committed) {
+        for (Iterator<Transaction> it = this.backingOff.iterator(); it.hasNext(); ) {
+            Transaction t = it.next();
+            if (t.retryAt - now <= 0) {
+                it.remove();
+                return this.attempt(t, now, timestamp, committed);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 再試行できるトランザクションがあるかどうか
+     * @param now 現在時刻(System.nanoTime)
+     * @return バックオフを終えたトランザクションがある場合はtrue
+     */
+    public boolean hasDueRetry(long now) {
+        return this.getNanosUntilRetry(now) == 0;
+    }
+
+    /**
+     * 最も早く再試行できるトランザクションまでの時間を求める
+     * @param now 現在時刻(System.nanoTime)
+     * @return 再試行できるまでの時間(ナノ秒)．既に再試行できる場合は0，再試行を待つトランザクションがない場合は-1
+     */
+    public long getNanosUntilRetry(long now) {
+        long min = -1;
+        for (Transaction t : this.backingOff) {
+            long remaining = Math.max(0, t.retryAt - now);
+            if (min < 0 || remaining < min) min = remaining;
+        }
+        return min;
+    }
+
+    /**
+     * 参加者として準備の要求を処理する．セルがロックされていなければロックを取得して賛成する．
+     * @param request 準備の要求
+     * @param timestamp 投票のタイムスタンプ
+     * @return 調停者に送る投票
+     */
+    public Operation onPrepare(Operation request, long timestamp) {
+        Operation op = getOperation(request);
+        long key = key(request.getId(), (Integer) request.getParam("tx"));
+        boolean agree = this.lock(lockKeyOf(op), key);
+        if (agree) {
+            this.prepared.put(key, op);
+        } else {
+            this.numberOfRejectedPrepares++;
+        }
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("sid", this.id);
+        params.put("tx", request.getParam("tx"));
+        params.put("vote", agree ? 1 : 0);
+        return new Operation(Operation.ACK, params, timestamp);
+    }
+
+    /**
+     * 調停者として投票を処理する．全ての投票が揃った場合はコミットするか中止するかを決める．
+     * @param vote 投票
+     * @param now 現在時刻(System.nanoTime)
+     * @param timestamp 決定のタイムスタンプ
+     * @param committed コミットした操作を追加するリスト
+     * @return 他の全てのSiteに送るCOMMITまたはABORT．投票が揃っていない場合はnull
+     */
+    public Operation onVote(Operation vote, long now, long timestamp, List<Operation> committed) {
+        int tx = (Integer) vote.getParam("tx");
+        Transaction t = this.voting.get(tx);
+        if (t == null) {
+            throw new IllegalStateException("Vote for unknown transaction: " + this.id + "-" + tx);
+        }
+        t.votes++;
+        t.agreed &= (Integer) vote.getParam("vote") == 1;
+        if (t.votes < this.numberOfSites - 1) {
+            return null;
+        }
+        this.voting.remove(tx);
+        this.unlock(lockKeyOf(t.op), key(this.id, tx));
+        if (t.agreed) {
+            this.commit(t, committed);
+        } else {
+            this.abort(t, now);
+        }
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("sid", this.id);
+        params.put("tx", tx);
+        return new Operation(t.agreed ? Operation.COMMIT : Operation.ABORT, params, timestamp);
+    }
+
+    /**
+     * 参加者として調停者の決定を処理する．COMMITの場合は準備した操作をcommittedに追加する．
+     * @param decision COMMITまたはABORT
+     * @param committed コミットした操作を追加するリスト
+     */
+    public void onDecision(Operation decision, List<Operation> committed) {
+        long key = key(decision.getId(), (Integer) decision.getParam("tx"));
+        Operation op = this.prepared.remove(key);
+        if (op == null) { // 反対したトランザクションの中止
+            if (decision.getOpType() == Operation.COMMIT) {
+                throw new IllegalStateException("Commit of unprepared transaction: " + decision.getId() + "-" + decision.getParam("tx"));
+            }
+            return;
+        }
+        this.unlock(lockKeyOf(op), key);
+        if (decision.getOpType() == Operation.COMMIT) {
+            committed.add(op);
+        }
+    }
+
+    /**
+     * トランザクションを試行する．自身でロックを取得できない場合は中止する．
+     * @param t トランザクション
+     * @param now 現在時刻(System.nanoTime)
+     * @param timestamp メッセージのタイムスタンプ
+     * @param committed 参加者がいないためにコミットした操作を追加するリスト
+     * @return 準備の要求．中止した場合やコミットした場合はnull
+     */
+    private Operation attempt(Transaction t, long now, long timestamp, List<Operation> committed) {
+        t.attempts++;
+        t.tx = this.nextTx++;
+        if (!this.lock(lockKeyOf(t.op), key(this.id, t.tx))) {
+            this.numberOfLocalConflicts++;
+            this.abort(t, now);
+            return null;
+        }
+        if (this.numberOfSites == 1) {
+            this.unlock(lockKeyOf(t.op), key(this.id, t.tx));
+            this.commit(t, committed);
+            return null;
+        }
+        t.votes = 0;
+        t.agreed = true;
+        this.voting.put(t.tx, t);
+
+        List<Operation> ops = new ArrayList<Operation>(1);
+        ops.add(t.op);
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("sid", this.id);
+        params.put("tx", t.tx);
+        params.put("ops", ops);
+        return new Operation(Operation.REQUEST, params, timestamp);
+    }
+
+    /**
+     * トランザクションをコミットする
+     * @param t トランザクション
+     * @param committed コミットした操作を追加するリスト
+     */
+    private void commit(Transaction t, List<Operation> committed) {
+        committed.add(t.op);
+        this.numberOfCommitted++;
+        this.maxAttempts = Math.max(this.maxAttempts, t.attempts);
+    }
+
+    /**
+     * 試行を中止し，バックオフの後に再試行する
+     * @param t トランザクション
+     * @param now 現在時刻(System.nanoTime)
+     */
+    private void abort(Transaction t, long now) {
+        this.numberOfAborted++;
+        long range = this.backoffNanos << Math.min(t.attempts - 1, MAX_BACKOFF_EXPONENT);
+        long backoff = range > 0 ? (long) (this.random.nextDouble() * range) : 0;
+        this.totalBackoffNanos += backoff;
+        t.retryAt = now + backoff;
+        this.backingOff.add(t);
+    }
+
+    /**
+     * セルのロックを取得する
+     * @param cell セル
+     * @param owner トランザクション
+     * @return 取得できた場合はtrue
+     */
+    private boolean lock(String cell, long owner) {
+        Long current = this.locks.get(cell);
+        if (current != null) {
+            return current == owner;
+        }
+        this.locks.put(cell, owner);
+        return true;
+    }
+
+    /**
+     * セルのロックを解放する
+     * @param cell セル
+     * @param owner トランザクション
+     */
+    private void unlock(String cell, long owner) {
+        Long current = this.locks.get(cell);
+        if (current != null && current == owner) {
+            this.locks.remove(cell);
+        }
+    }
+
+    /**
+     * 操作がロックするセルを取得する
+     * @param op 操作
+     * @return posID．posIDを持たない操作の場合はgid
+     */
+    static String lockKeyOf(Operation op) {
+        return op.getPosID() != null ? op.getPosID() : op.getGid();
+    }
+
+    /**
+     * トランザクションを識別する値を求める
+     * @param sid 調停者の識別子
+     * @param tx 試行の通し番号
+     * @return 識別する値
+     */
+    static long key(int sid, int tx) {
+        return ((long) sid << 32) | (tx & 0xFFFFFFFFL);
+    }
+
+    /**
+     * 準備の要求に含まれる操作を取得する
+     * @param request 準備の要求
+     * @return 操作
+     */
+    @SuppressWarnings("unchecked")
+    static Operation getOperation(Operation request) {
+        return ((List<Operation>) request.getParam("ops")).get(0);
+    }
+
+    /**
+     * 実行中のトランザクションの数を取得する
+     * @return 投票を待っているトランザクションと再試行を待っているトランザクションの数
+     */
+    public int getNumberOfActiveTransactions() {
+        return this.voting.size() + this.backingOff.size();
+    }
+
+    /**
+     * コミットしたトランザクションの数を取得する
+     * @return コミットしたトランザクションの数
+     */
+    public int getNumberOfCommittedTransactions() {
+        return this.numberOfCommitted;
+    }
+
+    /**
+     * 中止した試行の数を取得する
+     * @return 中止した試行の数
+     */
+    public int getNumberOfAbortedAttempts() {
+        return this.numberOfAborted;
+    }
+
+    /**
+     * 自身でロックを取得できずに中止した試行の数を取得する
+     * @return 中止した試行の数
+     */
+    public int getNumberOfLocalConflicts() {
+        return this.numberOfLocalConflicts;
+    }
+
+    /**
+     * 参加者として反対した数を取得する
+     * @return 反対した数
+     */
+    public int getNumberOfRejectedPrepares() {
+        return this.numberOfRejectedPrepares;
+    }
+
+    /**
+     * コミットしたトランザクションの試行回数の最大値を取得する
+     * @return 試行回数の最大値
+     */
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    /**
+     * バックオフした時間の合計を取得する
+     * @return バックオフした時間(ナノ秒)
+     */
+    public long getTotalBackoffNanos() {
+        return this.totalBackoffNanos;
+    }
+}
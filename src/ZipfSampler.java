@@ -0,0 +1,134 @@
+import java.util.Random;
+
+/**
+ * Zipf分布に従う整数を生成するクラス．<br>
+ * <br>
+ * 1からnまでの整数kを，1/k^sに比例する確率で生成する．
+ * 棄却逆関数法(W. Hörmann and G. Derflinger, "Rejection-inversion to generate variates from monotone discrete distributions", 1996)を用いるため，
+ * nが大きくても表を作成せずにO(1)で生成できる．<br>
+ * 状態を持たないため，複数のSiteで共有できる．乱数生成器は呼び出し側が与える．
+ * @author kengo92i
+ * @see OperationGenerator
+ */
+public class ZipfSampler {
+    /**
+     * 生成する整数の最大値
+     */
+    private final long n;
+
+    /**
+     * 分布の指数s
+     */
+    private final double exponent;
+
+    /**
+     * H(1.5) - 1
+     */
+    private final double hIntegralX1;
+
+    /**
+     * H(n + 0.5)
+     */
+    private final double hIntegralN;
+
+    /**
+     * 棄却せずに受理できる範囲を決める定数
+     */
+    private final double threshold;
+
+    /**
+     * ZipfSamplerのコンストラクタ
+     * @param n 生成する整数の最大値
+     * @param exponent 分布の指数(正の値)
+     */
+    public ZipfSampler(long n, double exponent) {
+        if (n < 1) {
+            throw new IllegalArgumentException("n must be positive: " + n);
+        }
+        if (!(exponent > 0)) {
+            throw new IllegalArgumentException("exponent must be positive: " + exponent);
+        }
+        this.n = n;
+        this.exponent = exponent;
+        this.hIntegralX1 = this.hIntegral(1.5) - 1.0;
+        this.hIntegralN = this.hIntegral(n + 0.5);
+        this.threshold = 2.0 - this.hIntegralInverse(this.hIntegral(2.5) - this.h(2.0));
+    }
+
+    /**
+     * Zipf分布に従う整数を生成する
+     * @param random 乱数生成器
+     * @return 1からnまでの整数(1が最も生成されやすい)
+     */
+    public long sample(Random random) {
+        while (true) {
+            double u = this.hIntegralN + random.nextDouble() * (this.hIntegralX1 - this.hIntegralN);
+            double x = this.hIntegralInverse(u);
+            long k = (long) (x + 0.5);
+            if (k < 1) {
+                k = 1;
+            } else if (k > this.n) {
+                k = this.n;
+            }
+            if (k - x <= this.threshold || u >= this.hIntegral(k + 0.5) - this.h(k)) {
+                return k;
+            }
+        }
+    }
+
+    /**
+     * 確率関数に比例する関数h(x) = 1/x^s
+     * @param x 引数
+     * @return h(x)
+     */
+    private double h(double x) {
+        return Math.exp(-this.exponent * Math.log(x));
+    }
+
+    /**
+     * hの原始関数H(x) = (x^(1-s) - 1) / (1 - s)．s = 1の場合はlog(x)となる．
+     * @param x 引数
+     * @return H(x)
+     */
+    private double hIntegral(double x) {
+        double logX = Math.log(x);
+        return helper2((1.0 - this.exponent) * logX) * logX;
+    }
+
+    /**
+     * Hの逆関数
+     * @param x 引数
+     * @return H^-1(x)
+     */
+    private double hIntegralInverse(double x) {
+        double t = x * (1.0 - this.exponent);
+        if (t < -1.0) {
+            t = -1.0; // 丸め誤差で範囲外になるのを防ぐ
+        }
+        return Math.exp(helper1(t) * x);
+    }
+
+    /**
+     * log(1 + x) / x を，xが0に近い場合も精度良く計算する
+     * @param x 引数
+     * @return log(1 + x) / x
+     */
+    private static double helper1(double x) {
+        if (Math.abs(x) > 1e-8) {
+            return Math.log1p(x) / x;
+        }
+        return 1.0 - x * (0.5 - x * (1.0 / 3.0 - 0.25 * x));
+    }
+
+    /**
+     * (exp(x) - 1) / x を，xが0に近い場合も精度良く計算する
+     * @param x 引数
+     * @return (exp(x) - 1) / x
+     */
+    private static double helper2(double x) {
+        if (Math.abs(x) > 1e-8) {
+            return Math.expm1(x) / x;
+        }
+        return 1.0 + x * 0.5 * (1.0 + x * (1.0 / 3.0) * (1.0 + 0.25 * x));
+    }
+}